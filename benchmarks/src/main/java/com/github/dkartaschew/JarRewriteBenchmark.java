@@ -0,0 +1,269 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link PackageMOJO#process(ArtifactDefinition, org.apache.maven.plugin.logging.Log)}
+ * over synthetic JAR files, and for artifact resolution.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JarRewriteBenchmark {
+
+	/**
+	 * The layout of the synthetic JAR.
+	 */
+	@Param({ "LARGE", "SMALL", "SHADED" })
+	public String layout;
+
+	/**
+	 * The compression method of the entries in the synthetic JAR.
+	 */
+	@Param({ "STORED", "DEFLATED" })
+	public String method;
+
+	/**
+	 * Throughput counters, reported alongside operations per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Throughput {
+
+		/**
+		 * Bytes processed.
+		 */
+		private long bytes;
+
+		/**
+		 * Entries processed.
+		 */
+		public long entries;
+
+		/**
+		 * Megabytes processed, reported as MB/s.
+		 *
+		 * @return The megabytes processed.
+		 */
+		public double megabytes() {
+			return bytes / (1024.0 * 1024.0);
+		}
+
+		/**
+		 * Reset the counters before each iteration.
+		 */
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+			entries = 0;
+		}
+	}
+
+	/**
+	 * Working directory.
+	 */
+	private Path work;
+
+	/**
+	 * The synthetic JAR.
+	 */
+	private Path jar;
+
+	/**
+	 * The synthetic JAR, located in the local repository.
+	 */
+	private Path published;
+
+	/**
+	 * Size of the synthetic JAR.
+	 */
+	private long size;
+
+	/**
+	 * Number of entries in the synthetic JAR.
+	 */
+	private int entries;
+
+	/**
+	 * The plugin.
+	 */
+	private PackageMOJO mojo;
+
+	/**
+	 * Definition to merge the manifest.
+	 */
+	private ArtifactDefinition merge;
+
+	/**
+	 * Definition to overwrite the manifest.
+	 */
+	private ArtifactDefinition overwrite;
+
+	/**
+	 * Definition to publish back into the local repository.
+	 */
+	private ArtifactDefinition publish;
+
+	/**
+	 * Generate the synthetic JAR and configure the plugin.
+	 *
+	 * @throws IOException Generating the JAR failed.
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		work = Files.createTempDirectory("manifest-update-benchmark");
+		jar = work.resolve("synthetic-1.0.jar");
+		entries = SyntheticJar.generate(jar, SyntheticJar.Layout.valueOf(layout),
+				"STORED".equals(method) ? ZipEntry.STORED : ZipEntry.DEFLATED);
+		size = Files.size(jar);
+
+		Path manifest = work.resolve("supplement.mf");
+		Files.write(manifest, ("Manifest-Version: 1.0\n" + "Built-By: benchmark\n"
+				+ "Bundle-Version: 1.0.0\n\n").getBytes(StandardCharsets.UTF_8));
+
+		Path repository = work.resolve("repository");
+		published = repository.resolve("org/example/synthetic/1.0/synthetic-1.0.jar");
+		Files.createDirectories(published.getParent());
+		Files.copy(jar, published);
+
+		mojo = new PackageMOJO();
+		mojo.setOutputDirectory(work.resolve("target").toFile());
+		mojo.setLocalRepository(repository.toFile());
+		mojo.setChecksums(Arrays.asList("SHA-1", "MD5", "SHA-256", "SHA-512"));
+
+		merge = definition(jar.toFile(), null, manifest.toFile(), "merge");
+		overwrite = definition(jar.toFile(), null, manifest.toFile(), "overwrite");
+		publish = definition(null, "org.example:synthetic:1.0", manifest.toFile(), "merge");
+		publish.setPublishArtifact(true);
+	}
+
+	/**
+	 * Remove all generated files.
+	 *
+	 * @throws IOException Removing the files failed.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(work)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	/**
+	 * Rewrite the JAR, merging the manifest.
+	 *
+	 * @param throughput The throughput counters.
+	 * @throws Exception Processing failed.
+	 */
+	@Benchmark
+	public void merge(Throughput throughput) throws Exception {
+		mojo.process(merge, new NullLog());
+		count(throughput);
+	}
+
+	/**
+	 * Rewrite the JAR, overwriting the manifest.
+	 *
+	 * @param throughput The throughput counters.
+	 * @throws Exception Processing failed.
+	 */
+	@Benchmark
+	public void overwrite(Throughput throughput) throws Exception {
+		mojo.process(overwrite, new NullLog());
+		count(throughput);
+	}
+
+	/**
+	 * Rewrite the JAR in the local repository, publishing it with checksums.
+	 *
+	 * @param throughput The throughput counters.
+	 * @throws Exception Processing failed.
+	 */
+	@Benchmark
+	public void publish(Throughput throughput) throws Exception {
+		mojo.process(publish, new NullLog());
+		count(throughput);
+	}
+
+	/**
+	 * Resolve the artifact in the local repository.
+	 *
+	 * @return The location of the artifact.
+	 * @throws IOException Resolution failed.
+	 */
+	@Benchmark
+	public Path resolve() throws IOException {
+		return mojo.getSourcePath(publish);
+	}
+
+	/**
+	 * Count one processed JAR.
+	 *
+	 * @param throughput The throughput counters.
+	 */
+	private void count(Throughput throughput) {
+		throughput.bytes += size;
+		throughput.entries += entries;
+	}
+
+	/**
+	 * Create a definition.
+	 *
+	 * @param jarFile  The JAR file, or {@code null}.
+	 * @param artifact The artifact, or {@code null}.
+	 * @param manifest The supplemental manifest.
+	 * @param mode     The update mode.
+	 * @return The definition.
+	 */
+	private static ArtifactDefinition definition(File jarFile, String artifact, File manifest, String mode) {
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setJarFile(jarFile);
+		def.setArtifact(artifact);
+		def.setManifestFile(manifest);
+		def.setMode(mode);
+		return def;
+	}
+}
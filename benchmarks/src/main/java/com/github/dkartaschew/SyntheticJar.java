@@ -0,0 +1,152 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generator for synthetic JAR files used by the benchmarks.
+ */
+final class SyntheticJar {
+
+	/**
+	 * The layout of the generated JAR.
+	 */
+	enum Layout {
+		/**
+		 * A few large entries.
+		 */
+		LARGE,
+		/**
+		 * Many tiny entries.
+		 */
+		SMALL,
+		/**
+		 * Directories, many class sized entries and a few large resources.
+		 */
+		SHADED
+	}
+
+	/**
+	 * No instances.
+	 */
+	private SyntheticJar() {
+	}
+
+	/**
+	 * Generate a JAR file.
+	 *
+	 * @param path   The file to write.
+	 * @param layout The layout.
+	 * @param method The compression method for all entries,
+	 *               {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+	 * @return The number of entries written.
+	 * @throws IOException Writing the file failed.
+	 */
+	static int generate(Path path, Layout layout, int method) throws IOException {
+		Random random = new Random(42);
+		int count = 0;
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(path.toFile()))) {
+			Manifest manifest = new Manifest();
+			manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+			manifest.getMainAttributes().putValue("Created-By", "SyntheticJar");
+			out.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+			manifest.write(out);
+			out.closeEntry();
+			count++;
+			switch (layout) {
+			case LARGE:
+				for (int i = 0; i < 8; i++) {
+					add(out, "data/blob-" + i + ".bin", content(random, 8 * 1024 * 1024), method);
+					count++;
+				}
+				break;
+			case SMALL:
+				for (int i = 0; i < 20000; i++) {
+					add(out, "res/" + (i / 1000) + "/item-" + i + ".txt", content(random, 64 + random.nextInt(448)),
+							method);
+					count++;
+				}
+				break;
+			default:
+				for (int p = 0; p < 200; p++) {
+					String pkg = "com/example/shaded/p" + p + "/";
+					add(out, pkg, new byte[0], ZipEntry.STORED);
+					count++;
+					for (int c = 0; c < 25; c++) {
+						add(out, pkg + "Class" + c + ".class", content(random, 1024 + random.nextInt(7168)), method);
+						count++;
+					}
+				}
+				for (int r = 0; r < 4; r++) {
+					add(out, "assets/resource-" + r + ".dat", content(random, 256 * 1024), method);
+					count++;
+				}
+				break;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Add an entry.
+	 *
+	 * @param out    The output.
+	 * @param name   The entry name.
+	 * @param data   The entry content.
+	 * @param method The compression method.
+	 * @throws IOException Writing the entry failed.
+	 */
+	private static void add(ZipOutputStream out, String name, byte[] data, int method) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(method);
+		if (method == ZipEntry.STORED) {
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			entry.setSize(data.length);
+			entry.setCompressedSize(data.length);
+			entry.setCrc(crc.getValue());
+		}
+		out.putNextEntry(entry);
+		out.write(data);
+		out.closeEntry();
+	}
+
+	/**
+	 * Generate somewhat compressible content, similar to class files and text.
+	 *
+	 * @param random The random source.
+	 * @param length The length.
+	 * @return The content.
+	 */
+	private static byte[] content(Random random, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) ('a' + random.nextInt(16));
+		}
+		return data;
+	}
+}
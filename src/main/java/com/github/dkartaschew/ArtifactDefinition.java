@@ -31,6 +31,13 @@ public class ArtifactDefinition {
 	@Parameter
 	private File jarFile;
 
+	/**
+	 * A directory or glob pattern of JAR Files to update, relative to the project
+	 * base directory.
+	 */
+	@Parameter
+	private String jarFiles;
+
 	/**
 	 * The name of the artifact located in the local maven repository. This should
 	 * be in Apache Buildr format.
@@ -50,6 +57,27 @@ public class ArtifactDefinition {
 	@Parameter(defaultValue = "merge")
 	private String mode;
 
+	/**
+	 * The update strategy. (either {@code rewrite} or {@code append}).
+	 */
+	@Parameter(defaultValue = "rewrite")
+	private String strategy;
+
+	/**
+	 * The compression level to recompress all entries with. (either {@code -1} to
+	 * keep each entry as is, {@code 0} to store all entries or {@code 1} to
+	 * {@code 9} to deflate all entries).
+	 */
+	@Parameter(defaultValue = "-1")
+	private int compressionLevel = -1;
+
+	/**
+	 * The boundary to align the data of stored entries to. (either {@code 0} to
+	 * not align, or a power of two up to {@code 32768}, eg {@code 4096}).
+	 */
+	@Parameter(defaultValue = "0")
+	private int alignment;
+
 	/**
 	 * Flag to indicate if to republish an artifact back to the local maven
 	 * repository.
@@ -57,6 +85,25 @@ public class ArtifactDefinition {
 	@Parameter(defaultValue = "false")
 	private boolean publishArtifact;
 
+	/**
+	 * A pattern of JAR Files nested within the JAR File to update instead of the
+	 * JAR File itself, eg {@code BOOT-INF/lib/*.jar}.
+	 */
+	@Parameter
+	private String nestedJars;
+
+	/**
+	 * The JAR File resolved by maven for a project dependency, or {@code null} if
+	 * the definition was configured explicitly.
+	 */
+	private File resolvedFile;
+
+	/**
+	 * The location of the output relative to the output directory, for a JAR File
+	 * found by {@code jarFiles}, or {@code null} to use the name of the JAR File.
+	 */
+	private String outputPath;
+
 	/**
 	 * The name of the JAR File to update.
 	 * 
@@ -75,6 +122,27 @@ public class ArtifactDefinition {
 		this.jarFile = jarFile;
 	}
 
+	/**
+	 * Get the directory or glob pattern of JAR Files to update.
+	 * 
+	 * @return The directory or glob pattern, or {@code null} if not set.
+	 */
+	public String getJarFiles() {
+		return jarFiles;
+	}
+
+	/**
+	 * Set the directory or glob pattern of JAR Files to update, eg
+	 * {@code target/lib/**}{@code /*.jar}. A directory matches all JAR Files in
+	 * the directory and its sub-directories. The location is relative to the
+	 * project base directory.
+	 * 
+	 * @param jarFiles The directory or glob pattern, or {@code null} to unset.
+	 */
+	public void setJarFiles(String jarFiles) {
+		this.jarFiles = jarFiles;
+	}
+
 	/**
 	 * Get the name of the artifact to update.
 	 * 
@@ -136,6 +204,78 @@ public class ArtifactDefinition {
 		this.mode = mode;
 	}
 
+	/**
+	 * Get the update strategy.
+	 * <p>
+	 * {@code rewrite} writes a new JAR file containing all entries.
+	 * {@code append} copies every entry of the JAR file as is (a full copy, unless
+	 * the JAR file is updated in place) and then appends the new manifest and a
+	 * new central directory, leaving the original manifest unreferenced.
+	 * 
+	 * @return The update strategy.
+	 */
+	public String getStrategy() {
+		if (strategy == null) {
+			return "rewrite";
+		}
+		return strategy;
+	}
+
+	/**
+	 * Set the update strategy.
+	 * 
+	 * @param strategy The update strategy, or {@code null} to reset to default.
+	 */
+	public void setStrategy(String strategy) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Get the compression level.
+	 * <p>
+	 * {@code -1} copies each entry as is, {@code 0} stores every entry
+	 * uncompressed, and {@code 1} (fastest) to {@code 9} (smallest) deflates
+	 * every entry at that level.
+	 * 
+	 * @return The compression level.
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Set the compression level.
+	 * 
+	 * @param compressionLevel The compression level, or {@code -1} to copy each
+	 *                         entry as is.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Get the boundary the data of stored entries is aligned to.
+	 * <p>
+	 * Stored entries are padded (with an extra field in the local header) so the
+	 * data starts at a multiple of the alignment, allowing readers that memory
+	 * map the JAR file to use the data in place.
+	 * 
+	 * @return The alignment in bytes, or {@code 0} to not align.
+	 */
+	public int getAlignment() {
+		return alignment;
+	}
+
+	/**
+	 * Set the boundary the data of stored entries is aligned to.
+	 * 
+	 * @param alignment The alignment in bytes, a power of two up to
+	 *                  {@code 32768}, or {@code 0} to not align.
+	 */
+	public void setAlignment(int alignment) {
+		this.alignment = alignment;
+	}
+
 	/**
 	 * Should the result be published back into the local maven repository.
 	 * 
@@ -155,6 +295,82 @@ public class ArtifactDefinition {
 		this.publishArtifact = publishArtifact;
 	}
 
+	/**
+	 * Get the pattern of nested JAR Files to update.
+	 * 
+	 * @return The pattern, or {@code null} to update the JAR File itself.
+	 */
+	public String getNestedJars() {
+		return nestedJars;
+	}
+
+	/**
+	 * Set the pattern of JAR Files nested within the JAR File to update instead
+	 * of the JAR File itself, eg {@code BOOT-INF/lib/*.jar}. The pattern is
+	 * matched against the full entry name, where {@code *} and {@code ?} match
+	 * within a directory and {@code **} matches across directories.
+	 * 
+	 * @param nestedJars The pattern, or {@code null} to update the JAR File
+	 *                   itself.
+	 */
+	public void setNestedJars(String nestedJars) {
+		this.nestedJars = nestedJars;
+	}
+
+	/**
+	 * Get the JAR File resolved by maven for a project dependency.
+	 * 
+	 * @return The resolved JAR File, or {@code null} if the definition was
+	 *         configured explicitly.
+	 */
+	File getResolvedFile() {
+		return resolvedFile;
+	}
+
+	/**
+	 * Set the JAR File resolved by maven for a project dependency. The resolved
+	 * file is used in place of locating the artifact in the local maven
+	 * repository.
+	 * 
+	 * @param resolvedFile The resolved JAR File.
+	 */
+	void setResolvedFile(File resolvedFile) {
+		this.resolvedFile = resolvedFile;
+	}
+
+	/**
+	 * Get the location of the output relative to the output directory.
+	 * 
+	 * @return The relative location, or {@code null} to use the name of the JAR
+	 *         File.
+	 */
+	String getOutputPath() {
+		return outputPath;
+	}
+
+	/**
+	 * Create a definition to update a single JAR File found by {@code jarFiles},
+	 * with the same settings as this definition.
+	 * 
+	 * @param file       The JAR File found.
+	 * @param outputPath The location of the output relative to the output
+	 *                   directory.
+	 * @return The definition.
+	 */
+	ArtifactDefinition forJarFile(File file, String outputPath) {
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.jarFile = file;
+		def.manifestFile = manifestFile;
+		def.mode = mode;
+		def.strategy = strategy;
+		def.compressionLevel = compressionLevel;
+		def.alignment = alignment;
+		def.publishArtifact = publishArtifact;
+		def.nestedJars = nestedJars;
+		def.outputPath = outputPath;
+		return def;
+	}
+
 	/**
 	 * Does this artifact have enough information to proceed.
 	 * <p>
@@ -164,18 +380,26 @@ public class ArtifactDefinition {
 	 * @return TRYE if all required values have been set.
 	 */
 	public boolean isValidState() {
-		return jarFile != null || (artifact != null && !artifact.trim().isEmpty());
+		return jarFile != null || (artifact != null && !artifact.trim().isEmpty())
+				|| (jarFiles != null && !jarFiles.trim().isEmpty());
 	}
 
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
+		result = prime * result + alignment;
 		result = prime * result + ((artifact == null) ? 0 : artifact.hashCode());
+		result = prime * result + compressionLevel;
 		result = prime * result + ((jarFile == null) ? 0 : jarFile.hashCode());
+		result = prime * result + ((jarFiles == null) ? 0 : jarFiles.hashCode());
 		result = prime * result + ((manifestFile == null) ? 0 : manifestFile.hashCode());
 		result = prime * result + ((mode == null) ? 0 : mode.hashCode());
+		result = prime * result + ((nestedJars == null) ? 0 : nestedJars.hashCode());
+		result = prime * result + ((outputPath == null) ? 0 : outputPath.hashCode());
 		result = prime * result + (publishArtifact ? 1231 : 1237);
+		result = prime * result + ((resolvedFile == null) ? 0 : resolvedFile.hashCode());
+		result = prime * result + ((strategy == null) ? 0 : strategy.hashCode());
 		return result;
 	}
 
@@ -188,16 +412,25 @@ public class ArtifactDefinition {
 		if (getClass() != obj.getClass())
 			return false;
 		ArtifactDefinition other = (ArtifactDefinition) obj;
+		if (alignment != other.alignment)
+			return false;
 		if (artifact == null) {
 			if (other.artifact != null)
 				return false;
 		} else if (!artifact.equals(other.artifact))
 			return false;
+		if (compressionLevel != other.compressionLevel)
+			return false;
 		if (jarFile == null) {
 			if (other.jarFile != null)
 				return false;
 		} else if (!jarFile.equals(other.jarFile))
 			return false;
+		if (jarFiles == null) {
+			if (other.jarFiles != null)
+				return false;
+		} else if (!jarFiles.equals(other.jarFiles))
+			return false;
 		if (manifestFile == null) {
 			if (other.manifestFile != null)
 				return false;
@@ -208,8 +441,28 @@ public class ArtifactDefinition {
 				return false;
 		} else if (!mode.equals(other.mode))
 			return false;
+		if (nestedJars == null) {
+			if (other.nestedJars != null)
+				return false;
+		} else if (!nestedJars.equals(other.nestedJars))
+			return false;
+		if (outputPath == null) {
+			if (other.outputPath != null)
+				return false;
+		} else if (!outputPath.equals(other.outputPath))
+			return false;
 		if (publishArtifact != other.publishArtifact)
 			return false;
+		if (resolvedFile == null) {
+			if (other.resolvedFile != null)
+				return false;
+		} else if (!resolvedFile.equals(other.resolvedFile))
+			return false;
+		if (strategy == null) {
+			if (other.strategy != null)
+				return false;
+		} else if (!strategy.equals(other.strategy))
+			return false;
 		return true;
 	}
 
@@ -0,0 +1,94 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Filter artifacts by {@code groupId:artifactId} patterns.
+ * <p>
+ * Each pattern is {@code groupId[:artifactId]}, where either part may use
+ * {@code *} to match any sequence of characters. A missing artifactId matches
+ * all artifacts in the group(s). An artifact is accepted if it matches any
+ * include (or there are no includes) and no exclude.
+ */
+final class ArtifactFilter {
+
+	/**
+	 * The include patterns.
+	 */
+	private final List<Pattern> includes;
+
+	/**
+	 * The exclude patterns.
+	 */
+	private final List<Pattern> excludes;
+
+	/**
+	 * Create a new filter.
+	 *
+	 * @param includes The include patterns, may be {@code null} or empty to
+	 *                 include all artifacts.
+	 * @param excludes The exclude patterns, may be {@code null}.
+	 */
+	ArtifactFilter(List<String> includes, List<String> excludes) {
+		this.includes = compile(includes);
+		this.excludes = compile(excludes);
+	}
+
+	/**
+	 * Is the artifact accepted by this filter.
+	 *
+	 * @param groupId    The group ID.
+	 * @param artifactId The artifact ID.
+	 * @return TRUE if the artifact is accepted.
+	 */
+	boolean accept(String groupId, String artifactId) {
+		String key = groupId + ":" + artifactId;
+		if (!includes.isEmpty() && includes.stream().noneMatch(p -> p.matcher(key).matches())) {
+			return false;
+		}
+		return excludes.stream().noneMatch(p -> p.matcher(key).matches());
+	}
+
+	/**
+	 * Compile the patterns.
+	 *
+	 * @param patterns The patterns, may be {@code null}.
+	 * @return The compiled patterns.
+	 */
+	private static List<Pattern> compile(List<String> patterns) {
+		if (patterns == null) {
+			return Collections.emptyList();
+		}
+		return patterns.stream().filter(p -> p != null && !p.trim().isEmpty()).map(p -> {
+			String pattern = p.trim();
+			if (pattern.indexOf(':') < 0) {
+				pattern = pattern + ":*";
+			}
+			String[] parts = pattern.split("\\*", -1);
+			StringBuilder regex = new StringBuilder(Pattern.quote(parts[0]));
+			for (int i = 1; i < parts.length; i++) {
+				regex.append(".*").append(Pattern.quote(parts[i]));
+			}
+			return Pattern.compile(regex.toString());
+		}).collect(Collectors.toList());
+	}
+}
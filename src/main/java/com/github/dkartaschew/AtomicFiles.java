@@ -0,0 +1,136 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helpers to replace files such that readers never observe a partially written
+ * file.
+ */
+final class AtomicFiles {
+
+	/**
+	 * No instances.
+	 */
+	private AtomicFiles() {
+	}
+
+	/**
+	 * Create a new temporary file alongside the given target, so that it may
+	 * later replace the target with {@link #replace(Path, Path)}.
+	 *
+	 * @param target The file that will be replaced.
+	 * @return The temporary file.
+	 * @throws IOException Creating the file failed.
+	 */
+	static Path temporary(Path target) throws IOException {
+		Path dir = target.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		return Files.createTempFile(dir, target.getFileName().toString() + ".", ".tmp");
+	}
+
+	/**
+	 * Move the source file over the target file, atomically if supported by the
+	 * file system.
+	 *
+	 * @param source The file to move.
+	 * @param target The file to replace.
+	 * @throws IOException Moving the file failed.
+	 */
+	static void replace(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Write the content to the target, replacing it atomically.
+	 *
+	 * @param target  The file to write.
+	 * @param content The content.
+	 * @throws IOException Writing the file failed.
+	 */
+	static void write(Path target, byte[] content) throws IOException {
+		Path tmp = temporary(target);
+		try {
+			Files.write(tmp, content);
+			replace(tmp, target);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Make the content of the source file available as the target file, using a
+	 * hard link if possible, otherwise a copy. The target is replaced atomically.
+	 *
+	 * @param source The existing file.
+	 * @param target The file to create or replace.
+	 * @param link   TRUE to attempt to use a hard link.
+	 * @throws IOException Linking or copying failed.
+	 */
+	static void expose(Path source, Path target, boolean link) throws IOException {
+		if (Files.exists(target) && Files.isSameFile(source, target)) {
+			return;
+		}
+		Path tmp = temporary(target);
+		try {
+			boolean linked = false;
+			if (link) {
+				Files.delete(tmp);
+				try {
+					Files.createLink(tmp, source);
+					linked = true;
+				} catch (IOException | UnsupportedOperationException e) {
+					// Different file stores, or not supported, so copy.
+				}
+			}
+			if (!linked) {
+				Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+			}
+			replace(tmp, target);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Does the file have more than one hard link, so modifying it in place would
+	 * also modify the other links. Where the number of links is unknown (eg on
+	 * Windows, which still supports hard links), the file is assumed to be
+	 * linked.
+	 *
+	 * @param file The file.
+	 * @return TRUE if the file has, or may have, other links.
+	 */
+	static boolean isLinked(Path file) {
+		try {
+			Object links = Files.getAttribute(file, "unix:nlink");
+			return links instanceof Integer && (Integer) links > 1;
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			// Unknown, eg not a POSIX file system.
+			return true;
+		}
+	}
+}
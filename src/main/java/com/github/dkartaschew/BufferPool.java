@@ -0,0 +1,180 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of reusable buffers, shared by all JAR files being copied.
+ * <p>
+ * Buffers are pooled in power of two size classes, from 4KB to 16MB, so the
+ * copy of each entry (and each JAR file) reuses the buffers of the previous
+ * copies rather than allocating new ones. Larger buffers are not pooled. The
+ * total capacity held by the pool is bounded, buffers released beyond the
+ * bound are left to the garbage collector.
+ * <p>
+ * This class is thread safe.
+ */
+final class BufferPool {
+
+	/**
+	 * The smallest size class, as a power of 2.
+	 */
+	private static final int MIN_SHIFT = 12;
+
+	/**
+	 * The largest size class, as a power of 2.
+	 */
+	private static final int MAX_SHIFT = 24;
+
+	/**
+	 * The capacity of the largest buffer pooled. Larger buffers are allocated
+	 * for each request and left to be garbage collected.
+	 */
+	static final int MAX_CAPACITY = 1 << MAX_SHIFT;
+
+	/**
+	 * The maximum total capacity held by each shared pool.
+	 */
+	private static final long MAX_POOLED = 64L * 1024 * 1024;
+
+	/**
+	 * Shared pool of heap buffers.
+	 */
+	static final BufferPool HEAP = new BufferPool(false, MAX_POOLED);
+
+	/**
+	 * Shared pool of direct buffers.
+	 */
+	static final BufferPool DIRECT = new BufferPool(true, MAX_POOLED);
+
+	/**
+	 * TRUE to allocate direct buffers.
+	 */
+	private final boolean direct;
+
+	/**
+	 * The maximum total capacity held.
+	 */
+	private final long maxPooled;
+
+	/**
+	 * The free buffers of each size class.
+	 */
+	private final ArrayDeque<ByteBuffer>[] free;
+
+	/**
+	 * The total capacity held.
+	 */
+	private long pooled;
+
+	/**
+	 * Create a new pool.
+	 *
+	 * @param direct    TRUE to allocate direct buffers, FALSE for heap buffers.
+	 * @param maxPooled The maximum total capacity held by the pool.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	BufferPool(boolean direct, long maxPooled) {
+		this.direct = direct;
+		this.maxPooled = maxPooled;
+		this.free = new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * Get a cleared buffer of at least the given capacity. The buffer should be
+	 * returned with {@link #release(ByteBuffer)} once no longer used.
+	 *
+	 * @param capacity The minimum capacity.
+	 * @return The buffer, (with an accessible array if a heap buffer).
+	 */
+	ByteBuffer acquire(int capacity) {
+		int shift = shift(capacity);
+		if (shift > MAX_SHIFT) {
+			return allocate(capacity);
+		}
+		synchronized (this) {
+			ByteBuffer b = free[shift - MIN_SHIFT].poll();
+			if (b != null) {
+				pooled -= b.capacity();
+				return b;
+			}
+		}
+		return allocate(1 << shift);
+	}
+
+	/**
+	 * Return a buffer obtained from {@link #acquire(int)} to the pool. The
+	 * buffer must not be used afterwards.
+	 *
+	 * @param b The buffer, may be {@code null}.
+	 */
+	void release(ByteBuffer b) {
+		if (b == null || b.isDirect() != direct) {
+			return;
+		}
+		int capacity = b.capacity();
+		int shift = shift(capacity);
+		if (shift > MAX_SHIFT || capacity != 1 << shift) {
+			return;
+		}
+		b.clear();
+		synchronized (this) {
+			if (pooled + capacity <= maxPooled) {
+				free[shift - MIN_SHIFT].push(b);
+				pooled += capacity;
+			}
+		}
+	}
+
+	/**
+	 * Is this a pool of direct buffers.
+	 *
+	 * @return TRUE if direct buffers are allocated.
+	 */
+	boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Allocate a new buffer.
+	 *
+	 * @param capacity The capacity.
+	 * @return The buffer.
+	 */
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Get the size class of the capacity.
+	 *
+	 * @param capacity The capacity.
+	 * @return The smallest power of 2 (at least the smallest size class) not
+	 *         less than the capacity.
+	 */
+	private static int shift(int capacity) {
+		if (capacity <= 1 << MIN_SHIFT) {
+			return MIN_SHIFT;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+	}
+}
@@ -0,0 +1,236 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Log that holds all messages until flushed to the target log.
+ * <p>
+ * Used when artifacts are processed concurrently, so that the output for each
+ * artifact remains grouped together rather than interleaved.
+ */
+final class BufferedLog implements Log {
+
+	/**
+	 * Message level.
+	 */
+	private enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	/**
+	 * A single buffered message.
+	 */
+	private static final class Message {
+
+		/**
+		 * The level.
+		 */
+		final Level level;
+
+		/**
+		 * The content, may be {@code null}.
+		 */
+		final CharSequence content;
+
+		/**
+		 * The error, may be {@code null}.
+		 */
+		final Throwable error;
+
+		/**
+		 * Create a new message.
+		 *
+		 * @param level   The level.
+		 * @param content The content.
+		 * @param error   The error.
+		 */
+		Message(Level level, CharSequence content, Throwable error) {
+			this.level = level;
+			this.content = content;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * The log to flush to.
+	 */
+	private final Log target;
+
+	/**
+	 * Pending messages.
+	 */
+	private final List<Message> messages = new ArrayList<>();
+
+	/**
+	 * Create a new buffered log.
+	 *
+	 * @param target The log to eventually write to.
+	 */
+	BufferedLog(Log target) {
+		this.target = target;
+	}
+
+	/**
+	 * Write all pending messages to the target log.
+	 */
+	synchronized void flush() {
+		for (Message m : messages) {
+			switch (m.level) {
+			case DEBUG:
+				if (m.error == null) {
+					target.debug(m.content);
+				} else if (m.content == null) {
+					target.debug(m.error);
+				} else {
+					target.debug(m.content, m.error);
+				}
+				break;
+			case INFO:
+				if (m.error == null) {
+					target.info(m.content);
+				} else if (m.content == null) {
+					target.info(m.error);
+				} else {
+					target.info(m.content, m.error);
+				}
+				break;
+			case WARN:
+				if (m.error == null) {
+					target.warn(m.content);
+				} else if (m.content == null) {
+					target.warn(m.error);
+				} else {
+					target.warn(m.content, m.error);
+				}
+				break;
+			default:
+				if (m.error == null) {
+					target.error(m.content);
+				} else if (m.content == null) {
+					target.error(m.error);
+				} else {
+					target.error(m.content, m.error);
+				}
+				break;
+			}
+		}
+		messages.clear();
+	}
+
+	/**
+	 * Record a message.
+	 *
+	 * @param level   The level.
+	 * @param content The content.
+	 * @param error   The error.
+	 */
+	private synchronized void add(Level level, CharSequence content, Throwable error) {
+		messages.add(new Message(level, content, error));
+	}
+
+	@Override
+	public boolean isDebugEnabled() {
+		return target.isDebugEnabled();
+	}
+
+	@Override
+	public void debug(CharSequence content) {
+		if (isDebugEnabled()) {
+			add(Level.DEBUG, content, null);
+		}
+	}
+
+	@Override
+	public void debug(CharSequence content, Throwable error) {
+		if (isDebugEnabled()) {
+			add(Level.DEBUG, content, error);
+		}
+	}
+
+	@Override
+	public void debug(Throwable error) {
+		if (isDebugEnabled()) {
+			add(Level.DEBUG, null, error);
+		}
+	}
+
+	@Override
+	public boolean isInfoEnabled() {
+		return target.isInfoEnabled();
+	}
+
+	@Override
+	public void info(CharSequence content) {
+		add(Level.INFO, content, null);
+	}
+
+	@Override
+	public void info(CharSequence content, Throwable error) {
+		add(Level.INFO, content, error);
+	}
+
+	@Override
+	public void info(Throwable error) {
+		add(Level.INFO, null, error);
+	}
+
+	@Override
+	public boolean isWarnEnabled() {
+		return target.isWarnEnabled();
+	}
+
+	@Override
+	public void warn(CharSequence content) {
+		add(Level.WARN, content, null);
+	}
+
+	@Override
+	public void warn(CharSequence content, Throwable error) {
+		add(Level.WARN, content, error);
+	}
+
+	@Override
+	public void warn(Throwable error) {
+		add(Level.WARN, null, error);
+	}
+
+	@Override
+	public boolean isErrorEnabled() {
+		return target.isErrorEnabled();
+	}
+
+	@Override
+	public void error(CharSequence content) {
+		add(Level.ERROR, content, null);
+	}
+
+	@Override
+	public void error(CharSequence content, Throwable error) {
+		add(Level.ERROR, content, error);
+	}
+
+	@Override
+	public void error(Throwable error) {
+		add(Level.ERROR, null, error);
+	}
+
+}
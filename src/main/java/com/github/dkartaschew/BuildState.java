@@ -0,0 +1,292 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Record of the inputs and outputs of previously processed artifacts, used to
+ * skip artifacts which are already up to date.
+ * <p>
+ * Each file is fingerprinted by size, modification time and SHA-256 hash. The
+ * hash is only recomputed when the size or modification time differ from the
+ * recorded values, so checking an unchanged artifact does not read it. Hashes
+ * calculated are also kept for the rest of the build, so no file is hashed
+ * twice while unchanged.
+ */
+final class BuildState {
+
+	/**
+	 * Separates the fingerprints of multiple supplemental manifests.
+	 */
+	private static final String SEPARATOR = ";";
+
+	/**
+	 * The location of the state file.
+	 */
+	private final Path file;
+
+	/**
+	 * The recorded state.
+	 */
+	private final Properties properties = new Properties();
+
+	/**
+	 * The fingerprints calculated by this build, by absolute path.
+	 */
+	private final Map<Path, String> calculated = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a new empty state.
+	 *
+	 * @param file The location of the state file.
+	 */
+	private BuildState(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Load the state from the given file.
+	 *
+	 * @param file The state file. If the file doesn't exist, an empty state is
+	 *             returned.
+	 * @return The state.
+	 * @throws IOException Reading the state file failed.
+	 */
+	static BuildState load(Path file) throws IOException {
+		BuildState state = new BuildState(file);
+		if (Files.isRegularFile(file)) {
+			try (InputStream in = Files.newInputStream(file)) {
+				state.properties.load(in);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid state file " + file, e);
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Write the state back to the state file.
+	 *
+	 * @throws IOException Writing the state file failed.
+	 */
+	synchronized void save() throws IOException {
+		Path tmp = AtomicFiles.temporary(file);
+		try {
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				properties.store(out, "manifest-update-maven-plugin state");
+			}
+			AtomicFiles.replace(tmp, file);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Determine if the output was produced from the given inputs and is still
+	 * intact.
+	 *
+	 * @param output    The output file.
+	 * @param source    The source JAR file.
+	 * @param manifests The supplemental manifest files, in the order applied.
+	 * @param options   Any options that affect the output.
+	 * @return TRUE if the output is up to date.
+	 * @throws IOException Reading any of the files failed.
+	 */
+	boolean isUpToDate(Path output, Path source, List<Path> manifests, String options) throws IOException {
+		String key = output.toAbsolutePath().toString();
+		if (!options.equals(get(key + ".options")) || !matches(source, get(key + ".source"))) {
+			return false;
+		}
+		String recorded = get(key + ".manifest");
+		String[] parts = recorded == null ? new String[0] : recorded.split(SEPARATOR);
+		if (parts.length != manifests.size()) {
+			return false;
+		}
+		for (int i = 0; i < parts.length; i++) {
+			if (!matches(manifests.get(i), parts[i])) {
+				return false;
+			}
+		}
+		return matches(output, get(key + ".output"));
+	}
+
+	/**
+	 * Record the inputs used to produce the given output.
+	 *
+	 * @param output    The output file.
+	 * @param source    The source JAR file.
+	 * @param manifests The supplemental manifest files, in the order applied.
+	 * @param options   Any options that affect the output.
+	 * @throws IOException Reading any of the files failed.
+	 */
+	void update(Path output, Path source, List<Path> manifests, String options) throws IOException {
+		update(output, source, manifests, options, null);
+	}
+
+	/**
+	 * Record the inputs used to produce the given output, where the hash of the
+	 * output may already be known (eg calculated as it was written).
+	 *
+	 * @param output     The output file.
+	 * @param source     The source JAR file.
+	 * @param manifests  The supplemental manifest files, in the order applied.
+	 * @param options    Any options that affect the output.
+	 * @param outputHash The SHA-256 hash of the output, or {@code null} to read
+	 *                   the output to calculate it.
+	 * @throws IOException Reading any of the files failed.
+	 */
+	void update(Path output, Path source, List<Path> manifests, String options, String outputHash)
+			throws IOException {
+		String key = output.toAbsolutePath().toString();
+		String sourceState = fingerprint(source, get(key + ".source"));
+		String recorded = get(key + ".manifest");
+		String[] previous = recorded == null ? new String[0] : recorded.split(SEPARATOR);
+		StringBuilder manifestState = new StringBuilder();
+		for (int i = 0; i < manifests.size(); i++) {
+			if (i > 0) {
+				manifestState.append(SEPARATOR);
+			}
+			manifestState.append(fingerprint(manifests.get(i), i < previous.length ? previous[i] : null));
+		}
+		// An unchanged artifact may be exposed as a link to the source, so has the
+		// same fingerprint.
+		String outputState = outputHash != null
+				? Files.size(output) + ":" + Files.getLastModifiedTime(output).toMillis() + ":" + outputHash
+				: Files.isSameFile(output, source) ? sourceState : fingerprint(output, null);
+		synchronized (this) {
+			properties.setProperty(key + ".options", options);
+			properties.setProperty(key + ".source", sourceState);
+			properties.setProperty(key + ".manifest", manifestState.toString());
+			properties.setProperty(key + ".output", outputState);
+		}
+	}
+
+	/**
+	 * Get the SHA-256 hash of the source of the output, reusing the hash recorded
+	 * for the output (or calculated by this build) if the size and modification
+	 * time of the source are unchanged.
+	 *
+	 * @param output The output file.
+	 * @param source The source JAR file.
+	 * @return The hash as a hex string.
+	 * @throws IOException Reading the source failed.
+	 */
+	String getHash(Path output, Path source) throws IOException {
+		return getHash(fingerprint(source, get(output.toAbsolutePath().toString() + ".source")));
+	}
+
+	/**
+	 * Get the hash from a fingerprint.
+	 *
+	 * @param fingerprint The fingerprint.
+	 * @return The hash.
+	 */
+	private static String getHash(String fingerprint) {
+		return fingerprint.substring(fingerprint.lastIndexOf(':') + 1);
+	}
+
+	/**
+	 * Get a recorded value.
+	 *
+	 * @param key The key.
+	 * @return The value, or {@code null} if not recorded.
+	 */
+	private synchronized String get(String key) {
+		return properties.getProperty(key);
+	}
+
+	/**
+	 * Does the file match the recorded fingerprint. The content is only hashed if
+	 * the size matches but the modification time does not.
+	 *
+	 * @param path     The file.
+	 * @param recorded The recorded fingerprint, may be {@code null}.
+	 * @return TRUE if the file matches.
+	 * @throws IOException Reading the file failed.
+	 */
+	private boolean matches(Path path, String recorded) throws IOException {
+		if (recorded == null || !Files.isRegularFile(path)) {
+			return false;
+		}
+		String[] parts = recorded.split(":");
+		if (parts.length != 3 || !parts[0].equals(Long.toString(Files.size(path)))) {
+			return false;
+		}
+		return parts[1].equals(Long.toString(Files.getLastModifiedTime(path).toMillis()))
+				|| parts[2].equals(getHash(fingerprint(path, null)));
+	}
+
+	/**
+	 * Build the fingerprint of the file as {@code size:mtime:sha256}. If the size
+	 * and modification time match the previous fingerprint, or the fingerprint
+	 * calculated by this build, that hash is reused.
+	 *
+	 * @param path     The file.
+	 * @param previous The previous fingerprint, may be {@code null}.
+	 * @return The fingerprint.
+	 * @throws IOException Reading the file failed.
+	 */
+	private String fingerprint(Path path, String previous) throws IOException {
+		String prefix = Files.size(path) + ":" + Files.getLastModifiedTime(path).toMillis() + ":";
+		if (previous != null && previous.startsWith(prefix)) {
+			return previous;
+		}
+		Path key = path.toAbsolutePath();
+		String known = calculated.get(key);
+		if (known != null && known.startsWith(prefix)) {
+			return known;
+		}
+		String fingerprint = prefix + hash(path);
+		calculated.put(key, fingerprint);
+		return fingerprint;
+	}
+
+	/**
+	 * Calculate the SHA-256 hash of the file.
+	 *
+	 * @param path The file.
+	 * @return The hash as a hex string.
+	 * @throws IOException Reading the file failed.
+	 */
+	static String hash(Path path) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buffer = new byte[PackageMOJO.BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(path)) {
+			int len;
+			while ((len = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, len);
+			}
+		}
+		return Checksums.toHex(digest.digest());
+	}
+}
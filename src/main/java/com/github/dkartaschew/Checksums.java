@@ -0,0 +1,293 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of message digests calculated together over the same content, used to
+ * produce the checksum files that accompany an artifact in a maven repository.
+ * <p>
+ * The digests are updated as the content is written (see
+ * {@link #tee(WritableByteChannel)} and {@link #tee(OutputStream)}), so the
+ * content does not need to be read back. A SHA-256 hash of the content may be
+ * calculated alongside, to record the output in the build state without
+ * reading it again.
+ */
+final class Checksums {
+
+	/**
+	 * The default algorithms, if none are configured.
+	 */
+	static final List<String> DEFAULT_ALGORITHMS = Collections.singletonList("SHA-1");
+
+	/**
+	 * The digests being calculated.
+	 */
+	private final List<MessageDigest> digests = new ArrayList<>();
+
+	/**
+	 * The SHA-256 digest recorded in the build state, or {@code null} if not
+	 * required. (Also in {@link #digests}, but no checksum file is written).
+	 */
+	private final MessageDigest hash;
+
+	/**
+	 * The SHA-256 hash once calculated.
+	 */
+	private String hashHex;
+
+	/**
+	 * Time spent updating the digests, in nanoseconds.
+	 */
+	private long nanos;
+
+	/**
+	 * Create a new set of digests.
+	 *
+	 * @param algorithms The algorithms, eg {@code SHA-1}, {@code MD5},
+	 *                   {@code SHA-256} or {@code SHA-512}.
+	 * @throws IllegalStateException An algorithm is not available.
+	 */
+	Checksums(List<String> algorithms) throws IllegalStateException {
+		this(algorithms, false);
+	}
+
+	/**
+	 * Create a new set of digests, optionally calculating the SHA-256 hash of
+	 * the content as well.
+	 *
+	 * @param algorithms The algorithms of the checksum files, eg {@code SHA-1},
+	 *                   {@code MD5}, {@code SHA-256} or {@code SHA-512}.
+	 * @param hash       TRUE to calculate the SHA-256 hash (see
+	 *                   {@link #getHash()}).
+	 * @throws IllegalStateException An algorithm is not available.
+	 */
+	Checksums(List<String> algorithms, boolean hash) throws IllegalStateException {
+		for (String algorithm : algorithms) {
+			try {
+				digests.add(MessageDigest.getInstance(algorithm.trim()));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Checksum algorithm '" + algorithm + "' is not available", e);
+			}
+		}
+		if (hash) {
+			try {
+				this.hash = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Checksum algorithm 'SHA-256' is not available", e);
+			}
+			digests.add(this.hash);
+		} else {
+			this.hash = null;
+		}
+	}
+
+	/**
+	 * Update all digests.
+	 *
+	 * @param b   The content.
+	 * @param off The offset of the content.
+	 * @param len The length of the content.
+	 */
+	void update(byte[] b, int off, int len) {
+		long start = System.nanoTime();
+		for (MessageDigest digest : digests) {
+			digest.update(b, off, len);
+		}
+		nanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Update all digests.
+	 *
+	 * @param b The content.
+	 */
+	void update(byte b) {
+		long start = System.nanoTime();
+		for (MessageDigest digest : digests) {
+			digest.update(b);
+		}
+		nanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Update all digests with the remaining content of the buffer. The position
+	 * of the buffer is not changed.
+	 *
+	 * @param b The content.
+	 */
+	void update(ByteBuffer b) {
+		long start = System.nanoTime();
+		int position = b.position();
+		for (MessageDigest digest : digests) {
+			b.position(position);
+			digest.update(b);
+		}
+		b.position(position);
+		nanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Update all digests with the entire content of the file.
+	 *
+	 * @param path The file.
+	 * @throws IOException Reading the file failed.
+	 */
+	void update(Path path) throws IOException {
+		byte[] buffer = new byte[PackageMOJO.BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(path)) {
+			int len;
+			while ((len = in.read(buffer)) > 0) {
+				update(buffer, 0, len);
+			}
+		}
+	}
+
+	/**
+	 * Get the time spent updating the digests.
+	 *
+	 * @return The time, in nanoseconds.
+	 */
+	long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Get the SHA-256 hash of the content, as recorded in the build state.
+	 *
+	 * @return The hash as a hex string, or {@code null} if not calculated.
+	 */
+	String getHash() {
+		if (hash != null && hashHex == null) {
+			hashHex = toHex(hash.digest());
+		}
+		return hashHex;
+	}
+
+	/**
+	 * Write the checksum files for the given file. Each checksum is written to
+	 * a file named after the file with the algorithm as the extension, eg
+	 * {@code .sha1}. Existing checksum files are replaced atomically.
+	 *
+	 * @param path The file the checksums are for.
+	 * @throws IOException Writing a checksum file failed.
+	 */
+	void write(Path path) throws IOException {
+		for (MessageDigest digest : digests) {
+			if (digest == hash) {
+				continue;
+			}
+			Path digestFile = path.resolveSibling(path.getFileName() + "." + extension(digest.getAlgorithm()));
+			AtomicFiles.write(digestFile, toHex(digest.digest()).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Wrap the channel, so that all content written is added to the digests.
+	 *
+	 * @param channel The channel to wrap.
+	 * @return The wrapped channel.
+	 */
+	WritableByteChannel tee(WritableByteChannel channel) {
+		return new WritableByteChannel() {
+
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				int position = src.position();
+				int limit = src.limit();
+				int len = channel.write(src);
+				src.position(position);
+				src.limit(position + len);
+				update(src);
+				src.limit(limit);
+				src.position(position + len);
+				return len;
+			}
+		};
+	}
+
+	/**
+	 * Wrap the stream, so that all content written is added to the digests.
+	 *
+	 * @param out The stream to wrap.
+	 * @return The wrapped stream.
+	 */
+	OutputStream tee(OutputStream out) {
+		return new FilterOutputStream(out) {
+
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				update((byte) b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				update(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * Get the checksum file extension for the algorithm, as used in maven
+	 * repositories.
+	 *
+	 * @param algorithm The algorithm.
+	 * @return The extension, eg {@code sha1} for {@code SHA-1}.
+	 */
+	static String extension(String algorithm) {
+		return algorithm.toLowerCase().replace("-", "");
+	}
+
+	/**
+	 * Convert the byte array to a hex string
+	 *
+	 * @param a The byte array
+	 * @return A string representation.
+	 */
+	static String toHex(byte[] a) {
+		StringBuilder sb = new StringBuilder(a.length * 2);
+		for (byte b : a)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+}
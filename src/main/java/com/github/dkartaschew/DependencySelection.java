@@ -0,0 +1,332 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Selection of project dependencies to update with the same supplemental
+ * manifest.
+ */
+public class DependencySelection {
+
+	/**
+	 * The scopes selected when none are defined.
+	 */
+	private static final List<String> DEFAULT_SCOPES = Arrays.asList(Artifact.SCOPE_COMPILE, Artifact.SCOPE_RUNTIME);
+
+	/**
+	 * The types selected when none are defined.
+	 */
+	private static final List<String> DEFAULT_TYPES = Arrays.asList("jar");
+
+	/**
+	 * The scopes of dependencies to select. (Defaults to {@code compile} and
+	 * {@code runtime}).
+	 */
+	@Parameter
+	private List<String> scopes;
+
+	/**
+	 * The types of dependencies to select. (Defaults to {@code jar}).
+	 */
+	@Parameter
+	private List<String> types;
+
+	/**
+	 * The dependencies to select, as {@code groupId[:artifactId]} patterns, where
+	 * {@code *} matches any characters. (Defaults to all dependencies).
+	 */
+	@Parameter
+	private List<String> includes;
+
+	/**
+	 * The dependencies to skip, as {@code groupId[:artifactId]} patterns, where
+	 * {@code *} matches any characters.
+	 */
+	@Parameter
+	private List<String> excludes;
+
+	/**
+	 * The name of the manifest file to use as the source to update.
+	 */
+	@Parameter(required = true)
+	private File manifestFile;
+
+	/**
+	 * The update mode. (either {@code merge} or {@code overwrite}).
+	 */
+	@Parameter(defaultValue = "merge")
+	private String mode;
+
+	/**
+	 * The update strategy. (either {@code rewrite} or {@code append}).
+	 */
+	@Parameter(defaultValue = "rewrite")
+	private String strategy;
+
+	/**
+	 * The compression level to recompress all entries with. (either {@code -1} to
+	 * keep each entry as is, {@code 0} to store all entries or {@code 1} to
+	 * {@code 9} to deflate all entries).
+	 */
+	@Parameter(defaultValue = "-1")
+	private int compressionLevel = -1;
+
+	/**
+	 * The boundary to align the data of stored entries to. (either {@code 0} to
+	 * not align, or a power of two up to {@code 32768}, eg {@code 4096}).
+	 */
+	@Parameter(defaultValue = "0")
+	private int alignment;
+
+	/**
+	 * Flag to indicate if to republish dependencies located in the local maven
+	 * repository back to the local maven repository.
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean publishArtifact;
+
+	/**
+	 * Get the scopes of dependencies to select.
+	 * 
+	 * @return The scopes.
+	 */
+	public List<String> getScopes() {
+		return scopes == null || scopes.isEmpty() ? DEFAULT_SCOPES : scopes;
+	}
+
+	/**
+	 * Set the scopes of dependencies to select.
+	 * 
+	 * @param scopes The scopes, or {@code null} to reset to default.
+	 */
+	public void setScopes(List<String> scopes) {
+		this.scopes = scopes;
+	}
+
+	/**
+	 * Get the types of dependencies to select.
+	 * 
+	 * @return The types.
+	 */
+	public List<String> getTypes() {
+		return types == null || types.isEmpty() ? DEFAULT_TYPES : types;
+	}
+
+	/**
+	 * Set the types of dependencies to select.
+	 * 
+	 * @param types The types, or {@code null} to reset to default.
+	 */
+	public void setTypes(List<String> types) {
+		this.types = types;
+	}
+
+	/**
+	 * Get the dependencies to select.
+	 * 
+	 * @return The {@code groupId[:artifactId]} patterns, or {@code null} to select
+	 *         all dependencies.
+	 */
+	public List<String> getIncludes() {
+		return includes;
+	}
+
+	/**
+	 * Set the dependencies to select.
+	 * 
+	 * @param includes The {@code groupId[:artifactId]} patterns, or {@code null}
+	 *                 to select all dependencies.
+	 */
+	public void setIncludes(List<String> includes) {
+		this.includes = includes;
+	}
+
+	/**
+	 * Get the dependencies to skip.
+	 * 
+	 * @return The {@code groupId[:artifactId]} patterns, or {@code null}.
+	 */
+	public List<String> getExcludes() {
+		return excludes;
+	}
+
+	/**
+	 * Set the dependencies to skip.
+	 * 
+	 * @param excludes The {@code groupId[:artifactId]} patterns, or {@code null}.
+	 */
+	public void setExcludes(List<String> excludes) {
+		this.excludes = excludes;
+	}
+
+	/**
+	 * Get the manifest file that will be used as the source to update the manifest
+	 * in each dependency.
+	 * 
+	 * @return The manifest file.
+	 */
+	public File getManifestFile() {
+		return manifestFile;
+	}
+
+	/**
+	 * Set the manifest file that will be used as the source to update the manifest.
+	 * 
+	 * @param manifestFile The file.
+	 */
+	public void setManifestFile(File manifestFile) {
+		this.manifestFile = manifestFile;
+	}
+
+	/**
+	 * Get the update mode.
+	 * 
+	 * @return The update mode, or {@code null} for the default.
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * Set the update mode.
+	 * 
+	 * @param mode The update mode, or {@code null} to reset to default.
+	 */
+	public void setMode(String mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Get the update strategy.
+	 * 
+	 * @return The update strategy, or {@code null} for the default.
+	 */
+	public String getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Set the update strategy.
+	 * 
+	 * @param strategy The update strategy, or {@code null} to reset to default.
+	 */
+	public void setStrategy(String strategy) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Get the compression level.
+	 * 
+	 * @return The compression level.
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Set the compression level.
+	 * 
+	 * @param compressionLevel The compression level, or {@code -1} to copy each
+	 *                         entry as is.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Get the boundary the data of stored entries is aligned to.
+	 * 
+	 * @return The alignment in bytes, or {@code 0} to not align.
+	 */
+	public int getAlignment() {
+		return alignment;
+	}
+
+	/**
+	 * Set the boundary the data of stored entries is aligned to.
+	 * 
+	 * @param alignment The alignment in bytes, a power of two up to
+	 *                  {@code 32768}, or {@code 0} to not align.
+	 */
+	public void setAlignment(int alignment) {
+		this.alignment = alignment;
+	}
+
+	/**
+	 * Should dependencies located in the local maven repository be published back
+	 * into the local maven repository.
+	 * 
+	 * @return TRUE if the updated dependencies should be published.
+	 */
+	boolean isPublishArtifact() {
+		return publishArtifact;
+	}
+
+	/**
+	 * Set if dependencies located in the local maven repository should be
+	 * published back into the local maven repository.
+	 * 
+	 * @param publishArtifact TRUE to publish.
+	 */
+	void setPublishArtifact(boolean publishArtifact) {
+		this.publishArtifact = publishArtifact;
+	}
+
+	/**
+	 * Is the dependency selected by scope and type. (The patterns are applied
+	 * separately, see {@link ArtifactFilter}).
+	 * 
+	 * @param artifact The resolved dependency.
+	 * @return TRUE if the dependency has a selected scope and type.
+	 */
+	boolean accept(Artifact artifact) {
+		String scope = artifact.getScope() == null ? Artifact.SCOPE_COMPILE : artifact.getScope();
+		return getScopes().contains(scope) && getTypes().contains(artifact.getType());
+	}
+
+	/**
+	 * Create the definition to update the given dependency.
+	 * 
+	 * @param artifact The resolved dependency.
+	 * @param publish  TRUE if the dependency is located in the local maven
+	 *                 repository and should be published.
+	 * @return The definition.
+	 */
+	ArtifactDefinition toDefinition(Artifact artifact, boolean publish) {
+		ArtifactDefinition def = new ArtifactDefinition();
+		String name = artifact.getGroupId() + ":" + artifact.getArtifactId() + ":" + artifact.getBaseVersion();
+		if (artifact.hasClassifier()) {
+			name += ":" + artifact.getClassifier();
+		}
+		def.setArtifact(name);
+		def.setResolvedFile(artifact.getFile());
+		def.setManifestFile(manifestFile);
+		def.setMode(mode);
+		def.setStrategy(strategy);
+		def.setCompressionLevel(compressionLevel);
+		def.setAlignment(alignment);
+		def.setPublishArtifact(publish);
+		return def;
+	}
+}
@@ -0,0 +1,190 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.dkartaschew;
+
+import java.nio.file.Path;
+
+/**
+ * Java Flight Recorder events for the work done for each artifact.
+ * <p>
+ * An event is emitted for each artifact processed, for each phase of processing
+ * an artifact (see {@link Report.Phase}), and optionally for a sample of the
+ * entries copied, so a recording of a build shows which JAR file and phase
+ * dominates alongside the GC and I/O events of the JVM.
+ * <p>
+ * The plugin is built for Java 8, which has no {@code jdk.jfr} API to compile
+ * against, so the events are defined by {@link JfrRecorder}, compiled for Java
+ * 11 from {@code src/main/java11}, and only loaded by name. On a JVM that cannot
+ * load it (Java 8, or a runtime without the {@code jdk.jfr} module) no events
+ * are emitted, and the cost is a {@code null} check per phase.
+ */
+final class FlightEvents {
+
+	/**
+	 * The name of the recorder, compiled for Java 11.
+	 */
+	private static final String RECORDER_CLASS = "com.github.dkartaschew.JfrRecorder";
+
+	/**
+	 * The recorder, or {@code null} if the JVM does not provide Flight Recorder.
+	 */
+	private static final Recorder RECORDER = load();
+
+	/**
+	 * No instances.
+	 */
+	private FlightEvents() {
+	}
+
+	/**
+	 * The events, implemented against the Flight Recorder API.
+	 */
+	interface Recorder {
+
+		/**
+		 * Begin the event of an artifact.
+		 *
+		 * @return The event, or {@code null} if not enabled.
+		 */
+		Object beginArtifact();
+
+		/**
+		 * Complete the event of an artifact.
+		 *
+		 * @param event  The event.
+		 * @param record The report record of the artifact.
+		 */
+		void commitArtifact(Object event, Report.Record record);
+
+		/**
+		 * Begin the event of a phase.
+		 *
+		 * @return The event, or {@code null} if not enabled.
+		 */
+		Object beginPhase();
+
+		/**
+		 * Complete the event of a phase.
+		 *
+		 * @param event  The event.
+		 * @param record The report record of the artifact.
+		 * @param phase  The phase that completed.
+		 */
+		void commitPhase(Object event, Report.Record record, Report.Phase phase);
+
+		/**
+		 * Begin the event of an entry.
+		 *
+		 * @return The event, or {@code null} if not enabled.
+		 */
+		Object beginEntry();
+
+		/**
+		 * Complete the event of an entry.
+		 *
+		 * @param event          The event.
+		 * @param archive        The archive being written.
+		 * @param name           The raw entry name.
+		 * @param method         The compression method.
+		 * @param compressedSize The compressed size.
+		 * @param size           The uncompressed size.
+		 */
+		void commitEntry(Object event, Path archive, byte[] name, int method, long compressedSize, long size);
+	}
+
+	/**
+	 * Begin the event of an artifact.
+	 *
+	 * @return The event, or {@code null} if not recording.
+	 */
+	static Object beginArtifact() {
+		return RECORDER == null ? null : RECORDER.beginArtifact();
+	}
+
+	/**
+	 * Complete the event of an artifact.
+	 *
+	 * @param event  The event, may be {@code null}.
+	 * @param record The report record of the artifact.
+	 */
+	static void commitArtifact(Object event, Report.Record record) {
+		if (event != null) {
+			RECORDER.commitArtifact(event, record);
+		}
+	}
+
+	/**
+	 * Begin the event of a phase.
+	 *
+	 * @return The event, or {@code null} if not recording.
+	 */
+	static Object beginPhase() {
+		return RECORDER == null ? null : RECORDER.beginPhase();
+	}
+
+	/**
+	 * Complete the event of a phase.
+	 *
+	 * @param event  The event, may be {@code null}.
+	 * @param record The report record of the artifact.
+	 * @param phase  The phase that completed.
+	 */
+	static void commitPhase(Object event, Report.Record record, Report.Phase phase) {
+		if (event != null) {
+			RECORDER.commitPhase(event, record, phase);
+		}
+	}
+
+	/**
+	 * Begin the event of an entry.
+	 *
+	 * @return The event, or {@code null} if not recording.
+	 */
+	static Object beginEntry() {
+		return RECORDER == null ? null : RECORDER.beginEntry();
+	}
+
+	/**
+	 * Complete the event of an entry.
+	 *
+	 * @param event          The event, may be {@code null}.
+	 * @param archive        The archive being written.
+	 * @param name           The raw entry name.
+	 * @param method         The compression method.
+	 * @param compressedSize The compressed size.
+	 * @param size           The uncompressed size.
+	 */
+	static void commitEntry(Object event, Path archive, byte[] name, int method, long compressedSize, long size) {
+		if (event != null) {
+			RECORDER.commitEntry(event, archive, name, method, compressedSize, size);
+		}
+	}
+
+	/**
+	 * Load the recorder, if the JVM provides the Flight Recorder API.
+	 *
+	 * @return The recorder, or {@code null} if it cannot be loaded.
+	 */
+	private static Recorder load() {
+		try {
+			Class<?> type = Class.forName(RECORDER_CLASS, true, FlightEvents.class.getClassLoader());
+			return (Recorder) type.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// Java 8 (class version), or no jdk.jfr module.
+			return null;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import org.apache.maven.execution.MavenSession;
+import org.eclipse.aether.SessionData;
+
+/**
+ * Cache of parsed supplemental manifests.
+ * <p>
+ * The cache is held in the session data of the repository session, so is
+ * shared by all definitions and all executions of the plugin within a maven
+ * session, and discarded with the session (eg by a maven daemon running many
+ * builds). At most {@link #MAX_ENTRIES} manifests are held, evicting the least
+ * recently used. Entries are keyed by canonical path and validated against the
+ * size and modification time of the file, so edited manifests are re-read.
+ * <p>
+ * Callers always receive a copy, so modifying a returned manifest does not
+ * affect the cached manifest.
+ */
+final class ManifestCache {
+
+	/**
+	 * The key of the cache in the session data.
+	 */
+	private static final Object KEY = ManifestCache.class.getName();
+
+	/**
+	 * The maximum number of manifests held.
+	 */
+	static final int MAX_ENTRIES = 256;
+
+	/**
+	 * A parsed manifest along with the file state it was parsed from.
+	 */
+	private static final class Entry {
+
+		/**
+		 * Size of the file.
+		 */
+		final long size;
+
+		/**
+		 * Modification time of the file.
+		 */
+		final long modified;
+
+		/**
+		 * The parsed manifest.
+		 */
+		final Manifest manifest;
+
+		/**
+		 * Create a new entry.
+		 *
+		 * @param size     Size of the file.
+		 * @param modified Modification time of the file.
+		 * @param manifest The parsed manifest.
+		 */
+		Entry(long size, long modified, Manifest manifest) {
+			this.size = size;
+			this.modified = modified;
+			this.manifest = manifest;
+		}
+	}
+
+	/**
+	 * The cached manifests, in access order, (guarded by itself).
+	 */
+	private final Map<Path, Entry> cache = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, ManifestCache.Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * Get the cache of the session, creating it if needed.
+	 *
+	 * @param session The maven session, may be {@code null}.
+	 * @return The cache of the session, or a new cache if there is no session.
+	 */
+	static ManifestCache get(MavenSession session) {
+		if (session == null || session.getRepositorySession() == null) {
+			return new ManifestCache();
+		}
+		SessionData data = session.getRepositorySession().getData();
+		Object cache = data.get(KEY);
+		if (cache == null) {
+			data.set(KEY, null, new ManifestCache());
+			cache = data.get(KEY);
+		}
+		return (ManifestCache) cache;
+	}
+
+	/**
+	 * Get the manifest parsed from the given file.
+	 *
+	 * @param file The manifest file.
+	 * @return A copy of the manifest.
+	 * @throws IOException The file could not be read or is not a valid manifest.
+	 */
+	Manifest getManifest(File file) throws IOException {
+		Path path = file.toPath().toRealPath();
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		long modified = attrs.lastModifiedTime().toMillis();
+		Entry entry;
+		synchronized (cache) {
+			entry = cache.get(path);
+		}
+		if (entry == null || entry.size != attrs.size() || entry.modified != modified) {
+			entry = new Entry(attrs.size(), modified, read(file));
+			synchronized (cache) {
+				cache.put(path, entry);
+			}
+		}
+		return copy(entry.manifest);
+	}
+
+	/**
+	 * Get the number of manifests held.
+	 *
+	 * @return The number of manifests.
+	 */
+	int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Remove all cached manifests.
+	 */
+	void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Parse the manifest from the given file, without caching it.
+	 *
+	 * @param file The manifest file.
+	 * @return The manifest.
+	 * @throws IOException The file could not be read or is not a valid manifest.
+	 */
+	static Manifest read(File file) throws IOException {
+		try (InputStream input = Files.newInputStream(file.toPath())) {
+			return new Manifest(input);
+		} catch (IOException e) {
+			throw new IOException("Invalid manifest " + file + " : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Deep copy the manifest. (Unlike {@link Manifest#Manifest(Manifest)}, the
+	 * attributes of each entry are copied as well).
+	 *
+	 * @param manifest The manifest to copy.
+	 * @return The copy.
+	 */
+	static Manifest copy(Manifest manifest) {
+		Manifest m = new Manifest();
+		m.getMainAttributes().putAll(manifest.getMainAttributes());
+		for (Map.Entry<String, Attributes> e : manifest.getEntries().entrySet()) {
+			m.getEntries().put(e.getKey(), new Attributes(e.getValue()));
+		}
+		return m;
+	}
+}
@@ -0,0 +1,613 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Updates the manifests of JAR files nested within a JAR file being copied, (eg
+ * {@code BOOT-INF/lib/*.jar} of a Spring Boot executable JAR file). Nothing is
+ * unpacked to temporary files.
+ * <p>
+ * Each nested JAR file is read in place from the source archive, and copied
+ * record by record, with the new manifest, straight into the entry being
+ * written. The entry is stored, with the CRC calculated as it is written. A
+ * nested JAR file that is not stored is inflated into a pooled buffer, so the
+ * memory used for each nested JAR file is bounded. One larger than
+ * {@link #MAX_IN_MEMORY} is instead inflated straight into the entry being
+ * written, and then read back (mapped) from the output, with the new manifest
+ * and central directory appended after the original central directory.
+ * <p>
+ * When the outer JAR file is copied through {@link ZipOutputStream} instead
+ * (for unsupported layouts), the size and CRC of a stored entry are needed
+ * before its data, so an updated nested JAR file is written twice, first only
+ * to calculate the size and CRC. A nested JAR file larger than
+ * {@link #MAX_IN_MEMORY} is instead streamed from the source archive for each
+ * pass, with every entry inflated and deflated again.
+ * <p>
+ * Nested JAR files that are signed, whose layout is not supported, or whose
+ * manifest is unchanged are copied as is, (though inflated and stored if larger
+ * than {@link #MAX_IN_MEMORY}).
+ */
+final class NestedJars {
+
+	/**
+	 * The largest nested JAR file held in memory while it is updated, being the
+	 * largest pooled buffer. Larger nested JAR files that are not stored (so
+	 * can't be read in place) are inflated into the output and read back.
+	 */
+	static final int MAX_IN_MEMORY = BufferPool.MAX_CAPACITY;
+
+	/**
+	 * The source of a nested JAR file too large to hold in memory, read once per
+	 * pass.
+	 */
+	interface Source {
+
+		/**
+		 * Open the nested JAR file.
+		 *
+		 * @return The stream, from the start of the nested JAR file.
+		 * @throws IOException Opening the nested JAR file failed.
+		 */
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * The entry name patterns, one per supplemental manifest.
+	 */
+	private final List<Pattern> patterns = new ArrayList<>();
+
+	/**
+	 * The supplemental manifests.
+	 */
+	private final List<Manifest> manifests = new ArrayList<>();
+
+	/**
+	 * The update modes of the supplemental manifests.
+	 */
+	private final List<String> modes = new ArrayList<>();
+
+	/**
+	 * The number of nested JAR files updated.
+	 */
+	private int updated;
+
+	/**
+	 * Add a supplemental manifest to apply to the nested JAR files matching the
+	 * pattern. Supplemental manifests are applied in the order added.
+	 *
+	 * @param pattern  The entry name pattern, where {@code *} and {@code ?} match
+	 *                 within a directory and {@code **} matches across
+	 *                 directories.
+	 * @param manifest The supplemental manifest.
+	 * @param mode     The update mode. (either {@code merge} or
+	 *                 {@code overwrite}).
+	 */
+	void add(String pattern, Manifest manifest, String mode) {
+		patterns.add(compile(pattern.trim()));
+		manifests.add(manifest);
+		modes.add(mode);
+	}
+
+	/**
+	 * Is the entry a nested JAR file to update.
+	 *
+	 * @param name The entry name.
+	 * @return TRUE if any pattern matches the name.
+	 */
+	boolean matches(String name) {
+		for (Pattern p : patterns) {
+			if (p.matcher(name).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of nested JAR files updated.
+	 *
+	 * @return The number of nested JAR files updated.
+	 */
+	int getUpdated() {
+		return updated;
+	}
+
+	/**
+	 * Copy the nested JAR file to the writer, updating the manifest.
+	 *
+	 * @param archive The source archive.
+	 * @param e       The entry holding the nested JAR file.
+	 * @param writer  The output archive.
+	 * @return TRUE if updated, FALSE if copied as is.
+	 * @throws IOException Reading or writing the nested JAR file failed.
+	 */
+	boolean copy(ZipArchive archive, ZipArchive.Entry e, ZipArchiveWriter writer) throws IOException {
+		archive.readLocalHeader(e);
+		if (!Recompressor.isStreamable(e)) {
+			writer.copyEntry(archive, e);
+			return false;
+		}
+		if (e.method != ZipEntry.STORED && e.size > MAX_IN_MEMORY) {
+			// Inflate into the output, and read back from there, (mapped).
+			int before = updated;
+			writer.copyEntry(e, out -> {
+				Recompressor.read(archive, e, out);
+				if (e.size <= Integer.MAX_VALUE) {
+					append(writer.map(e.size), e.getName(), out);
+				}
+			});
+			return updated > before;
+		}
+		ByteBuffer data = null;
+		try {
+			ZipArchive jar;
+			if (e.method == ZipEntry.STORED) {
+				// Read in place, (as mapped).
+				jar = open(archive.getData(e));
+			} else {
+				data = Recompressor.read(archive, e);
+				jar = open(data);
+			}
+			try (ZipArchive nested = jar) {
+				byte[] manifestData = nested == null ? null : update(nested, e.getName());
+				if (manifestData == null) {
+					writer.copyEntry(archive, e);
+					return false;
+				}
+				writer.copyEntry(e, out -> write(nested, manifestData, out));
+				updated++;
+				return true;
+			}
+		} finally {
+			BufferPool.HEAP.release(data);
+		}
+	}
+
+	/**
+	 * Update the manifest of a nested JAR file already written, by appending the
+	 * new manifest and a new central directory referencing all other entries, (as
+	 * the {@code append} strategy does).
+	 *
+	 * @param written The nested JAR file as written, mapped. Released once
+	 *                updated.
+	 * @param name    The entry name of the nested JAR file.
+	 * @param out     The channel to append to, following the nested JAR file.
+	 * @throws IOException Reading or writing the nested JAR file failed.
+	 */
+	private void append(ByteBuffer written, String name, WritableByteChannel out) throws IOException {
+		try (ZipArchive nested = open(written)) {
+			byte[] manifestData = nested == null ? null : update(nested, name);
+			if (manifestData == null) {
+				return;
+			}
+			try (ZipArchiveWriter writer = new ZipArchiveWriter(out, written.remaining())) {
+				for (ZipArchive.Entry entry : nested.getEntries()) {
+					if (!entry.isNamed(JarFile.MANIFEST_NAME)) {
+						writer.keepEntry(entry);
+					}
+				}
+				writer.addEntry(JarFile.MANIFEST_NAME, manifestData);
+				writer.finish(nested.getComment());
+			}
+			updated++;
+		} finally {
+			ZipArchive.unmap(written);
+		}
+	}
+
+	/**
+	 * Copy the nested JAR file to the stream, updating the manifest. A stored
+	 * entry requires the size and CRC before the data, so the updated nested JAR
+	 * file is written twice, first only calculating the size and CRC, and then
+	 * to the stream.
+	 *
+	 * @param jar    The nested JAR file.
+	 * @param entry  The entry to write, with the name of the nested JAR file. The
+	 *               method, sizes and CRC are set if updated.
+	 * @param out    The output archive.
+	 * @param buffer The buffer to copy with.
+	 * @return TRUE if updated, FALSE if nothing was written, as the nested JAR
+	 *         file is to be copied as is.
+	 * @throws IOException Reading or writing the nested JAR file failed.
+	 */
+	boolean copy(ZipArchive jar, ZipEntry entry, ZipOutputStream out, byte[] buffer) throws IOException {
+		byte[] manifestData = update(jar, entry.getName());
+		if (manifestData == null) {
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		long[] size = new long[1];
+		write(jar, manifestData, new Sink() {
+
+			@Override
+			public int write(ByteBuffer src) {
+				int n = src.remaining();
+				crc.update(src);
+				size[0] += n;
+				return n;
+			}
+		});
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(size[0]);
+		entry.setCompressedSize(size[0]);
+		entry.setCrc(crc.getValue());
+		out.putNextEntry(entry);
+		write(jar, manifestData, new Sink() {
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				int n = src.remaining();
+				if (src.hasArray()) {
+					out.write(src.array(), src.arrayOffset() + src.position(), n);
+					src.position(src.limit());
+				} else {
+					while (src.hasRemaining()) {
+						int len = Math.min(src.remaining(), buffer.length);
+						src.get(buffer, 0, len);
+						out.write(buffer, 0, len);
+					}
+				}
+				return n;
+			}
+		});
+		out.closeEntry();
+		updated++;
+		return true;
+	}
+
+	/**
+	 * Copy the nested JAR file to the stream, updating the manifest, streaming it
+	 * from the source once to read the manifest and twice more to write it, (as
+	 * above). Each entry is inflated and deflated again, and placed after the
+	 * META-INF directory (if any) and the new manifest.
+	 *
+	 * @param source The nested JAR file.
+	 * @param entry  The entry to write, with the name of the nested JAR file. The
+	 *               method, sizes and CRC are set if updated.
+	 * @param out    The output archive.
+	 * @param buffer The buffer to copy with.
+	 * @return TRUE if updated, FALSE if nothing was written, as the nested JAR
+	 *         file is to be copied as is.
+	 * @throws IOException Reading or writing the nested JAR file failed.
+	 */
+	boolean copy(Source source, ZipEntry entry, ZipOutputStream out, byte[] buffer) throws IOException {
+		Manifest original = new Manifest();
+		ZipEntry metaInf = null;
+		try (ZipInputStream in = new ZipInputStream(source.open())) {
+			ZipEntry ze = in.getNextEntry();
+			if (ze == null) {
+				// Not a JAR file.
+				return false;
+			}
+			for (; ze != null; ze = in.getNextEntry()) {
+				if (ze.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+					original = new Manifest(in);
+					break;
+				}
+				if (metaInf == null && ze.getName().equalsIgnoreCase(PackageMOJO.META_INF)) {
+					metaInf = ze;
+				}
+			}
+		} catch (ZipException e) {
+			return false;
+		}
+		byte[] manifestData = update(original, entry.getName());
+		if (manifestData == null) {
+			return false;
+		}
+		// The same time for both passes, so the content is the same.
+		long time = System.currentTimeMillis();
+		CountingStream counted = new CountingStream(null);
+		write(source, metaInf, manifestData, time, counted, buffer);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(counted.size);
+		entry.setCompressedSize(counted.size);
+		entry.setCrc(counted.crc.getValue());
+		out.putNextEntry(entry);
+		write(source, metaInf, manifestData, time, new CountingStream(out), buffer);
+		out.closeEntry();
+		updated++;
+		return true;
+	}
+
+	/**
+	 * Write the nested JAR file streamed from the source with the new manifest,
+	 * starting with the META-INF directory (if any) and the manifest, followed by
+	 * all other entries in their original order.
+	 *
+	 * @param source       The nested JAR file.
+	 * @param metaInf      The META-INF directory entry preceding the manifest, or
+	 *                     {@code null} if none.
+	 * @param manifestData The new manifest.
+	 * @param time         The time to stamp the new manifest with.
+	 * @param os           The stream to write to, which is not closed.
+	 * @param buffer       The buffer to copy with.
+	 * @throws IOException Reading or writing the nested JAR file failed.
+	 */
+	private static void write(Source source, ZipEntry metaInf, byte[] manifestData, long time, OutputStream os,
+			byte[] buffer) throws IOException {
+		try (ZipInputStream in = new ZipInputStream(source.open()); ZipOutputStream out = new ZipOutputStream(os)) {
+			if (metaInf != null) {
+				out.putNextEntry(clone(metaInf));
+				out.closeEntry();
+			}
+			ZipEntry manifest = new ZipEntry(JarFile.MANIFEST_NAME);
+			manifest.setTime(time);
+			out.putNextEntry(manifest);
+			out.write(manifestData);
+			out.closeEntry();
+			boolean skipMetaInf = metaInf != null;
+			ZipEntry ze;
+			while ((ze = in.getNextEntry()) != null) {
+				if (ze.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+					continue;
+				}
+				if (skipMetaInf && ze.getName().equalsIgnoreCase(PackageMOJO.META_INF)) {
+					// Already written.
+					skipMetaInf = false;
+					continue;
+				}
+				out.putNextEntry(clone(ze));
+				int len;
+				while ((len = in.read(buffer)) > 0) {
+					out.write(buffer, 0, len);
+				}
+				out.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Copy an entry read from a stream. The entry is deflated unless stored with
+	 * the size and CRC known up front.
+	 *
+	 * @param e The entry read.
+	 * @return The entry to write.
+	 */
+	private static ZipEntry clone(ZipEntry e) {
+		ZipEntry ze = new ZipEntry(e.getName());
+		if (e.getExtra() != null) {
+			ze.setExtra(e.getExtra());
+		}
+		if (e.getMethod() == ZipEntry.STORED && e.getSize() >= 0 && e.getCrc() >= 0) {
+			ze.setMethod(ZipEntry.STORED);
+			ze.setSize(e.getSize());
+			ze.setCompressedSize(e.getSize());
+			ze.setCrc(e.getCrc());
+		}
+		ze.setTime(e.getTime());
+		return ze;
+	}
+
+	/**
+	 * Stream calculating the size and CRC of the nested JAR file written, and
+	 * passing it on (if any). Closing the stream doesn't close the output.
+	 */
+	private static final class CountingStream extends OutputStream {
+
+		/**
+		 * The CRC of the data written.
+		 */
+		final CRC32 crc = new CRC32();
+
+		/**
+		 * The number of bytes written.
+		 */
+		long size;
+
+		/**
+		 * The stream to pass the data on to, or {@code null} if none.
+		 */
+		private final OutputStream out;
+
+		/**
+		 * Create a new stream.
+		 *
+		 * @param out The stream to pass the data on to, or {@code null} if none.
+		 */
+		CountingStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			crc.update(b);
+			size++;
+			if (out != null) {
+				out.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			crc.update(b, off, len);
+			size += len;
+			if (out != null) {
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Channel consuming the nested JAR file being written, that need not be
+	 * closed.
+	 */
+	private abstract static class Sink implements WritableByteChannel {
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Open the nested JAR file held in memory.
+	 *
+	 * @param data The nested JAR file.
+	 * @return The archive, or {@code null} if not a supported archive.
+	 * @throws IOException Reading the nested JAR file failed.
+	 */
+	static ZipArchive open(ByteBuffer data) throws IOException {
+		try {
+			return ZipArchive.open(data);
+		} catch (ZipException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Build the new manifest of the nested JAR file, applying each supplemental
+	 * manifest whose pattern matches in turn.
+	 *
+	 * @param jar  The nested JAR file.
+	 * @param name The entry name of the nested JAR file.
+	 * @return The new manifest, or {@code null} if the nested JAR file is signed,
+	 *         its manifest can't be read or is unchanged.
+	 * @throws IOException Reading the manifest failed.
+	 */
+	private byte[] update(ZipArchive jar, String name) throws IOException {
+		Manifest original = new Manifest();
+		for (ZipArchive.Entry entry : jar.getEntries(x -> x.isNamed(JarFile.MANIFEST_NAME))) {
+			jar.readLocalHeader(entry);
+			if (!Recompressor.isSupported(entry)) {
+				return null;
+			}
+			ByteBuffer data = Recompressor.read(jar, entry);
+			try {
+				original = new Manifest(new ByteArrayInputStream(data.array(), 0, data.limit()));
+			} finally {
+				BufferPool.HEAP.release(data);
+			}
+			break;
+		}
+		return update(original, name);
+	}
+
+	/**
+	 * Build the new manifest of the nested JAR file from its original manifest,
+	 * applying each supplemental manifest whose pattern matches in turn.
+	 *
+	 * @param original The original manifest, empty if none.
+	 * @param name     The entry name of the nested JAR file.
+	 * @return The new manifest, or {@code null} if the nested JAR file is signed
+	 *         or the manifest is unchanged.
+	 * @throws IOException Writing the manifest failed.
+	 */
+	private byte[] update(Manifest original, String name) throws IOException {
+		if (!original.getEntries().isEmpty()) {
+			return null;
+		}
+		Manifest manifest = original;
+		for (int i = 0; i < patterns.size(); i++) {
+			if (patterns.get(i).matcher(name).matches()) {
+				manifest = PackageMOJO.updateManifest(manifest, manifests.get(i), modes.get(i));
+			}
+		}
+		if (manifest.equals(original)) {
+			return null;
+		}
+		return PackageMOJO.toBytes(manifest);
+	}
+
+	/**
+	 * Write the nested JAR file with the new manifest, starting with the
+	 * META-INF directory (if any) and the manifest, followed by all other entries
+	 * in their original order.
+	 *
+	 * @param jar          The nested JAR file.
+	 * @param manifestData The new manifest.
+	 * @param out          The channel to write to.
+	 * @throws IOException Reading or writing the nested JAR file failed.
+	 */
+	private static void write(ZipArchive jar, byte[] manifestData, WritableByteChannel out) throws IOException {
+		try (ZipArchiveWriter writer = new ZipArchiveWriter(out)) {
+			ZipArchive.Entry metaInf = null;
+			for (ZipArchive.Entry entry : jar.getEntries(x -> x.isNamed(PackageMOJO.META_INF))) {
+				metaInf = entry;
+				break;
+			}
+			if (metaInf != null) {
+				writer.copyEntry(jar, metaInf);
+			}
+			writer.addEntry(JarFile.MANIFEST_NAME, manifestData);
+			long skip = metaInf == null ? -1 : metaInf.localHeaderOffset;
+			for (ZipArchive.Entry entry : jar
+					.getEntries(x -> x.localHeaderOffset != skip && !x.isNamed(JarFile.MANIFEST_NAME))) {
+				writer.copyEntry(jar, entry);
+			}
+			writer.finish(jar.getComment());
+		}
+	}
+
+	/**
+	 * Compile the entry name pattern.
+	 *
+	 * @param pattern The pattern.
+	 * @return The compiled pattern.
+	 */
+	private static Pattern compile(String pattern) {
+		StringBuilder regex = new StringBuilder();
+		int literal = 0;
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c != '*' && c != '?') {
+				continue;
+			}
+			if (literal < i) {
+				regex.append(Pattern.quote(pattern.substring(literal, i)));
+			}
+			if (c == '?') {
+				regex.append("[^/]");
+			} else if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+				regex.append(".*");
+				i++;
+			} else {
+				regex.append("[^/]*");
+			}
+			literal = i + 1;
+		}
+		if (literal < pattern.length()) {
+			regex.append(Pattern.quote(pattern.substring(literal)));
+		}
+		return Pattern.compile(regex.toString());
+	}
+}
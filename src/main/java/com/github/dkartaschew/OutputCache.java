@@ -0,0 +1,229 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content addressed cache of updated JAR files, shared by all projects and
+ * builds using the same cache directory.
+ * <p>
+ * Each entry is stored as {@code xx/<key>.jar}, where {@code xx} is the first
+ * two characters of the key. Entries are hard linked to the output added where
+ * possible, (otherwise copied), through a temporary file moved into place, so
+ * concurrent builds never see a partial entry. Each use of an
+ * entry updates the modification time of an empty {@code xx/<key>.used} file
+ * alongside, (not of the entry, which may be hard linked to outputs whose
+ * modification time is part of their fingerprint), and the least recently used
+ * entries are removed once the cache exceeds its maximum size.
+ */
+final class OutputCache {
+
+	/**
+	 * The cache directory.
+	 */
+	private final Path directory;
+
+	/**
+	 * The maximum total size of all entries, in bytes.
+	 */
+	private final long maxSize;
+
+	/**
+	 * The number of bytes added to the cache by this instance.
+	 */
+	private final AtomicLong added = new AtomicLong();
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param directory The cache directory.
+	 * @param maxSize   The maximum total size of all entries, in bytes.
+	 */
+	OutputCache(Path directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the entry for the key, marking it as used.
+	 *
+	 * @param key The key.
+	 * @return The entry, or {@code null} if not cached.
+	 */
+	Path get(String key) {
+		Path entry = getEntry(key);
+		if (!Files.isRegularFile(entry)) {
+			return null;
+		}
+		touch(getUsed(entry));
+		return entry;
+	}
+
+	/**
+	 * Add the file to the cache, as a hard link to the file if on the same file
+	 * store, otherwise a copy.
+	 *
+	 * @param key  The key.
+	 * @param file The file.
+	 * @throws IOException Linking or copying the file failed.
+	 */
+	void put(String key, Path file) throws IOException {
+		Path entry = getEntry(key);
+		if (!Files.exists(entry) || !Files.isSameFile(file, entry)) {
+			AtomicFiles.expose(file, entry, true);
+			added.addAndGet(Files.size(entry));
+		}
+		touch(getUsed(entry));
+	}
+
+	/**
+	 * Get the number of bytes added to the cache by this instance, (so whether it
+	 * may need trimming).
+	 *
+	 * @return The number of bytes added.
+	 */
+	long getBytesAdded() {
+		return added.get();
+	}
+
+	/**
+	 * Remove the least recently used entries until the total size of all entries
+	 * is within the maximum size.
+	 *
+	 * @return The number of entries removed.
+	 * @throws IOException Listing the cache failed.
+	 */
+	int trim() throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return 0;
+		}
+		List<Path> entries = new ArrayList<>();
+		List<BasicFileAttributes> attributes = new ArrayList<>();
+		List<FileTime> used = new ArrayList<>();
+		long total = 0;
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(directory, Files::isDirectory)) {
+			for (Path dir : dirs) {
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.jar")) {
+					for (Path file : files) {
+						try {
+							BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+							entries.add(file);
+							attributes.add(attrs);
+							used.add(getLastUsed(file, attrs));
+							total += attrs.size();
+						} catch (NoSuchFileException e) {
+							// Removed by another build.
+						}
+					}
+				}
+			}
+		}
+		if (total <= maxSize) {
+			return 0;
+		}
+		List<Integer> order = new ArrayList<>(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			order.add(i);
+		}
+		order.sort(Comparator.comparing(used::get));
+		int removed = 0;
+		for (int i : order) {
+			if (total <= maxSize) {
+				break;
+			}
+			try {
+				Files.deleteIfExists(entries.get(i));
+				Files.deleteIfExists(getUsed(entries.get(i)));
+				removed++;
+			} catch (IOException e) {
+				// In use (on some platforms), try the next entry.
+				continue;
+			}
+			total -= attributes.get(i).size();
+		}
+		return removed;
+	}
+
+	/**
+	 * Get the time the entry was last used, being the modification time of the
+	 * file marking its use, or of the entry if the file is missing.
+	 *
+	 * @param entry The entry.
+	 * @param attrs The attributes of the entry.
+	 * @return The time last used.
+	 */
+	private static FileTime getLastUsed(Path entry, BasicFileAttributes attrs) {
+		try {
+			FileTime used = Files.getLastModifiedTime(getUsed(entry));
+			return used.compareTo(attrs.lastModifiedTime()) > 0 ? used : attrs.lastModifiedTime();
+		} catch (IOException e) {
+			return attrs.lastModifiedTime();
+		}
+	}
+
+	/**
+	 * Mark the entry as used now, creating the file if needed.
+	 *
+	 * @param used The file marking the use of the entry.
+	 */
+	private static void touch(Path used) {
+		FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		try {
+			try {
+				Files.createFile(used);
+			} catch (FileAlreadyExistsException e) {
+				// Used before.
+			}
+			Files.setLastModifiedTime(used, now);
+		} catch (IOException e) {
+			// Only affects the order entries are removed in.
+		}
+	}
+
+	/**
+	 * Get the location of the file marking the use of the entry.
+	 *
+	 * @param entry The entry.
+	 * @return The file.
+	 */
+	private static Path getUsed(Path entry) {
+		String name = entry.getFileName().toString();
+		return entry.resolveSibling(name.substring(0, name.length() - ".jar".length()) + ".used");
+	}
+
+	/**
+	 * Get the location of the entry for the key.
+	 *
+	 * @param key The key.
+	 * @return The entry.
+	 */
+	private Path getEntry(String key) {
+		return directory.resolve(key.substring(0, 2)).resolve(key + ".jar");
+	}
+}
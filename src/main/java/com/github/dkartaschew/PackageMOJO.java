@@ -16,247 +16,1910 @@
 
 package com.github.dkartaschew;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.DefaultDependencyResolutionRequest;
+import org.apache.maven.project.DependencyResolutionException;
+import org.apache.maven.project.DependencyResolutionRequest;
+import org.apache.maven.project.DependencyResolutionResult;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.ProjectDependenciesResolver;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.util.filter.ScopeDependencyFilter;
 
 /**
  * Rebuild defined artifacts or JARs, updating the included manifest with
  * details from the provided supplemental manifest.
  */
-@Mojo(name = "package", defaultPhase = LifecyclePhase.PACKAGE)
+@Mojo(name = "package", defaultPhase = LifecyclePhase.PACKAGE, threadSafe = true)
 public class PackageMOJO extends AbstractMojo {
 
 	/**
-	 * Default buffer size for file IO
+	 * Default buffer size for file IO, used by all streamed reads and copies.
 	 */
-	private final static int BUFFER_SIZE = 32768;
+	final static int BUFFER_SIZE = 32768;
+
+	/**
+	 * The name of the directory entry holding the manifest.
+	 */
+	final static String META_INF = "META-INF/";
 
 	/**
 	 * Target location to store files.
 	 */
-	@Parameter(defaultValue = "${project.build.directory}")
-	private File outputDirectory;
+	@Parameter(defaultValue = "${project.build.directory}")
+	private File outputDirectory;
+
+	/**
+	 * The location of the local maven repository.
+	 */
+	@Parameter(defaultValue = "${settings.localRepository}")
+	private File localRepository;
+
+	/**
+	 * List of all artifacts/JAR files to update.
+	 * <p>
+	 * Each artifact <b>must</b> define either a local maven artifact
+	 * ({@code artifact}), a JAR File ({@code jarFile}) or JAR Files
+	 * ({@code jarFiles}) and a supplemental manifest file.
+	 * <p>
+	 * Artifact is defined as:
+	 * 
+	 * <pre>
+&lt;artifacts&gt;
+&lt;artifact&gt;
+&nbsp;&nbsp;&lt;artifact&gt;org.apache.maven:maven-plugin-api:3.5.0&lt;/artifact&gt;
+&nbsp;&nbsp;&lt;jarFile&gt;org.apache.maven.maven-plugin-api-3.5.0.jar&lt;/jarFile&gt;
+&nbsp;&nbsp;&lt;jarFiles&gt;target/lib/**&#47;*.jar&lt;/jarFiles&gt;
+&nbsp;&nbsp;&lt;manifestFile&gt;src/manifests/maven-plugin-api.mf&lt;/manifestFile&gt;
+&nbsp;&nbsp;&lt;mode&gt;merge&lt;/mode&gt;
+&nbsp;&nbsp;&lt;strategy&gt;rewrite&lt;/strategy&gt;
+&nbsp;&nbsp;&lt;compressionLevel&gt;-1&lt;/compressionLevel&gt;
+&nbsp;&nbsp;&lt;publishArtifact&gt;false&lt;/publishArtifact&gt;
+&nbsp;&nbsp;&lt;nestedJars&gt;BOOT-INF/lib/*.jar&lt;/nestedJars&gt;
+&nbsp;&nbsp;&lt;alignment&gt;0&lt;/alignment&gt;
+&lt;/artifact&gt;
+...
+&lt;/artifacts&gt;
+	 * </pre>
+	 * <p>
+	 * {@code artifact} defines a JAR file located in the local maven repository. The
+	 * format definition uses Apache Buildr notation. (This is effectively
+	 * {@code groupId:artifactId:version}).
+	 * <p>
+	 * {@code jarFile} defines a local JAR file.
+	 * <p>
+	 * {@code jarFiles} defines a directory or glob pattern of local JAR files,
+	 * relative to the project base directory. A directory matches all JAR files
+	 * below it. JAR files are processed as they are found, and each output is
+	 * located relative to the output directory as the JAR file is relative to the
+	 * directory part of the pattern. JAR files also defined by {@code artifact} or
+	 * {@code jarFile} are skipped.
+	 * <p>
+	 * {@code manifestFile} defines the supplemental manifest file that will
+	 * update the manifest in the JAR file. The provided manifest file must
+	 * conform to the <a href="https://docs.oracle.com/javase/8/docs/technotes/guides/jar/jar.html#JAR_Manifest">JAR Manifest specification</a>.
+	 * <p>
+	 * {@code mode}, {@code strategy}, {@code compressionLevel},
+	 * {@code publishArtifact}, {@code nestedJars} and {@code alignment} are
+	 * optional.
+	 * <p>
+	 * {@code mode} can be set to "merge" or "overwrite". "merge" will instruct
+	 * the plugin to merge the contents of the original and supplement manifest, and
+	 * "overwrite" will replace the original with the supplement manifest. 
+	 * (Defaults to "merge"). 
+	 * <p>
+	 * {@code strategy} can be set to "rewrite" or "append". "rewrite" will write
+	 * a new JAR file, and "append" will append the new manifest and central
+	 * directory to a full copy of the entries of the JAR file (or after the end of
+	 * the JAR file itself, if already located in the output directory, so the
+	 * original remains readable until the update completes), leaving the original
+	 * manifest in place but unreferenced. Archives that can't be appended to (eg
+	 * ZIP64) are rewritten. (Defaults to "rewrite").
+	 * <p>
+	 * {@code compressionLevel} can be set to -1 to copy each entry as is, 0 to
+	 * store every entry, or 1 to 9 to deflate every entry at that level. Entries
+	 * are recompressed concurrently, and imply the "rewrite" strategy. (Defaults
+	 * to -1).
+	 * <p>
+	 * {@code publishArtifact} can be set to "true" or "false". This setting
+	 * instructs the plugin to republish an updated JAR back into the local
+	 * maven repository post processing. This setting has no effect if
+	 * the JAR file being updated did not originate from the local maven 
+	 * repository. (Defaults to "false").
+	 * <p>
+	 * {@code nestedJars} defines a pattern of JAR files nested within the JAR
+	 * file (eg "BOOT-INF/lib/*.jar"), whose manifests are updated instead of the
+	 * manifest of the JAR file itself. Nested JAR files are updated as the JAR
+	 * file is copied, and stored. Implies the "rewrite" strategy. (Defaults to
+	 * none).
+	 * <p>
+	 * {@code alignment} can be set to a power of two up to 32768 (eg 4096 or
+	 * 16384), so the data of every stored entry starts at a multiple of it, and
+	 * can be memory mapped in place. The local headers are padded with an extra
+	 * field. Implies the "rewrite" strategy. Archives that have to be recompressed
+	 * through the JDK are not aligned, with a warning. (Defaults to 0, not
+	 * aligned).
+	 * <p>
+	 * Artifacts that resolve to the same JAR file are updated in a single pass,
+	 * applying each supplemental manifest in declaration order. The
+	 * {@code strategy} and {@code compressionLevel} of the last such artifact are
+	 * used, and the JAR file is published if any of them is published.
+	 */
+	@Parameter
+	private List<ArtifactDefinition> artifacts;
+
+	/**
+	 * Selections of project dependencies to update, as an alternative to listing
+	 * each artifact.
+	 * <p>
+	 * A selection is defined as:
+	 * 
+	 * <pre>
+&lt;dependencies&gt;
+&lt;dependency&gt;
+&nbsp;&nbsp;&lt;scopes&gt;&lt;scope&gt;compile&lt;/scope&gt;&lt;scope&gt;runtime&lt;/scope&gt;&lt;/scopes&gt;
+&nbsp;&nbsp;&lt;types&gt;&lt;type&gt;jar&lt;/type&gt;&lt;/types&gt;
+&nbsp;&nbsp;&lt;includes&gt;&lt;include&gt;org.apache.*&lt;/include&gt;&lt;/includes&gt;
+&nbsp;&nbsp;&lt;excludes&gt;&lt;exclude&gt;org.apache.maven:maven-core&lt;/exclude&gt;&lt;/excludes&gt;
+&nbsp;&nbsp;&lt;manifestFile&gt;src/manifests/apache.mf&lt;/manifestFile&gt;
+&nbsp;&nbsp;&lt;mode&gt;merge&lt;/mode&gt;
+&nbsp;&nbsp;&lt;strategy&gt;rewrite&lt;/strategy&gt;
+&nbsp;&nbsp;&lt;compressionLevel&gt;-1&lt;/compressionLevel&gt;
+&nbsp;&nbsp;&lt;publishArtifact&gt;false&lt;/publishArtifact&gt;
+&nbsp;&nbsp;&lt;alignment&gt;0&lt;/alignment&gt;
+&lt;/dependency&gt;
+...
+&lt;/dependencies&gt;
+	 * </pre>
+	 * <p>
+	 * Every resolved (including transitive) dependency of the project with one of
+	 * the {@code scopes} (defaults to compile and runtime) and {@code types}
+	 * (defaults to jar), matching any of the {@code includes} (defaults to all)
+	 * and none of the {@code excludes} {@code groupId[:artifactId]} patterns, is
+	 * updated as if defined as an artifact with the remaining settings. The JAR
+	 * file resolved by maven is used, and only dependencies located in the local
+	 * maven repository can be published. Selected dependencies are processed after
+	 * the {@code artifacts}.
+	 */
+	@Parameter
+	private List<DependencySelection> dependencies;
+
+	/**
+	 * The current project, providing the resolved dependencies.
+	 */
+	@Parameter(defaultValue = "${project}", readonly = true)
+	private MavenProject project;
+
+	/**
+	 * Resolves the dependencies of the project, only if {@code dependencies} are
+	 * selected, and only in the selected scopes.
+	 */
+	@Component
+	private ProjectDependenciesResolver dependencyResolver;
+
+	/**
+	 * The number of artifacts to process concurrently. A value of 0 or less will
+	 * use the number of available processors. (Defaults to 0).
+	 */
+	@Parameter(defaultValue = "0")
+	private int threads;
+
+	/**
+	 * The maximum number of artifacts that may be read or written at the same
+	 * time, regardless of the number of {@code threads}. A value of 0 or less
+	 * places no additional limit. (Defaults to 0).
+	 */
+	@Parameter(defaultValue = "0")
+	private int ioConcurrency;
+
+	/**
+	 * How a published artifact is made available in the output directory.
+	 * {@code copy} always copies, {@code link} uses a hard link to the published
+	 * artifact where possible, falling back to a copy, and {@code none} leaves
+	 * the artifact in the local maven repository only. A linked output must not
+	 * be modified by other tools, as that would modify the artifact in the local
+	 * maven repository as well. (Defaults to {@code copy}).
+	 */
+	@Parameter(defaultValue = "copy")
+	private String publishOutput = "copy";
+
+	/**
+	 * The checksums to write alongside artifacts published back into the local
+	 * maven repository, eg {@code SHA-1}, {@code MD5}, {@code SHA-256} or
+	 * {@code SHA-512}. The checksums are calculated as the artifact is written.
+	 * (Defaults to {@code SHA-1}).
+	 */
+	@Parameter
+	private List<String> checksums;
+
+	/**
+	 * Skip artifacts whose source JAR, supplemental manifest and options are
+	 * unchanged since the last build, and whose output is still intact. (Defaults
+	 * to true).
+	 */
+	@Parameter(defaultValue = "true")
+	private boolean incremental;
+
+	/**
+	 * The file used to record the state of previously processed artifacts.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/manifest-update.state")
+	private File stateFile;
+
+	/**
+	 * The format of the per-artifact report written to the output directory as
+	 * {@code manifest-update-report.json} or {@code manifest-update-report.csv}.
+	 * Either {@code json}, {@code csv} or {@code none}. (Defaults to
+	 * {@code json}).
+	 */
+	@Parameter(defaultValue = "json")
+	private String report = "json";
+
+	/**
+	 * The directory of the output cache, which may be shared by all projects and
+	 * builds. Updated JAR files are stored by the hash of the source JAR file, the
+	 * supplemental manifests and options, and the plugin version, and restored
+	 * from the cache rather than rewritten. Each JAR file rewritten is added as a
+	 * hard link where possible, rather than a copy, so must not be modified in
+	 * place by other tools. (Defaults to no cache).
+	 */
+	@Parameter
+	private File cacheDirectory;
+
+	/**
+	 * The maximum size of the output cache in megabytes. The least recently used
+	 * entries are removed once exceeded, checked when JAR files were added to the
+	 * cache. (Defaults to 1024).
+	 */
+	@Parameter(defaultValue = "1024")
+	private long cacheSize = 1024;
+
+	/**
+	 * Restore JAR files from the output cache using a hard link to the cache entry
+	 * where possible, rather than a copy. Linked JAR files must not be modified in
+	 * place by other tools. (Defaults to false).
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean cacheLink;
+
+	/**
+	 * The version of this plugin, part of the key of each cache entry.
+	 */
+	@Parameter(defaultValue = "${plugin.version}", readonly = true)
+	private String pluginVersion;
+
+	/**
+	 * The memory in kilobytes each JAR file being copied may use to overlap
+	 * reading the source with writing the output, eg on network storage. A
+	 * reader pre-fetches into a ring of buffers of up to 1MB each, while the
+	 * output is written. At least two buffers of 8KB are needed, so values below
+	 * 16 are raised to 16, with a warning. A value of 0 or less copies directly,
+	 * without overlapping. (Defaults to 0).
+	 */
+	@Parameter(defaultValue = "0")
+	private int pipelineMemory;
+
+	/**
+	 * TRUE to overlap reads and writes with direct (off heap) buffers, so the
+	 * data is not copied through the Java heap. Only applies if
+	 * {@link #pipelineMemory} is set. (Defaults to false).
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean directBuffers;
+
+	/**
+	 * Emit a Java Flight Recorder event for every n-th entry copied, while
+	 * recording. Events for each artifact and each phase are always emitted while
+	 * recording. (Defaults to 0, no entry events).
+	 */
+	@Parameter(defaultValue = "0")
+	private int entryEventInterval;
+
+	/**
+	 * The build state, or {@code null} if not processing incrementally.
+	 */
+	private BuildState state;
+
+	/**
+	 * The executor used to recompress entries, or {@code null} if not yet used,
+	 * (guarded by this).
+	 */
+	private ExecutorService compressor;
+
+	/**
+	 * The current session, shared with other modules of a reactor build.
+	 */
+	@Parameter(defaultValue = "${session}", readonly = true)
+	private MavenSession session;
+
+	/**
+	 * The rewrites performed within the session, or {@code null} if not shared.
+	 */
+	private RewriteRegistry registry;
+
+	/**
+	 * The supplemental manifests parsed within the session, or {@code null} if
+	 * not yet used.
+	 */
+	private ManifestCache manifests;
+
+	/**
+	 * The output cache, or {@code null} if not caching.
+	 */
+	private OutputCache cache;
+
+	/**
+	 * The executor the readers of pipelined copies run on, or {@code null} if not
+	 * overlapping reads and writes.
+	 */
+	private ExecutorService reader;
+
+	@Override
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		/*
+		 * Check to ensure we have something to work on, if not, give a warning.
+		 */
+		List<ArtifactDefinition> definitions = new ArrayList<>();
+		List<ArtifactDefinition> patterns = new ArrayList<>();
+		for (ArtifactDefinition def : getDefinitions()) {
+			(isPattern(def) ? patterns : definitions).add(def);
+		}
+		if (definitions.isEmpty() && patterns.isEmpty()) {
+			getLog().warn("No artifacts defined, skipping...");
+			return;
+		}
+		/*
+		 * Ensure all supplemental manifests are valid before touching any JAR.
+		 */
+		List<Throwable> invalid = new ArrayList<>();
+		List<ArtifactDefinition> all = new ArrayList<>(definitions);
+		all.addAll(patterns);
+		for (ArtifactDefinition def : all) {
+			if (def != null && def.getManifestFile() != null) {
+				try {
+					getManifests().getManifest(def.getManifestFile());
+				} catch (IOException error) {
+					getLog().error(error.getMessage());
+					invalid.add(error);
+				}
+			}
+		}
+		if (!invalid.isEmpty()) {
+			fail(invalid);
+		}
+		if (registry == null) {
+			registry = RewriteRegistry.get(session);
+		}
+		cache = cacheDirectory == null ? null : new OutputCache(cacheDirectory.toPath(), cacheSize * 1024 * 1024);
+		/*
+		 * Load the state of the previous build.
+		 */
+		state = null;
+		if (incremental && stateFile != null) {
+			try {
+				state = BuildState.load(stateFile.toPath());
+			} catch (IOException e) {
+				getLog().warn("Unable to read " + stateFile + ", processing all artifacts", e);
+			}
+		}
+		/*
+		 * Group definitions sharing the same source JAR, so that each JAR is read
+		 * and written once, with all supplemental manifests applied in declaration
+		 * order.
+		 */
+		List<List<Integer>> batches = new ArrayList<>();
+		Map<Path, List<Integer>> bySource = new HashMap<>();
+		for (int i = 0; i < definitions.size(); i++) {
+			Path source = getBatchKey(definitions.get(i));
+			List<Integer> batch = source == null ? null : bySource.get(source);
+			if (batch == null) {
+				batch = new ArrayList<>();
+				batches.add(batch);
+				if (source != null) {
+					bySource.put(source, batch);
+				}
+			}
+			batch.add(i);
+		}
+		/*
+		 * Process each JAR concurrently, skipping Signed JAR, otherwise throw
+		 * appropriate exception once all artifacts have completed. Each JAR logs to
+		 * its own buffer, which is flushed in declaration order, followed by JARs
+		 * found by directory or glob patterns in the order found.
+		 */
+		int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		if (patterns.isEmpty()) {
+			poolSize = Math.min(poolSize, batches.size());
+		}
+		Semaphore io = new Semaphore(ioConcurrency > 0 ? ioConcurrency : Integer.MAX_VALUE);
+		ExecutorService executor = Executors.newFixedThreadPool(poolSize, newThreadFactory("manifest-update"));
+		if (pipelineMemory > 0) {
+			long memory = PipelinedCopier.getMemory(pipelineMemory * 1024L);
+			if (memory > pipelineMemory * 1024L) {
+				getLog().warn("pipelineMemory of " + pipelineMemory + "KB is below the minimum, using "
+						+ (memory / 1024) + "KB");
+			}
+			reader = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "manifest-update-read");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		List<Throwable> failures = new ArrayList<>();
+		Report records = new Report();
+		for (ArtifactDefinition def : definitions) {
+			records.add(def);
+		}
+		try {
+			List<BufferedLog> logs = new ArrayList<>();
+			List<Future<?>> results = new ArrayList<>();
+			List<Report.Record> primaries = new ArrayList<>();
+			List<List<Report.Record>> followers = new ArrayList<>();
+			for (List<Integer> batch : batches) {
+				List<ArtifactDefinition> defs = new ArrayList<>(batch.size());
+				List<Report.Record> following = new ArrayList<>(batch.size() - 1);
+				batch.forEach(i -> defs.add(definitions.get(i)));
+				batch.subList(1, batch.size()).forEach(i -> following.add(records.getRecords().get(i)));
+				submit(executor, io, null, defs, records.getRecords().get(batch.get(0)), logs, results, primaries);
+				followers.add(following);
+			}
+			/*
+			 * Feed JARs to the workers as they are found, so processing starts before
+			 * the search completes. At most two JARs per worker are queued at any time.
+			 */
+			if (!patterns.isEmpty()) {
+				Semaphore queued = new Semaphore(poolSize * 2);
+				Set<Path> claimed = new HashSet<>(bySource.keySet());
+				for (ArtifactDefinition pattern : patterns) {
+					try {
+						find(pattern, def -> {
+							if (!claimed.add(def.getJarFile().toPath().toAbsolutePath().normalize())) {
+								getLog().debug("Skipping " + def.getJarFile() + ", already defined");
+								return;
+							}
+							queued.acquireUninterruptibly();
+							submit(executor, io, queued, Collections.singletonList(def), records.add(def), logs,
+									results, primaries);
+							followers.add(Collections.<Report.Record>emptyList());
+						});
+					} catch (IOException e) {
+						getLog().error(e);
+						failures.add(e);
+					}
+				}
+			}
+			for (int i = 0; i < results.size(); i++) {
+				BufferedLog log = logs.get(i);
+				Report.Record record = primaries.get(i);
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					Throwable error = e.getCause();
+					if (error instanceof SignedJARException) {
+						log.warn(error);
+						record.setOutcome(Report.Outcome.SKIPPED_SIGNED);
+					} else {
+						log.error(error);
+						record.fail(error);
+						failures.add(error);
+					}
+				} finally {
+					for (Report.Record follower : followers.get(i)) {
+						follower.follow(record);
+					}
+					log.flush();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while processing artifacts", e);
+		} finally {
+			executor.shutdownNow();
+			synchronized (this) {
+				if (compressor != null) {
+					compressor.shutdownNow();
+					compressor = null;
+				}
+			}
+			if (reader != null) {
+				reader.shutdownNow();
+				reader = null;
+			}
+			saveState();
+			trimCache();
+			writeReport(records);
+		}
+		if (!failures.isEmpty()) {
+			fail(failures);
+		}
+	}
+
+	/**
+	 * Get all definitions to process, being the configured artifacts followed by
+	 * the selected project dependencies.
+	 * 
+	 * @return The definitions.
+	 * @throws MojoExecutionException Resolving the project dependencies failed.
+	 */
+	List<ArtifactDefinition> getDefinitions() throws MojoExecutionException {
+		List<ArtifactDefinition> definitions = new ArrayList<>();
+		if (artifacts != null) {
+			definitions.addAll(artifacts);
+		}
+		if (dependencies == null || dependencies.isEmpty()) {
+			return definitions;
+		}
+		Collection<Artifact> resolved = resolveDependencies();
+		Path repository = localRepository == null ? null : localRepository.toPath().toAbsolutePath().normalize();
+		for (DependencySelection selection : dependencies) {
+			if (selection == null) {
+				continue;
+			}
+			ArtifactFilter filter = new ArtifactFilter(selection.getIncludes(), selection.getExcludes());
+			int selected = 0;
+			for (Artifact artifact : resolved) {
+				if (!selection.accept(artifact) || !filter.accept(artifact.getGroupId(), artifact.getArtifactId())) {
+					continue;
+				}
+				File file = artifact.getFile();
+				if (file == null || !file.isFile()) {
+					// Eg a reactor module that has not been packaged.
+					getLog().debug("Skipping " + artifact + ", not resolved to a JAR file");
+					continue;
+				}
+				boolean inRepository = repository != null
+						&& file.toPath().toAbsolutePath().normalize().startsWith(repository);
+				definitions.add(selection.toDefinition(artifact, selection.isPublishArtifact() && inRepository));
+				selected++;
+			}
+			getLog().debug(selected + " dependencies selected for " + selection.getManifestFile());
+		}
+		return definitions;
+	}
+
+	/**
+	 * Resolve the (including transitive) dependencies of the project in the
+	 * scopes of the selections. Resolution is requested by the plugin, rather
+	 * than required of maven for every execution, so builds that only define
+	 * {@code artifacts} do not resolve the project dependencies.
+	 * 
+	 * @return The dependencies, with the file of those in the selected scopes
+	 *         resolved.
+	 * @throws MojoExecutionException Resolving the dependencies failed.
+	 */
+	private Collection<Artifact> resolveDependencies() throws MojoExecutionException {
+		if (project == null) {
+			return Collections.emptySet();
+		}
+		if (dependencyResolver == null || session == null || session.getRepositorySession() == null) {
+			// Not run by maven, so use the dependencies already resolved (if any).
+			return project.getArtifacts();
+		}
+		Set<String> scopes = new HashSet<>();
+		for (DependencySelection selection : dependencies) {
+			if (selection != null) {
+				scopes.addAll(selection.getScopes());
+			}
+		}
+		DependencyResolutionRequest request = new DefaultDependencyResolutionRequest(project,
+				session.getRepositorySession()).setResolutionFilter(new ScopeDependencyFilter(scopes, null));
+		DependencyResolutionResult result;
+		try {
+			result = dependencyResolver.resolve(request);
+		} catch (DependencyResolutionException e) {
+			throw new MojoExecutionException("Unable to resolve the dependencies of " + project.getId(), e);
+		}
+		List<Artifact> resolved = new ArrayList<>();
+		for (Dependency dependency : result.getDependencies()) {
+			Artifact artifact = RepositoryUtils.toArtifact(dependency.getArtifact());
+			artifact.setScope(dependency.getScope());
+			resolved.add(artifact);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Submit the definitions, which all share the same source JAR file, to be
+	 * processed.
+	 * 
+	 * @param executor The executor to process on.
+	 * @param io       Limits the number of JAR files read or written at once.
+	 * @param queued   Released once processing has completed, or {@code null}.
+	 * @param defs     The definitions to process.
+	 * @param record   The report record to update.
+	 * @param logs     The logs of the submitted tasks, to add to.
+	 * @param results  The results of the submitted tasks, to add to.
+	 * @param records  The report records of the submitted tasks, to add to.
+	 */
+	private void submit(ExecutorService executor, Semaphore io, Semaphore queued, List<ArtifactDefinition> defs,
+			Report.Record record, List<BufferedLog> logs, List<Future<?>> results, List<Report.Record> records) {
+		BufferedLog log = new BufferedLog(getLog());
+		logs.add(log);
+		records.add(record);
+		results.add(executor.submit(() -> {
+			try {
+				io.acquire();
+				record.start();
+				try {
+					process(defs, log, record);
+				} finally {
+					record.stop();
+					io.release();
+				}
+			} finally {
+				if (queued != null) {
+					queued.release();
+				}
+			}
+			return null;
+		}));
+	}
+
+	/**
+	 * Is the definition a directory or glob pattern of JAR Files, rather than a
+	 * single JAR File or artifact.
+	 * 
+	 * @param def The definition.
+	 * @return TRUE if the definition is a pattern.
+	 */
+	private static boolean isPattern(ArtifactDefinition def) {
+		return def != null && def.getJarFile() == null && def.getJarFiles() != null
+				&& !def.getJarFiles().trim().isEmpty();
+	}
+
+	/**
+	 * Find the JAR Files matched by the directory or glob pattern of the
+	 * definition, passing a definition for each to the consumer as it is found.
+	 * <p>
+	 * The pattern is split at the first path segment containing a glob character.
+	 * The directory before it is walked, and the remainder is matched against the
+	 * path of each file relative to that directory, which is also the location of
+	 * the output relative to the output directory. A directory is the same as the
+	 * pattern {@code directory/**}{@code /*.jar}, and {@code **}{@code /} also
+	 * matches no directory at all.
+	 * 
+	 * @param pattern  The definition holding the pattern.
+	 * @param consumer Receives a definition for each JAR File found.
+	 * @throws IOException The directory could not be walked.
+	 */
+	void find(ArtifactDefinition pattern, Consumer<ArtifactDefinition> consumer) throws IOException {
+		String[] segments = pattern.getJarFiles().trim().replace('\\', '/').split("/", -1);
+		int glob = 0;
+		while (glob < segments.length && !isGlob(segments[glob])) {
+			glob++;
+		}
+		Path base = getBaseDirectory();
+		String root = String.join("/", Arrays.asList(segments).subList(0, glob));
+		if (!root.isEmpty() || pattern.getJarFiles().trim().startsWith("/")) {
+			base = base.resolve(root.isEmpty() ? "/" : root);
+		}
+		String remainder = String.join("/", Arrays.asList(segments).subList(glob, segments.length));
+		if (remainder.isEmpty()) {
+			if (Files.isRegularFile(base)) {
+				consumer.accept(pattern.forJarFile(base.toFile(), base.getFileName().toString()));
+				return;
+			}
+			remainder = "**/*.jar";
+		}
+		if (!Files.isDirectory(base)) {
+			throw new IOException("Unable to locate directory '" + base + "' for '" + pattern.getJarFiles() + "'");
+		}
+		List<PathMatcher> matchers = new ArrayList<>();
+		matchers.add(base.getFileSystem().getPathMatcher("glob:" + remainder));
+		if (remainder.startsWith("**/")) {
+			matchers.add(base.getFileSystem().getPathMatcher("glob:" + remainder.substring(3)));
+		}
+		Path top = base;
+		Path output = outputDirectory.toPath().toAbsolutePath().normalize();
+		Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				// Never pick up output written while searching.
+				if (!dir.equals(top) && dir.toAbsolutePath().normalize().equals(output)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				Path relative = top.relativize(file);
+				if (attrs.isRegularFile() && matchers.stream().anyMatch(m -> m.matches(relative))) {
+					consumer.accept(pattern.forJarFile(file.toFile(), relative.toString()));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Does the path segment contain a glob character.
+	 * 
+	 * @param segment The path segment.
+	 * @return TRUE if the segment is a glob.
+	 */
+	private static boolean isGlob(String segment) {
+		for (char c : segment.toCharArray()) {
+			if (c == '*' || c == '?' || c == '[' || c == '{') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the directory {@code jarFiles} patterns are relative to.
+	 * 
+	 * @return The project base directory, or the working directory if there is
+	 *         no project.
+	 */
+	private Path getBaseDirectory() {
+		if (project != null && project.getBasedir() != null) {
+			return project.getBasedir().toPath();
+		}
+		return Paths.get("").toAbsolutePath();
+	}
+
+	/**
+	 * Get the key used to group definitions that share the same source JAR.
+	 * 
+	 * @param def The definition.
+	 * @return The normalised location of the source JAR, or {@code null} if the
+	 *         definition is invalid and must be processed alone.
+	 */
+	private Path getBatchKey(ArtifactDefinition def) {
+		try {
+			validate(def);
+			return getSourcePath(def).toAbsolutePath().normalize();
+		} catch (IOException | IllegalStateException | InvalidPathException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Save the build state, if processing incrementally.
+	 */
+	private void saveState() {
+		if (state != null) {
+			try {
+				state.save();
+			} catch (IOException e) {
+				getLog().warn("Unable to write " + stateFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Remove the least recently used entries of the output cache, if caching and
+	 * this execution added to the cache.
+	 */
+	private void trimCache() {
+		if (cache != null && cache.getBytesAdded() > 0) {
+			try {
+				int removed = cache.trim();
+				if (removed > 0) {
+					getLog().debug("Removed " + removed + " entries from " + cacheDirectory);
+				}
+			} catch (IOException e) {
+				getLog().warn("Unable to trim " + cacheDirectory, e);
+			}
+		}
+	}
+
+	/**
+	 * Write the per-artifact report, if enabled.
+	 * 
+	 * @param records The report.
+	 */
+	private void writeReport(Report records) {
+		if (report == null || report.equalsIgnoreCase("none") || outputDirectory == null) {
+			return;
+		}
+		if (!report.equalsIgnoreCase("json") && !report.equalsIgnoreCase("csv")) {
+			getLog().warn("Unknown report format '" + report + "', no report written");
+			return;
+		}
+		Path file = getReportFile();
+		try {
+			records.write(file, report);
+		} catch (IOException e) {
+			getLog().warn("Unable to write " + file, e);
+		}
+	}
+
+	/**
+	 * Get the location of the per-artifact report.
+	 * 
+	 * @return The report file.
+	 */
+	Path getReportFile() {
+		return outputDirectory.toPath().resolve("manifest-update-report." + report.toLowerCase());
+	}
+
+	/**
+	 * Report the failed artifacts. The first failure (in declaration order)
+	 * determines the type of exception and is the cause, and all others are added
+	 * as suppressed exceptions.
+	 * 
+	 * @param failures The failures.
+	 * @throws MojoFailureException   The first failure was an invalid definition or
+	 *                                IO error.
+	 * @throws MojoExecutionException The first failure was unexpected.
+	 */
+	private void fail(List<Throwable> failures) throws MojoExecutionException, MojoFailureException {
+		Throwable first = failures.get(0);
+		String message = first.getMessage();
+		if (failures.size() > 1) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(failures.size()).append(" artifacts failed:");
+			for (Throwable error : failures) {
+				sb.append(System.lineSeparator()).append("  ").append(error.getMessage());
+			}
+			message = sb.toString();
+		}
+		if (first instanceof IOException || first instanceof IllegalStateException) {
+			MojoFailureException result = new MojoFailureException(message, first);
+			failures.subList(1, failures.size()).forEach(result::addSuppressed);
+			throw result;
+		}
+		MojoExecutionException result = new MojoExecutionException(message, first);
+		failures.subList(1, failures.size()).forEach(result::addSuppressed);
+		throw result;
+	}
+
+	/**
+	 * Process the given definition
+	 * 
+	 * @param def The definition to process
+	 * @throws IOException           Error occurred processing the JAR file
+	 * @throws SignedJARException    The JAR File is signed.
+	 * @throws IllegalStateException The definition is invalid.
+	 */
+	void process(ArtifactDefinition def) throws IOException, SignedJARException, IllegalStateException {
+		process(def, getLog());
+	}
+
+	/**
+	 * Process the given definition
+	 * 
+	 * @param def The definition to process
+	 * @param log The log to report progress to
+	 * @throws IOException           Error occurred processing the JAR file
+	 * @throws SignedJARException    The JAR File is signed.
+	 * @throws IllegalStateException The definition is invalid.
+	 */
+	void process(ArtifactDefinition def, Log log) throws IOException, SignedJARException, IllegalStateException {
+		Report.Record record = new Report.Record(def);
+		record.start();
+		try {
+			process(def, log, record);
+		} finally {
+			record.stop();
+		}
+	}
+
+	/**
+	 * Process the given definition
+	 * 
+	 * @param def    The definition to process
+	 * @param log    The log to report progress to
+	 * @param record The report record to update
+	 * @throws IOException           Error occurred processing the JAR file
+	 * @throws SignedJARException    The JAR File is signed.
+	 * @throws IllegalStateException The definition is invalid.
+	 */
+	void process(ArtifactDefinition def, Log log, Report.Record record)
+			throws IOException, SignedJARException, IllegalStateException {
+		process(Collections.singletonList(def), log, record);
+	}
+
+	/**
+	 * Process the given definitions, which all share the same source JAR file, in
+	 * a single pass. The supplemental manifests are applied in order, the
+	 * strategy and compression level of the last definition are used, and the
+	 * result is published if any definition publishes it.
+	 * 
+	 * @param defs   The definitions to process
+	 * @param log    The log to report progress to
+	 * @param record The report record to update
+	 * @throws IOException           Error occurred processing the JAR file
+	 * @throws SignedJARException    The JAR File is signed.
+	 * @throws IllegalStateException A definition is invalid.
+	 */
+	@SuppressWarnings("try")
+	void process(List<ArtifactDefinition> defs, Log log, Report.Record record)
+			throws IOException, SignedJARException, IllegalStateException {
+		// Validate input.
+		for (ArtifactDefinition def : defs) {
+			validate(def);
+		}
+		Path zipFile = getSourcePath(defs.get(0));
+		String outputPath = defs.get(0).getOutputPath();
+		Path outFile = outputDirectory.toPath().resolve(outputPath != null ? outputPath : zipFile.getFileName().toString());
+		List<Path> manifestFiles = new ArrayList<>(defs.size());
+		for (ArtifactDefinition def : defs) {
+			manifestFiles.add(def.getManifestFile().toPath());
+		}
+		String options = getOptions(defs);
+		boolean publish = defs.stream().anyMatch(def -> def.getJarFile() == null && def.isPublishArtifact());
+		record.setPath(zipFile);
+
+		// Within a session, the first module to claim a rewrite performs it, and all
+		// others wait for and reuse the result.
+		CompletableFuture<Path> result = null;
+		if (registry != null) {
+			Path written = publish ? zipFile : outFile;
+			CompletableFuture<Path> claim = new CompletableFuture<>();
+			CompletableFuture<Path> other = registry.claim(getRewriteKey(zipFile, manifestFiles, options),
+					written.toAbsolutePath().normalize(), claim);
+			if (other == null) {
+				result = claim;
+			} else if (reuse(RewriteRegistry.await(other), zipFile, outFile, manifestFiles, options, publish, log,
+					record)) {
+				return;
+			}
+		}
+		// Serialise writers of the same file, including other processes when writing
+		// to the local repository.
+		try (RewriteLocks.Held lock = publish ? RewriteLocks.lock(zipFile, getLockFile(zipFile))
+				: RewriteLocks.lock(outFile, null)) {
+			rewrite(defs, zipFile, outFile, manifestFiles, options, publish, log, record);
+			if (result != null) {
+				result.complete(publish ? zipFile : outFile);
+			}
+		} finally {
+			if (result != null) {
+				// No effect if already completed.
+				result.completeExceptionally(new IOException("Rewrite of " + zipFile + " failed"));
+			}
+		}
+	}
+
+	/**
+	 * Get the key identifying a rewrite within the session, being the source JAR
+	 * file, the path and SHA-256 hash of the content of each supplemental
+	 * manifest, and the options. A manifest file regenerated during the session is
+	 * a different rewrite. The output file is not part of the key, so modules
+	 * writing to their own output directories reuse the same rewrite.
+	 * 
+	 * @param zipFile       The source JAR file.
+	 * @param manifestFiles The supplemental manifests.
+	 * @param options       The options of the definitions.
+	 * @return The key.
+	 * @throws IOException Reading a supplemental manifest failed.
+	 */
+	private static String getRewriteKey(Path zipFile, List<Path> manifestFiles, String options) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(zipFile.toAbsolutePath().normalize());
+		for (Path manifestFile : manifestFiles) {
+			sb.append('|').append(manifestFile.toAbsolutePath().normalize());
+			sb.append('@').append(BuildState.hash(manifestFile));
+		}
+		return sb.append('|').append(options).toString();
+	}
+
+	/**
+	 * Get the file used to lock a JAR file in the local maven repository against
+	 * other processes, being {@code .locks/<path in repository>.lock} in the local
+	 * maven repository.
+	 * 
+	 * @param zipFile The JAR file in the local maven repository.
+	 * @return The lock file.
+	 */
+	private Path getLockFile(Path zipFile) {
+		Path repository = localRepository.toPath().toAbsolutePath().normalize();
+		Path file = zipFile.toAbsolutePath().normalize();
+		String name = file.startsWith(repository) ? repository.relativize(file).toString() : file.toString();
+		return repository.resolve(".locks").resolve(name.replace(File.separatorChar, '~').replace(':', '~') + ".lock");
+	}
+
+	/**
+	 * Reuse the result of a rewrite performed by another module, making it
+	 * available in the output directory.
+	 * 
+	 * @param result        The updated JAR file, or {@code null} if the rewrite
+	 *                      failed.
+	 * @param zipFile       The source JAR file.
+	 * @param outFile       The output JAR file.
+	 * @param manifestFiles The supplemental manifests.
+	 * @param options       The options of the definitions.
+	 * @param publish       TRUE if the result was published.
+	 * @param log           The log to report progress to
+	 * @param record        The report record to update
+	 * @return TRUE if reused, or FALSE if the rewrite failed or its result no
+	 *         longer exists, so must be performed again.
+	 * @throws IOException The result could not be made available.
+	 */
+	@SuppressWarnings("try")
+	private boolean reuse(Path result, Path zipFile, Path outFile, List<Path> manifestFiles, String options,
+			boolean publish, Log log, Report.Record record) throws IOException {
+		if (result == null || !Files.exists(result)) {
+			return false;
+		}
+		record.time(Report.Phase.OPEN);
+		log.info("Reusing : " + result.toString());
+		try (RewriteLocks.Held lock = RewriteLocks.lock(outFile, null)) {
+			if (!publish || !publishOutput.equalsIgnoreCase("none")) {
+				Files.createDirectories(outFile.getParent());
+				AtomicFiles.expose(result, outFile, publish && publishOutput.equalsIgnoreCase("link"));
+			}
+			record.time(Report.Phase.PUBLISH);
+			if (state != null) {
+				state.update(publish && publishOutput.equalsIgnoreCase("none") ? zipFile : outFile, zipFile,
+						manifestFiles, options);
+				record.time(Report.Phase.DIGEST);
+			}
+		}
+		record.setOutcome(Report.Outcome.REUSED);
+		return true;
+	}
+
+	/**
+	 * Rewrite the source JAR file, unless up to date.
+	 * 
+	 * @param defs          The definitions to process
+	 * @param zipFile       The source JAR file.
+	 * @param outFile       The output JAR file.
+	 * @param manifestFiles The supplemental manifests.
+	 * @param options       The options of the definitions.
+	 * @param publish       TRUE to publish the result.
+	 * @param log           The log to report progress to
+	 * @param record        The report record to update
+	 * @throws IOException        Error occurred processing the JAR file
+	 * @throws SignedJARException The JAR File is signed.
+	 */
+	private void rewrite(List<ArtifactDefinition> defs, Path zipFile, Path outFile, List<Path> manifestFiles,
+			String options, boolean publish, Log log, Report.Record record) throws IOException, SignedJARException {
+		ArtifactDefinition last = defs.get(defs.size() - 1);
+		// A published artifact that is not exposed has no output of its own.
+		Path tracked = publish && publishOutput.equalsIgnoreCase("none") ? zipFile : outFile;
+
+		// Skip if nothing has changed since the last build.
+		record.time(Report.Phase.OPEN);
+		if (state != null && state.isUpToDate(tracked, zipFile, manifestFiles, options)) {
+			record.time(Report.Phase.DIGEST);
+			record.setOutcome(Report.Outcome.UP_TO_DATE);
+			log.info("Up to date : " + zipFile.toString());
+			return;
+		}
+		record.time(Report.Phase.DIGEST);
+
+		// Load the new manifests
+		List<Manifest> newManifests = new ArrayList<>(defs.size());
+		for (ArtifactDefinition def : defs) {
+			newManifests.add(getManifests().getManifest(def.getManifestFile()));
+		}
+		record.time(Report.Phase.MANIFEST);
+
+		// Start by copying the contents...
+		String cacheKey = null;
+		Checksums checksums = null;
+		try (JarFile jarFile = new JarFile(zipFile.toFile())) {
+			// Check the existing manifest for signed jar entries.
+			Manifest jarFileManifest = jarFile.getManifest();
+			record.time(Report.Phase.OPEN);
+			if (!jarFileManifest.getEntries().isEmpty()) {
+				record.setOutcome(Report.Outcome.SKIPPED_SIGNED);
+				throw new SignedJARException(zipFile.getFileName().toString() + " appears to be signed, skipping.");
+			}
+
+			// Build the new manifest, applying each supplement in turn. Supplements
+			// for nested JAR files are applied to those as they are copied.
+			Manifest manifest = jarFileManifest;
+			NestedJars nested = null;
+			for (int i = 0; i < defs.size(); i++) {
+				ArtifactDefinition def = defs.get(i);
+				if (isNested(def)) {
+					if (nested == null) {
+						nested = new NestedJars();
+					}
+					nested.add(def.getNestedJars(), newManifests.get(i), def.getMode());
+				} else {
+					manifest = updateManifest(manifest, newManifests.get(i), def.getMode());
+				}
+			}
+			int level = last.getCompressionLevel();
+			int alignment = last.getAlignment();
+
+			// Nothing to do if the manifest is unchanged and not recompressing, other
+			// than make the JAR file available in the output directory. Decided from
+			// the central directory alone, before hashing anything. The output would
+			// be byte identical, so is copied from the source, or linked only if a
+			// published artifact is to be linked, as the source may be in the local
+			// maven repository.
+			if (level < 0 && nested == null && alignment == 0 && manifest.equals(jarFileManifest)) {
+				record.time(Report.Phase.MANIFEST);
+				log.info("Unchanged : " + zipFile.toString());
+				if (!publish || !publishOutput.equalsIgnoreCase("none")) {
+					Files.createDirectories(outFile.getParent());
+					AtomicFiles.expose(zipFile, outFile, publish && publishOutput.equalsIgnoreCase("link"));
+				}
+				record.time(Report.Phase.PUBLISH);
+				if (state != null) {
+					state.update(tracked, zipFile, manifestFiles, options);
+					record.time(Report.Phase.DIGEST);
+				}
+				record.setOutcome(Report.Outcome.UNCHANGED);
+				return;
+			}
+			record.time(Report.Phase.MANIFEST);
+
+			// Restore from the output cache if previously rewritten, by any build.
+			if (cache != null) {
+				cacheKey = getCacheKey(zipFile, tracked, defs, newManifests);
+				record.time(Report.Phase.DIGEST);
+				Path entry = cache.get(cacheKey);
+				if (entry != null && restore(entry, zipFile, outFile, publish, log, record)) {
+					if (state != null) {
+						state.update(tracked, zipFile, manifestFiles, options);
+						record.time(Report.Phase.DIGEST);
+					}
+					record.setOutcome(Report.Outcome.CACHED);
+					return;
+				}
+			}
+
+			if (defs.size() > 1) {
+				log.info("Processing : " + zipFile.toString() + " (" + defs.size() + " manifests)");
+			} else {
+				log.info("Processing : " + zipFile.toString());
+			}
+			byte[] manifestData = toBytes(manifest);
+			record.time(Report.Phase.MANIFEST);
+
+			// If publishing, calculate the checksums as the output is written, along
+			// with the hash recorded in the build state.
+			if (publish || state != null) {
+				checksums = new Checksums(publish ? getChecksums() : Collections.emptyList(), state != null);
+				record.track(checksums);
+			}
+
+			// Now create a new output file and copy the contents over. When publishing,
+			// the output replaces the source in the local repository, and is exposed
+			// in the output directory afterwards.
+			// Ensure the target location exists...
+			Files.createDirectories(outFile.getParent());
+			Path target = publish ? zipFile : outFile;
+			boolean inPlace = Files.exists(target) && Files.isSameFile(zipFile, target);
+			// Recompressing, updating nested JAR files or aligning entries requires
+			// every entry to be rewritten.
+			boolean append = last.getStrategy().equalsIgnoreCase("append") && level < 0 && nested == null
+					&& alignment == 0;
+			// Never truncate the file being read, or publish a partially written file,
+			// so write alongside and replace it.
+			// Nor modify a file linked elsewhere (eg the local repository or cache).
+			Path writeTo = inPlace && (publish || !append || AtomicFiles.isLinked(target))
+					? AtomicFiles.temporary(target)
+					: target;
+			try {
+				boolean appendInPlace = inPlace && writeTo == target;
+				if (append && appendCopy(zipFile, writeTo, appendInPlace, manifestData, checksums, record)) {
+					log.debug("Appended manifest : " + target.toString());
+					// Only part of the file was written in place, so read it all.
+					if (appendInPlace && checksums != null) {
+						checksums.update(writeTo);
+						record.time(Report.Phase.DIGEST);
+					}
+				} else {
+					if (inPlace && writeTo == target) {
+						writeTo = AtomicFiles.temporary(target);
+					}
+					if (!rawCopy(zipFile, writeTo, manifestData, level, alignment, nested, checksums, record)) {
+						if (alignment > 0) {
+							log.warn("Unsupported archive layout, recompressing without alignment " + alignment
+									+ " : " + zipFile.toString());
+						} else {
+							log.debug("Unsupported archive layout, recompressing : " + zipFile.toString());
+						}
+						streamCopy(jarFile, writeTo, manifestData, level, nested, checksums, log, record);
+					}
+					if (nested != null) {
+						log.info("Updated " + nested.getUpdated() + " nested JAR files : " + zipFile.toString());
+					}
+				}
+				if (writeTo != target) {
+					AtomicFiles.replace(writeTo, target);
+				}
+				record.time(Report.Phase.FINISH);
+			} finally {
+				if (writeTo != target) {
+					Files.deleteIfExists(writeTo);
+				}
+			}
+		}
+		// And lastly, if published, update the checksums and expose in the output
+		// directory.
+		if (publish) {
+			checksums.write(zipFile);
+			record.time(Report.Phase.DIGEST);
+			if (!publishOutput.equalsIgnoreCase("none")) {
+				AtomicFiles.expose(zipFile, outFile, publishOutput.equalsIgnoreCase("link"));
+			}
+			record.time(Report.Phase.PUBLISH);
+		}
+		if (state != null) {
+			state.update(tracked, zipFile, manifestFiles, options, checksums.getHash());
+			record.time(Report.Phase.DIGEST);
+		}
+		if (cacheKey != null) {
+			try {
+				cache.put(cacheKey, publish ? zipFile : outFile);
+			} catch (IOException e) {
+				log.warn("Unable to cache " + zipFile + " : " + e.getMessage());
+			}
+			record.time(Report.Phase.PUBLISH);
+		}
+		record.setOutcome(Report.Outcome.PROCESSED);
+	}
+
+	/**
+	 * Get the key of the updated JAR file in the output cache, being the SHA-256
+	 * hash of the plugin version, the content of the source JAR file, and the
+	 * normalised supplemental manifests and options of each definition. The hash
+	 * of the source JAR file recorded in the build state is reused if the file is
+	 * unchanged, so the source is only read if it changed.
+	 * 
+	 * @param zipFile   The source JAR file.
+	 * @param tracked   The output tracked by the build state.
+	 * @param defs      The definitions.
+	 * @param manifests The supplemental manifests.
+	 * @return The key as a hex string.
+	 * @throws IOException Reading the source JAR file failed.
+	 */
+	private String getCacheKey(Path zipFile, Path tracked, List<ArtifactDefinition> defs, List<Manifest> manifests)
+			throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("manifest-update-maven-plugin:").append(pluginVersion).append('\n');
+		sb.append(state != null ? state.getHash(tracked, zipFile) : BuildState.hash(zipFile)).append('\n');
+		for (int i = 0; i < defs.size(); i++) {
+			ArtifactDefinition def = defs.get(i);
+			sb.append(def.getMode().toLowerCase()).append(',').append(def.getStrategy().toLowerCase()).append(',')
+					.append(def.getCompressionLevel());
+			if (isNested(def)) {
+				sb.append(',').append(def.getNestedJars().trim());
+			}
+			if (def.getAlignment() > 0) {
+				sb.append(",align=").append(def.getAlignment());
+			}
+			sb.append('\n');
+			append(sb, manifests.get(i).getMainAttributes());
+			for (String name : new TreeSet<>(manifests.get(i).getEntries().keySet())) {
+				sb.append("Name: ").append(name).append('\n');
+				append(sb, manifests.get(i).getAttributes(name));
+			}
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Checksums.toHex(digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Append the attributes ordered by name, so the order of the supplemental
+	 * manifest does not affect the key.
+	 * 
+	 * @param sb         The key being built.
+	 * @param attributes The attributes.
+	 */
+	private static void append(StringBuilder sb, Attributes attributes) {
+		Map<String, String> sorted = new TreeMap<>();
+		for (Map.Entry<Object, Object> e : attributes.entrySet()) {
+			sorted.put(e.getKey().toString().toLowerCase(), String.valueOf(e.getValue()));
+		}
+		for (Map.Entry<String, String> e : sorted.entrySet()) {
+			sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+		}
+		sb.append('\n');
+	}
+
+	/**
+	 * Restore the updated JAR file from the output cache, publishing it if
+	 * required.
+	 * 
+	 * @param entry   The cache entry.
+	 * @param zipFile The source JAR file.
+	 * @param outFile The output JAR file.
+	 * @param publish TRUE to publish the result.
+	 * @param log     The log to report progress to
+	 * @param record  The report record to update
+	 * @return TRUE if restored, or FALSE if the entry could not be used.
+	 */
+	private boolean restore(Path entry, Path zipFile, Path outFile, boolean publish, Log log,
+			Report.Record record) {
+		try {
+			Files.createDirectories(outFile.getParent());
+			if (publish) {
+				AtomicFiles.expose(entry, zipFile, cacheLink);
+				Checksums checksums = new Checksums(getChecksums());
+				record.track(checksums);
+				checksums.update(zipFile);
+				checksums.write(zipFile);
+				record.time(Report.Phase.DIGEST);
+				if (!publishOutput.equalsIgnoreCase("none")) {
+					AtomicFiles.expose(zipFile, outFile, publishOutput.equalsIgnoreCase("link"));
+				}
+			} else {
+				AtomicFiles.expose(entry, outFile, cacheLink);
+			}
+		} catch (IOException e) {
+			// Eg removed by another build, so rewrite instead.
+			log.debug("Unable to restore " + zipFile + " from " + entry + " : " + e.getMessage());
+			return false;
+		}
+		record.time(Report.Phase.PUBLISH);
+		log.info("Cached : " + zipFile.toString());
+		return true;
+	}
+
+	/**
+	 * Ensure the definition is complete.
+	 * 
+	 * @param def The definition to check
+	 * @throws IllegalStateException The definition is invalid.
+	 */
+	private void validate(ArtifactDefinition def) throws IllegalStateException {
+		if (def == null) {
+			throw new IllegalStateException("Missing definition");
+		}
+		if (!def.isValidState()) {
+			throw new IllegalStateException("Missing artifact or JAR File definition");
+		}
+		if (def.getManifestFile() == null) {
+			throw new IllegalStateException("Missing manifest definition");
+		}
+		if (def.getCompressionLevel() < -1 || def.getCompressionLevel() > 9) {
+			throw new IllegalStateException("Compression level " + def.getCompressionLevel() + " is invalid");
+		}
+		int alignment = def.getAlignment();
+		if (alignment < 0 || alignment > ZipArchiveWriter.MAX_ALIGNMENT || (alignment & (alignment - 1)) != 0) {
+			throw new IllegalStateException("Alignment " + alignment + " is invalid");
+		}
+	}
+
+	/**
+	 * Get the options of the definitions that affect the output, as recorded in
+	 * the build state.
+	 * 
+	 * @param defs The artifact definitions
+	 * @return The options.
+	 */
+	private String getOptions(List<ArtifactDefinition> defs) {
+		StringBuilder sb = new StringBuilder();
+		for (ArtifactDefinition def : defs) {
+			if (sb.length() > 0) {
+				sb.append(';');
+			}
+			sb.append(getOptions(def));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the options of the definition that affect the output, as recorded in
+	 * the build state.
+	 * 
+	 * @param def The artifact definition
+	 * @return The options.
+	 */
+	private String getOptions(ArtifactDefinition def) {
+		String options = "mode=" + def.getMode().toLowerCase() + ",strategy=" + def.getStrategy().toLowerCase()
+				+ ",publish=" + def.isPublishArtifact() + ",compression=" + def.getCompressionLevel();
+		if (isNested(def)) {
+			options += ",nested=" + def.getNestedJars().trim();
+		}
+		if (def.getAlignment() > 0) {
+			options += ",alignment=" + def.getAlignment();
+		}
+		return options;
+	}
+
+	/**
+	 * Does the definition update nested JAR files rather than the JAR file
+	 * itself.
+	 * 
+	 * @param def The artifact definition
+	 * @return TRUE if the definition has a nested JAR file pattern.
+	 */
+	private static boolean isNested(ArtifactDefinition def) {
+		return def.getNestedJars() != null && !def.getNestedJars().trim().isEmpty();
+	}
+
+	/**
+	 * Apply the supplemental manifest to the original manifest.
+	 * 
+	 * @param original   The manifest contained in the JAR file.
+	 * @param supplement The supplemental manifest.
+	 * @param mode       The update mode. (either {@code merge} or
+	 *                   {@code overwrite}).
+	 * @return The updated manifest.
+	 */
+	static Manifest updateManifest(Manifest original, Manifest supplement, String mode) {
+		if (mode.equalsIgnoreCase("overwrite")) {
+			// overwrite
+			return supplement;
+		}
+		// merge
+		Manifest m = new Manifest(original);
+		m.getMainAttributes().putAll(supplement.getMainAttributes());
+		return m;
+	}
+
+	/**
+	 * Serialise the manifest.
+	 * 
+	 * @param manifest The manifest.
+	 * @return The manifest as it would appear in the JAR file.
+	 * @throws IOException Writing the manifest failed.
+	 */
+	static byte[] toBytes(Manifest manifest) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifest.write(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Copy the source archive to the output, transferring the compressed data of
+	 * every entry verbatim and replacing the manifest. If a compression level is
+	 * given, every entry is instead recompressed concurrently.
+	 * 
+	 * @param zipFile      The source archive.
+	 * @param outFile      The output archive.
+	 * @param manifestData The new manifest.
+	 * @param level        The compression level, or {@code -1} to copy entries
+	 *                     as is.
+	 * @param alignment    The boundary to align the data of stored entries to, or
+	 *                     {@code 0} to not align.
+	 * @param nested       The nested JAR files to update, or {@code null} if
+	 *                     none.
+	 * @param checksums    The checksums to calculate over the output, or
+	 *                     {@code null} if none.
+	 * @param record       The report record to update.
+	 * @return TRUE if the copy was performed, FALSE if the source archive layout
+	 *         is not supported.
+	 * @throws IOException Reading or writing the archive failed.
+	 */
+	private boolean rawCopy(Path zipFile, Path outFile, byte[] manifestData, int level, int alignment,
+			NestedJars nested, Checksums checksums, Report.Record record) throws IOException {
+		boolean patched;
+		try (ZipArchive archive = ZipArchive.open(zipFile)) {
+			record.time(Report.Phase.OPEN);
+			if (archive == null) {
+				return false;
+			}
+			// Nested JAR files are written before their CRC is known, (and large
+			// entries before their compressed size), so the checksums are then
+			// calculated once the output is complete.
+			patched = nested != null || Recompressor.isPatched(archive.getEntries(), level);
+			try (ZipArchiveWriter writer = new ZipArchiveWriter(outFile, patched ? null : checksums);
+					PipelinedCopier copier = reader == null ? null
+							: PipelinedCopier.withMemory(reader, directBuffers ? BufferPool.DIRECT : BufferPool.HEAP,
+									pipelineMemory * 1024L)) {
+				writer.setCopier(copier);
+				writer.setAlignment(alignment);
+				writer.setEntryEvents(zipFile, entryEventInterval);
+				// Start with the META-INF directory (if any) and the manifest, so
+				// streaming readers (eg JarInputStream) find the manifest first.
+				// (Entries are iterated rather than collected, as there may be many).
+				ZipArchive.Entry metaInf = null;
+				for (ZipArchive.Entry entry : archive.getEntries()) {
+					count(record, entry.compressedSize, entry.size);
+					if (entry.isNamed(META_INF) && metaInf == null) {
+						metaInf = entry.copy();
+					} else if (!entry.isNamed(JarFile.MANIFEST_NAME)) {
+						record.entries++;
+					}
+				}
+				if (metaInf != null) {
+					copyEntries(archive, Collections.singletonList(metaInf), writer, level, null);
+					record.entries++;
+				}
+				writer.addEntry(JarFile.MANIFEST_NAME, manifestData, level < 0 ? Deflater.DEFAULT_COMPRESSION : level);
+				record.entries++;
+				// Then all other entries, in their original order.
+				long skip = metaInf == null ? -1 : metaInf.localHeaderOffset;
+				copyEntries(archive, archive.getEntries(
+						e -> e.localHeaderOffset != skip && !e.isNamed(JarFile.MANIFEST_NAME)), writer, level, nested);
+				record.time(Report.Phase.COPY);
+				// Finalise the output file...
+				writer.finish(archive.getComment());
+				record.bytesRead += archive.getChannel().size();
+				record.bytesWritten += writer.getBytesWritten();
+			}
+		}
+		if (patched && checksums != null) {
+			checksums.update(outFile);
+			record.time(Report.Phase.DIGEST);
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the entries to the output.
+	 * 
+	 * @param archive The source archive.
+	 * @param entries The entries to copy.
+	 * @param writer  The output archive.
+	 * @param level   The compression level, or {@code -1} to copy entries as is.
+	 * @param nested  The nested JAR files to update, or {@code null} if none.
+	 * @throws IOException Reading or writing the archive failed.
+	 */
+	private void copyEntries(ZipArchive archive, Iterable<ZipArchive.Entry> entries, ZipArchiveWriter writer,
+			int level, NestedJars nested) throws IOException {
+		if (level < 0) {
+			for (ZipArchive.Entry entry : entries) {
+				if (nested != null && nested.matches(entry.getName())) {
+					nested.copy(archive, entry, writer);
+				} else {
+					writer.copyEntry(archive, entry);
+				}
+			}
+		} else {
+			Recompressor recompressor = getRecompressor(level);
+			recompressor.setNestedJars(nested);
+			recompressor.copy(archive, entries, writer);
+		}
+	}
+
+	/**
+	 * Get a recompressor for the given level, running on the shared compression
+	 * executor.
+	 * 
+	 * @param level The compression level.
+	 * @return The recompressor.
+	 */
+	private Recompressor getRecompressor(int level) {
+		return new Recompressor(getCompressor(), level, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Get the executor shared by all recompressors, creating it on first use. Its
+	 * threads end once idle (or when the goal completes), releasing the native
+	 * memory of their codecs.
+	 * 
+	 * @return The executor.
+	 */
+	private synchronized ExecutorService getCompressor() {
+		if (compressor == null) {
+			int size = Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), newThreadFactory("manifest-update-deflate"));
+			pool.allowCoreThreadTimeOut(true);
+			compressor = pool;
+		}
+		return compressor;
+	}
+
+	/**
+	 * Create a factory of daemon threads that release their codecs (see
+	 * {@link Recompressor#release()}) as they end.
+	 * 
+	 * @param name The name of the threads.
+	 * @return The thread factory.
+	 */
+	private static ThreadFactory newThreadFactory(String name) {
+		return r -> {
+			Thread t = new Thread(() -> {
+				try {
+					r.run();
+				} finally {
+					Recompressor.release();
+				}
+			}, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
 
 	/**
-	 * The location of the local maven repository.
+	 * Add the sizes of a source entry to the report record.
+	 * 
+	 * @param record         The report record to update.
+	 * @param compressedSize The compressed size of the entry.
+	 * @param size           The uncompressed size of the entry.
 	 */
-	@Parameter(defaultValue = "${settings.localRepository}")
-	private File localRepository;
+	private static void count(Report.Record record, long compressedSize, long size) {
+		record.compressedBytes += compressedSize;
+		record.uncompressedBytes += size;
+	}
 
 	/**
-	 * List of all artifacts/JAR files to update.
+	 * Update the archive by appending the new manifest and a new central
+	 * directory. The original manifest remains in the archive, but is no longer
+	 * referenced.
 	 * <p>
-	 * Each artifact <b>must</b> define either a local maven artifact
-	 * ({@code artifact}) or a JAR File ({@code jarFile}) and a supplemental
-	 * manifest file.
+	 * In place, the new manifest and central directory are written after the end
+	 * of the existing archive, so the original central directory is never
+	 * overwritten and remains valid until the new end record is written. If
+	 * writing fails, the archive is truncated back to its original length.
 	 * <p>
-	 * Artifact is defined as:
+	 * If not updating in place, every entry of the source archive is first copied
+	 * to the output as is, (without the original central directory), so the cost
+	 * is that of copying the archive, but nothing is read back afterwards.
 	 * 
-	 * <pre>
-&lt;artifacts&gt;
-&lt;artifact&gt;
-&nbsp;&nbsp;&lt;artifact&gt;org.apache.maven:maven-plugin-api:3.5.0&lt;/artifact&gt;
-&nbsp;&nbsp;&lt;jarFile&gt;org.apache.maven.maven-plugin-api-3.5.0.jar&lt;/jarFile&gt;
-&nbsp;&nbsp;&lt;manifestFile&gt;src/manifests/maven-plugin-api.mf&lt;/manifestFile&gt;
-&nbsp;&nbsp;&lt;mode&gt;merge&lt;/mode&gt;
-&nbsp;&nbsp;&lt;publishArtifact&gt;false&lt;/publishArtifact&gt;
-&lt;/artifact&gt;
-...
-&lt;/artifacts&gt;
-	 * </pre>
-	 * <p>
-	 * {@code artifact} defines a JAR file located in the local maven repository. The
-	 * format definition uses Apache Buildr notation. (This is effectively
-	 * {@code groupId:artifactId:version}).
-	 * <p>
-	 * {@code jarFile} defines a local JAR file.
-	 * <p>
-	 * {@code manifestFile} defines the supplemental manifest file that will
-	 * update the manifest in the JAR file. The provided manifest file must
-	 * conform to the <a href="https://docs.oracle.com/javase/8/docs/technotes/guides/jar/jar.html#JAR_Manifest">JAR Manifest specification</a>.
-	 * <p>
-	 * {@code mode} and {@code publishArtifact} are optional.
-	 * <p>
-	 * {@code mode} can be set to "merge" or "overwrite". "merge" will instruct
-	 * the plugin to merge the contents of the original and supplement manifest, and
-	 * "overwrite" will replace the original with the supplement manifest. 
-	 * (Defaults to "merge"). 
-	 * <p>
-	 * {@code publishArtifact} can be set to "true" or "false". This setting
-	 * instructs the plugin to republish an updated JAR back into the local
-	 * maven repository post processing. This setting has no effect if
-	 * the JAR file being updated did not originate from the local maven 
-	 * repository. (Defaults to "false").
+	 * @param zipFile      The source archive.
+	 * @param outFile      The output archive.
+	 * @param inPlace      TRUE if the output is the source archive.
+	 * @param manifestData The new manifest.
+	 * @param checksums    The checksums to calculate as the output is written,
+	 *                     or {@code null} if none. Not updated in place, as most
+	 *                     of the archive is not written.
+	 * @param record       The report record to update.
+	 * @return TRUE if the update was performed, FALSE if the source archive layout
+	 *         is not supported.
+	 * @throws IOException Reading or writing the archive failed.
 	 */
-	@Parameter(required = true)
-	private List<ArtifactDefinition> artifacts;
-
-	@Override
-	public void execute() throws MojoExecutionException, MojoFailureException {
-		/*
-		 * Check to ensure we have something to work on, if not, give a warning.
-		 */
-		if (artifacts == null || artifacts.isEmpty()) {
-			getLog().warn("No artifacts defined, skipping...");
-			return;
-		}
-		/*
-		 * Process each element, skipping Signed JAR, otherwise throw appropriate
-		 * exception.
-		 */
-		for (ArtifactDefinition def : artifacts) {
-			try {
-				process(def);
-			} catch (SignedJARException error) {
-				getLog().warn(error);
-			} catch (IOException | IllegalStateException error) {
-				getLog().error(error);
-				throw new MojoFailureException(error.getMessage(), error);
-			} catch (Throwable error) {
-				getLog().error(error);
-				throw new MojoExecutionException(error.getMessage(), error);
+	private boolean appendCopy(Path zipFile, Path outFile, boolean inPlace, byte[] manifestData,
+			Checksums checksums, Report.Record record) throws IOException {
+		try (ZipArchive archive = ZipArchive.open(zipFile)) {
+			record.time(Report.Phase.OPEN);
+			if (archive == null) {
+				return false;
+			}
+			long length = archive.getChannel().size();
+			boolean complete = false;
+			try (ZipArchiveWriter writer = inPlace ? new ZipArchiveWriter(outFile, length)
+					: new ZipArchiveWriter(outFile, checksums)) {
+				writer.setEntryEvents(zipFile, entryEventInterval);
+				record.bytesRead += archive.getCentralDirectorySize();
+				if (!inPlace) {
+					writer.copyRegion(archive, 0, archive.getCentralDirectoryOffset());
+					record.bytesRead += archive.getCentralDirectoryOffset();
+				}
+				// Reference all existing entries except the manifest.
+				for (ZipArchive.Entry entry : archive.getEntries()) {
+					count(record, entry.compressedSize, entry.size);
+					if (!entry.isNamed(JarFile.MANIFEST_NAME)) {
+						writer.keepEntry(entry);
+						record.entries++;
+					}
+				}
+				writer.addEntry(JarFile.MANIFEST_NAME, manifestData);
+				record.entries++;
+				record.time(Report.Phase.COPY);
+				writer.finish(archive.getComment());
+				record.bytesWritten += writer.getBytesWritten();
+				complete = true;
+			} finally {
+				if (inPlace && !complete) {
+					// The original central directory is intact, so restore the archive.
+					try (FileChannel channel = FileChannel.open(outFile, StandardOpenOption.WRITE)) {
+						channel.truncate(length);
+					}
+				}
 			}
 		}
+		return true;
 	}
 
 	/**
-	 * Process the given definition
+	 * Copy the source archive to the output by inflating and deflating every
+	 * entry, replacing the manifest.
 	 * 
-	 * @param def The definition to process
-	 * @throws IOException           Error occurred processing the JAR file
-	 * @throws SignedJARException    The JAR File is signed.
-	 * @throws IllegalStateException The definition is invalid.
+	 * @param jarFile      The source archive.
+	 * @param outFile      The output archive.
+	 * @param manifestData The new manifest.
+	 * @param level        The compression level, or {@code -1} to keep the
+	 *                     compression method of each entry.
+	 * @param nested       The nested JAR files to update, or {@code null} if
+	 *                     none.
+	 * @param checksums    The checksums to calculate over the output, or
+	 *                     {@code null} if none.
+	 * @param log          The log of the artifact.
+	 * @param record       The report record to update.
+	 * @throws IOException Reading or writing the archive failed.
 	 */
-	void process(ArtifactDefinition def) throws IOException, SignedJARException, IllegalStateException {
-		// Validate input.
-		if (def == null) {
-			throw new IllegalStateException("Missing definition");
-		}
-		if (!def.isValidState()) {
-			throw new IllegalStateException("Missing artifact or JAR File definition");
-		}
-		if (def.getManifestFile() == null) {
-			throw new IllegalStateException("Missing manifest definition");
+	private void streamCopy(JarFile jarFile, Path outFile, byte[] manifestData, int level, NestedJars nested,
+			Checksums checksums, Log log, Report.Record record) throws IOException {
+		OutputStream out = new FileOutputStream(outFile.toFile());
+		if (checksums != null) {
+			out = checksums.tee(out);
 		}
-
-		// Load the new manifest
-		Manifest newManifest;
-		try (FileInputStream input = new FileInputStream(def.getManifestFile())) {
-			newManifest = new Manifest(input);
-		}
-
-		// Start by copying the contents...
-		Path zipFile;
-		Path outFile;
-		try (JarFile jarFile = getSourceFile(def)) {
-			zipFile = Paths.get(jarFile.getName());
-			getLog().info("Processing : " + zipFile.toString());
-
-			// Check the existing manifest for signed jar entries.
-			Manifest jarFileManifest = jarFile.getManifest();
-			if (!jarFileManifest.getEntries().isEmpty()) {
-				throw new SignedJARException(zipFile.getFileName().toString() + " appears to be signed, skipping.");
+		ByteBuffer pooled = BufferPool.HEAP.acquire(BUFFER_SIZE);
+		try (ZipOutputStream outZipContainer = new ZipOutputStream(out)) {
+			if (jarFile.getComment() != null) {
+				outZipContainer.setComment(jarFile.getComment());
 			}
-
-			// Now create a new output file and copy the contents over.
-			outFile = outputDirectory.toPath().resolve(zipFile.getFileName());
-			// Ensure the target location exists...
-			Files.createDirectories(outputDirectory.toPath());
-			try (ZipOutputStream outZipContainer = new ZipOutputStream(new FileOutputStream(outFile.toFile()))) {
-				if (jarFile.getComment() != null) {
-					outZipContainer.setComment(jarFile.getComment());
-				}
-				// Copy all entries except the manifest
-				Enumeration<JarEntry> entries = jarFile.entries();
-				while (entries.hasMoreElements()) {
-					JarEntry je = entries.nextElement();
-					if (!je.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
-						ZipEntry newEntry = clone(je);
-						outZipContainer.putNextEntry(newEntry);
-						byte[] buffer = new byte[BUFFER_SIZE];
-						try (InputStream in = jarFile.getInputStream(je)) {
-							int len;
-							while ((len = in.read(buffer)) > 0) {
-								outZipContainer.write(buffer, 0, len);
-							}
-						}
-						outZipContainer.closeEntry();
-					}
+			if (level > 0) {
+				outZipContainer.setLevel(level);
+			}
+			// Start with the META-INF directory (if any) and the manifest, so
+			// streaming readers (eg JarInputStream) find the manifest first.
+			List<JarEntry> others = new ArrayList<>();
+			JarEntry metaInf = null;
+			Enumeration<JarEntry> entries = jarFile.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry je = entries.nextElement();
+				count(record, je.getCompressedSize(), je.getSize());
+				if (je.getName().equalsIgnoreCase(META_INF) && metaInf == null) {
+					metaInf = je;
+				} else if (!je.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+					others.add(je);
 				}
-				outZipContainer.flush();
-				// Now process the manifest.
-				ZipEntry ze = new ZipEntry(JarFile.MANIFEST_NAME);
-				outZipContainer.putNextEntry(ze);
-				if (def.getMode().equalsIgnoreCase("overwrite")) {
-					// overwrite
-					newManifest.write(outZipContainer);
+			}
+			byte[] buffer = pooled.array();
+			if (metaInf != null) {
+				copyEntry(jarFile, metaInf, outZipContainer, level, buffer);
+				record.entries++;
+			}
+			ZipEntry ze = new ZipEntry(JarFile.MANIFEST_NAME);
+			if (level == 0) {
+				CRC32 crc = new CRC32();
+				crc.update(manifestData, 0, manifestData.length);
+				ze.setMethod(ZipEntry.STORED);
+				ze.setSize(manifestData.length);
+				ze.setCompressedSize(manifestData.length);
+				ze.setCrc(crc.getValue());
+			}
+			outZipContainer.putNextEntry(ze);
+			outZipContainer.write(manifestData);
+			outZipContainer.closeEntry();
+			record.entries++;
+			// Then all other entries, in their original order.
+			for (JarEntry je : others) {
+				if (nested != null && nested.matches(je.getName())) {
+					copyNestedEntry(jarFile, je, outZipContainer, level, buffer, nested, log);
 				} else {
-					// merge
-					Manifest m = new Manifest(jarFileManifest);
-					m.getMainAttributes().putAll(newManifest.getMainAttributes());
-					m.write(outZipContainer);
+					copyEntry(jarFile, je, outZipContainer, level, buffer);
 				}
-				outZipContainer.closeEntry();
+				record.entries++;
+			}
+			record.time(Report.Phase.COPY);
 
-				// Finalise the output file...
-				outZipContainer.finish();
+			// Finalise the output file...
+			outZipContainer.finish();
+		} finally {
+			BufferPool.HEAP.release(pooled);
+		}
+		record.bytesRead += Files.size(Paths.get(jarFile.getName()));
+		record.bytesWritten += Files.size(outFile);
+	}
+
+	/**
+	 * Copy the entry to the output by inflating and deflating it.
+	 * 
+	 * @param jarFile The source archive.
+	 * @param je      The entry to copy.
+	 * @param out     The output archive.
+	 * @param level   The compression level, or {@code -1} to keep the
+	 *                compression method of the entry.
+	 * @param buffer  The buffer to copy with.
+	 * @throws IOException Reading or writing the archive failed.
+	 */
+	private void copyEntry(JarFile jarFile, JarEntry je, ZipOutputStream out, int level, byte[] buffer)
+			throws IOException {
+		out.putNextEntry(clone(je, level));
+		try (InputStream in = jarFile.getInputStream(je)) {
+			int len;
+			while ((len = in.read(buffer)) > 0) {
+				out.write(buffer, 0, len);
 			}
 		}
-		// And lastly, if from local repo, overwrite source...
-		if (def.getJarFile() == null && def.isPublishArtifact()) {
-			Files.copy(outFile, zipFile, StandardCopyOption.REPLACE_EXISTING);
-			// Update sha1 signature. (TODO: add others if necessary).
-			try {
-				MessageDigest sha1 = MessageDigest.getInstance("SHA1");
-				byte[] buffer = new byte[BUFFER_SIZE];
-				try (InputStream in = new FileInputStream(zipFile.toFile())) {
-					int len;
-					while ((len = in.read(buffer)) > 0) {
-						sha1.update(buffer, 0, len);
-					}
+		out.closeEntry();
+	}
+
+	/**
+	 * Copy the nested JAR file to the output, updating the manifest. The nested
+	 * JAR file is read once into a pooled buffer, or if its size is unknown or
+	 * larger than {@link NestedJars#MAX_IN_MEMORY}, streamed from the source
+	 * archive for each pass, so the memory used is bounded. If updated, it is
+	 * stored.
+	 * 
+	 * @param jarFile The source archive.
+	 * @param je      The entry holding the nested JAR file.
+	 * @param out     The output archive.
+	 * @param level   The compression level, or {@code -1} to keep the
+	 *                compression method of the entry if not updated.
+	 * @param buffer  The buffer to copy with.
+	 * @param nested  The nested JAR files to update.
+	 * @param log     The log of the artifact.
+	 * @throws IOException Reading or writing the archive failed.
+	 */
+	private void copyNestedEntry(JarFile jarFile, JarEntry je, ZipOutputStream out, int level, byte[] buffer,
+			NestedJars nested, Log log) throws IOException {
+		if (je.getSize() < 0 || je.getSize() > NestedJars.MAX_IN_MEMORY) {
+			log.debug("Nested JAR file too large to hold in memory, streaming : " + je.getName());
+			if (!nested.copy(() -> jarFile.getInputStream(je), clone(je, 0), out, buffer)) {
+				copyEntry(jarFile, je, out, level, buffer);
+			}
+			return;
+		}
+		ByteBuffer data = BufferPool.HEAP.acquire((int) je.getSize());
+		try {
+			data.limit((int) je.getSize());
+			try (InputStream in = jarFile.getInputStream(je)) {
+				int len;
+				while (data.hasRemaining() && (len = in.read(data.array(), data.position(), data.remaining())) > 0) {
+					data.position(data.position() + len);
 				}
-				File digestFile = new File(zipFile.toString() + ".sha1");
-				try (FileOutputStream out = new FileOutputStream(digestFile)) {
-					out.write(byteArrayToHex(sha1.digest()).getBytes(StandardCharsets.UTF_8));
+			}
+			data.flip();
+			try (ZipArchive jar = NestedJars.open(data)) {
+				if (jar != null && nested.copy(jar, clone(je, 0), out, buffer)) {
+					return;
 				}
-			} catch (NoSuchAlgorithmException e) {
-				getLog().error(e);
 			}
+			// Copy as is.
+			out.putNextEntry(clone(je, level));
+			out.write(data.array(), 0, data.limit());
+			out.closeEntry();
+		} finally {
+			BufferPool.HEAP.release(data);
 		}
 	}
 
 	/**
 	 * Clone the JarEntry as a ZipEntry
 	 * 
-	 * @param je The jarfile enry
+	 * @param je    The jarfile enry
+	 * @param level The compression level, or {@code -1} to keep the compression
+	 *              method.
 	 * @return A clone of the jarFile entry.
 	 */
-	private ZipEntry clone(JarEntry je) {
+	private ZipEntry clone(JarEntry je, int level) {
 		/*
 		 * Don't use the ZipEntry(ZipEntry e) constructor, as this will copy things we
 		 * don't want copied. Therefore do it manually.
@@ -273,25 +1936,29 @@ public class PackageMOJO extends AbstractMojo {
 		if (je.getExtra() != null)
 			ze.setExtra(je.getExtra());
 		ze.setSize(je.getSize());
-		if (je.getMethod() == ZipOutputStream.STORED) {
+		int method = level < 0 ? je.getMethod() : level == 0 ? ZipOutputStream.STORED : ZipOutputStream.DEFLATED;
+		if (method == ZipOutputStream.STORED) {
 			ze.setCrc(je.getCrc());
-			ze.setCompressedSize(je.getCompressedSize());
+			ze.setCompressedSize(je.getSize());
 		}
 		ze.setTime(je.getTime());
-		ze.setMethod(je.getMethod());
+		ze.setMethod(method);
 		return ze;
 	}
 
 	/**
-	 * Get the source file.
+	 * Get the location of the source file.
 	 * 
 	 * @param def The artifact definition
-	 * @return The Jar File
-	 * @throws IOException Opening the source failed.
+	 * @return The location of the JAR File
+	 * @throws IOException The artifact could not be located.
 	 */
-	private JarFile getSourceFile(ArtifactDefinition def) throws IOException {
+	Path getSourcePath(ArtifactDefinition def) throws IOException {
 		if (def.getJarFile() != null) {
-			return new JarFile(def.getJarFile());
+			return def.getJarFile().toPath();
+		}
+		if (def.getResolvedFile() != null) {
+			return def.getResolvedFile().toPath();
 		}
 		String[] artifact = def.getArtifact().split(":");
 		if (artifact.length != 3) {
@@ -313,20 +1980,7 @@ public class PackageMOJO extends AbstractMojo {
 		} catch (NullPointerException | InvalidPathException e) {
 			throw new IOException("Unable to locate artifact '" + def.getArtifact() + "'");
 		}
-		return new JarFile(path.toFile());
-	}
-
-	/**
-	 * Convert the byte array to a hex string
-	 * 
-	 * @param a The byte array
-	 * @return A string representation.
-	 */
-	private String byteArrayToHex(byte[] a) {
-		StringBuilder sb = new StringBuilder(a.length * 2);
-		for (byte b : a)
-			sb.append(String.format("%02x", b));
-		return sb.toString();
+		return path;
 	}
 
 	/**
@@ -383,4 +2037,258 @@ public class PackageMOJO extends AbstractMojo {
 		this.artifacts = artifacts;
 	}
 
+	/**
+	 * Get the selections of project dependencies to update
+	 *
+	 * @return The selections of project dependencies to update.
+	 */
+	List<DependencySelection> getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * Set the selections of project dependencies to update
+	 *
+	 * @param dependencies The selections of project dependencies to update
+	 */
+	void setDependencies(List<DependencySelection> dependencies) {
+		this.dependencies = dependencies;
+	}
+
+	/**
+	 * Set the registry of rewrites shared with other modules
+	 *
+	 * @param registry The registry, or {@code null} to not share rewrites
+	 */
+	void setRegistry(RewriteRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Get the cache of supplemental manifests parsed within the session
+	 *
+	 * @return The cache
+	 */
+	synchronized ManifestCache getManifests() {
+		if (manifests == null) {
+			manifests = ManifestCache.get(session);
+		}
+		return manifests;
+	}
+
+	/**
+	 * Set the current project
+	 *
+	 * @param project The project providing the resolved dependencies
+	 */
+	void setProject(MavenProject project) {
+		this.project = project;
+	}
+
+	/**
+	 * Set the resolver of the project dependencies
+	 *
+	 * @param dependencyResolver The resolver, or {@code null} to use the
+	 *                           dependencies already resolved by the project
+	 */
+	void setDependencyResolver(ProjectDependenciesResolver dependencyResolver) {
+		this.dependencyResolver = dependencyResolver;
+	}
+
+	/**
+	 * Set the current session
+	 *
+	 * @param session The session
+	 */
+	void setSession(MavenSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * Get how published artifacts are made available in the output directory
+	 * 
+	 * @return One of {@code link}, {@code copy} or {@code none}.
+	 */
+	String getPublishOutput() {
+		return publishOutput;
+	}
+
+	/**
+	 * Set how published artifacts are made available in the output directory
+	 * 
+	 * @param publishOutput One of {@code link}, {@code copy} or {@code none}.
+	 */
+	void setPublishOutput(String publishOutput) {
+		this.publishOutput = publishOutput;
+	}
+
+	/**
+	 * Get the checksums to write for published artifacts
+	 * 
+	 * @return The checksum algorithms.
+	 */
+	List<String> getChecksums() {
+		if (checksums == null || checksums.isEmpty()) {
+			return Checksums.DEFAULT_ALGORITHMS;
+		}
+		return checksums;
+	}
+
+	/**
+	 * Set the checksums to write for published artifacts
+	 * 
+	 * @param checksums The checksum algorithms, or {@code null} for the default.
+	 */
+	void setChecksums(List<String> checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Is incremental processing enabled
+	 * 
+	 * @return TRUE if up to date artifacts are skipped.
+	 */
+	boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Set if incremental processing is enabled
+	 * 
+	 * @param incremental TRUE to skip up to date artifacts.
+	 */
+	void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Get the file used to record the build state
+	 * 
+	 * @return The state file.
+	 */
+	File getStateFile() {
+		return stateFile;
+	}
+
+	/**
+	 * Set the file used to record the build state
+	 * 
+	 * @param stateFile The state file.
+	 */
+	void setStateFile(File stateFile) {
+		this.stateFile = stateFile;
+	}
+
+	/**
+	 * Get the number of artifacts to process concurrently
+	 * 
+	 * @return The number of threads, or 0 or less for the number of processors.
+	 */
+	int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of artifacts to process concurrently
+	 * 
+	 * @param threads The number of threads, or 0 or less for the number of
+	 *                processors.
+	 */
+	void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Get the maximum number of artifacts read or written at the same time
+	 * 
+	 * @return The limit, or 0 or less for no limit.
+	 */
+	int getIoConcurrency() {
+		return ioConcurrency;
+	}
+
+	/**
+	 * Set the maximum number of artifacts read or written at the same time
+	 * 
+	 * @param ioConcurrency The limit, or 0 or less for no limit.
+	 */
+	void setIoConcurrency(int ioConcurrency) {
+		this.ioConcurrency = ioConcurrency;
+	}
+
+	/**
+	 * Get the format of the per-artifact report
+	 * 
+	 * @return The format, either {@code json}, {@code csv} or {@code none}.
+	 */
+	String getReport() {
+		return report;
+	}
+
+	/**
+	 * Set the format of the per-artifact report
+	 * 
+	 * @param report The format, either {@code json}, {@code csv} or
+	 *               {@code none}.
+	 */
+	void setReport(String report) {
+		this.report = report;
+	}
+
+	/**
+	 * Set the memory each JAR file being copied may use to overlap reads and
+	 * writes
+	 * 
+	 * @param pipelineMemory The memory in kilobytes, or 0 to not overlap.
+	 */
+	void setPipelineMemory(int pipelineMemory) {
+		this.pipelineMemory = pipelineMemory;
+	}
+
+	/**
+	 * Set if overlapped reads and writes use direct buffers
+	 * 
+	 * @param directBuffers TRUE to use direct buffers, FALSE for heap buffers.
+	 */
+	void setDirectBuffers(boolean directBuffers) {
+		this.directBuffers = directBuffers;
+	}
+
+	/**
+	 * Set the interval of sampled entry events
+	 * 
+	 * @param entryEventInterval Emit an event for every n-th entry, or 0 for
+	 *                           none.
+	 */
+	void setEntryEventInterval(int entryEventInterval) {
+		this.entryEventInterval = entryEventInterval;
+	}
+
+	/**
+	 * Set the directory of the output cache
+	 * 
+	 * @param cacheDirectory The cache directory, or {@code null} to not cache.
+	 */
+	void setCacheDirectory(File cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * Set the maximum size of the output cache
+	 * 
+	 * @param cacheSize The maximum size in megabytes.
+	 */
+	void setCacheSize(long cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Set if JAR files are restored from the output cache using hard links
+	 * 
+	 * @param cacheLink TRUE to link where possible, FALSE to copy.
+	 */
+	void setCacheLink(boolean cacheLink) {
+		this.cacheLink = cacheLink;
+	}
+
 }
@@ -0,0 +1,285 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Copies a region of a file with the reads and writes overlapped.
+ * <p>
+ * A reader task on the given executor fills buffers from a fixed ring, while
+ * the calling thread writes the filled buffers and returns them to the ring.
+ * The ring is taken from a {@link BufferPool} on first use, reused for every
+ * copy and returned to the pool once the copier is closed, so memory is limited
+ * to the number of buffers times the buffer size.
+ * <p>
+ * Instances are not thread safe, each is used by a single writer.
+ */
+final class PipelinedCopier implements Closeable {
+
+	/**
+	 * The smallest buffer size.
+	 */
+	static final int MIN_BUFFER_SIZE = 8192;
+
+	/**
+	 * The least memory a copier uses, being two of the smallest buffers.
+	 */
+	static final long MIN_MEMORY = 2L * MIN_BUFFER_SIZE;
+
+	/**
+	 * Marks the end of the filled buffers.
+	 */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	/**
+	 * The executor the reader runs on.
+	 */
+	private final Executor executor;
+
+	/**
+	 * The pool the ring is taken from.
+	 */
+	private final BufferPool pool;
+
+	/**
+	 * The size of each buffer.
+	 */
+	private final int bufferSize;
+
+	/**
+	 * The number of buffers.
+	 */
+	private final int buffers;
+
+	/**
+	 * Buffers available to the reader.
+	 */
+	private final BlockingQueue<ByteBuffer> free;
+
+	/**
+	 * Buffers filled by the reader, available to the writer.
+	 */
+	private final BlockingQueue<ByteBuffer> filled;
+
+	/**
+	 * TRUE once the ring has been allocated.
+	 */
+	private boolean allocated;
+
+	/**
+	 * Set by the writer to stop the reader early.
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * The error that stopped the reader, if any.
+	 */
+	private volatile Throwable error;
+
+	/**
+	 * Create a new copier.
+	 *
+	 * @param executor   The executor the reader runs on. (The reader blocks, so
+	 *                   should not be a fork/join pool).
+	 * @param pool       The pool the ring is taken from.
+	 * @param bufferSize The size of each buffer.
+	 * @param buffers    The number of buffers, at least 2.
+	 */
+	PipelinedCopier(Executor executor, BufferPool pool, int bufferSize, int buffers) {
+		this.executor = executor;
+		this.pool = pool;
+		this.bufferSize = bufferSize;
+		this.buffers = Math.max(2, buffers);
+		this.free = new ArrayBlockingQueue<>(this.buffers);
+		this.filled = new ArrayBlockingQueue<>(this.buffers + 1);
+	}
+
+	/**
+	 * Create a copier using at most the given memory, split into buffers of at
+	 * most 1MB. As at least two buffers of {@link #MIN_BUFFER_SIZE} are needed,
+	 * less than {@link #MIN_MEMORY} is raised to {@link #MIN_MEMORY}, (see
+	 * {@link #getMemory(long)}).
+	 *
+	 * @param executor The executor the reader runs on.
+	 * @param pool     The pool the ring is taken from.
+	 * @param memory   The memory to use, in bytes.
+	 * @return The copier.
+	 */
+	static PipelinedCopier withMemory(Executor executor, BufferPool pool, long memory) {
+		memory = getMemory(memory);
+		int bufferSize = (int) Math.max(MIN_BUFFER_SIZE, Math.min(1 << 20, memory / 2));
+		return new PipelinedCopier(executor, pool, bufferSize, (int) Math.min(1024, memory / bufferSize));
+	}
+
+	/**
+	 * Get the memory a copier created with the given memory uses at most.
+	 *
+	 * @param memory The memory requested, in bytes.
+	 * @return The memory used, in bytes, being at least {@link #MIN_MEMORY}.
+	 */
+	static long getMemory(long memory) {
+		return Math.max(MIN_MEMORY, memory);
+	}
+
+	/**
+	 * Get the shortest region worth overlapping, being two buffers. Shorter
+	 * regions are better copied directly.
+	 *
+	 * @return The length in bytes.
+	 */
+	long getThreshold() {
+		return 2L * bufferSize;
+	}
+
+	/**
+	 * Copy the region of the source to the target.
+	 *
+	 * @param source   The source channel.
+	 * @param position The position to start copying from.
+	 * @param length   The number of bytes to copy.
+	 * @param target   The target channel.
+	 * @throws IOException Reading or writing failed.
+	 */
+	void copy(FileChannel source, long position, long length, WritableByteChannel target) throws IOException {
+		if (!allocated) {
+			for (int i = 0; i < buffers; i++) {
+				free.add(pool.acquire(bufferSize));
+			}
+			allocated = true;
+		}
+		cancelled = false;
+		error = null;
+		executor.execute(() -> read(source, position, length));
+		boolean ended = false;
+		try {
+			while (true) {
+				ByteBuffer b = filled.take();
+				if (b == END) {
+					ended = true;
+					break;
+				}
+				try {
+					while (b.hasRemaining()) {
+						target.write(b);
+					}
+				} finally {
+					free.add(b);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while copying");
+		} finally {
+			if (!ended) {
+				// Stop the reader, and wait for it to return its buffers.
+				cancelled = true;
+				drain();
+			}
+		}
+		Throwable e = error;
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e != null) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Return the ring to the pool. The copier may still be used, taking a new
+	 * ring from the pool.
+	 */
+	@Override
+	public void close() {
+		ByteBuffer b;
+		while ((b = free.poll()) != null) {
+			pool.release(b);
+		}
+		allocated = false;
+	}
+
+	/**
+	 * Read the region into buffers from the ring, until complete or cancelled.
+	 *
+	 * @param source   The source channel.
+	 * @param position The position to start reading from.
+	 * @param length   The number of bytes to read.
+	 */
+	private void read(FileChannel source, long position, long length) {
+		long pos = position;
+		long end = position + length;
+		ByteBuffer b = null;
+		try {
+			while (pos < end && !cancelled) {
+				b = free.take();
+				b.clear();
+				if (end - pos < bufferSize) {
+					b.limit((int) (end - pos));
+				} else {
+					b.limit(bufferSize);
+				}
+				while (b.hasRemaining()) {
+					int len = source.read(b, pos + b.position());
+					if (len < 0) {
+						throw new EOFException("Unexpected end of ZIP archive");
+					}
+				}
+				b.flip();
+				pos += b.limit();
+				filled.add(b);
+				b = null;
+			}
+		} catch (Throwable e) {
+			error = e;
+			if (b != null) {
+				free.add(b);
+			}
+		} finally {
+			filled.add(END);
+		}
+	}
+
+	/**
+	 * Return all filled buffers to the ring until the reader has ended.
+	 */
+	private void drain() {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				ByteBuffer b = filled.take();
+				if (b == END) {
+					break;
+				}
+				free.add(b);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
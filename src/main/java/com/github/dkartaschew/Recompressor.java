@@ -0,0 +1,718 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Copies entries between archives, recompressing every entry at a given level.
+ * <p>
+ * Entries are inflated and deflated concurrently into memory buffers, while
+ * the writer consumes the buffers in the original entry order. The number of
+ * entries (and bytes) in flight is bounded, so memory use does not grow with
+ * the size of the archive. Entries larger than the largest pooled buffer (see
+ * {@link BufferPool#MAX_CAPACITY}) are instead inflated and deflated by the
+ * writer, through small pooled buffers, straight into the output, so memory
+ * use does not grow with the size of an entry either.
+ * <p>
+ * Each thread reuses its own inflater, deflater and checksum for every entry
+ * (released by {@link #release()} as the thread ends), and the data of each
+ * entry is held in buffers from {@link BufferPool#HEAP}, returned once the
+ * entry is written, so the garbage created per entry does not depend on the
+ * size of the entry.
+ * <p>
+ * If copying fails, entries still being compressed are waited for, so the
+ * source archive is no longer read once copying returns, (and may be closed,
+ * releasing its mapping).
+ */
+final class Recompressor {
+
+	/**
+	 * Maximum number of uncompressed and compressed bytes held in flight, beyond
+	 * the entry being written.
+	 */
+	private static final long MAX_IN_FLIGHT = 64L * 1024 * 1024;
+
+	/**
+	 * General purpose flag indicating the entry is encrypted.
+	 */
+	private static final int FLAG_ENCRYPTED = 0x01;
+
+	/**
+	 * The codec of each thread, (see {@link #release()}).
+	 */
+	private static final ThreadLocal<Codec> CODECS = new ThreadLocal<>();
+
+	/**
+	 * The executor to compress entries on.
+	 */
+	private final Executor executor;
+
+	/**
+	 * The compression level, {@code 0} to store entries.
+	 */
+	private final int level;
+
+	/**
+	 * Maximum number of entries in flight.
+	 */
+	private final int window;
+
+	/**
+	 * The nested JAR files to update rather than recompress, or {@code null} if
+	 * none.
+	 */
+	private NestedJars nested;
+
+	/**
+	 * The inflater, deflater and checksum used by a thread.
+	 */
+	private static final class Codec {
+
+		/**
+		 * The inflater, (raw, no zlib wrapper).
+		 */
+		final Inflater inflater = new Inflater(true);
+
+		/**
+		 * The checksum.
+		 */
+		final CRC32 crc = new CRC32();
+
+		/**
+		 * The deflater, or {@code null} if not yet used.
+		 */
+		private Deflater deflater;
+
+		/**
+		 * The level of the deflater.
+		 */
+		private int deflaterLevel;
+
+		/**
+		 * Get a reset deflater (raw, no zlib wrapper) for the given level.
+		 *
+		 * @param level The compression level.
+		 * @return The deflater.
+		 */
+		Deflater getDeflater(int level) {
+			if (deflater != null && deflaterLevel != level) {
+				deflater.end();
+				deflater = null;
+			}
+			if (deflater == null) {
+				deflater = new Deflater(level, true);
+				deflaterLevel = level;
+			} else {
+				deflater.reset();
+			}
+			return deflater;
+		}
+
+		/**
+		 * Release the native memory of the inflater and deflater.
+		 */
+		void end() {
+			inflater.end();
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
+	}
+
+	/**
+	 * Compression of an entry, which can be cancelled without leaving the
+	 * compression running.
+	 */
+	private static final class Task extends FutureTask<ByteBuffer> {
+
+		/**
+		 * TRUE once started, (guarded by this task).
+		 */
+		private boolean started;
+
+		/**
+		 * TRUE once finished, (guarded by this task).
+		 */
+		private boolean finished;
+
+		/**
+		 * Create a new task.
+		 *
+		 * @param callable The compression.
+		 */
+		Task(Callable<ByteBuffer> callable) {
+			super(callable);
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (isCancelled()) {
+					return;
+				}
+				started = true;
+			}
+			try {
+				super.run();
+			} finally {
+				synchronized (this) {
+					finished = true;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Cancel the task if not yet started, otherwise wait for it to finish.
+		 */
+		synchronized void cancelAndWait() {
+			cancel(false);
+			boolean interrupted = false;
+			while (started && !finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * An entry being compressed.
+	 */
+	private static final class Pending {
+
+		/**
+		 * The entry.
+		 */
+		final ZipArchive.Entry entry;
+
+		/**
+		 * The compressed data (in a pooled buffer), or {@code null} if the entry is
+		 * copied as is.
+		 */
+		final Task data;
+
+		/**
+		 * Create a new pending entry.
+		 *
+		 * @param entry The entry.
+		 * @param data  The compressed data, or {@code null} if the entry is copied
+		 *              as is.
+		 */
+		Pending(ZipArchive.Entry entry, Task data) {
+			this.entry = entry;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Create a new recompressor.
+	 *
+	 * @param executor    The executor to compress entries on.
+	 * @param level       The compression level, {@code 0} to store entries or
+	 *                    {@code 1} to {@code 9} to deflate entries.
+	 * @param parallelism The number of threads available to the executor.
+	 */
+	Recompressor(Executor executor, int level, int parallelism) {
+		this.executor = executor;
+		this.level = level;
+		this.window = Math.max(2, parallelism * 4);
+	}
+
+	/**
+	 * Set the nested JAR files to update. Matching entries are updated (and
+	 * stored) by the nested JAR files rather than recompressed.
+	 *
+	 * @param nested The nested JAR files, or {@code null} if none.
+	 */
+	void setNestedJars(NestedJars nested) {
+		this.nested = nested;
+	}
+
+	/**
+	 * Copy the entries to the writer, recompressing each. Entries that can't be
+	 * recompressed (eg encrypted entries) are copied as is.
+	 *
+	 * @param archive The source archive.
+	 * @param entries The entries to copy, in output order.
+	 * @param writer  The output archive.
+	 * @throws IOException Reading, compressing or writing an entry failed.
+	 */
+	void copy(ZipArchive archive, Iterable<ZipArchive.Entry> entries, ZipArchiveWriter writer) throws IOException {
+		Deque<Pending> pending = new ArrayDeque<>();
+		long inFlight = 0;
+		try {
+			for (ZipArchive.Entry entry : entries) {
+				// Held until written, so copied from the iteration.
+				ZipArchive.Entry e = entry.copy();
+				archive.readLocalHeader(e);
+				Task task = null;
+				if (isSupported(e) && (nested == null || !nested.matches(e.getName()))) {
+					task = new Task(() -> compress(archive, e));
+					executor.execute(task);
+					inFlight += e.compressedSize + e.size;
+				}
+				pending.add(new Pending(e, task));
+				while (pending.size() > window || (inFlight > MAX_IN_FLIGHT && pending.size() > 1)) {
+					inFlight -= write(archive, pending.remove(), writer);
+				}
+			}
+			while (!pending.isEmpty()) {
+				write(archive, pending.remove(), writer);
+			}
+		} finally {
+			for (Pending p : pending) {
+				if (p.data != null) {
+					p.data.cancelAndWait();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the entry once compressed.
+	 *
+	 * @param archive The source archive.
+	 * @param p       The entry.
+	 * @param writer  The output archive.
+	 * @return The number of bytes no longer in flight.
+	 * @throws IOException Compressing or writing the entry failed.
+	 */
+	private long write(ZipArchive archive, Pending p, ZipArchiveWriter writer) throws IOException {
+		if (p.data == null) {
+			if (nested != null && nested.matches(p.entry.getName())) {
+				nested.copy(archive, p.entry, writer);
+			} else if (isStreamable(p.entry)) {
+				writer.copyEntry(p.entry, level == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED,
+						out -> recompress(archive, p.entry, out));
+			} else {
+				writer.copyEntry(archive, p.entry);
+			}
+			return 0;
+		}
+		ByteBuffer data;
+		try {
+			data = p.data.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing " + p.entry.getName());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+		try {
+			writer.copyEntry(p.entry, level == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED, data);
+		} finally {
+			BufferPool.HEAP.release(data);
+		}
+		return p.entry.compressedSize + p.entry.size;
+	}
+
+	/**
+	 * Can the entry be recompressed in memory.
+	 *
+	 * @param e The entry.
+	 * @return TRUE if the entry can be streamed (see
+	 *         {@link #isStreamable(ZipArchive.Entry)}), and fits in the largest
+	 *         pooled buffer, both compressed and uncompressed.
+	 */
+	static boolean isSupported(ZipArchive.Entry e) {
+		return isStreamable(e) //
+				&& e.compressedSize <= BufferPool.MAX_CAPACITY //
+				&& e.size <= BufferPool.MAX_CAPACITY;
+	}
+
+	/**
+	 * Can the entry be read (and recompressed) as a stream, (see
+	 * {@link #read(ZipArchive, ZipArchive.Entry, WritableByteChannel)}).
+	 *
+	 * @param e The entry.
+	 * @return TRUE if the entry is stored or deflated, not encrypted, and smaller
+	 *         than 2GB.
+	 */
+	static boolean isStreamable(ZipArchive.Entry e) {
+		return (e.method == ZipEntry.STORED || e.method == ZipEntry.DEFLATED) //
+				&& (e.flags & FLAG_ENCRYPTED) == 0 //
+				&& e.compressedSize < Integer.MAX_VALUE - 8 //
+				&& e.size < Integer.MAX_VALUE - 8;
+	}
+
+	/**
+	 * Does recompressing the entries at the level write the compressed size of
+	 * any entry after its data, (an entry deflated as a stream), so that the
+	 * output can't have checksums calculated as it is written.
+	 *
+	 * @param entries The entries.
+	 * @param level   The compression level.
+	 * @return TRUE if any entry is deflated as a stream.
+	 */
+	static boolean isPatched(Iterable<ZipArchive.Entry> entries, int level) {
+		if (level <= 0) {
+			return false;
+		}
+		for (ZipArchive.Entry e : entries) {
+			if (isStreamable(e) && !isSupported(e)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read, inflate and recompress the entry.
+	 *
+	 * @param archive The source archive.
+	 * @param e       The entry.
+	 * @return The recompressed data, in a pooled buffer.
+	 * @throws IOException Reading the entry failed, or the entry is corrupt.
+	 */
+	private ByteBuffer compress(ZipArchive archive, ZipArchive.Entry e) throws IOException {
+		ByteBuffer data = read(archive, e);
+		try {
+			if (level == 0) {
+				ByteBuffer result = data;
+				data = null;
+				return result;
+			}
+			return deflate(codec().getDeflater(level), data);
+		} finally {
+			BufferPool.HEAP.release(data);
+		}
+	}
+
+	/**
+	 * Read, inflate and recompress the entry to the channel, through small pooled
+	 * buffers, (see
+	 * {@link #read(ZipArchive, ZipArchive.Entry, WritableByteChannel)}).
+	 *
+	 * @param archive The source archive.
+	 * @param e       The entry.
+	 * @param out     The channel to write the recompressed data to.
+	 * @throws IOException Reading or writing the entry failed, or the entry is
+	 *                     corrupt.
+	 */
+	private void recompress(ZipArchive archive, ZipArchive.Entry e, WritableByteChannel out) throws IOException {
+		if (level == 0) {
+			read(archive, e, out);
+			return;
+		}
+		Deflater deflater = codec().getDeflater(level);
+		ByteBuffer buffer = BufferPool.HEAP.acquire(PackageMOJO.BUFFER_SIZE);
+		try {
+			read(archive, e, new WritableByteChannel() {
+
+				@Override
+				public boolean isOpen() {
+					return true;
+				}
+
+				@Override
+				public void close() {
+				}
+
+				@Override
+				public int write(ByteBuffer src) throws IOException {
+					int n = src.remaining();
+					deflater.setInput(src.array(), src.arrayOffset() + src.position(), n);
+					src.position(src.limit());
+					while (!deflater.needsInput()) {
+						drain(deflater, buffer, out);
+					}
+					return n;
+				}
+			});
+			deflater.finish();
+			while (!deflater.finished()) {
+				drain(deflater, buffer, out);
+			}
+		} finally {
+			BufferPool.HEAP.release(buffer);
+		}
+	}
+
+	/**
+	 * Deflate into the buffer, and write the compressed data to the channel.
+	 *
+	 * @param deflater The deflater.
+	 * @param buffer   The buffer.
+	 * @param out      The channel.
+	 * @throws IOException Writing failed.
+	 */
+	private static void drain(Deflater deflater, ByteBuffer buffer, WritableByteChannel out) throws IOException {
+		buffer.clear();
+		buffer.limit(deflater.deflate(buffer.array(), 0, buffer.capacity()));
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	/**
+	 * Get the codec of the current thread, creating it if needed.
+	 *
+	 * @return The codec.
+	 */
+	private static Codec codec() {
+		Codec codec = CODECS.get();
+		if (codec == null) {
+			codec = new Codec();
+			CODECS.set(codec);
+		}
+		return codec;
+	}
+
+	/**
+	 * Release the codec of the current thread, if any. Called by each thread that
+	 * compressed or read entries before it ends, so the native memory of the
+	 * codec is released straight away rather than once garbage collected.
+	 */
+	static void release() {
+		Codec codec = CODECS.get();
+		if (codec != null) {
+			CODECS.remove();
+			codec.end();
+		}
+	}
+
+	/**
+	 * Read and inflate the entry, verifying the CRC. The local header must have
+	 * been read first, and the entry must be supported (see
+	 * {@link #isSupported(ZipArchive.Entry)}).
+	 *
+	 * @param archive The source archive.
+	 * @param e       The entry.
+	 * @return The uncompressed data, in a pooled buffer.
+	 * @throws IOException Reading the entry failed, or the entry is corrupt.
+	 */
+	static ByteBuffer read(ZipArchive archive, ZipArchive.Entry e) throws IOException {
+		Codec codec = codec();
+		ByteBuffer input = null;
+		ByteBuffer data = null;
+		try {
+			ByteBuffer compressed = archive.getData(e);
+			input = BufferPool.HEAP.acquire(compressed.remaining());
+			input.put(compressed);
+			input.flip();
+			if (e.method == ZipEntry.STORED) {
+				if (input.remaining() != e.size) {
+					throw new ZipException("Invalid size for " + e.getName());
+				}
+				data = input;
+				input = null;
+			} else {
+				data = inflate(codec.inflater, input, e);
+			}
+			codec.crc.reset();
+			codec.crc.update(data.array(), 0, data.limit());
+			if (codec.crc.getValue() != e.crc) {
+				throw new ZipException("Invalid CRC for " + e.getName());
+			}
+			ByteBuffer result = data;
+			data = null;
+			return result;
+		} finally {
+			BufferPool.HEAP.release(input);
+			BufferPool.HEAP.release(data);
+		}
+	}
+
+	/**
+	 * Read and inflate the entry to the channel, verifying the size and CRC. The
+	 * entry is inflated through small pooled buffers, so unlike
+	 * {@link #read(ZipArchive, ZipArchive.Entry)} the memory used does not depend
+	 * on the size of the entry. The local header must have been read first, and
+	 * the entry must be supported (see {@link #isSupported(ZipArchive.Entry)}).
+	 *
+	 * @param archive The source archive.
+	 * @param e       The entry.
+	 * @param out     The channel to write the uncompressed data to.
+	 * @throws IOException Reading or writing the entry failed, or the entry is
+	 *                     corrupt.
+	 */
+	static void read(ZipArchive archive, ZipArchive.Entry e, WritableByteChannel out) throws IOException {
+		Codec codec = codec();
+		ByteBuffer input = BufferPool.HEAP.acquire(PackageMOJO.BUFFER_SIZE);
+		ByteBuffer output = BufferPool.HEAP.acquire(PackageMOJO.BUFFER_SIZE);
+		try {
+			ByteBuffer compressed = archive.getData(e);
+			boolean stored = e.method == ZipEntry.STORED;
+			Inflater inflater = codec.inflater;
+			inflater.reset();
+			codec.crc.reset();
+			long size = 0;
+			while (stored ? compressed.hasRemaining() : !inflater.finished()) {
+				int n;
+				output.clear();
+				if (stored) {
+					n = Math.min(compressed.remaining(), output.capacity());
+					compressed.get(output.array(), 0, n);
+				} else {
+					if (inflater.needsInput()) {
+						if (!compressed.hasRemaining()) {
+							throw new ZipException("Invalid compressed data for " + e.getName() + " : truncated");
+						}
+						int len = Math.min(compressed.remaining(), input.capacity());
+						compressed.get(input.array(), 0, len);
+						inflater.setInput(input.array(), 0, len);
+					}
+					n = inflater.inflate(output.array(), 0, output.capacity());
+					if (n == 0 && inflater.needsDictionary()) {
+						throw new ZipException("Invalid compressed data for " + e.getName() + " : dictionary");
+					}
+				}
+				codec.crc.update(output.array(), 0, n);
+				size += n;
+				output.limit(n);
+				while (output.hasRemaining()) {
+					out.write(output);
+				}
+			}
+			if (size != e.size) {
+				throw new ZipException("Invalid size for " + e.getName());
+			}
+			if (codec.crc.getValue() != e.crc) {
+				throw new ZipException("Invalid CRC for " + e.getName());
+			}
+		} catch (DataFormatException ex) {
+			throw new ZipException("Invalid compressed data for " + e.getName() + " : " + ex.getMessage());
+		} finally {
+			BufferPool.HEAP.release(input);
+			BufferPool.HEAP.release(output);
+		}
+	}
+
+	/**
+	 * Get the uncompressed data of a deflated entry.
+	 *
+	 * @param inflater   The inflater to use.
+	 * @param compressed The compressed data, in a heap buffer.
+	 * @param e          The entry.
+	 * @return The uncompressed data, in a pooled buffer.
+	 * @throws IOException The entry is corrupt.
+	 */
+	private static ByteBuffer inflate(Inflater inflater, ByteBuffer compressed, ZipArchive.Entry e)
+			throws IOException {
+		int size = (int) e.size;
+		ByteBuffer output = BufferPool.HEAP.acquire(size);
+		boolean complete = false;
+		try {
+			inflater.reset();
+			inflater.setInput(compressed.array(), 0, compressed.limit());
+			byte[] out = output.array();
+			int len = 0;
+			while (len < size && !inflater.finished()) {
+				int n = inflater.inflate(out, len, size - len);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				len += n;
+			}
+			if (len != size) {
+				throw new ZipException("Invalid size for " + e.getName());
+			}
+			output.limit(size);
+			complete = true;
+			return output;
+		} catch (DataFormatException ex) {
+			throw new ZipException("Invalid compressed data for " + e.getName() + " : " + ex.getMessage());
+		} finally {
+			if (!complete) {
+				BufferPool.HEAP.release(output);
+			}
+		}
+	}
+
+	/**
+	 * Deflate the data with the deflater of the current thread.
+	 *
+	 * @param data  The uncompressed data, in a heap buffer.
+	 * @param level The compression level.
+	 * @return The compressed data, in a pooled buffer.
+	 */
+	static ByteBuffer deflate(ByteBuffer data, int level) {
+		return deflate(codec().getDeflater(level), data);
+	}
+
+	/**
+	 * Deflate the data.
+	 *
+	 * @param deflater The reset deflater to use.
+	 * @param data     The uncompressed data, in a heap buffer.
+	 * @return The compressed data, in a pooled buffer.
+	 */
+	private static ByteBuffer deflate(Deflater deflater, ByteBuffer data) {
+		int len = data.limit();
+		deflater.setInput(data.array(), 0, len);
+		deflater.finish();
+		// Deflate expands incompressible data by a few bytes per 16KB block, so
+		// the output rarely needs to grow, (but starts no larger than the largest
+		// pooled buffer).
+		ByteBuffer output = BufferPool.HEAP.acquire((int) Math.min(BufferPool.MAX_CAPACITY, len + (len >> 8) + 64L));
+		boolean complete = false;
+		try {
+			while (!deflater.finished()) {
+				if (!output.hasRemaining()) {
+					ByteBuffer larger = BufferPool.HEAP
+							.acquire((int) Math.min(Integer.MAX_VALUE - 8, output.capacity() * 2L));
+					output.flip();
+					larger.put(output);
+					BufferPool.HEAP.release(output);
+					output = larger;
+				}
+				int n = deflater.deflate(output.array(), output.position(), output.remaining());
+				output.position(output.position() + n);
+			}
+			output.flip();
+			complete = true;
+			return output;
+		} finally {
+			if (!complete) {
+				BufferPool.HEAP.release(output);
+			}
+		}
+	}
+}
@@ -0,0 +1,545 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Machine readable report of the work done for each artifact, written as JSON
+ * or CSV.
+ * <p>
+ * Each record holds the resolved path, the number of entries, the bytes read
+ * and written, the compressed and uncompressed size of the entries, the time
+ * spent in each phase and the outcome.
+ */
+final class Report {
+
+	/**
+	 * The phases of processing an artifact.
+	 */
+	enum Phase {
+		/**
+		 * Resolving and opening the artifact, and reading the central directory.
+		 */
+		OPEN,
+		/**
+		 * Reading, updating and serialising the manifest.
+		 */
+		MANIFEST,
+		/**
+		 * Copying the entries.
+		 */
+		COPY,
+		/**
+		 * Writing the central directory and moving the output into place.
+		 */
+		FINISH,
+		/**
+		 * Exposing the published artifact in the output directory.
+		 */
+		PUBLISH,
+		/**
+		 * Calculating checksums and fingerprints.
+		 */
+		DIGEST
+	}
+
+	/**
+	 * The outcome of processing an artifact.
+	 */
+	enum Outcome {
+		/**
+		 * The artifact was processed.
+		 */
+		PROCESSED("processed"),
+		/**
+		 * The manifest was already up to date, so the artifact was not rewritten.
+		 */
+		UNCHANGED("unchanged"),
+		/**
+		 * The artifact was signed, and skipped.
+		 */
+		SKIPPED_SIGNED("skipped-signed"),
+		/**
+		 * The artifact was up to date, and skipped.
+		 */
+		UP_TO_DATE("up-to-date"),
+		/**
+		 * The artifact was rewritten by another module, and the result reused.
+		 */
+		REUSED("reused"),
+		/**
+		 * The updated artifact was restored from the output cache.
+		 */
+		CACHED("cached"),
+		/**
+		 * Processing the artifact failed.
+		 */
+		FAILED("failed");
+
+		/**
+		 * The name of the outcome, as reported.
+		 */
+		private final String label;
+
+		/**
+		 * Create a new outcome.
+		 *
+		 * @param label The name of the outcome, as reported.
+		 */
+		Outcome(String label) {
+			this.label = label;
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+
+	/**
+	 * The record of a single artifact.
+	 * <p>
+	 * Time is attributed to phases as they complete, with {@link #time(Phase)}
+	 * charging the time since the previous call to the given phase. Time spent
+	 * updating any tracked checksums is charged to {@link Phase#DIGEST} instead.
+	 * <p>
+	 * While recording with Java Flight Recorder, an event is also emitted for the
+	 * artifact (once stopped) and for each phase, (see {@link FlightEvents}).
+	 */
+	static final class Record {
+
+		/**
+		 * The artifact as defined.
+		 */
+		private final String artifact;
+
+		/**
+		 * The resolved location of the artifact.
+		 */
+		private Path path;
+
+		/**
+		 * The outcome.
+		 */
+		private Outcome outcome;
+
+		/**
+		 * The failure message, if failed.
+		 */
+		private String error;
+
+		/**
+		 * Number of entries in the output.
+		 */
+		long entries;
+
+		/**
+		 * Number of bytes read from the source.
+		 */
+		long bytesRead;
+
+		/**
+		 * Number of bytes written to the output.
+		 */
+		long bytesWritten;
+
+		/**
+		 * Total compressed size of the source entries.
+		 */
+		long compressedBytes;
+
+		/**
+		 * Total uncompressed size of the source entries.
+		 */
+		long uncompressedBytes;
+
+		/**
+		 * Time spent in each phase, in nanoseconds.
+		 */
+		private final long[] nanos = new long[Phase.values().length];
+
+		/**
+		 * Total time, in nanoseconds.
+		 */
+		private long total;
+
+		/**
+		 * The time processing started.
+		 */
+		private long started;
+
+		/**
+		 * The time the last phase completed.
+		 */
+		private long mark;
+
+		/**
+		 * Checksums whose time is charged to {@link Phase#DIGEST}.
+		 */
+		private Checksums checksums;
+
+		/**
+		 * Time already charged for the tracked checksums.
+		 */
+		private long checksumNanos;
+
+		/**
+		 * The flight recorder event of the artifact, or {@code null} if not
+		 * recording.
+		 */
+		private Object artifactEvent;
+
+		/**
+		 * The flight recorder event of the current phase, or {@code null} if not
+		 * recording.
+		 */
+		private Object phaseEvent;
+
+		/**
+		 * Create a new record.
+		 *
+		 * @param def The artifact definition.
+		 */
+		Record(ArtifactDefinition def) {
+			if (def == null) {
+				artifact = null;
+			} else if (def.getArtifact() != null) {
+				artifact = def.getArtifact();
+			} else {
+				artifact = def.getJarFile() == null ? null : def.getJarFile().toString();
+			}
+		}
+
+		/**
+		 * Start timing.
+		 */
+		void start() {
+			started = System.nanoTime();
+			mark = started;
+			artifactEvent = FlightEvents.beginArtifact();
+			phaseEvent = FlightEvents.beginPhase();
+		}
+
+		/**
+		 * Stop timing.
+		 */
+		void stop() {
+			total = System.nanoTime() - started;
+			FlightEvents.commitArtifact(artifactEvent, this);
+			artifactEvent = null;
+			phaseEvent = null;
+		}
+
+		/**
+		 * Charge the time since the previous phase completed to the given phase.
+		 *
+		 * @param phase The phase that completed.
+		 */
+		void time(Phase phase) {
+			long now = System.nanoTime();
+			long elapsed = now - mark;
+			mark = now;
+			if (checksums != null) {
+				long digest = checksums.getNanos() - checksumNanos;
+				checksumNanos += digest;
+				nanos[Phase.DIGEST.ordinal()] += digest;
+				elapsed -= digest;
+			}
+			nanos[phase.ordinal()] += Math.max(0, elapsed);
+			FlightEvents.commitPhase(phaseEvent, this, phase);
+			phaseEvent = FlightEvents.beginPhase();
+		}
+
+		/**
+		 * Charge time spent updating the checksums to {@link Phase#DIGEST},
+		 * regardless of the phase they are updated in.
+		 *
+		 * @param checksums The checksums to track.
+		 */
+		void track(Checksums checksums) {
+			this.checksums = checksums;
+			this.checksumNanos = checksums.getNanos();
+		}
+
+		/**
+		 * Set the resolved location of the artifact.
+		 *
+		 * @param path The location.
+		 */
+		void setPath(Path path) {
+			this.path = path;
+		}
+
+		/**
+		 * Set the outcome.
+		 *
+		 * @param outcome The outcome.
+		 */
+		void setOutcome(Outcome outcome) {
+			this.outcome = outcome;
+		}
+
+		/**
+		 * Mark the artifact as failed.
+		 *
+		 * @param error The failure.
+		 */
+		void fail(Throwable error) {
+			this.outcome = Outcome.FAILED;
+			this.error = error.getMessage() == null ? error.toString() : error.getMessage();
+		}
+
+		/**
+		 * Record that the artifact was processed together with another artifact
+		 * sharing the same source. The outcome is shared, while the work is only
+		 * counted against the other artifact.
+		 *
+		 * @param primary The record of the other artifact.
+		 */
+		void follow(Record primary) {
+			this.path = primary.path;
+			this.outcome = primary.outcome;
+			this.error = primary.error;
+		}
+
+		/**
+		 * Get the artifact as defined.
+		 *
+		 * @return The artifact, or {@code null} if not defined.
+		 */
+		String getArtifact() {
+			return artifact;
+		}
+
+		/**
+		 * Get the resolved location of the artifact.
+		 *
+		 * @return The location, or {@code null} if not resolved.
+		 */
+		Path getPath() {
+			return path;
+		}
+
+		/**
+		 * Get the outcome.
+		 *
+		 * @return The outcome, or {@code null} if not yet complete.
+		 */
+		Outcome getOutcome() {
+			return outcome;
+		}
+
+		/**
+		 * Get the time spent in the given phase.
+		 *
+		 * @param phase The phase.
+		 * @return The time, in nanoseconds.
+		 */
+		long getNanos(Phase phase) {
+			return nanos[phase.ordinal()];
+		}
+
+		/**
+		 * Get the total time.
+		 *
+		 * @return The time, in nanoseconds.
+		 */
+		long getTotalNanos() {
+			return total;
+		}
+	}
+
+	/**
+	 * The CSV column names.
+	 */
+	private static final String[] COLUMNS = { "artifact", "path", "outcome", "error", "entries", "bytesRead",
+			"bytesWritten", "compressedBytes", "uncompressedBytes", "openMs", "manifestMs", "copyMs", "finishMs",
+			"publishMs", "digestMs", "totalMs" };
+
+	/**
+	 * The records, in declaration order.
+	 */
+	private final List<Record> records = new ArrayList<>();
+
+	/**
+	 * Add a record for the given definition.
+	 *
+	 * @param def The artifact definition.
+	 * @return The record.
+	 */
+	Record add(ArtifactDefinition def) {
+		Record record = new Record(def);
+		records.add(record);
+		return record;
+	}
+
+	/**
+	 * Get the records.
+	 *
+	 * @return The records, in declaration order.
+	 */
+	List<Record> getRecords() {
+		return records;
+	}
+
+	/**
+	 * Write the report, replacing any existing report.
+	 *
+	 * @param file   The report file.
+	 * @param format The format, either {@code json} or {@code csv}.
+	 * @throws IOException Writing the report failed.
+	 */
+	void write(Path file, String format) throws IOException {
+		String content = format.equalsIgnoreCase("csv") ? toCsv() : toJson();
+		AtomicFiles.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Format the report as JSON.
+	 *
+	 * @return The report.
+	 */
+	String toJson() {
+		String nl = System.lineSeparator();
+		StringBuilder sb = new StringBuilder();
+		sb.append("{").append(nl).append("  \"artifacts\": [");
+		for (int i = 0; i < records.size(); i++) {
+			Record r = records.get(i);
+			sb.append(i == 0 ? "" : ",").append(nl).append("    {").append(nl);
+			sb.append("      \"artifact\": ").append(quoteJson(r.artifact)).append(",").append(nl);
+			sb.append("      \"path\": ").append(quoteJson(r.path == null ? null : r.path.toString())).append(",")
+					.append(nl);
+			sb.append("      \"outcome\": ").append(quoteJson(r.outcome == null ? null : r.outcome.toString()))
+					.append(",").append(nl);
+			sb.append("      \"error\": ").append(quoteJson(r.error)).append(",").append(nl);
+			sb.append("      \"entries\": ").append(r.entries).append(",").append(nl);
+			sb.append("      \"bytesRead\": ").append(r.bytesRead).append(",").append(nl);
+			sb.append("      \"bytesWritten\": ").append(r.bytesWritten).append(",").append(nl);
+			sb.append("      \"compressedBytes\": ").append(r.compressedBytes).append(",").append(nl);
+			sb.append("      \"uncompressedBytes\": ").append(r.uncompressedBytes).append(",").append(nl);
+			sb.append("      \"timeMs\": {");
+			for (Phase phase : Phase.values()) {
+				sb.append(nl).append("        \"").append(phase.name().toLowerCase(Locale.ROOT)).append("\": ")
+						.append(toMillis(r.getNanos(phase))).append(",");
+			}
+			sb.append(nl).append("        \"total\": ").append(toMillis(r.total)).append(nl);
+			sb.append("      }").append(nl).append("    }");
+		}
+		sb.append(nl).append("  ]").append(nl).append("}").append(nl);
+		return sb.toString();
+	}
+
+	/**
+	 * Format the report as CSV, with a header row.
+	 *
+	 * @return The report.
+	 */
+	String toCsv() {
+		String nl = "\r\n";
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.join(",", COLUMNS)).append(nl);
+		for (Record r : records) {
+			sb.append(quoteCsv(r.artifact)).append(',');
+			sb.append(quoteCsv(r.path == null ? null : r.path.toString())).append(',');
+			sb.append(quoteCsv(r.outcome == null ? null : r.outcome.toString())).append(',');
+			sb.append(quoteCsv(r.error)).append(',');
+			sb.append(r.entries).append(',');
+			sb.append(r.bytesRead).append(',');
+			sb.append(r.bytesWritten).append(',');
+			sb.append(r.compressedBytes).append(',');
+			sb.append(r.uncompressedBytes);
+			for (Phase phase : Phase.values()) {
+				sb.append(',').append(toMillis(r.getNanos(phase)));
+			}
+			sb.append(',').append(toMillis(r.total)).append(nl);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Convert nanoseconds to milliseconds.
+	 *
+	 * @param nanos The time in nanoseconds.
+	 * @return The time in milliseconds, to 3 decimal places.
+	 */
+	static String toMillis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	/**
+	 * Quote the value as a JSON string.
+	 *
+	 * @param value The value, may be {@code null}.
+	 * @return The quoted value, or {@code null}.
+	 */
+	static String quoteJson(String value) {
+		if (value == null) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Quote the value as a CSV field, if required.
+	 *
+	 * @param value The value, may be {@code null}.
+	 * @return The field.
+	 */
+	static String quoteCsv(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+				&& value.indexOf('\r') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+}
@@ -0,0 +1,125 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks held while writing a JAR file.
+ * <p>
+ * Threads within the JVM are serialised by a fixed set of locks striped by the
+ * path of the file written. Other processes are optionally serialised by a file
+ * lock on a separate lock file, which is left in place. (Removing a lock file
+ * would allow another process to lock a new file of the same name while a
+ * waiting process locks the removed one).
+ */
+final class RewriteLocks {
+
+	/**
+	 * The number of stripes. (Must be a power of 2).
+	 */
+	private static final int STRIPES = 64;
+
+	/**
+	 * The striped locks.
+	 */
+	private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+	static {
+		for (int i = 0; i < STRIPES; i++) {
+			LOCKS[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * A held lock.
+	 */
+	interface Held extends AutoCloseable {
+
+		/**
+		 * Release the lock.
+		 *
+		 * @throws IOException The file lock could not be released.
+		 */
+		@Override
+		void close() throws IOException;
+	}
+
+	/**
+	 * No instances.
+	 */
+	private RewriteLocks() {
+	}
+
+	/**
+	 * Lock the file for writing.
+	 *
+	 * @param file     The file to write.
+	 * @param lockFile The lock file used to lock against other processes, eg for
+	 *                 files in the local maven repository, or {@code null} to only
+	 *                 lock against other threads.
+	 * @return The held lock.
+	 * @throws IOException The file lock could not be obtained, or interrupted while
+	 *                     waiting.
+	 */
+	static Held lock(Path file, Path lockFile) throws IOException {
+		Path path = file.toAbsolutePath().normalize();
+		int hash = path.hashCode();
+		ReentrantLock lock = LOCKS[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+		try {
+			lock.lockInterruptibly();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to write " + file);
+		}
+		if (lockFile == null) {
+			return lock::unlock;
+		}
+		FileChannel channel = null;
+		try {
+			Files.createDirectories(lockFile.getParent());
+			channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock fileLock = channel.lock();
+			FileChannel held = channel;
+			return () -> {
+				try {
+					fileLock.release();
+					held.close();
+				} finally {
+					lock.unlock();
+				}
+			};
+		} catch (IOException | RuntimeException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+			}
+			lock.unlock();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.maven.execution.MavenSession;
+import org.eclipse.aether.SessionData;
+
+/**
+ * Registry of the JAR files rewritten within a maven session.
+ * <p>
+ * In a parallel reactor build several modules may update the same JAR file with
+ * the same supplemental manifests and options. The first to claim the rewrite
+ * performs it, and all others wait for it and reuse the result.
+ * <p>
+ * At most one rewrite is held for each file written, so a rewrite that writes a
+ * file already written by a different rewrite replaces it, (as its result no
+ * longer exists). Failed rewrites are removed, so the registry holds no more
+ * rewrites than there are files written in the session.
+ * <p>
+ * The registry is held in the session data of the repository session, which is
+ * shared by the copies of the maven session given to each module, and discarded
+ * with it at the end of the reactor build.
+ */
+final class RewriteRegistry {
+
+	/**
+	 * The key of the registry in the session data.
+	 */
+	private static final Object KEY = RewriteRegistry.class.getName();
+
+	/**
+	 * The result of each claimed rewrite, being the updated JAR file.
+	 */
+	private final ConcurrentMap<String, CompletableFuture<Path>> results = new ConcurrentHashMap<>();
+
+	/**
+	 * The key of the last rewrite claimed for each file written.
+	 */
+	private final ConcurrentMap<Path, String> written = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the registry of the session, creating it if needed.
+	 *
+	 * @param session The maven session, may be {@code null}.
+	 * @return The registry, or {@code null} if there is no session.
+	 */
+	static RewriteRegistry get(MavenSession session) {
+		if (session == null || session.getRepositorySession() == null) {
+			return null;
+		}
+		SessionData data = session.getRepositorySession().getData();
+		Object registry = data.get(KEY);
+		if (registry == null) {
+			data.set(KEY, null, new RewriteRegistry());
+			registry = data.get(KEY);
+		}
+		return (RewriteRegistry) registry;
+	}
+
+	/**
+	 * Claim a rewrite.
+	 * <p>
+	 * If the rewrite has not been claimed, the caller must perform it and then
+	 * complete the given result with the updated JAR file, or complete it
+	 * exceptionally on failure.
+	 *
+	 * @param key    The key of the rewrite, being the source JAR file,
+	 *               supplemental manifests and options.
+	 * @param file   The file written by the rewrite.
+	 * @param result The result of the rewrite, if performed by the caller.
+	 * @return {@code null} if claimed by the caller, otherwise the result of the
+	 *         rewrite performed by the first to claim it.
+	 */
+	CompletableFuture<Path> claim(String key, Path file, CompletableFuture<Path> result) {
+		String previous = written.put(file, key);
+		if (previous != null && !previous.equals(key)) {
+			// Overwritten by this rewrite, so no longer reusable.
+			results.remove(previous);
+		}
+		CompletableFuture<Path> other = results.putIfAbsent(key, result);
+		if (other == null) {
+			result.whenComplete((path, error) -> {
+				if (error != null) {
+					results.remove(key, result);
+					written.remove(file, key);
+				}
+			});
+		}
+		return other;
+	}
+
+	/**
+	 * Get the number of rewrites held.
+	 *
+	 * @return The number of rewrites.
+	 */
+	int size() {
+		return results.size();
+	}
+
+	/**
+	 * Wait for a rewrite claimed by another caller.
+	 *
+	 * @param result The result of the rewrite.
+	 * @return The updated JAR file, or {@code null} if the rewrite failed.
+	 * @throws InterruptedIOException Interrupted while waiting.
+	 */
+	static Path await(CompletableFuture<Path> result) throws InterruptedIOException {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for another module");
+		}
+	}
+}
@@ -0,0 +1,749 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Scan the local maven repository, reporting JARs whose manifest lacks or
+ * differs from the attributes of a template manifest, and JARs that are signed.
+ * <p>
+ * Only the central directory and the manifest of each JAR are read.
+ */
+@Mojo(name = "scan", requiresProject = false, threadSafe = true)
+public class ScanMOJO extends AbstractMojo {
+
+	/**
+	 * The status of a scanned JAR.
+	 */
+	enum Status {
+		/**
+		 * The manifest has all attributes of the template.
+		 */
+		OK("ok"),
+		/**
+		 * The manifest lacks some attributes of the template.
+		 */
+		MISSING("missing"),
+		/**
+		 * The manifest has attributes with values differing from the template.
+		 */
+		MISMATCH("mismatch"),
+		/**
+		 * The JAR is signed, so can't be updated.
+		 */
+		SIGNED("signed"),
+		/**
+		 * The JAR has no manifest.
+		 */
+		NO_MANIFEST("no-manifest"),
+		/**
+		 * The JAR could not be read.
+		 */
+		ERROR("error");
+
+		/**
+		 * The name of the status, as reported.
+		 */
+		private final String label;
+
+		/**
+		 * Create a new status.
+		 *
+		 * @param label The name of the status, as reported.
+		 */
+		Status(String label) {
+			this.label = label;
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+
+	/**
+	 * The result of scanning a single JAR.
+	 */
+	static final class Result {
+
+		/**
+		 * The location of the JAR.
+		 */
+		final Path path;
+
+		/**
+		 * The artifact, as {@code groupId:artifactId:version}.
+		 */
+		final String artifact;
+
+		/**
+		 * The status.
+		 */
+		Status status = Status.OK;
+
+		/**
+		 * Attributes of the template missing from the manifest.
+		 */
+		final List<String> missing = new ArrayList<>();
+
+		/**
+		 * Attributes of the template whose value differs, with the value in the
+		 * manifest.
+		 */
+		final Map<String, String> mismatched = new LinkedHashMap<>();
+
+		/**
+		 * The error reading the JAR, if any.
+		 */
+		String error;
+
+		/**
+		 * Create a new result.
+		 *
+		 * @param path     The location of the JAR.
+		 * @param artifact The artifact, as {@code groupId:artifactId:version}.
+		 */
+		Result(Path path, String artifact) {
+			this.path = path;
+			this.artifact = artifact;
+		}
+	}
+
+	/**
+	 * The location of the local maven repository.
+	 */
+	@Parameter(property = "manifest-update.localRepository", defaultValue = "${settings.localRepository}")
+	private File localRepository;
+
+	/**
+	 * The template manifest. Every main attribute of the template is expected in
+	 * the manifest of each JAR with the same value, or with any value if the
+	 * template value is {@code *}. ({@code Manifest-Version} is ignored).
+	 */
+	@Parameter(property = "manifest-update.manifestFile", required = true)
+	private File manifestFile;
+
+	/**
+	 * Target location to store the report and generated configuration.
+	 */
+	@Parameter(property = "manifest-update.outputDirectory", defaultValue = "${project.build.directory}")
+	private File outputDirectory;
+
+	/**
+	 * The artifacts to scan, as {@code groupId[:artifactId]} patterns, where
+	 * {@code *} matches any characters. (Defaults to all artifacts).
+	 */
+	@Parameter(property = "manifest-update.includes")
+	private List<String> includes;
+
+	/**
+	 * The artifacts to skip, as {@code groupId[:artifactId]} patterns, where
+	 * {@code *} matches any characters.
+	 */
+	@Parameter(property = "manifest-update.excludes")
+	private List<String> excludes;
+
+	/**
+	 * The number of directories and JARs to scan concurrently. A value of 0 or
+	 * less will use the number of available processors. (Defaults to 0).
+	 */
+	@Parameter(property = "manifest-update.threads", defaultValue = "0")
+	private int threads;
+
+	/**
+	 * The format of the report written to the output directory as
+	 * {@code manifest-scan-report.json} or {@code manifest-scan-report.csv}.
+	 * Either {@code json} or {@code csv}. (Defaults to {@code json}).
+	 */
+	@Parameter(property = "manifest-update.report", defaultValue = "json")
+	private String report = "json";
+
+	/**
+	 * Write the {@code artifacts} configuration of the {@code package} goal, to
+	 * update all JARs missing or differing from the template with the template,
+	 * to {@code manifest-scan-artifacts.xml} in the output directory. The
+	 * configuration merges {@code manifest-scan-template.mf}, written alongside,
+	 * being the template without attributes whose value is {@code *}, as there is
+	 * no value to add. JARs only missing such attributes are left out. (Defaults
+	 * to false).
+	 */
+	@Parameter(property = "manifest-update.generateArtifacts", defaultValue = "false")
+	private boolean generateArtifacts;
+
+	@Override
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		if (localRepository == null || !localRepository.isDirectory()) {
+			throw new MojoFailureException("Local repository " + localRepository + " does not exist");
+		}
+		if (manifestFile == null) {
+			throw new MojoFailureException("Missing manifest definition");
+		}
+		Manifest template;
+		try {
+			template = ManifestCache.read(manifestFile);
+		} catch (IOException e) {
+			throw new MojoFailureException(e.getMessage(), e);
+		}
+
+		long start = System.nanoTime();
+		List<Result> results = scan(localRepository.toPath(), template);
+		long elapsed = System.nanoTime() - start;
+
+		int[] counts = new int[Status.values().length];
+		for (Result result : results) {
+			counts[result.status.ordinal()]++;
+			if (result.status != Status.OK) {
+				getLog().debug(result.status + " : " + result.path);
+			}
+		}
+		getLog().info("Scanned " + results.size() + " JARs in " + Report.toMillis(elapsed) + "ms : "
+				+ counts[Status.OK.ordinal()] + " ok, " + counts[Status.MISSING.ordinal()] + " missing, "
+				+ counts[Status.MISMATCH.ordinal()] + " mismatched, " + counts[Status.SIGNED.ordinal()]
+				+ " signed, " + counts[Status.NO_MANIFEST.ordinal()] + " without manifest, "
+				+ counts[Status.ERROR.ordinal()] + " unreadable");
+
+		try {
+			Files.createDirectories(outputDirectory.toPath());
+			Path reportFile = getReportFile();
+			String content = report.equalsIgnoreCase("csv") ? toCsv(results) : toJson(results);
+			AtomicFiles.write(reportFile, content.getBytes(StandardCharsets.UTF_8));
+			getLog().info("Report : " + reportFile);
+			if (generateArtifacts) {
+				Manifest supplement = getSupplement(template);
+				AtomicFiles.write(getSupplementFile(), PackageMOJO.toBytes(supplement));
+				Path artifactsFile = getArtifactsFile();
+				AtomicFiles.write(artifactsFile, toArtifacts(results, supplement).getBytes(StandardCharsets.UTF_8));
+				getLog().info("Artifacts configuration : " + artifactsFile);
+			}
+		} catch (IOException e) {
+			throw new MojoFailureException("Unable to write report : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Scan the repository.
+	 * 
+	 * @param repository The root of the repository.
+	 * @param template   The template manifest.
+	 * @return The results, ordered by path.
+	 */
+	List<Result> scan(Path repository, Manifest template) {
+		ArtifactFilter filter = new ArtifactFilter(includes, excludes);
+		Queue<Result> results = new ConcurrentLinkedQueue<>();
+		Set<Path> visited = ConcurrentHashMap.newKeySet();
+		ForkJoinPool pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+		try {
+			if (Walk.visit(visited, repository)) {
+				pool.invoke(new Walk(repository, repository, template, filter, results, visited));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		List<Result> sorted = new ArrayList<>(results);
+		sorted.sort(Comparator.comparing(r -> r.path));
+		return sorted;
+	}
+
+	/**
+	 * Scans a directory, forking a task for each sub-directory and each JAR file.
+	 * <p>
+	 * Symbolic links are followed, but each directory is only scanned once (by
+	 * its real path), so links back up the tree do not recurse without end.
+	 */
+	private static final class Walk extends RecursiveAction {
+
+		/**
+		 * Serial version.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The root of the repository.
+		 */
+		private final Path repository;
+
+		/**
+		 * The directory to scan.
+		 */
+		private final Path directory;
+
+		/**
+		 * The template manifest.
+		 */
+		private final Manifest template;
+
+		/**
+		 * The artifact filter.
+		 */
+		private final ArtifactFilter filter;
+
+		/**
+		 * The results.
+		 */
+		private final Queue<Result> results;
+
+		/**
+		 * The real paths of the directories already scanned, or being scanned.
+		 */
+		private final Set<Path> visited;
+
+		/**
+		 * Create a new task.
+		 * 
+		 * @param repository The root of the repository.
+		 * @param directory  The directory to scan.
+		 * @param template   The template manifest.
+		 * @param filter     The artifact filter.
+		 * @param results    The results.
+		 * @param visited    The real paths of the directories already scanned.
+		 */
+		Walk(Path repository, Path directory, Manifest template, ArtifactFilter filter, Queue<Result> results,
+				Set<Path> visited) {
+			this.repository = repository;
+			this.directory = directory;
+			this.template = template;
+			this.filter = filter;
+			this.results = results;
+			this.visited = visited;
+		}
+
+		@Override
+		protected void compute() {
+			// The JAR files are scanned concurrently with the sub-directories.
+			List<RecursiveAction> tasks = new ArrayList<>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+				for (Path entry : entries) {
+					String name = entry.getFileName().toString();
+					if (name.endsWith(".jar")) {
+						String artifact = getArtifact(repository, entry, filter);
+						if (artifact != null && Files.isRegularFile(entry)) {
+							tasks.add(new Scan(entry, artifact, template, results));
+						}
+					} else if (!name.startsWith(".") && Files.isDirectory(entry) && visit(visited, entry)) {
+						tasks.add(new Walk(repository, entry, template, filter, results, visited));
+					}
+				}
+			} catch (IOException e) {
+				// Unreadable directory, nothing to scan.
+				return;
+			}
+			invokeAll(tasks);
+		}
+
+		/**
+		 * Mark the directory as visited.
+		 * 
+		 * @param visited   The real paths of the directories already visited.
+		 * @param directory The directory.
+		 * @return TRUE if not visited before, FALSE if visited or unreadable.
+		 */
+		static boolean visit(Set<Path> visited, Path directory) {
+			try {
+				return visited.add(directory.toRealPath());
+			} catch (IOException e) {
+				// Eg a broken link.
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Scans a single JAR file.
+	 */
+	private static final class Scan extends RecursiveAction {
+
+		/**
+		 * Serial version.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The JAR file.
+		 */
+		private final Path jar;
+
+		/**
+		 * The artifact, as {@code groupId:artifactId:version}.
+		 */
+		private final String artifact;
+
+		/**
+		 * The template manifest.
+		 */
+		private final Manifest template;
+
+		/**
+		 * The results.
+		 */
+		private final Queue<Result> results;
+
+		/**
+		 * Create a new task.
+		 * 
+		 * @param jar      The JAR file.
+		 * @param artifact The artifact, as {@code groupId:artifactId:version}.
+		 * @param template The template manifest.
+		 * @param results  The results.
+		 */
+		Scan(Path jar, String artifact, Manifest template, Queue<Result> results) {
+			this.jar = jar;
+			this.artifact = artifact;
+			this.template = template;
+			this.results = results;
+		}
+
+		@Override
+		protected void compute() {
+			results.add(scan(jar, artifact, template));
+		}
+	}
+
+	/**
+	 * Get the artifact the JAR is the main artifact of, based on the repository
+	 * layout {@code group/artifactId/version/artifactId-version.jar}.
+	 * 
+	 * @param repository The root of the repository.
+	 * @param jar        The JAR.
+	 * @param filter     The artifact filter.
+	 * @return The artifact, as {@code groupId:artifactId:version}, or
+	 *         {@code null} if not a main artifact or not accepted by the filter.
+	 */
+	static String getArtifact(Path repository, Path jar, ArtifactFilter filter) {
+		Path versionDir = jar.getParent();
+		Path artifactDir = versionDir == null ? null : versionDir.getParent();
+		Path groupDir = artifactDir == null ? null : artifactDir.getParent();
+		if (groupDir == null || !groupDir.startsWith(repository) || groupDir.equals(repository)) {
+			return null;
+		}
+		String version = versionDir.getFileName().toString();
+		String artifactId = artifactDir.getFileName().toString();
+		if (!jar.getFileName().toString().equals(artifactId + "-" + version + ".jar")) {
+			return null;
+		}
+		StringBuilder groupId = new StringBuilder();
+		for (Path part : repository.relativize(groupDir)) {
+			if (groupId.length() > 0) {
+				groupId.append('.');
+			}
+			groupId.append(part.toString());
+		}
+		if (!filter.accept(groupId.toString(), artifactId)) {
+			return null;
+		}
+		return groupId + ":" + artifactId + ":" + version;
+	}
+
+	/**
+	 * Scan the JAR, reading only the central directory and the manifest.
+	 * 
+	 * @param jar      The JAR.
+	 * @param artifact The artifact, as {@code groupId:artifactId:version}.
+	 * @param template The template manifest.
+	 * @return The result.
+	 */
+	static Result scan(Path jar, String artifact, Manifest template) {
+		Result result = new Result(jar, artifact);
+		try (JarFile jarFile = new JarFile(jar.toFile(), false)) {
+			Manifest manifest = jarFile.getManifest();
+			if (manifest == null) {
+				result.status = Status.NO_MANIFEST;
+				return result;
+			}
+			// Same test as the package goal uses to skip signed JARs.
+			if (!manifest.getEntries().isEmpty()) {
+				result.status = Status.SIGNED;
+				return result;
+			}
+			Attributes actual = manifest.getMainAttributes();
+			for (Map.Entry<Object, Object> e : template.getMainAttributes().entrySet()) {
+				if (Attributes.Name.MANIFEST_VERSION.equals(e.getKey())) {
+					continue;
+				}
+				String value = actual.getValue((Attributes.Name) e.getKey());
+				String expected = (String) e.getValue();
+				if (value == null) {
+					result.missing.add(e.getKey().toString());
+				} else if (!expected.equals("*") && !expected.equals(value)) {
+					result.mismatched.put(e.getKey().toString(), value);
+				}
+			}
+			if (!result.mismatched.isEmpty()) {
+				result.status = Status.MISMATCH;
+			} else if (!result.missing.isEmpty()) {
+				result.status = Status.MISSING;
+			}
+		} catch (IOException | SecurityException e) {
+			result.status = Status.ERROR;
+			result.error = e.getMessage() == null ? e.toString() : e.getMessage();
+		}
+		return result;
+	}
+
+	/**
+	 * Format the results as JSON.
+	 * 
+	 * @param results The results.
+	 * @return The report.
+	 */
+	private String toJson(List<Result> results) {
+		String nl = System.lineSeparator();
+		StringBuilder sb = new StringBuilder();
+		sb.append("{").append(nl);
+		sb.append("  \"repository\": ").append(Report.quoteJson(localRepository.toString())).append(",").append(nl);
+		sb.append("  \"template\": ").append(Report.quoteJson(manifestFile.toString())).append(",").append(nl);
+		sb.append("  \"jars\": [");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			sb.append(i == 0 ? "" : ",").append(nl).append("    {").append(nl);
+			sb.append("      \"path\": ").append(Report.quoteJson(r.path.toString())).append(",").append(nl);
+			sb.append("      \"artifact\": ").append(Report.quoteJson(r.artifact)).append(",").append(nl);
+			sb.append("      \"status\": ").append(Report.quoteJson(r.status.toString())).append(",").append(nl);
+			sb.append("      \"missing\": [");
+			for (int j = 0; j < r.missing.size(); j++) {
+				sb.append(j == 0 ? "" : ", ").append(Report.quoteJson(r.missing.get(j)));
+			}
+			sb.append("],").append(nl);
+			sb.append("      \"mismatched\": {");
+			int j = 0;
+			for (Map.Entry<String, String> e : r.mismatched.entrySet()) {
+				sb.append(j++ == 0 ? "" : ", ").append(Report.quoteJson(e.getKey())).append(": ")
+						.append(Report.quoteJson(e.getValue()));
+			}
+			sb.append("},").append(nl);
+			sb.append("      \"error\": ").append(Report.quoteJson(r.error)).append(nl);
+			sb.append("    }");
+		}
+		sb.append(nl).append("  ]").append(nl).append("}").append(nl);
+		return sb.toString();
+	}
+
+	/**
+	 * Format the results as CSV, with a header row. Multiple missing or
+	 * mismatched attributes are separated by {@code ;}.
+	 * 
+	 * @param results The results.
+	 * @return The report.
+	 */
+	private String toCsv(List<Result> results) {
+		String nl = "\r\n";
+		StringBuilder sb = new StringBuilder();
+		sb.append("path,artifact,status,missing,mismatched,error").append(nl);
+		for (Result r : results) {
+			StringBuilder mismatched = new StringBuilder();
+			for (Map.Entry<String, String> e : r.mismatched.entrySet()) {
+				if (mismatched.length() > 0) {
+					mismatched.append(';');
+				}
+				mismatched.append(e.getKey()).append('=').append(e.getValue());
+			}
+			sb.append(Report.quoteCsv(r.path.toString())).append(',');
+			sb.append(Report.quoteCsv(r.artifact)).append(',');
+			sb.append(Report.quoteCsv(r.status.toString())).append(',');
+			sb.append(Report.quoteCsv(String.join(";", r.missing))).append(',');
+			sb.append(Report.quoteCsv(mismatched.toString())).append(',');
+			sb.append(Report.quoteCsv(r.error)).append(nl);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the supplemental manifest merged by the generated {@code artifacts}
+	 * configuration, being the template without attributes whose value is
+	 * {@code *}.
+	 * 
+	 * @param template The template manifest.
+	 * @return The supplemental manifest.
+	 */
+	static Manifest getSupplement(Manifest template) {
+		Manifest supplement = new Manifest();
+		Attributes attributes = supplement.getMainAttributes();
+		for (Map.Entry<Object, Object> e : template.getMainAttributes().entrySet()) {
+			if (!"*".equals(e.getValue())) {
+				attributes.put(e.getKey(), e.getValue());
+			}
+		}
+		if (!attributes.containsKey(Attributes.Name.MANIFEST_VERSION)) {
+			attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		}
+		return supplement;
+	}
+
+	/**
+	 * Format the {@code artifacts} configuration of the {@code package} goal for
+	 * all JARs missing or differing from the template, that merging the
+	 * supplemental manifest would update.
+	 * 
+	 * @param results    The results.
+	 * @param supplement The supplemental manifest.
+	 * @return The configuration.
+	 */
+	private String toArtifacts(List<Result> results, Manifest supplement) {
+		String nl = System.lineSeparator();
+		StringBuilder sb = new StringBuilder();
+		sb.append("<artifacts>").append(nl);
+		for (Result r : results) {
+			if (r.status == Status.MISMATCH || (r.status == Status.MISSING && r.missing.stream()
+					.anyMatch(name -> supplement.getMainAttributes().getValue(name) != null))) {
+				sb.append("  <artifact>").append(nl);
+				sb.append("    <artifact>").append(escapeXml(r.artifact)).append("</artifact>").append(nl);
+				sb.append("    <manifestFile>").append(escapeXml(getSupplementFile().toAbsolutePath().toString()))
+						.append("</manifestFile>").append(nl);
+				sb.append("    <mode>merge</mode>").append(nl);
+				sb.append("  </artifact>").append(nl);
+			}
+		}
+		sb.append("</artifacts>").append(nl);
+		return sb.toString();
+	}
+
+	/**
+	 * Escape the value for use in XML content.
+	 * 
+	 * @param value The value.
+	 * @return The escaped value.
+	 */
+	private static String escapeXml(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	/**
+	 * Get the location of the report.
+	 * 
+	 * @return The report file.
+	 */
+	Path getReportFile() {
+		return outputDirectory.toPath().resolve("manifest-scan-report." + (report.equalsIgnoreCase("csv") ? "csv" : "json"));
+	}
+
+	/**
+	 * Get the location of the generated {@code artifacts} configuration.
+	 * 
+	 * @return The configuration file.
+	 */
+	Path getArtifactsFile() {
+		return outputDirectory.toPath().resolve("manifest-scan-artifacts.xml");
+	}
+
+	/**
+	 * Get the location of the supplemental manifest used by the generated
+	 * {@code artifacts} configuration.
+	 * 
+	 * @return The manifest file.
+	 */
+	Path getSupplementFile() {
+		return outputDirectory.toPath().resolve("manifest-scan-template.mf");
+	}
+
+	/**
+	 * Set the local maven repository location
+	 * 
+	 * @param localRepository The local maven repository location
+	 */
+	void setLocalRepository(File localRepository) {
+		this.localRepository = localRepository;
+	}
+
+	/**
+	 * Set the template manifest
+	 * 
+	 * @param manifestFile The template manifest.
+	 */
+	void setManifestFile(File manifestFile) {
+		this.manifestFile = manifestFile;
+	}
+
+	/**
+	 * Set the output/target directory
+	 * 
+	 * @param outputDirectory The output directory to use.
+	 */
+	void setOutputDirectory(File outputDirectory) {
+		this.outputDirectory = outputDirectory;
+	}
+
+	/**
+	 * Set the artifacts to scan
+	 * 
+	 * @param includes The {@code groupId[:artifactId]} patterns to scan.
+	 */
+	void setIncludes(List<String> includes) {
+		this.includes = includes;
+	}
+
+	/**
+	 * Set the artifacts to skip
+	 * 
+	 * @param excludes The {@code groupId[:artifactId]} patterns to skip.
+	 */
+	void setExcludes(List<String> excludes) {
+		this.excludes = excludes;
+	}
+
+	/**
+	 * Set the number of directories and JARs to scan concurrently
+	 * 
+	 * @param threads The number of threads, or 0 or less for the number of
+	 *                processors.
+	 */
+	void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Set the format of the report
+	 * 
+	 * @param report The format, either {@code json} or {@code csv}.
+	 */
+	void setReport(String report) {
+		this.report = report;
+	}
+
+	/**
+	 * Set if the {@code artifacts} configuration is generated
+	 * 
+	 * @param generateArtifacts TRUE to generate the configuration.
+	 */
+	void setGenerateArtifacts(boolean generateArtifacts) {
+		this.generateArtifacts = generateArtifacts;
+	}
+}
@@ -0,0 +1,1062 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.ZipException;
+
+/**
+ * Read only view of a ZIP archive at the record level.
+ * <p>
+ * Unlike {@link java.util.zip.ZipFile}, this exposes the raw central directory
+ * records and the location of each entry's (still compressed) data, allowing
+ * entries to be copied into another archive without being inflated and
+ * deflated again.
+ * <p>
+ * The archive is memory mapped (or just the central directory, for archives
+ * larger than 2GB), so parsing the central directory and local headers does
+ * not require a read per entry. Entries are parsed from the central directory
+ * as they are iterated rather than held, so memory use does not grow with the
+ * number of entries. The mapping is released when the archive is closed,
+ * rather than when garbage collected, so the file can be replaced straight
+ * away (which fails on Windows while mapped).
+ * <p>
+ * ZIP64 archives are supported, (entries, offsets and the central directory
+ * beyond 4GB, and more than 65535 entries).
+ * <p>
+ * An archive may also be read from a buffer, such as a JAR file stored within
+ * another archive, without being written to a file.
+ */
+final class ZipArchive implements Closeable {
+
+	/**
+	 * Local file header signature.
+	 */
+	static final int LOCSIG = 0x04034b50;
+
+	/**
+	 * Central directory file header signature.
+	 */
+	static final int CENSIG = 0x02014b50;
+
+	/**
+	 * End of central directory signature.
+	 */
+	static final int ENDSIG = 0x06054b50;
+
+	/**
+	 * ZIP64 end of central directory locator signature.
+	 */
+	static final int ZIP64_LOCSIG = 0x07064b50;
+
+	/**
+	 * ZIP64 end of central directory record signature.
+	 */
+	static final int ZIP64_ENDSIG = 0x06064b50;
+
+	/**
+	 * Size of the fixed portion of a local file header.
+	 */
+	static final int LOCHDR = 30;
+
+	/**
+	 * Size of the fixed portion of a central directory file header.
+	 */
+	static final int CENHDR = 46;
+
+	/**
+	 * Size of the fixed portion of the end of central directory record.
+	 */
+	static final int ENDHDR = 22;
+
+	/**
+	 * Size of the ZIP64 end of central directory locator.
+	 */
+	static final int ZIP64_LOCHDR = 20;
+
+	/**
+	 * Size of the fixed portion of the ZIP64 end of central directory record.
+	 */
+	static final int ZIP64_ENDHDR = 56;
+
+	/**
+	 * Header ID of the ZIP64 extended information extra field.
+	 */
+	static final int ZIP64_EXTRA = 0x0001;
+
+	/**
+	 * Value of a size or offset held in the ZIP64 extra field instead.
+	 */
+	static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	/**
+	 * Value of an entry count held in the ZIP64 end of central directory record
+	 * instead.
+	 */
+	static final int ZIP64_MAGICCOUNT = 0xFFFF;
+
+	/**
+	 * General purpose flag indicating a trailing data descriptor.
+	 */
+	static final int FLAG_DATA_DESCRIPTOR = 0x08;
+
+	/**
+	 * General purpose flag indicating the name and comment are UTF-8 (EFS).
+	 */
+	static final int FLAG_UTF8 = 0x800;
+
+	/**
+	 * The charset of names without the UTF-8 flag that are not valid UTF-8, being
+	 * IBM code page 437 as per the ZIP specification, or the platform charset if
+	 * not available.
+	 */
+	private static final Charset CP437 = Charset.isSupported("IBM437") ? Charset.forName("IBM437")
+			: Charset.defaultCharset();
+
+	/**
+	 * Maximum length of the archive comment.
+	 */
+	private static final int MAX_COMMENT = 0xFFFF;
+
+	/**
+	 * The local extra field of entries without one.
+	 */
+	private static final byte[] NO_EXTRA = new byte[0];
+
+	/**
+	 * Releases a mapped buffer, (or does nothing if not possible on this JVM).
+	 */
+	private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+	/**
+	 * The underlying channel, or {@code null} if the archive is held in memory.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The memory mapped archive, or {@code null} if too large to map.
+	 */
+	private final ByteBuffer mapped;
+
+	/**
+	 * The central directory.
+	 */
+	private final ByteBuffer cen;
+
+	/**
+	 * The number of entries.
+	 */
+	private final int count;
+
+	/**
+	 * The raw archive comment.
+	 */
+	private final byte[] comment;
+
+	/**
+	 * Offset of the central directory.
+	 */
+	private final long centralDirectoryOffset;
+
+	/**
+	 * Size of the central directory.
+	 */
+	private final long centralDirectorySize;
+
+	/**
+	 * Create a new archive view.
+	 *
+	 * @param channel                The underlying channel, may be {@code null}.
+	 * @param mapped                 The memory mapped archive, may be
+	 *                               {@code null}.
+	 * @param cen                    The central directory.
+	 * @param count                  The number of entries.
+	 * @param comment                The raw archive comment.
+	 * @param centralDirectoryOffset The offset of the central directory.
+	 * @param centralDirectorySize   The size of the central directory.
+	 */
+	private ZipArchive(FileChannel channel, ByteBuffer mapped, ByteBuffer cen, int count, byte[] comment,
+			long centralDirectoryOffset, long centralDirectorySize) {
+		this.channel = channel;
+		this.mapped = mapped;
+		this.cen = cen;
+		this.count = count;
+		this.comment = comment;
+		this.centralDirectoryOffset = centralDirectoryOffset;
+		this.centralDirectorySize = centralDirectorySize;
+	}
+
+	/**
+	 * Open the given archive for raw access.
+	 * <p>
+	 * Only simple single disk archives are supported. Archives with data
+	 * prepended before the first entry and other unusual layouts are reported as
+	 * unsupported, so that the caller can fall back to a
+	 * {@link java.util.zip.ZipFile} based approach.
+	 *
+	 * @param path The archive to open.
+	 * @return The archive, or {@code null} if the archive layout is not supported.
+	 * @throws IOException Reading the archive failed.
+	 */
+	static ZipArchive open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			ByteBuffer mapped = null;
+			if (size <= Integer.MAX_VALUE) {
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			try {
+				ZipArchive archive = read(channel, mapped, size);
+				if (archive == null) {
+					unmap(mapped);
+					channel.close();
+				}
+				return archive;
+			} catch (IOException | RuntimeException e) {
+				unmap(mapped);
+				throw e;
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open the archive held in the buffer, (eg a JAR file nested in another
+	 * archive). The archive has no underlying channel.
+	 *
+	 * @param data The archive, from the position to the limit of the buffer. The
+	 *             buffer must not be modified while the archive is in use.
+	 * @return The archive, or {@code null} if the archive layout is not supported.
+	 * @throws IOException The buffer does not hold a valid archive.
+	 */
+	static ZipArchive open(ByteBuffer data) throws IOException {
+		ByteBuffer mapped = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+		return read(null, mapped, mapped.capacity());
+	}
+
+	/**
+	 * Read the central directory.
+	 *
+	 * @param channel The channel to read, may be {@code null} if the archive is
+	 *                held in memory.
+	 * @param mapped  The memory mapped archive, or {@code null} if too large to
+	 *                map.
+	 * @param size    The size of the archive.
+	 * @return The archive, or {@code null} if the archive layout is not supported.
+	 * @throws IOException Reading the archive failed.
+	 */
+	private static ZipArchive read(FileChannel channel, ByteBuffer mapped, long size) throws IOException {
+		if (size < ENDHDR) {
+			throw new ZipException("Not a ZIP archive");
+		}
+		// Locate the end of central directory record, searching backwards over any
+		// archive comment.
+		int tailLength = (int) Math.min(size, ENDHDR + MAX_COMMENT);
+		ByteBuffer tail = region(channel, mapped, size - tailLength, tailLength);
+		int end = -1;
+		for (int i = tailLength - ENDHDR; i >= 0; i--) {
+			if (tail.getInt(i) == ENDSIG && i + ENDHDR + (tail.getShort(i + 20) & 0xFFFF) == tailLength) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			throw new ZipException("End of central directory record not found");
+		}
+		long endOffset = size - tailLength + end;
+		long disk = tail.getShort(end + 4) & 0xFFFF;
+		long cenDisk = tail.getShort(end + 6) & 0xFFFF;
+		long diskEntries = tail.getShort(end + 8) & 0xFFFF;
+		long totalEntries = tail.getShort(end + 10) & 0xFFFF;
+		long cenSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+		long cenOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+		byte[] comment = new byte[tail.getShort(end + 20) & 0xFFFF];
+		tail.position(end + ENDHDR);
+		tail.get(comment);
+
+		// The central directory is followed by the ZIP64 end record (if any) or
+		// the end record.
+		long cenEnd = endOffset;
+		if (endOffset >= ZIP64_LOCHDR
+				&& region(channel, mapped, endOffset - ZIP64_LOCHDR, 4).getInt(0) == ZIP64_LOCSIG) {
+			ByteBuffer locator = region(channel, mapped, endOffset - ZIP64_LOCHDR, ZIP64_LOCHDR);
+			long zip64EndOffset = locator.getLong(8);
+			if (locator.getInt(4) != 0 || locator.getInt(16) > 1 || zip64EndOffset < 0
+					|| zip64EndOffset + ZIP64_ENDHDR > endOffset - ZIP64_LOCHDR) {
+				return null;
+			}
+			ByteBuffer zip64End = region(channel, mapped, zip64EndOffset, ZIP64_ENDHDR);
+			if (zip64End.getInt(0) != ZIP64_ENDSIG) {
+				return null;
+			}
+			disk = zip64End.getInt(16) & 0xFFFFFFFFL;
+			cenDisk = zip64End.getInt(20) & 0xFFFFFFFFL;
+			diskEntries = zip64End.getLong(24);
+			totalEntries = zip64End.getLong(32);
+			cenSize = zip64End.getLong(40);
+			cenOffset = zip64End.getLong(48);
+			cenEnd = zip64EndOffset;
+		} else if (totalEntries == ZIP64_MAGICCOUNT || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) {
+			return null;
+		}
+
+		// Reject layouts we don't handle: multi disk, or data that is not where the
+		// end record says it should be. (eg prefixed archives).
+		if (disk != 0 || cenDisk != 0 || diskEntries != totalEntries) {
+			return null;
+		}
+		if (cenOffset < 0 || cenSize < 0 || cenOffset + cenSize != cenEnd) {
+			return null;
+		}
+		// Nor a central directory too large to map.
+		if (cenSize > Integer.MAX_VALUE || totalEntries > Integer.MAX_VALUE) {
+			return null;
+		}
+
+		ByteBuffer cen;
+		if (mapped != null) {
+			cen = region(channel, mapped, cenOffset, (int) cenSize);
+		} else {
+			cen = channel.map(FileChannel.MapMode.READ_ONLY, cenOffset, cenSize).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		// Validate every record up front, so iterating the entries can't fail.
+		try {
+			int pos = 0;
+			Entry e = new Entry();
+			for (long i = 0; i < totalEntries; i++) {
+				if (pos + CENHDR > cenSize || cen.getInt(pos) != CENSIG || pos + recordLength(cen, pos) > cenSize) {
+					throw new ZipException("Invalid central directory header");
+				}
+				e.parse(cen, pos);
+				if (e.compressedSize < 0 || e.size < 0 || e.localHeaderOffset < 0) {
+					throw new ZipException("Invalid ZIP64 extra field for " + e.getName());
+				}
+				if (e.localHeaderOffset + LOCHDR > cenOffset || e.localHeaderOffset + e.compressedSize > cenOffset) {
+					throw new ZipException("Invalid entry offset for " + e.getName());
+				}
+				pos += recordLength(cen, pos);
+			}
+		} catch (IOException | RuntimeException e) {
+			if (mapped == null) {
+				unmap(cen);
+			}
+			throw e;
+		}
+		return new ZipArchive(channel, mapped, cen, (int) totalEntries, comment, cenOffset, cenSize);
+	}
+
+	/**
+	 * Get the length of the central directory record.
+	 *
+	 * @param cen The central directory.
+	 * @param pos The offset of the record in the central directory.
+	 * @return The length of the record, including the name, extra field and
+	 *         comment.
+	 */
+	private static int recordLength(ByteBuffer cen, int pos) {
+		return CENHDR + (cen.getShort(pos + 28) & 0xFFFF) + (cen.getShort(pos + 30) & 0xFFFF)
+				+ (cen.getShort(pos + 32) & 0xFFFF);
+	}
+
+	/**
+	 * Read the local file header for the given entry, resolving the location of
+	 * the entry data and the local extra field.
+	 * <p>
+	 * For a memory mapped archive the header is read in place, so nothing is
+	 * allocated unless the entry has a local extra field of a different length
+	 * to that of the previous record read into the entry.
+	 *
+	 * @param e The entry.
+	 * @throws IOException Reading the header failed.
+	 */
+	void readLocalHeader(Entry e) throws IOException {
+		ByteBuffer loc;
+		int base;
+		if (mapped != null && e.localHeaderOffset + LOCHDR <= mapped.capacity()) {
+			loc = mapped;
+			base = (int) e.localHeaderOffset;
+		} else {
+			loc = region(channel, mapped, e.localHeaderOffset, LOCHDR);
+			base = 0;
+		}
+		if (loc.getInt(base) != LOCSIG) {
+			throw new ZipException("Invalid local header for " + e.getName());
+		}
+		int nameLength = loc.getShort(base + 26) & 0xFFFF;
+		int extraLength = loc.getShort(base + 28) & 0xFFFF;
+		long extraOffset = e.localHeaderOffset + LOCHDR + nameLength;
+		if (extraLength == 0) {
+			e.localExtra = NO_EXTRA;
+		} else {
+			// Entries often have local extra fields of the same length, (eg extended
+			// timestamps), so the array of a reused entry is reused.
+			if (e.localExtra == null || e.localExtra.length != extraLength) {
+				e.localExtra = new byte[extraLength];
+			}
+			if (mapped != null && extraOffset + extraLength <= mapped.capacity()) {
+				for (int i = 0; i < extraLength; i++) {
+					e.localExtra[i] = mapped.get((int) extraOffset + i);
+				}
+			} else {
+				region(channel, mapped, extraOffset, extraLength).get(e.localExtra);
+			}
+		}
+		e.dataOffset = extraOffset + extraLength;
+		// Sizes in the ZIP64 extra field, (the uncompressed size first).
+		long compressedSize = loc.getInt(base + 18) & 0xFFFFFFFFL;
+		long size = loc.getInt(base + 22) & 0xFFFFFFFFL;
+		int index = 0;
+		if (size == ZIP64_MAGIC) {
+			size = getZip64Value(e.localExtra, 0, extraLength, index++);
+		}
+		if (compressedSize == ZIP64_MAGIC) {
+			compressedSize = getZip64Value(e.localExtra, 0, extraLength, index);
+		}
+		e.localMatches = (e.flags & FLAG_DATA_DESCRIPTOR) == 0 //
+				&& (loc.getShort(base + 6) & 0xFFFF) == e.flags //
+				&& (loc.getShort(base + 8) & 0xFFFF) == e.method //
+				&& (loc.getInt(base + 14) & 0xFFFFFFFFL) == e.crc //
+				&& compressedSize == e.compressedSize //
+				&& size == e.size //
+				&& nameLength == e.nameLength;
+		if (e.dataOffset + e.compressedSize > centralDirectoryOffset) {
+			throw new ZipException("Invalid entry data for " + e.getName());
+		}
+	}
+
+	/**
+	 * Get the compressed data of the entry. The local header must have been read
+	 * first. This method may be called concurrently.
+	 *
+	 * @param e The entry.
+	 * @return A buffer over the compressed data, positioned at 0.
+	 * @throws IOException Reading failed or the entry is too large for a buffer.
+	 */
+	ByteBuffer getData(Entry e) throws IOException {
+		if (e.dataOffset < 0) {
+			throw new IllegalStateException("Local header not read for " + e.getName());
+		}
+		if (e.compressedSize > Integer.MAX_VALUE) {
+			throw new ZipException("Entry too large to buffer: " + e.getName());
+		}
+		return region(channel, mapped, e.dataOffset, (int) e.compressedSize);
+	}
+
+	/**
+	 * Get a region of the archive. This method may be called concurrently.
+	 *
+	 * @param position The starting position.
+	 * @param length   The length of the region.
+	 * @return A little endian buffer over the region, positioned at 0.
+	 * @throws IOException Reading failed or EOF was reached.
+	 */
+	ByteBuffer getRegion(long position, int length) throws IOException {
+		return region(channel, mapped, position, length);
+	}
+
+	/**
+	 * Get a region of the archive, from the memory mapped archive if available,
+	 * otherwise by reading the channel.
+	 *
+	 * @param channel  The channel.
+	 * @param mapped   The memory mapped archive, may be {@code null}.
+	 * @param position The starting position.
+	 * @param length   The length of the region.
+	 * @return A little endian buffer, positioned at 0.
+	 * @throws IOException Reading failed or EOF was reached.
+	 */
+	private static ByteBuffer region(FileChannel channel, ByteBuffer mapped, long position, int length)
+			throws IOException {
+		if (mapped == null) {
+			return readFully(channel, position, length);
+		}
+		if (position + length > mapped.capacity()) {
+			throw new EOFException("Unexpected end of ZIP archive");
+		}
+		ByteBuffer b = mapped.duplicate();
+		b.position((int) position);
+		b.limit((int) position + length);
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Read a region of the channel fully.
+	 *
+	 * @param channel  The channel.
+	 * @param position The starting position.
+	 * @param length   The number of bytes to read.
+	 * @return A little endian buffer, positioned at 0.
+	 * @throws IOException Reading failed or EOF was reached.
+	 */
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of ZIP archive");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Get the underlying channel.
+	 *
+	 * @return The channel, or {@code null} if the archive is held in memory.
+	 */
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Get all entries, in central directory order.
+	 * <p>
+	 * Each iteration parses the records into a single entry, updated in place as
+	 * the iteration advances, so iterating allocates nothing per entry. An entry
+	 * used once the iteration has moved on must be copied first (see
+	 * {@link Entry#copy()}).
+	 *
+	 * @return The entries.
+	 */
+	Iterable<Entry> getEntries() {
+		return getEntries(e -> true);
+	}
+
+	/**
+	 * Get the entries accepted by the filter, in central directory order.
+	 *
+	 * @param filter The entries to include.
+	 * @return The entries.
+	 * @see #getEntries()
+	 */
+	Iterable<Entry> getEntries(Predicate<? super Entry> filter) {
+		return () -> new Iterator<Entry>() {
+
+			/**
+			 * The number of records parsed.
+			 */
+			private int index;
+
+			/**
+			 * The offset of the next record in the central directory.
+			 */
+			private int pos;
+
+			/**
+			 * The entry, updated with each record parsed.
+			 */
+			private final Entry entry = new Entry();
+
+			/**
+			 * The next accepted entry, or {@code null} if not yet found.
+			 */
+			private Entry next;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && index < count) {
+					entry.parse(cen, pos);
+					pos += recordLength(cen, pos);
+					index++;
+					if (filter.test(entry)) {
+						next = entry;
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public Entry next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Entry e = next;
+				next = null;
+				return e;
+			}
+		};
+	}
+
+	/**
+	 * Get the number of entries.
+	 *
+	 * @return The number of entries.
+	 */
+	int getEntryCount() {
+		return count;
+	}
+
+	/**
+	 * Get the raw archive comment.
+	 *
+	 * @return The comment (empty if not set).
+	 */
+	byte[] getComment() {
+		return comment;
+	}
+
+	/**
+	 * Get the offset of the central directory.
+	 *
+	 * @return The offset of the central directory.
+	 */
+	long getCentralDirectoryOffset() {
+		return centralDirectoryOffset;
+	}
+
+	/**
+	 * Get the size of the central directory.
+	 *
+	 * @return The size of the central directory.
+	 */
+	long getCentralDirectorySize() {
+		return centralDirectorySize;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			// Buffers of archives held in memory belong to the caller.
+			unmap(mapped);
+			if (mapped == null) {
+				unmap(cen);
+			}
+		}
+	}
+
+	/**
+	 * Release the mapping of the buffer. The buffer (and any view of it) must
+	 * not be used afterwards.
+	 *
+	 * @param buffer The mapped buffer, may be {@code null}.
+	 */
+	static void unmap(ByteBuffer buffer) {
+		if (buffer != null) {
+			UNMAPPER.accept(buffer);
+		}
+	}
+
+	/**
+	 * Find the means to release a mapped buffer, being
+	 * {@code Unsafe.invokeCleaner()} on Java 9 or later, or the buffer's
+	 * {@code Cleaner} on Java 8.
+	 *
+	 * @return The unmapper, which does nothing if neither is available.
+	 */
+	private static Consumer<ByteBuffer> unmapper() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			return buffer -> {
+				try {
+					invokeCleaner.invoke(unsafe, buffer);
+				} catch (ReflectiveOperationException | RuntimeException e) {
+					// Left to be released when garbage collected.
+				}
+			};
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Not Java 9 or later.
+		}
+		try {
+			Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return buffer -> {
+				try {
+					Object c = cleaner.invoke(buffer);
+					if (c != null) {
+						clean.invoke(c);
+					}
+				} catch (ReflectiveOperationException | RuntimeException e) {
+					// Left to be released when garbage collected.
+				}
+			};
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Not available, so left to be released when garbage collected.
+		}
+		return buffer -> {
+		};
+	}
+
+	/**
+	 * Find an extra field block.
+	 *
+	 * @param extra The extra field.
+	 * @param id    The header ID of the block.
+	 * @return The offset of the first block with the ID, or {@code -1} if none.
+	 */
+	static int findExtra(byte[] extra, int id) {
+		return findExtra(extra, 0, extra.length, id);
+	}
+
+	/**
+	 * Find an extra field block.
+	 *
+	 * @param b      The bytes holding the extra field.
+	 * @param offset The offset of the extra field.
+	 * @param length The length of the extra field.
+	 * @param id     The header ID of the block.
+	 * @return The offset (in the bytes) of the first block with the ID, or
+	 *         {@code -1} if none.
+	 */
+	static int findExtra(byte[] b, int offset, int length, int id) {
+		int pos = offset;
+		int end = offset + length;
+		while (pos + 4 <= end) {
+			if (getShort(b, pos) == id) {
+				return pos;
+			}
+			pos += 4 + getShort(b, pos + 2);
+		}
+		return -1;
+	}
+
+	/**
+	 * Remove all blocks with the header ID from the extra field.
+	 *
+	 * @param extra The extra field.
+	 * @param id    The header ID of the blocks to remove.
+	 * @return The extra field without the blocks, (the given extra field if it
+	 *         has none).
+	 */
+	static byte[] removeExtra(byte[] extra, int id) {
+		if (findExtra(extra, id) < 0) {
+			return extra;
+		}
+		byte[] result = new byte[extra.length];
+		int length = 0;
+		int pos = 0;
+		while (pos + 4 <= extra.length) {
+			int blockLength = Math.min(4 + getShort(extra, pos + 2), extra.length - pos);
+			if (getShort(extra, pos) != id) {
+				System.arraycopy(extra, pos, result, length, blockLength);
+				length += blockLength;
+			}
+			pos += blockLength;
+		}
+		return length == result.length ? result : Arrays.copyOf(result, length);
+	}
+
+	/**
+	 * Get a value from the ZIP64 extended information extra field.
+	 *
+	 * @param b      The bytes holding the extra field.
+	 * @param offset The offset of the extra field.
+	 * @param length The length of the extra field.
+	 * @param index  The index of the value, counting only the values present.
+	 * @return The value, or {@code -1} if not present.
+	 */
+	private static long getZip64Value(byte[] b, int offset, int length, int index) {
+		int pos = findExtra(b, offset, length, ZIP64_EXTRA);
+		if (pos < 0 || getShort(b, pos + 2) < (index + 1) * 8 || pos + 4 + (index + 1) * 8 > offset + length) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = value << 8 | (b[pos + 4 + index * 8 + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Get an unsigned little endian short.
+	 *
+	 * @param b   The bytes.
+	 * @param pos The offset of the short.
+	 * @return The value.
+	 */
+	private static int getShort(byte[] b, int pos) {
+		return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8;
+	}
+
+	/**
+	 * Decode a raw entry name.
+	 *
+	 * @param raw    The bytes holding the raw name.
+	 * @param length The length of the name, (at the start of the bytes).
+	 * @param utf8   TRUE if flagged as UTF-8.
+	 * @return The name.
+	 */
+	static String decode(byte[] raw, int length, boolean utf8) {
+		boolean ascii = true;
+		for (int i = 0; i < length; i++) {
+			if (raw[i] < 0) {
+				ascii = false;
+				break;
+			}
+		}
+		if (ascii || utf8) {
+			return new String(raw, 0, length, StandardCharsets.UTF_8);
+		}
+		try {
+			return StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(raw, 0, length))
+					.toString();
+		} catch (CharacterCodingException e) {
+			return new String(raw, 0, length, CP437);
+		}
+	}
+
+	/**
+	 * A single central directory record. An entry is reused for each record of
+	 * an iteration (see {@link ZipArchive#getEntries()}), so the fields are
+	 * updated in place.
+	 */
+	static final class Entry {
+
+		/**
+		 * Version made by.
+		 */
+		int versionMadeBy;
+
+		/**
+		 * Version needed to extract.
+		 */
+		int versionNeeded;
+
+		/**
+		 * General purpose bit flags.
+		 */
+		int flags;
+
+		/**
+		 * Compression method.
+		 */
+		int method;
+
+		/**
+		 * MS-DOS time and date (time in the lower 16 bits).
+		 */
+		int dosTime;
+
+		/**
+		 * CRC-32 of the uncompressed data.
+		 */
+		long crc;
+
+		/**
+		 * Compressed size.
+		 */
+		long compressedSize;
+
+		/**
+		 * Uncompressed size.
+		 */
+		long size;
+
+		/**
+		 * Internal file attributes.
+		 */
+		int internalAttributes;
+
+		/**
+		 * External file attributes.
+		 */
+		long externalAttributes;
+
+		/**
+		 * Offset of the local file header.
+		 */
+		long localHeaderOffset;
+
+		/**
+		 * The raw entry name, central directory extra field and raw entry comment,
+		 * in that order as in the record, (followed by unused bytes, as the array
+		 * is grown as needed and reused).
+		 */
+		byte[] raw = NO_EXTRA;
+
+		/**
+		 * Length of the raw entry name, (at the start of {@link #raw}).
+		 */
+		int nameLength;
+
+		/**
+		 * Length of the central directory extra field, (following the name).
+		 */
+		int extraLength;
+
+		/**
+		 * Length of the raw entry comment, (following the extra field).
+		 */
+		int commentLength;
+
+		/**
+		 * Local file header extra field, (set by
+		 * {@link ZipArchive#readLocalHeader(Entry)}).
+		 */
+		byte[] localExtra;
+
+		/**
+		 * Offset of the entry data, (set by
+		 * {@link ZipArchive#readLocalHeader(Entry)}).
+		 */
+		long dataOffset = -1;
+
+		/**
+		 * TRUE if the local header agrees with the central directory and there is no
+		 * data descriptor, so the local header and data may be copied as is, (set by
+		 * {@link ZipArchive#readLocalHeader(Entry)}).
+		 */
+		boolean localMatches;
+
+		/**
+		 * Create an entry, to be set by {@link #parse(ByteBuffer, int)}.
+		 */
+		private Entry() {
+		}
+
+		/**
+		 * Parse a central directory record into this entry, replacing the previous
+		 * record.
+		 *
+		 * @param cen The central directory.
+		 * @param pos The offset of the record in the central directory.
+		 */
+		private void parse(ByteBuffer cen, int pos) {
+			versionMadeBy = cen.getShort(pos + 4) & 0xFFFF;
+			versionNeeded = cen.getShort(pos + 6) & 0xFFFF;
+			flags = cen.getShort(pos + 8) & 0xFFFF;
+			method = cen.getShort(pos + 10) & 0xFFFF;
+			dosTime = cen.getInt(pos + 12);
+			crc = cen.getInt(pos + 16) & 0xFFFFFFFFL;
+			compressedSize = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+			size = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+			nameLength = cen.getShort(pos + 28) & 0xFFFF;
+			extraLength = cen.getShort(pos + 30) & 0xFFFF;
+			commentLength = cen.getShort(pos + 32) & 0xFFFF;
+			internalAttributes = cen.getShort(pos + 36) & 0xFFFF;
+			externalAttributes = cen.getInt(pos + 38) & 0xFFFFFFFFL;
+			localHeaderOffset = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+			int length = nameLength + extraLength + commentLength;
+			if (raw.length < length) {
+				raw = new byte[Math.max(length, 256)];
+			}
+			for (int i = 0; i < length; i++) {
+				raw[i] = cen.get(pos + CENHDR + i);
+			}
+			dataOffset = -1;
+			localMatches = false;
+			// Values too large for the record are in the ZIP64 extra field, in this
+			// order. (Missing values are -1, rejected when the archive is opened).
+			int index = 0;
+			if (size == ZIP64_MAGIC) {
+				size = getZip64Value(raw, nameLength, extraLength, index++);
+			}
+			if (compressedSize == ZIP64_MAGIC) {
+				compressedSize = getZip64Value(raw, nameLength, extraLength, index++);
+			}
+			if (localHeaderOffset == ZIP64_MAGIC) {
+				localHeaderOffset = getZip64Value(raw, nameLength, extraLength, index);
+			}
+		}
+
+		/**
+		 * Copy this entry, so it may be used once the iteration that returned it has
+		 * moved on.
+		 *
+		 * @return The copy.
+		 */
+		Entry copy() {
+			Entry e = new Entry();
+			e.versionMadeBy = versionMadeBy;
+			e.versionNeeded = versionNeeded;
+			e.flags = flags;
+			e.method = method;
+			e.dosTime = dosTime;
+			e.crc = crc;
+			e.compressedSize = compressedSize;
+			e.size = size;
+			e.internalAttributes = internalAttributes;
+			e.externalAttributes = externalAttributes;
+			e.localHeaderOffset = localHeaderOffset;
+			e.raw = Arrays.copyOf(raw, nameLength + extraLength + commentLength);
+			e.nameLength = nameLength;
+			e.extraLength = extraLength;
+			e.commentLength = commentLength;
+			e.localExtra = localExtra == null || localExtra.length == 0 ? localExtra : localExtra.clone();
+			e.dataOffset = dataOffset;
+			e.localMatches = localMatches;
+			return e;
+		}
+
+		/**
+		 * Get the entry name, decoded as UTF-8 if flagged as such. Otherwise the
+		 * name is decoded as UTF-8 if valid, as {@link java.util.jar.JarFile} does
+		 * and most tools write, and as code page 437 if not.
+		 *
+		 * @return The entry name.
+		 */
+		String getName() {
+			return decode(raw, nameLength, (flags & FLAG_UTF8) != 0);
+		}
+
+		/**
+		 * Does the entry have the given name, ignoring case. Unlike comparing with
+		 * {@link #getName()}, this does not decode the name.
+		 *
+		 * @param other The name, which must be ASCII.
+		 * @return TRUE if the entry has the name.
+		 */
+		boolean isNamed(String other) {
+			if (nameLength != other.length()) {
+				return false;
+			}
+			for (int i = 0; i < nameLength; i++) {
+				char c = (char) (raw[i] & 0xFF);
+				char o = other.charAt(i);
+				if (c != o && (c >= 0x80 || Character.toUpperCase(c) != Character.toUpperCase(o))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Is this entry a directory.
+		 *
+		 * @return TRUE if the entry is a directory.
+		 */
+		boolean isDirectory() {
+			return nameLength > 0 && raw[nameLength - 1] == '/';
+		}
+	}
+}
@@ -0,0 +1,1088 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Record level ZIP archive writer.
+ * <p>
+ * Entries from a {@link ZipArchive} are transferred verbatim (compressed data,
+ * CRC and sizes), so only entries added via {@link #addEntry(String, byte[])}
+ * are compressed.
+ * <p>
+ * Entry data is moved with {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}, so it does not pass through the
+ * Java heap. Consecutive entries whose local headers can be kept as is are
+ * coalesced into a single transfer. Alternatively, transfers may be made with a
+ * {@link PipelinedCopier}, overlapping the reads and writes. When the checksums
+ * of the output are calculated, the data is copied through a single pooled
+ * buffer instead.
+ * <p>
+ * ZIP64 extensions are written as required, for entries and offsets beyond 4GB
+ * and for more than 65535 entries. Once the central directory being built
+ * exceeds 1MB it is spilled to a temporary file, so memory use does not grow
+ * with the number of entries.
+ * <p>
+ * Stored entries (other than directories) may be aligned, so their data starts
+ * at a multiple of a given boundary, by padding the local header with an extra
+ * field block (as written by Android's zipalign). Entries already aligned at
+ * their new offset are still transferred as is.
+ * <p>
+ * An entry may also be written as its content is produced, (eg a nested JAR
+ * file written by another writer), with the CRC and size written to the local
+ * header once the content is complete.
+ */
+final class ZipArchiveWriter implements Closeable {
+
+	/**
+	 * General purpose flag indicating UTF-8 names.
+	 */
+	private static final int FLAG_UTF8 = 0x0800;
+
+	/**
+	 * Version needed to extract a deflated entry.
+	 */
+	private static final int VERSION_DEFLATED = 20;
+
+	/**
+	 * Version needed to extract stored entries.
+	 */
+	private static final int VERSION_STORED = 10;
+
+	/**
+	 * Version needed to extract entries with ZIP64 extensions.
+	 */
+	private static final int VERSION_ZIP64 = 45;
+
+	/**
+	 * Header ID of the extra field block padding a stored entry to align its
+	 * data, (holding the alignment followed by zeros).
+	 */
+	static final int ALIGNMENT_EXTRA = 0xD935;
+
+	/**
+	 * The largest supported alignment, (so the padding fits in the extra field).
+	 */
+	static final int MAX_ALIGNMENT = 32768;
+
+	/**
+	 * Size of the smallest alignment extra field block.
+	 */
+	private static final int ALIGNMENT_EXTRA_SIZE = 6;
+
+	/**
+	 * Size of the central directory held in memory before being spilled.
+	 */
+	private static final int SPILL_SIZE = 1024 * 1024;
+
+	/**
+	 * General purpose flags describing how an entry is stored, which no longer
+	 * apply once the entry is recompressed (data descriptor and deflate options).
+	 */
+	private static final int FLAGS_COMPRESSION = ZipArchive.FLAG_DATA_DESCRIPTOR | 0x06;
+
+	/**
+	 * Size of the buffer used to copy to a target that is not a file.
+	 */
+	private static final int COPY_BUFFER_SIZE = 65536;
+
+	/**
+	 * The extra field of new entries.
+	 */
+	private static final byte[] NO_EXTRA = new byte[0];
+
+	/**
+	 * The content of an entry, written as it is produced.
+	 */
+	interface Content {
+
+		/**
+		 * Write the content.
+		 *
+		 * @param out The channel to write the content to.
+		 * @throws IOException Writing the content failed.
+		 */
+		void write(WritableByteChannel out) throws IOException;
+	}
+
+	/**
+	 * The output channel, or {@code null} if writing to a channel that is not a
+	 * file.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The channel all content is written to, either the output channel or a tee
+	 * that also updates checksums.
+	 */
+	private final WritableByteChannel target;
+
+	/**
+	 * The central directory records not yet spilled.
+	 */
+	private final Records central = new Records();
+
+	/**
+	 * The spilled central directory records, or {@code null} if none.
+	 */
+	private FileChannel spill;
+
+	/**
+	 * Scratch buffer for headers, grown as needed to hold a local header along
+	 * with its name and extra field.
+	 */
+	private ByteBuffer header = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Source of the pending transfer, or {@code null} if none.
+	 */
+	private FileChannel pendingSource;
+
+	/**
+	 * Start of the pending transfer in the source.
+	 */
+	private long pendingStart;
+
+	/**
+	 * Length of the pending transfer.
+	 */
+	private long pendingLength;
+
+	/**
+	 * Copies long transfers with overlapped reads and writes, or {@code null} to
+	 * always use {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+	 */
+	private PipelinedCopier copier;
+
+	/**
+	 * Buffer used to copy to a target that is not a file, or {@code null} if not
+	 * yet used.
+	 */
+	private ByteBuffer copyBuffer;
+
+	/**
+	 * Number of entries written.
+	 */
+	private long count;
+
+	/**
+	 * Position in the output, excluding any pending transfer.
+	 */
+	private long position;
+
+	/**
+	 * The boundary to align the data of stored entries to, or {@code 0} to not
+	 * align.
+	 */
+	private int alignment;
+
+	/**
+	 * The archive named in entry events.
+	 */
+	private Path eventPath;
+
+	/**
+	 * Emit an event for every n-th entry written, or {@code 0} for none.
+	 */
+	private int eventInterval;
+
+	/**
+	 * The flight recorder event of the next entry, or {@code null} if the entry
+	 * is not sampled or not recording.
+	 */
+	private Object entryEvent;
+
+	/**
+	 * Growable buffer of central directory records.
+	 */
+	private static final class Records extends ByteArrayOutputStream {
+
+		/**
+		 * Create a new buffer.
+		 */
+		Records() {
+			super(8192);
+		}
+
+		/**
+		 * Get the records written, without copying.
+		 *
+		 * @return A buffer over the records.
+		 */
+		ByteBuffer toBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+
+	/**
+	 * The position the writer started at.
+	 */
+	private final long start;
+
+	/**
+	 * Create a new writer, replacing any existing file.
+	 *
+	 * @param path The file to write.
+	 * @throws IOException Creating the file failed.
+	 */
+	ZipArchiveWriter(Path path) throws IOException {
+		this(path, null);
+	}
+
+	/**
+	 * Create a new writer, replacing any existing file, calculating the checksums
+	 * of the file as it is written.
+	 *
+	 * @param path      The file to write.
+	 * @param checksums The checksums to update, or {@code null} if none.
+	 * @throws IOException Creating the file failed.
+	 */
+	ZipArchiveWriter(Path path, Checksums checksums) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		target = checksums == null ? channel : checksums.tee(channel);
+		start = 0;
+	}
+
+	/**
+	 * Create a new writer over a channel that is not a file, (eg the content of
+	 * an entry written by another writer). The channel is not closed by this
+	 * writer.
+	 *
+	 * @param out The channel to write.
+	 */
+	ZipArchiveWriter(WritableByteChannel out) {
+		this(out, 0);
+	}
+
+	/**
+	 * Create a new writer over a channel that is not a file, following the given
+	 * number of bytes already written to the channel, (eg to append to an archive
+	 * written as the content of an entry). The channel is not closed by this
+	 * writer.
+	 *
+	 * @param out      The channel to write.
+	 * @param position The number of bytes already written.
+	 */
+	ZipArchiveWriter(WritableByteChannel out, long position) {
+		channel = null;
+		target = out;
+		start = position;
+		this.position = position;
+	}
+
+	/**
+	 * Create a new writer over an existing file, starting at the given position.
+	 * Any content after the position is discarded when the archive is finished.
+	 *
+	 * @param path     The file to write.
+	 * @param position The position to start writing at.
+	 * @throws IOException Opening the file failed.
+	 */
+	ZipArchiveWriter(Path path, long position) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.position(position);
+		target = channel;
+		start = position;
+		this.position = position;
+	}
+
+	/**
+	 * Set the copier used for transfers long enough to benefit from overlapping
+	 * the reads and writes.
+	 *
+	 * @param copier The copier, or {@code null} to always use
+	 *               {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+	 */
+	void setCopier(PipelinedCopier copier) {
+		this.copier = copier;
+	}
+
+	/**
+	 * Set the boundary to align the data of stored entries to.
+	 *
+	 * @param alignment The alignment in bytes, a power of two, or {@code 0} to
+	 *                  not align.
+	 */
+	void setAlignment(int alignment) {
+		this.alignment = alignment;
+	}
+
+	/**
+	 * Emit a flight recorder event for a sample of the entries written, timing
+	 * the entry from the end of the previous entry. (Transfers coalesced across
+	 * several entries are charged to the entry completing the transfer).
+	 *
+	 * @param path     The archive named in the events.
+	 * @param interval Emit an event for every n-th entry, starting with the
+	 *                 next, or {@code 0} for none.
+	 */
+	void setEntryEvents(Path path, int interval) {
+		eventPath = path;
+		eventInterval = Math.max(0, interval);
+		entryEvent = eventInterval > 0 ? FlightEvents.beginEntry() : null;
+	}
+
+	/**
+	 * Copy an entry from the source archive without inflating it.
+	 * <p>
+	 * Any data descriptor is dropped, as the CRC and sizes are known up front and
+	 * written in the local header.
+	 *
+	 * @param source The source archive.
+	 * @param e      The entry to copy.
+	 * @throws IOException Reading or writing the entry failed.
+	 */
+	void copyEntry(ZipArchive source, ZipArchive.Entry e) throws IOException {
+		source.readLocalHeader(e);
+		long offset = position();
+		int flags = e.flags & ~ZipArchive.FLAG_DATA_DESCRIPTOR;
+		if (e.localMatches && isAligned(e.method, e.raw, e.nameLength, offset + e.dataOffset - e.localHeaderOffset)) {
+			transfer(source, e.localHeaderOffset, e.dataOffset + e.compressedSize - e.localHeaderOffset);
+		} else {
+			writeLocalHeader(e.versionNeeded, flags, e.method, e.dosTime, e.crc, e.compressedSize, e.size, e.raw,
+					e.nameLength, e.localExtra);
+			transfer(source, e.dataOffset, e.compressedSize);
+		}
+		writeCentralHeader(e.versionMadeBy, e.versionNeeded, flags, e.method, e.dosTime, e.crc, e.compressedSize,
+				e.size, e, e.internalAttributes, e.externalAttributes, offset);
+	}
+
+	/**
+	 * Copy a region of the source archive as is, (eg every entry of an archive
+	 * being appended to, to keep the offsets of the entries unchanged).
+	 *
+	 * @param source   The source archive.
+	 * @param position The start of the region.
+	 * @param length   The length of the region.
+	 * @throws IOException Reading or writing failed.
+	 */
+	void copyRegion(ZipArchive source, long position, long length) throws IOException {
+		transfer(source, position, length);
+	}
+
+	/**
+	 * Add a central directory record for an entry that already exists, unchanged,
+	 * in the file being written.
+	 *
+	 * @param e The entry.
+	 * @throws IOException Writing the record failed.
+	 */
+	void keepEntry(ZipArchive.Entry e) throws IOException {
+		writeCentralHeader(e.versionMadeBy, e.versionNeeded, e.flags, e.method, e.dosTime, e.crc, e.compressedSize,
+				e.size, e, e.internalAttributes, e.externalAttributes, e.localHeaderOffset);
+	}
+
+	/**
+	 * Copy an entry from the source archive, replacing the compressed data. The
+	 * CRC and uncompressed size of the entry are unchanged.
+	 *
+	 * @param e      The entry, with the local header already read.
+	 * @param method The new compression method.
+	 * @param data   The entry data, compressed with the new method. All remaining
+	 *               content is written.
+	 * @throws IOException Writing the entry failed.
+	 */
+	void copyEntry(ZipArchive.Entry e, int method, ByteBuffer data) throws IOException {
+		long offset = position();
+		int version = method == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED;
+		int flags = e.flags & ~FLAGS_COMPRESSION;
+		int length = data.remaining();
+		writeLocalHeader(version, flags, method, e.dosTime, e.crc, length, e.size, e.raw, e.nameLength,
+				e.localExtra);
+		write(data);
+		writeCentralHeader(e.versionMadeBy, version, flags, method, e.dosTime, e.crc, length, e.size, e,
+				e.internalAttributes, e.externalAttributes, offset);
+	}
+
+	/**
+	 * Copy an entry from the source archive, replacing the compressed data with
+	 * content compressed with the new method as it is produced. The CRC and
+	 * uncompressed size of the entry are unchanged. The compressed size of a
+	 * deflated entry is written to the local header once the content is complete,
+	 * so the output must be a file without checksums being calculated.
+	 *
+	 * @param e       The entry, with the local header already read, and
+	 *                smaller than 4GB.
+	 * @param method  The new compression method.
+	 * @param content The content of the entry, compressed with the new method.
+	 * @throws IOException Writing the entry failed, the content of a stored
+	 *                     entry does not match its size, or the compressed
+	 *                     content is 4GB or larger.
+	 */
+	void copyEntry(ZipArchive.Entry e, int method, Content content) throws IOException {
+		boolean stored = method == ZipEntry.STORED;
+		if (!stored && (channel == null || target != channel)) {
+			throw new IllegalStateException("Unable to update the local header of " + e.getName());
+		}
+		long offset = position();
+		int version = stored ? VERSION_STORED : VERSION_DEFLATED;
+		int flags = e.flags & ~FLAGS_COMPRESSION;
+		writeLocalHeader(version, flags, method, e.dosTime, e.crc, stored ? e.size : 0, e.size, e.raw, e.nameLength,
+				e.localExtra);
+		long dataOffset = position();
+		content.write(new EntryChannel(false));
+		flush();
+		long length = position - dataOffset;
+		if (stored && length != e.size) {
+			throw new ZipException("Invalid size for " + e.getName());
+		}
+		if (!stored) {
+			if (length >= ZipArchive.ZIP64_MAGIC) {
+				throw new ZipException("Entry too large to deflate: " + e.getName());
+			}
+			header.clear();
+			header.putInt((int) length);
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header, offset + 18 + header.position());
+			}
+		}
+		writeCentralHeader(e.versionMadeBy, version, flags, method, e.dosTime, e.crc, length, e.size, e,
+				e.internalAttributes, e.externalAttributes, offset);
+	}
+
+	/**
+	 * Copy an entry from the source archive, replacing the data with content
+	 * written as it is produced. The entry is stored, and the CRC and sizes are
+	 * written to the local header once the content is complete, so the output
+	 * must be a file without checksums being calculated.
+	 *
+	 * @param e       The entry, with the local header already read.
+	 * @param content The new (uncompressed) content of the entry.
+	 * @throws IOException Writing the entry failed, or the content is 4GB or
+	 *                     larger.
+	 */
+	void copyEntry(ZipArchive.Entry e, Content content) throws IOException {
+		if (channel == null || target != channel) {
+			throw new IllegalStateException("Unable to update the local header of " + e.getName());
+		}
+		long offset = position();
+		int flags = e.flags & ~FLAGS_COMPRESSION;
+		writeLocalHeader(VERSION_STORED, flags, ZipEntry.STORED, e.dosTime, 0, 0, 0, e.raw, e.nameLength,
+				e.localExtra);
+		long dataOffset = position();
+		EntryChannel out = new EntryChannel(true);
+		content.write(out);
+		flush();
+		long length = position - dataOffset;
+		if (length >= ZipArchive.ZIP64_MAGIC) {
+			throw new ZipException("Entry too large to store: " + e.getName());
+		}
+		long crc = out.crc.getValue();
+		header.clear();
+		header.putInt((int) crc);
+		header.putInt((int) length);
+		header.putInt((int) length);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header, offset + 14 + header.position());
+		}
+		writeCentralHeader(e.versionMadeBy, VERSION_STORED, flags, ZipEntry.STORED, e.dosTime, crc, length, length,
+				e, e.internalAttributes, e.externalAttributes, offset);
+	}
+
+	/**
+	 * Map the bytes last written, (eg to read back the content of the entry
+	 * being written).
+	 *
+	 * @param length The number of bytes to map.
+	 * @return The bytes, read only. The caller releases the mapping, (see
+	 *         {@link ZipArchive#unmap(ByteBuffer)}).
+	 * @throws IOException Flushing or mapping the output failed.
+	 */
+	ByteBuffer map(long length) throws IOException {
+		if (channel == null) {
+			throw new IllegalStateException("Unable to read the output");
+		}
+		flush();
+		return channel.map(FileChannel.MapMode.READ_ONLY, position - length, length);
+	}
+
+	/**
+	 * Add a new deflated entry, stamped with the current time.
+	 *
+	 * @param name The entry name.
+	 * @param data The uncompressed entry data.
+	 * @throws IOException Writing the entry failed.
+	 */
+	void addEntry(String name, byte[] data) throws IOException {
+		addEntry(name, data, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Add a new entry, stamped with the current time. The entry is deflated with
+	 * the deflater of the current thread, (see {@link Recompressor#release()}).
+	 *
+	 * @param name  The entry name.
+	 * @param data  The uncompressed entry data.
+	 * @param level The compression level, {@code 0} to store the entry.
+	 * @throws IOException Writing the entry failed.
+	 */
+	void addEntry(String name, byte[] data, int level) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		int method = level == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED;
+		int version = level == 0 ? VERSION_STORED : VERSION_DEFLATED;
+		ByteBuffer compressed = level == 0 ? ByteBuffer.wrap(data) : Recompressor.deflate(ByteBuffer.wrap(data), level);
+		try {
+			byte[] rawName = name.getBytes(StandardCharsets.UTF_8);
+			int dosTime = toDosTime(System.currentTimeMillis());
+			long offset = position();
+			int length = compressed.remaining();
+			writeLocalHeader(version, FLAG_UTF8, method, dosTime, crc.getValue(), length, data.length, rawName,
+					rawName.length, NO_EXTRA);
+			write(compressed);
+			writeCentralHeader(VERSION_DEFLATED, version, FLAG_UTF8, method, dosTime, crc.getValue(), length,
+					data.length, rawName, rawName.length, 0, 0, 0, 0, offset);
+		} finally {
+			if (level != 0) {
+				BufferPool.HEAP.release(compressed);
+			}
+		}
+	}
+
+	/**
+	 * Write the central directory and end record, (preceded by the ZIP64 end
+	 * record and locator if required).
+	 *
+	 * @param comment The raw archive comment.
+	 * @throws IOException Writing failed.
+	 */
+	void finish(byte[] comment) throws IOException {
+		long cenOffset = position();
+		long cenSize = central.size();
+		if (spill != null) {
+			cenSize += spill.size();
+			transfer(spill, 0, spill.size());
+		}
+		write(central.toBuffer());
+		boolean zip64 = count >= ZipArchive.ZIP64_MAGICCOUNT || cenOffset >= ZipArchive.ZIP64_MAGIC
+				|| cenSize >= ZipArchive.ZIP64_MAGIC;
+		ByteBuffer end = ByteBuffer
+				.allocate((zip64 ? ZipArchive.ZIP64_ENDHDR + ZipArchive.ZIP64_LOCHDR : 0) + ZipArchive.ENDHDR
+						+ comment.length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		if (zip64) {
+			long zip64EndOffset = cenOffset + cenSize;
+			end.putInt(ZipArchive.ZIP64_ENDSIG);
+			end.putLong(ZipArchive.ZIP64_ENDHDR - 12);
+			end.putShort((short) VERSION_ZIP64);
+			end.putShort((short) VERSION_ZIP64);
+			end.putInt(0);
+			end.putInt(0);
+			end.putLong(count);
+			end.putLong(count);
+			end.putLong(cenSize);
+			end.putLong(cenOffset);
+			end.putInt(ZipArchive.ZIP64_LOCSIG);
+			end.putInt(0);
+			end.putLong(zip64EndOffset);
+			end.putInt(1);
+		}
+		end.putInt(ZipArchive.ENDSIG);
+		end.putShort((short) 0);
+		end.putShort((short) 0);
+		end.putShort((short) Math.min(count, ZipArchive.ZIP64_MAGICCOUNT));
+		end.putShort((short) Math.min(count, ZipArchive.ZIP64_MAGICCOUNT));
+		end.putInt((int) Math.min(cenSize, ZipArchive.ZIP64_MAGIC));
+		end.putInt((int) Math.min(cenOffset, ZipArchive.ZIP64_MAGIC));
+		end.putShort((short) comment.length);
+		end.put(comment);
+		end.flip();
+		write(end);
+		if (channel != null) {
+			channel.truncate(position);
+		}
+	}
+
+	/**
+	 * Get the number of bytes written by this writer.
+	 *
+	 * @return The number of bytes written, including any pending transfer.
+	 * @throws IOException Reading the position failed.
+	 */
+	long getBytesWritten() throws IOException {
+		return position() - start;
+	}
+
+	@Override
+	public void close() throws IOException {
+		BufferPool.DIRECT.release(copyBuffer);
+		copyBuffer = null;
+		try {
+			if (spill != null) {
+				spill.close();
+			}
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Get the current position in the output, including any pending transfer.
+	 * 
+	 * @return The position.
+	 * @throws IOException Reading the position failed.
+	 */
+	private long position() throws IOException {
+		return position + pendingLength;
+	}
+
+	/**
+	 * Is the data of an entry at the given offset aligned as required.
+	 * 
+	 * @param method     The compression method of the entry.
+	 * @param name       The bytes holding the raw entry name.
+	 * @param nameLength The length of the name, (at the start of the bytes).
+	 * @param dataOffset The offset of the entry data.
+	 * @return TRUE if aligned, or the entry does not require alignment.
+	 */
+	private boolean isAligned(int method, byte[] name, int nameLength, long dataOffset) {
+		return !isAlignable(method, name, nameLength) || dataOffset % alignment == 0;
+	}
+
+	/**
+	 * Does the entry require alignment, (stored entries other than directories,
+	 * which have no data to map).
+	 * 
+	 * @param method     The compression method of the entry.
+	 * @param name       The bytes holding the raw entry name.
+	 * @param nameLength The length of the name, (at the start of the bytes).
+	 * @return TRUE if the entry data is to be aligned.
+	 */
+	private boolean isAlignable(int method, byte[] name, int nameLength) {
+		return alignment > 0 && method == ZipEntry.STORED && (nameLength == 0 || name[nameLength - 1] != '/');
+	}
+
+	/**
+	 * Get the length of the alignment extra field block required to align the
+	 * data of a stored entry.
+	 * 
+	 * @param dataOffset The offset of the entry data without the block.
+	 * @return The length of the block, or {@code 0} if already aligned.
+	 */
+	private int getPadding(long dataOffset) {
+		int padding = (int) ((alignment - dataOffset % alignment) % alignment);
+		while (padding > 0 && padding < ALIGNMENT_EXTRA_SIZE) {
+			padding += alignment;
+		}
+		return padding;
+	}
+
+	/**
+	 * Write a local file header. Sizes beyond 4GB are written to a ZIP64 extra
+	 * field, replacing any existing ZIP64 extra field. The data of stored entries
+	 * is aligned if required, replacing any existing alignment extra field.
+	 * 
+	 * @param versionNeeded  Version needed to extract.
+	 * @param flags          General purpose bit flags.
+	 * @param method         Compression method.
+	 * @param dosTime        MS-DOS time and date.
+	 * @param crc            CRC-32 of the uncompressed data.
+	 * @param compressedSize Compressed size.
+	 * @param size           Uncompressed size.
+	 * @param name           The bytes holding the raw entry name.
+	 * @param nameLength     The length of the name, (at the start of the bytes).
+	 * @param extra          Local extra field.
+	 * @throws IOException Writing failed.
+	 */
+	private void writeLocalHeader(int versionNeeded, int flags, int method, int dosTime, long crc,
+			long compressedSize, long size, byte[] name, int nameLength, byte[] extra) throws IOException {
+		byte[] localExtra = ZipArchive.removeExtra(extra, ZipArchive.ZIP64_EXTRA);
+		boolean zip64 = compressedSize >= ZipArchive.ZIP64_MAGIC || size >= ZipArchive.ZIP64_MAGIC;
+		int padding = 0;
+		if (isAlignable(method, name, nameLength)) {
+			localExtra = ZipArchive.removeExtra(localExtra, ALIGNMENT_EXTRA);
+			padding = getPadding(position() + ZipArchive.LOCHDR + nameLength + localExtra.length + (zip64 ? 20 : 0));
+		}
+		int extraLength = localExtra.length + (zip64 ? 20 : 0) + padding;
+		checkExtra(extraLength, name, nameLength);
+		ensureHeader(ZipArchive.LOCHDR + nameLength + extraLength);
+		header.clear();
+		header.putInt(ZipArchive.LOCSIG);
+		header.putShort((short) (zip64 ? Math.max(versionNeeded, VERSION_ZIP64) : versionNeeded));
+		header.putShort((short) flags);
+		header.putShort((short) method);
+		header.putInt(dosTime);
+		header.putInt((int) crc);
+		header.putInt((int) (zip64 ? ZipArchive.ZIP64_MAGIC : compressedSize));
+		header.putInt((int) (zip64 ? ZipArchive.ZIP64_MAGIC : size));
+		header.putShort((short) nameLength);
+		header.putShort((short) extraLength);
+		header.put(name, 0, nameLength);
+		header.put(localExtra);
+		if (zip64) {
+			header.putShort((short) ZipArchive.ZIP64_EXTRA);
+			header.putShort((short) 16);
+			header.putLong(size);
+			header.putLong(compressedSize);
+		}
+		if (padding > 0) {
+			header.putShort((short) ALIGNMENT_EXTRA);
+			header.putShort((short) (padding - 4));
+			header.putShort((short) alignment);
+			for (int i = ALIGNMENT_EXTRA_SIZE; i < padding; i++) {
+				header.put((byte) 0);
+			}
+		}
+		header.flip();
+		write(header);
+	}
+
+	/**
+	 * Append a central directory header. Sizes and the offset beyond 4GB are
+	 * written to a ZIP64 extra field, replacing any existing ZIP64 extra field.
+	 * 
+	 * @param versionMadeBy      Version made by.
+	 * @param versionNeeded      Version needed to extract.
+	 * @param flags              General purpose bit flags.
+	 * @param method             Compression method.
+	 * @param dosTime            MS-DOS time and date.
+	 * @param crc                CRC-32 of the uncompressed data.
+	 * @param compressedSize     Compressed size.
+	 * @param size               Uncompressed size.
+	 * @param e                  The entry, holding the raw name, central extra
+	 *                           field and comment.
+	 * @param internalAttributes Internal file attributes.
+	 * @param externalAttributes External file attributes.
+	 * @param offset             Offset of the local header.
+	 * @throws IOException Writing failed.
+	 */
+	private void writeCentralHeader(int versionMadeBy, int versionNeeded, int flags, int method, int dosTime,
+			long crc, long compressedSize, long size, ZipArchive.Entry e, int internalAttributes,
+			long externalAttributes, long offset) throws IOException {
+		writeCentralHeader(versionMadeBy, versionNeeded, flags, method, dosTime, crc, compressedSize, size, e.raw,
+				e.nameLength, e.extraLength, e.commentLength, internalAttributes, externalAttributes, offset);
+	}
+
+	/**
+	 * Append a central directory header. Sizes and the offset beyond 4GB are
+	 * written to a ZIP64 extra field, replacing any existing ZIP64 extra field.
+	 * 
+	 * @param versionMadeBy      Version made by.
+	 * @param versionNeeded      Version needed to extract.
+	 * @param flags              General purpose bit flags.
+	 * @param method             Compression method.
+	 * @param dosTime            MS-DOS time and date.
+	 * @param crc                CRC-32 of the uncompressed data.
+	 * @param compressedSize     Compressed size.
+	 * @param size               Uncompressed size.
+	 * @param raw                The raw entry name, central extra field and raw
+	 *                           entry comment, in that order.
+	 * @param nameLength         The length of the name.
+	 * @param extraLength        The length of the extra field.
+	 * @param commentLength      The length of the comment.
+	 * @param internalAttributes Internal file attributes.
+	 * @param externalAttributes External file attributes.
+	 * @param offset             Offset of the local header.
+	 * @throws IOException Writing failed.
+	 */
+	private void writeCentralHeader(int versionMadeBy, int versionNeeded, int flags, int method, int dosTime,
+			long crc, long compressedSize, long size, byte[] raw, int nameLength, int extraLength, int commentLength,
+			int internalAttributes, long externalAttributes, long offset) throws IOException {
+		// The existing extra field is written as is, unless it has a ZIP64 block.
+		byte[] centralExtra = null;
+		int centralExtraLength = extraLength;
+		if (ZipArchive.findExtra(raw, nameLength, extraLength, ZipArchive.ZIP64_EXTRA) >= 0) {
+			centralExtra = ZipArchive.removeExtra(Arrays.copyOfRange(raw, nameLength, nameLength + extraLength),
+					ZipArchive.ZIP64_EXTRA);
+			centralExtraLength = centralExtra.length;
+		}
+		boolean zip64Size = size >= ZipArchive.ZIP64_MAGIC;
+		boolean zip64CompressedSize = compressedSize >= ZipArchive.ZIP64_MAGIC;
+		boolean zip64Offset = offset >= ZipArchive.ZIP64_MAGIC;
+		int zip64Length = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+		int newExtraLength = centralExtraLength + (zip64Length > 0 ? 4 + zip64Length : 0);
+		checkExtra(newExtraLength, raw, nameLength);
+		ensureHeader(ZipArchive.CENHDR + nameLength + newExtraLength + commentLength);
+		header.clear();
+		header.putInt(ZipArchive.CENSIG);
+		header.putShort((short) versionMadeBy);
+		header.putShort((short) (zip64Length > 0 ? Math.max(versionNeeded, VERSION_ZIP64) : versionNeeded));
+		header.putShort((short) flags);
+		header.putShort((short) method);
+		header.putInt(dosTime);
+		header.putInt((int) crc);
+		header.putInt((int) (zip64CompressedSize ? ZipArchive.ZIP64_MAGIC : compressedSize));
+		header.putInt((int) (zip64Size ? ZipArchive.ZIP64_MAGIC : size));
+		header.putShort((short) nameLength);
+		header.putShort((short) newExtraLength);
+		header.putShort((short) commentLength);
+		header.putShort((short) 0);
+		header.putShort((short) internalAttributes);
+		header.putInt((int) externalAttributes);
+		header.putInt((int) (zip64Offset ? ZipArchive.ZIP64_MAGIC : offset));
+		header.put(raw, 0, nameLength);
+		if (centralExtra == null) {
+			header.put(raw, nameLength, extraLength);
+		} else {
+			header.put(centralExtra);
+		}
+		if (zip64Length > 0) {
+			header.putShort((short) ZipArchive.ZIP64_EXTRA);
+			header.putShort((short) zip64Length);
+			if (zip64Size) {
+				header.putLong(size);
+			}
+			if (zip64CompressedSize) {
+				header.putLong(compressedSize);
+			}
+			if (zip64Offset) {
+				header.putLong(offset);
+			}
+		}
+		header.put(raw, nameLength + extraLength, commentLength);
+		central.write(header.array(), 0, header.position());
+		count++;
+		if (eventInterval > 0) {
+			if (entryEvent != null) {
+				FlightEvents.commitEntry(entryEvent, eventPath, Arrays.copyOf(raw, nameLength), method,
+						compressedSize, size);
+			}
+			entryEvent = count % eventInterval == 0 ? FlightEvents.beginEntry() : null;
+		}
+		if (central.size() >= SPILL_SIZE) {
+			if (spill == null) {
+				Path file = Files.createTempFile("manifest-update", ".cen");
+				spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.DELETE_ON_CLOSE);
+			}
+			ByteBuffer b = central.toBuffer();
+			while (b.hasRemaining()) {
+				spill.write(b);
+			}
+			central.reset();
+		}
+	}
+
+	/**
+	 * Ensure the header buffer has at least the given capacity.
+	 * 
+	 * @param capacity The capacity required.
+	 */
+	private void ensureHeader(int capacity) {
+		if (header.capacity() < capacity) {
+			header = ByteBuffer.allocate(Math.max(capacity, header.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Ensure the extra field fits in a header.
+	 * 
+	 * @param extraLength The length of the extra field.
+	 * @param name        The bytes holding the raw entry name.
+	 * @param nameLength  The length of the name, (at the start of the bytes).
+	 * @throws ZipException The extra field is too long.
+	 */
+	private static void checkExtra(int extraLength, byte[] name, int nameLength) throws ZipException {
+		if (extraLength > 0xFFFF) {
+			throw new ZipException(
+					"Extra field too long for " + new String(name, 0, nameLength, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Copy a region of the source archive to the output. The copy is deferred
+	 * (as below), unless the archive is held in memory.
+	 * 
+	 * @param source   The source archive.
+	 * @param position The position to start copying from.
+	 * @param length   The number of bytes to copy.
+	 * @throws IOException Reading or writing failed.
+	 */
+	private void transfer(ZipArchive source, long position, long length) throws IOException {
+		if (source.getChannel() != null) {
+			transfer(source.getChannel(), position, length);
+		} else {
+			write(source.getRegion(position, (int) length));
+		}
+	}
+
+	/**
+	 * Copy a region of the source channel to the output. The copy is deferred,
+	 * so that it may be coalesced with the following region if contiguous.
+	 * 
+	 * @param source   The source channel.
+	 * @param position The position to start copying from.
+	 * @param length   The number of bytes to copy.
+	 * @throws IOException Reading or writing failed.
+	 */
+	private void transfer(FileChannel source, long position, long length) throws IOException {
+		if (pendingSource == source && pendingStart + pendingLength == position) {
+			pendingLength += length;
+			return;
+		}
+		flush();
+		pendingSource = source;
+		pendingStart = position;
+		pendingLength = length;
+	}
+
+	/**
+	 * Complete any pending transfer.
+	 * 
+	 * @throws IOException Reading or writing failed.
+	 */
+	private void flush() throws IOException {
+		if (copier != null && pendingLength >= copier.getThreshold()) {
+			copier.copy(pendingSource, pendingStart, pendingLength, target);
+			position += pendingLength;
+			pendingLength = 0;
+		}
+		while (pendingLength > 0) {
+			long len = target == channel ? pendingSource.transferTo(pendingStart, pendingLength, target)
+					: copy(pendingSource, pendingStart, pendingLength);
+			if (len <= 0 && pendingStart >= pendingSource.size()) {
+				throw new EOFException("Unexpected end of ZIP archive");
+			}
+			pendingStart += len;
+			pendingLength -= len;
+			position += len;
+		}
+		pendingSource = null;
+	}
+
+	/**
+	 * Copy (part of) a region of the source channel to the target through the
+	 * copy buffer. This replaces {@link FileChannel#transferTo(long, long,
+	 * WritableByteChannel)} for targets that are not files, where it would
+	 * allocate a new buffer for every call.
+	 * 
+	 * @param source   The source channel.
+	 * @param position The position to start copying from.
+	 * @param length   The maximum number of bytes to copy.
+	 * @return The number of bytes copied, {@code 0} at the end of the source.
+	 * @throws IOException Reading or writing failed.
+	 */
+	private long copy(FileChannel source, long position, long length) throws IOException {
+		if (copyBuffer == null) {
+			copyBuffer = BufferPool.DIRECT.acquire(COPY_BUFFER_SIZE);
+		}
+		copyBuffer.clear();
+		if (length < copyBuffer.capacity()) {
+			copyBuffer.limit((int) length);
+		}
+		int len = source.read(copyBuffer, position);
+		if (len <= 0) {
+			return 0;
+		}
+		copyBuffer.flip();
+		while (copyBuffer.hasRemaining()) {
+			target.write(copyBuffer);
+		}
+		return len;
+	}
+
+	/**
+	 * Write the buffer fully.
+	 * 
+	 * @param b The buffer to write.
+	 * @throws IOException Writing failed.
+	 */
+	private void write(ByteBuffer b) throws IOException {
+		flush();
+		while (b.hasRemaining()) {
+			position += target.write(b);
+		}
+	}
+
+	/**
+	 * Channel over the data of an entry being written, optionally calculating the
+	 * CRC of the data.
+	 */
+	private final class EntryChannel implements WritableByteChannel {
+
+		/**
+		 * The CRC of the data written, or {@code null} if not calculated.
+		 */
+		final CRC32 crc;
+
+		/**
+		 * FALSE once closed.
+		 */
+		private boolean open = true;
+
+		/**
+		 * Create a new channel.
+		 *
+		 * @param crc TRUE to calculate the CRC of the data written.
+		 */
+		EntryChannel(boolean crc) {
+			this.crc = crc ? new CRC32() : null;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int length = src.remaining();
+			if (crc != null) {
+				int start = src.position();
+				crc.update(src);
+				src.position(start);
+			}
+			ZipArchiveWriter.this.write(src);
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+
+	/**
+	 * Convert a java time to MS-DOS date/time format.
+	 * 
+	 * @param time The time in milliseconds since the epoch.
+	 * @return The MS-DOS date and time.
+	 */
+	static int toDosTime(long time) {
+		LocalDateTime d = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+		if (d.getYear() < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return (d.getYear() - 1980) << 25 | d.getMonthValue() << 21 | d.getDayOfMonth() << 16 | d.getHour() << 11
+				| d.getMinute() << 5 | d.getSecond() >> 1;
+	}
+}
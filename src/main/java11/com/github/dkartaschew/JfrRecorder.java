@@ -0,0 +1,302 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.dkartaschew;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder events of {@link FlightEvents}.
+ * <p>
+ * Compiled for Java 11, as the rest of the plugin is built for Java 8, which has
+ * no {@code jdk.jfr} API, and only loaded by name from {@link FlightEvents}.
+ * Events are only created while a recording has the event enabled, checked on
+ * the cached {@link EventType}, so the cost when not recording is a check per
+ * phase (and per sampled entry), without an allocation.
+ */
+final class JfrRecorder implements FlightEvents.Recorder {
+
+	/**
+	 * The type of the artifact event, checked before creating an event.
+	 */
+	private static final EventType ARTIFACT = EventType.getEventType(ArtifactEvent.class);
+
+	/**
+	 * The type of the phase event, checked before creating an event.
+	 */
+	private static final EventType PHASE = EventType.getEventType(PhaseEvent.class);
+
+	/**
+	 * The type of the entry event, checked before creating an event.
+	 */
+	private static final EventType ENTRY = EventType.getEventType(EntryEvent.class);
+
+	/**
+	 * Begin the event of an artifact.
+	 *
+	 * @return The event, or {@code null} if not enabled.
+	 */
+	@Override
+	public Object beginArtifact() {
+		if (!ARTIFACT.isEnabled()) {
+			return null;
+		}
+		ArtifactEvent event = new ArtifactEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Complete the event of an artifact.
+	 *
+	 * @param event  The event.
+	 * @param record The report record of the artifact.
+	 */
+	@Override
+	public void commitArtifact(Object event, Report.Record record) {
+		ArtifactEvent e = (ArtifactEvent) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.artifact = record.getArtifact();
+			e.path = record.getPath() == null ? null : record.getPath().toString();
+			e.outcome = String.valueOf(record.getOutcome() == null ? Report.Outcome.FAILED : record.getOutcome());
+			e.entries = record.entries;
+			e.bytesRead = record.bytesRead;
+			e.bytesWritten = record.bytesWritten;
+			e.compressedBytes = record.compressedBytes;
+			e.uncompressedBytes = record.uncompressedBytes;
+			e.commit();
+		}
+	}
+
+	/**
+	 * Begin the event of a phase.
+	 *
+	 * @return The event, or {@code null} if not enabled.
+	 */
+	@Override
+	public Object beginPhase() {
+		if (!PHASE.isEnabled()) {
+			return null;
+		}
+		PhaseEvent event = new PhaseEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Complete the event of a phase.
+	 *
+	 * @param event  The event.
+	 * @param record The report record of the artifact.
+	 * @param phase  The phase that completed.
+	 */
+	@Override
+	public void commitPhase(Object event, Report.Record record, Report.Phase phase) {
+		PhaseEvent e = (PhaseEvent) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.artifact = record.getArtifact();
+			e.path = record.getPath() == null ? null : record.getPath().toString();
+			e.phase = phase.name().toLowerCase();
+			e.commit();
+		}
+	}
+
+	/**
+	 * Begin the event of an entry.
+	 *
+	 * @return The event, or {@code null} if not enabled.
+	 */
+	@Override
+	public Object beginEntry() {
+		if (!ENTRY.isEnabled()) {
+			return null;
+		}
+		EntryEvent event = new EntryEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Complete the event of an entry.
+	 *
+	 * @param event          The event.
+	 * @param archive        The archive being written.
+	 * @param name           The raw entry name.
+	 * @param method         The compression method.
+	 * @param compressedSize The compressed size.
+	 * @param size           The uncompressed size.
+	 */
+	@Override
+	public void commitEntry(Object event, Path archive, byte[] name, int method, long compressedSize,
+			long size) {
+		EntryEvent e = (EntryEvent) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.path = archive == null ? null : archive.toString();
+			e.name = new String(name, StandardCharsets.UTF_8);
+			e.method = method;
+			e.compressedSize = compressedSize;
+			e.size = size;
+			e.commit();
+		}
+	}
+
+	/**
+	 * Processing of an artifact.
+	 */
+	@Name("com.github.dkartaschew.manifestupdate.Artifact")
+	@Label("Manifest Update Artifact")
+	@Description("An artifact updated by the manifest-update-maven-plugin")
+	@Category({ "Maven", "Manifest Update" })
+	@StackTrace(false)
+	static final class ArtifactEvent extends Event {
+
+		/**
+		 * The artifact as defined.
+		 */
+		@Label("Artifact")
+		String artifact;
+
+		/**
+		 * The resolved location of the artifact.
+		 */
+		@Label("Path")
+		String path;
+
+		/**
+		 * The outcome.
+		 */
+		@Label("Outcome")
+		String outcome;
+
+		/**
+		 * Number of entries in the output.
+		 */
+		@Label("Entries")
+		long entries;
+
+		/**
+		 * Number of bytes read from the source.
+		 */
+		@Label("Bytes Read")
+		@DataAmount
+		long bytesRead;
+
+		/**
+		 * Number of bytes written to the output.
+		 */
+		@Label("Bytes Written")
+		@DataAmount
+		long bytesWritten;
+
+		/**
+		 * Total compressed size of the source entries.
+		 */
+		@Label("Compressed Bytes")
+		@DataAmount
+		long compressedBytes;
+
+		/**
+		 * Total uncompressed size of the source entries.
+		 */
+		@Label("Uncompressed Bytes")
+		@DataAmount
+		long uncompressedBytes;
+	}
+
+	/**
+	 * A phase of processing an artifact.
+	 */
+	@Name("com.github.dkartaschew.manifestupdate.Phase")
+	@Label("Manifest Update Phase")
+	@Description("A phase of updating an artifact: open, manifest, copy, finish, publish or digest")
+	@Category({ "Maven", "Manifest Update" })
+	@StackTrace(false)
+	static final class PhaseEvent extends Event {
+
+		/**
+		 * The artifact as defined.
+		 */
+		@Label("Artifact")
+		String artifact;
+
+		/**
+		 * The resolved location of the artifact.
+		 */
+		@Label("Path")
+		String path;
+
+		/**
+		 * The phase.
+		 */
+		@Label("Phase")
+		String phase;
+	}
+
+	/**
+	 * Copying of a sampled entry.
+	 */
+	@Name("com.github.dkartaschew.manifestupdate.Entry")
+	@Label("Manifest Update Entry")
+	@Description("A sampled entry written by the manifest-update-maven-plugin")
+	@Category({ "Maven", "Manifest Update" })
+	@StackTrace(false)
+	static final class EntryEvent extends Event {
+
+		/**
+		 * The archive being written.
+		 */
+		@Label("Path")
+		String path;
+
+		/**
+		 * The entry name.
+		 */
+		@Label("Name")
+		String name;
+
+		/**
+		 * The compression method.
+		 */
+		@Label("Method")
+		int method;
+
+		/**
+		 * The compressed size.
+		 */
+		@Label("Compressed Size")
+		@DataAmount
+		long compressedSize;
+
+		/**
+		 * The uncompressed size.
+		 */
+		@Label("Size")
+		@DataAmount
+		long size;
+	}
+}
@@ -0,0 +1,45 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenSession;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+
+/**
+ * Maven sessions for the tests.
+ */
+final class Sessions {
+
+	/**
+	 * No instances.
+	 */
+	private Sessions() {
+	}
+
+	/**
+	 * Create a new session, with no container or projects. Every constructor of
+	 * {@link MavenSession} is deprecated, (sessions are meant to be injected), so
+	 * the warning is suppressed here only.
+	 */
+	@SuppressWarnings("deprecation")
+	static MavenSession create() {
+		return new MavenSession(null, new DefaultRepositorySystemSession(), new DefaultMavenExecutionRequest(),
+				new DefaultMavenExecutionResult());
+	}
+}
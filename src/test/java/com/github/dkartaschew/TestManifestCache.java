@@ -0,0 +1,159 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoFailureException;
+import org.junit.Test;
+
+/**
+ * Supplemental manifest cache tests
+ */
+public class TestManifestCache {
+
+	private final Path TMP = Paths.get(System.getProperty("java.io.tmpdir"));
+
+	private final ManifestCache cache = new ManifestCache();
+
+	@Test
+	public void testDefensiveCopy() throws Throwable {
+		File file = getResource("maven-plugin-api.mf");
+		Manifest first = cache.getManifest(file);
+		first.getMainAttributes().putValue("Built-By", "Modified");
+		first.getEntries().put("extra", new Attributes());
+
+		Manifest second = cache.getManifest(file);
+		assertNotSame(first, second);
+		assertEquals("Overwrite Entry", second.getMainAttributes().getValue("Built-By"));
+		assertNull(second.getAttributes("extra"));
+	}
+
+	@Test
+	public void testReloadWhenChanged() throws Throwable {
+		Path file = Files.createTempFile("manifest-cache", ".mf");
+		try {
+			Files.write(file, "Manifest-Version: 1.0\nBuilt-By: first\n\n".getBytes(StandardCharsets.UTF_8));
+			assertEquals("first", cache.getManifest(file.toFile()).getMainAttributes().getValue("Built-By"));
+
+			Files.write(file, "Manifest-Version: 1.0\nBuilt-By: second\n\n".getBytes(StandardCharsets.UTF_8));
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+			assertEquals("second", cache.getManifest(file.toFile()).getMainAttributes().getValue("Built-By"));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testSessionScope() throws Throwable {
+		MavenSession session = Sessions.create();
+		ManifestCache first = ManifestCache.get(session);
+		assertSame(first, ManifestCache.get(session));
+		// Copies of the session given to each module share the cache.
+		assertSame(first, ManifestCache.get(session.clone()));
+		assertNotSame(first, ManifestCache.get(Sessions.create()));
+		assertNotSame(ManifestCache.get(null), ManifestCache.get(null));
+	}
+
+	@Test
+	public void testEviction() throws Throwable {
+		Path dir = Files.createTempDirectory("manifest-cache");
+		try {
+			for (int i = 0; i <= ManifestCache.MAX_ENTRIES; i++) {
+				Path file = dir.resolve(i + ".mf");
+				Files.write(file, ("Manifest-Version: 1.0\nBuilt-By: " + i + "\n\n").getBytes(StandardCharsets.UTF_8));
+				assertEquals(Integer.toString(i),
+						cache.getManifest(file.toFile()).getMainAttributes().getValue("Built-By"));
+			}
+			assertEquals(ManifestCache.MAX_ENTRIES, cache.size());
+		} finally {
+			try (Stream<Path> files = Files.list(dir)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(dir);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidManifest() throws Throwable {
+		Path file = Files.createTempFile("manifest-cache", ".mf");
+		try {
+			Files.write(file, "Manifest-Version: 1.0\nnot a header\n\n".getBytes(StandardCharsets.UTF_8));
+			cache.getManifest(file.toFile());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testInvalidManifestFailsFast() throws Throwable {
+		Path file = Files.createTempFile("manifest-cache", ".mf");
+		Path outFile = TMP.resolve("maven-plugin-api-3.5.0.jar");
+		Files.deleteIfExists(outFile);
+		try {
+			Files.write(file, "Manifest-Version: 1.0\nnot a header\n\n".getBytes(StandardCharsets.UTF_8));
+
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setOutputDirectory(TMP.toFile());
+
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+
+			ArtifactDefinition invalid = new ArtifactDefinition();
+			invalid.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+			invalid.setManifestFile(file.toFile());
+
+			mojo.setArtifacts(Arrays.asList(def, invalid));
+			try {
+				mojo.execute();
+				fail("Expected failure");
+			} catch (MojoFailureException e) {
+				// expected
+			}
+			assertFalse(Files.exists(outFile));
+		} finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(outFile);
+		}
+	}
+
+	private File getResource(String resource) throws Throwable {
+		return Paths.get(TestManifestCache.class.getClassLoader().getResource(resource).toURI()).toFile();
+	}
+
+}
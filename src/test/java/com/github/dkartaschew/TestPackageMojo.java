@@ -16,20 +16,76 @@
 
 package com.github.dkartaschew;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
 import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.DependencyResolutionRequest;
+import org.apache.maven.project.DependencyResolutionResult;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.ProjectDependenciesResolver;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.graph.DependencyNode;
+import org.eclipse.aether.util.filter.ScopeDependencyFilter;
+import org.junit.Assume;
 import org.junit.Test;
 
+import com.sun.management.ThreadMXBean;
+
 /**
  * Primary unit test
  */
@@ -105,6 +161,864 @@ public class TestPackageMojo {
 		}
 	}
 
+	@Test
+	public void testRawCopyPreservesEntries() throws Throwable {
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(TMP.toFile());
+
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+		def.setManifestFile(getResource("maven-plugin-api.mf"));
+		def.setPublishArtifact(false);
+		def.setMode("merge");
+		mojo.process(def);
+
+		try (JarFile source = new JarFile(def.getJarFile());
+				JarFile jf = new JarFile(TMP.resolve("maven-plugin-api-3.5.0.jar").toFile())) {
+			assertEquals(source.size(), jf.size());
+			Enumeration<JarEntry> entries = source.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry expected = entries.nextElement();
+				if (expected.getName().equals(JarFile.MANIFEST_NAME)) {
+					continue;
+				}
+				JarEntry actual = jf.getJarEntry(expected.getName());
+				assertNotNull(expected.getName(), actual);
+				assertEquals(expected.getMethod(), actual.getMethod());
+				assertEquals(expected.getCrc(), actual.getCrc());
+				assertEquals(expected.getSize(), actual.getSize());
+				assertEquals(expected.getCompressedSize(), actual.getCompressedSize());
+				assertArrayEquals(readFully(source, expected), readFully(jf, actual));
+			}
+		} finally {
+			Files.deleteIfExists(TMP.resolve("maven-plugin-api-3.5.0.jar"));
+		}
+	}
+
+	@Test
+	public void testArchiveUnmappedOnClose() throws Throwable {
+		Path maps = Paths.get("/proc/self/maps");
+		Assume.assumeTrue(Files.isReadable(maps));
+		Path source = Files.createTempFile("unmapped", ".jar");
+		try {
+			Files.copy(getResource("maven-plugin-api-3.5.0.jar").toPath(), source, StandardCopyOption.REPLACE_EXISTING);
+			String name = source.toRealPath().toString();
+			try (ZipArchive archive = ZipArchive.open(source)) {
+				assertNotNull(archive);
+				assertTrue(new String(Files.readAllBytes(maps), StandardCharsets.UTF_8).contains(name));
+			}
+			// Released straight away, rather than once garbage collected.
+			assertFalse(new String(Files.readAllBytes(maps), StandardCharsets.UTF_8).contains(name));
+		} finally {
+			Files.deleteIfExists(source);
+		}
+	}
+
+	@Test
+	public void testEntryNameCharset() throws Throwable {
+		Assume.assumeTrue(Charset.isSupported("IBM437"));
+		Path source = Files.createTempFile("names", ".zip");
+		try {
+			// Names written without the UTF-8 flag, in code page 437.
+			try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(source), Charset.forName("IBM437"))) {
+				for (String name : Arrays.asList("META-INF/MANIFEST.MF", "caf\u00e9.txt")) {
+					out.putNextEntry(new ZipEntry(name));
+					out.closeEntry();
+				}
+			}
+			List<String> names = new ArrayList<>();
+			try (ZipArchive archive = ZipArchive.open(source)) {
+				for (ZipArchive.Entry e : archive.getEntries()) {
+					assertEquals(0, e.flags & ZipArchive.FLAG_UTF8);
+					names.add(e.getName());
+				}
+			}
+			assertEquals(Arrays.asList("META-INF/MANIFEST.MF", "caf\u00e9.txt"), names);
+
+			// And with the UTF-8 flag.
+			try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(source), StandardCharsets.UTF_8)) {
+				out.putNextEntry(new ZipEntry("caf\u00e9.txt"));
+				out.closeEntry();
+			}
+			try (ZipArchive archive = ZipArchive.open(source)) {
+				ZipArchive.Entry e = archive.getEntries().iterator().next();
+				assertEquals(ZipArchive.FLAG_UTF8, e.flags & ZipArchive.FLAG_UTF8);
+				assertEquals("caf\u00e9.txt", e.getName());
+			}
+		} finally {
+			Files.deleteIfExists(source);
+		}
+	}
+
+	@Test
+	public void testManifestFirst() throws Throwable {
+		// Build a JAR with the manifest last.
+		Path source = Files.createTempFile("manifest-last", ".jar");
+		try {
+			try (JarFile original = new JarFile(getResource("maven-plugin-api-3.5.0.jar"));
+					ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(source))) {
+				Enumeration<JarEntry> entries = original.entries();
+				while (entries.hasMoreElements()) {
+					JarEntry je = entries.nextElement();
+					if (!je.getName().startsWith("META-INF/")) {
+						out.putNextEntry(new ZipEntry(je.getName()));
+						out.write(readFully(original, je));
+						out.closeEntry();
+					}
+				}
+				out.putNextEntry(new ZipEntry("META-INF/"));
+				out.closeEntry();
+				out.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+				original.getManifest().write(out);
+				out.closeEntry();
+			}
+			try (JarInputStream in = new JarInputStream(Files.newInputStream(source))) {
+				assertNull(in.getManifest());
+			}
+
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setOutputDirectory(TMP.toFile());
+
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(source.toFile());
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+			def.setMode("merge");
+			mojo.process(def);
+
+			Path outFile = TMP.resolve(source.getFileName());
+			try (JarInputStream in = new JarInputStream(Files.newInputStream(outFile))) {
+				assertNotNull(in.getManifest());
+				assertEquals("3.5.0", in.getManifest().getMainAttributes().getValue("Bundle-Version"));
+				assertEquals("org/", in.getNextJarEntry().getName());
+			} finally {
+				Files.deleteIfExists(outFile);
+			}
+		} finally {
+			Files.deleteIfExists(source);
+		}
+	}
+
+	@Test
+	public void testRecompress() throws Throwable {
+		for (int level : new int[] { 0, 1, 9 }) {
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setOutputDirectory(TMP.toFile());
+
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+			def.setMode("merge");
+			def.setCompressionLevel(level);
+			mojo.process(def);
+
+			int method = level == 0 ? JarEntry.STORED : JarEntry.DEFLATED;
+			try (JarFile source = new JarFile(def.getJarFile());
+					JarFile jf = new JarFile(TMP.resolve("maven-plugin-api-3.5.0.jar").toFile())) {
+				assertEquals(source.size(), jf.size());
+				// Same order (the source already has the manifest first).
+				Enumeration<JarEntry> expectedEntries = source.entries();
+				Enumeration<JarEntry> actualEntries = jf.entries();
+				while (expectedEntries.hasMoreElements()) {
+					JarEntry expected = expectedEntries.nextElement();
+					JarEntry actual = actualEntries.nextElement();
+					assertEquals(expected.getName(), actual.getName());
+					assertEquals(method, actual.getMethod());
+					if (expected.getName().equals(JarFile.MANIFEST_NAME)) {
+						continue;
+					}
+					assertEquals(expected.getCrc(), actual.getCrc());
+					assertEquals(expected.getSize(), actual.getSize());
+					assertEquals(expected.getTime(), actual.getTime());
+					assertArrayEquals(readFully(source, expected), readFully(jf, actual));
+				}
+				assertEquals("3.5.0", jf.getManifest().getMainAttributes().getValue("Bundle-Version"));
+			} finally {
+				Files.deleteIfExists(TMP.resolve("maven-plugin-api-3.5.0.jar"));
+			}
+		}
+	}
+
+	@Test
+	public void testRecompressLargeEntry() throws Throwable {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		Path repo = Files.createTempDirectory("manifest-update-repo");
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path jar = repo.resolve("org/example/large/1.0/large-1.0.jar");
+		Files.createDirectories(jar.getParent());
+		// A sparse entry, (compressing to almost nothing), four times the largest
+		// pooled buffer.
+		int size = 4 * BufferPool.MAX_CAPACITY;
+		byte[] block = new byte[PackageMOJO.BUFFER_SIZE];
+		CRC32 crc = new CRC32();
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+			out.putNextEntry(new ZipEntry("sparse.bin"));
+			for (int i = 0; i < size; i += block.length) {
+				out.write(block);
+				crc.update(block);
+			}
+			out.closeEntry();
+		}
+		try {
+			for (int level : new int[] { 0, 9 }) {
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(outDir.toFile());
+				mojo.setLocalRepository(repo.toFile());
+				mojo.setChecksums(Arrays.asList("SHA-1"));
+
+				ArtifactDefinition def = new ArtifactDefinition();
+				def.setArtifact("org.example:large:1.0");
+				def.setManifestFile(getResource("maven-plugin-api.mf"));
+				def.setCompressionLevel(level);
+				def.setPublishArtifact(true);
+
+				// Streamed by the writer, never held in memory, (compressing on this
+				// thread, so all allocation is counted).
+				Path copy = outDir.resolve("copy.jar");
+				long id = Thread.currentThread().getId();
+				long start = threads.getThreadAllocatedBytes(id);
+				try (ZipArchive archive = ZipArchive.open(jar); ZipArchiveWriter writer = new ZipArchiveWriter(copy)) {
+					new Recompressor(Runnable::run, level, 1).copy(archive, archive.getEntries(), writer);
+					writer.finish(archive.getComment());
+				}
+				long allocated = threads.getThreadAllocatedBytes(id) - start;
+				assertTrue("Level " + level + " allocated " + allocated, allocated < BufferPool.MAX_CAPACITY);
+
+				mojo.process(def);
+
+				try (JarFile jf = new JarFile(jar.toFile())) {
+					JarEntry entry = jf.getJarEntry("sparse.bin");
+					assertEquals(level == 0 ? JarEntry.STORED : JarEntry.DEFLATED, entry.getMethod());
+					assertEquals(size, entry.getSize());
+					assertEquals(crc.getValue(), entry.getCrc());
+					// Reading checks the CRC.
+					try (InputStream in = jf.getInputStream(entry)) {
+						long total = 0;
+						int len;
+						while ((len = in.read(block)) > 0) {
+							total += len;
+						}
+						assertEquals(size, total);
+					}
+				}
+				// Calculated once the output is complete.
+				assertEquals(Checksums.toHex(MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(jar))),
+						new String(Files.readAllBytes(jar.resolveSibling("large-1.0.jar.sha1")),
+								StandardCharsets.UTF_8));
+			}
+		} finally {
+			deleteTree(repo);
+			deleteTree(outDir);
+		}
+	}
+
+	@Test
+	public void testInvalidCompressionLevel() throws Throwable {
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(TMP.toFile());
+
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+		def.setManifestFile(getResource("maven-plugin-api.mf"));
+		def.setCompressionLevel(10);
+		try {
+			mojo.process(def);
+			fail("Expected failure");
+		} catch (IllegalStateException e) {
+			// expected.
+		}
+	}
+
+	@Test
+	public void testAppendStrategy() throws Throwable {
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(TMP.toFile());
+
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+		def.setManifestFile(getResource("maven-plugin-api.mf"));
+		def.setMode("merge");
+		def.setStrategy("append");
+		mojo.process(def);
+
+		Path outFile = TMP.resolve("maven-plugin-api-3.5.0.jar");
+		try (JarFile jf = new JarFile(outFile.toFile())) {
+			Attributes attr = jf.getManifest().getMainAttributes();
+			assertEquals("Overwrite Entry", attr.getValue("Built-By"));
+			assertEquals("3.5.0", attr.getValue("Bundle-Version"));
+			assertEquals("Plexus Archiver", attr.getValue("Archiver-Version"));
+			try (JarFile source = new JarFile(def.getJarFile())) {
+				assertEquals(source.size(), jf.size());
+			}
+			// The original entries are untouched.
+			byte[] original = Files.readAllBytes(def.getJarFile().toPath());
+			byte[] updated = Files.readAllBytes(outFile);
+			try (ZipArchive archive = ZipArchive.open(def.getJarFile().toPath())) {
+				int length = (int) archive.getCentralDirectoryOffset();
+				assertArrayEquals(Arrays.copyOf(original, length), Arrays.copyOf(updated, length));
+			}
+		} finally {
+			Files.deleteIfExists(outFile);
+		}
+	}
+
+	@Test
+	public void testAppendStrategyInPlace() throws Throwable {
+		Path dir = Files.createTempDirectory("manifest-update");
+		Path jar = dir.resolve("maven-plugin-api-3.5.0.jar");
+		Files.copy(getResource("maven-plugin-api-3.5.0.jar").toPath(), jar);
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(dir.toFile());
+
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setJarFile(jar.toFile());
+		def.setManifestFile(getResource("maven-plugin-api.mf"));
+		def.setMode("overwrite");
+		def.setStrategy("append");
+		try {
+			// Twice, to append to an already appended archive. The original file,
+			// including its central directory, is never overwritten.
+			byte[] original = Files.readAllBytes(jar);
+			mojo.process(def);
+			byte[] appended = Files.readAllBytes(jar);
+			assertTrue(appended.length > original.length);
+			assertArrayEquals(original, Arrays.copyOf(appended, original.length));
+			mojo.process(def);
+			byte[] updated = Files.readAllBytes(jar);
+			assertArrayEquals(appended, Arrays.copyOf(updated, appended.length));
+			try (JarFile jf = new JarFile(jar.toFile())) {
+				Attributes attr = jf.getManifest().getMainAttributes();
+				assertEquals("Overwrite Entry", attr.getValue("Built-By"));
+				assertNull(attr.getValue("Archiver-Version"));
+				assertNotNull(jf.getEntry("org/apache/maven/plugin/Mojo.class"));
+			}
+		} finally {
+			Files.deleteIfExists(jar);
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	@Test
+	public void testZip64EntryCount() throws Throwable {
+		Path dir = Files.createTempDirectory("manifest-update");
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path source = dir.resolve("many-entries.jar");
+		try {
+			// More entries than fit the end record, (and a central directory large
+			// enough to be spilled).
+			try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(source)))) {
+				out.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+				out.write("Manifest-Version: 1.0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+				for (int i = 0; i < 66000; i++) {
+					out.putNextEntry(new ZipEntry(String.format("com/example/Entry%05d.class", i)));
+					out.write(Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+					out.closeEntry();
+				}
+			}
+			try (ZipArchive archive = ZipArchive.open(source)) {
+				assertNotNull(archive);
+				assertEquals(66001, archive.getEntryCount());
+			}
+			Map<String, String> expected = entries(source);
+
+			for (String strategy : Arrays.asList("rewrite", "append")) {
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(outDir.toFile());
+				ArtifactDefinition def = new ArtifactDefinition();
+				def.setJarFile(source.toFile());
+				def.setManifestFile(getResource("maven-plugin-api.mf"));
+				def.setMode("merge");
+				def.setStrategy(strategy);
+				mojo.process(def);
+
+				Path outFile = outDir.resolve(source.getFileName());
+				assertUpdated(outFile, expected);
+				try (JarInputStream in = new JarInputStream(new BufferedInputStream(Files.newInputStream(outFile)))) {
+					int count = 0;
+					JarEntry je;
+					while ((je = in.getNextJarEntry()) != null) {
+						// Checks the CRC of each entry.
+						readFully(in);
+						if (!je.getName().equals(JarFile.MANIFEST_NAME)) {
+							count++;
+						}
+					}
+					assertEquals(66000, count);
+				}
+			}
+		} finally {
+			deleteTree(dir);
+			deleteTree(outDir);
+		}
+	}
+
+	@Test
+	public void testZip64LargeArchive() throws Throwable {
+		Path dir = Files.createTempDirectory("manifest-update");
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path source = dir.resolve("large.jar");
+		try {
+			// An entry larger than 4GB, so later entries and the central directory
+			// are beyond 4GB. The file is sparse, so is quick to write.
+			writeLargeJar(source, 0x100000000L + 4096);
+			try (ZipArchive archive = ZipArchive.open(source)) {
+				assertNotNull(archive);
+			}
+			Map<String, String> expected = entries(source);
+
+			// Rewritten, (writing the large entry in full).
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setOutputDirectory(outDir.toFile());
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(source.toFile());
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+			def.setMode("merge");
+			mojo.process(def);
+			Path outFile = outDir.resolve(source.getFileName());
+			assertUpdated(outFile, expected);
+			Files.delete(outFile);
+
+			// Appended in place, only writing the manifest and central directory.
+			mojo.setOutputDirectory(dir.toFile());
+			def.setStrategy("append");
+			mojo.process(def);
+			assertUpdated(source, expected);
+			try (ZipArchive archive = ZipArchive.open(source)) {
+				assertTrue(archive.getCentralDirectoryOffset() > 0xFFFFFFFFL);
+			}
+		} finally {
+			deleteTree(dir);
+			deleteTree(outDir);
+		}
+	}
+
+	/**
+	 * Check the manifest was merged, and all other entries are unchanged.
+	 */
+	private void assertUpdated(Path jar, Map<String, String> expected) throws IOException {
+		try (ZipArchive archive = ZipArchive.open(jar)) {
+			assertNotNull(archive);
+		}
+		try (JarFile jf = new JarFile(jar.toFile())) {
+			Attributes attr = jf.getManifest().getMainAttributes();
+			assertEquals("Overwrite Entry", attr.getValue("Built-By"));
+			assertEquals("3.5.0", attr.getValue("Bundle-Version"));
+		}
+		assertEquals(expected, entries(jar));
+	}
+
+	/**
+	 * Get the method, sizes and CRC (and content of small entries) of all
+	 * entries other than the manifest.
+	 */
+	private Map<String, String> entries(Path jar) throws IOException {
+		Map<String, String> entries = new HashMap<>();
+		try (JarFile jf = new JarFile(jar.toFile())) {
+			Enumeration<JarEntry> e = jf.entries();
+			while (e.hasMoreElements()) {
+				JarEntry je = e.nextElement();
+				if (!je.getName().equals(JarFile.MANIFEST_NAME)) {
+					String content = je.getSize() < 1024 ? new String(readFully(jf, je), StandardCharsets.UTF_8) : "";
+					entries.put(je.getName(), je.getMethod() + "/" + je.getCompressedSize() + "/" + je.getSize() + "/"
+							+ je.getCrc() + "/" + content);
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Write a JAR holding a manifest, a small entry, a large stored entry of
+	 * zeros (left as a hole in the file), then another small entry, with ZIP64
+	 * extensions.
+	 */
+	private void writeLargeJar(Path jar, long size) throws IOException {
+		byte[] zeros = new byte[1 << 20];
+		CRC32 crc = new CRC32();
+		for (long n = size; n > 0; n -= zeros.length) {
+			crc.update(zeros, 0, (int) Math.min(n, zeros.length));
+		}
+		String[] names = { JarFile.MANIFEST_NAME, "a.txt", "large.bin", "z.txt" };
+		byte[][] data = { "Manifest-Version: 1.0\r\nBuilt-By: Large\r\n\r\n".getBytes(StandardCharsets.UTF_8),
+				"first".getBytes(StandardCharsets.UTF_8), null, "last".getBytes(StandardCharsets.UTF_8) };
+		long[] offsets = new long[names.length];
+		long[] crcs = new long[names.length];
+		long[] sizes = new long[names.length];
+		try (FileChannel channel = FileChannel.open(jar, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			for (int i = 0; i < names.length; i++) {
+				byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+				if (data[i] == null) {
+					sizes[i] = size;
+					crcs[i] = crc.getValue();
+				} else {
+					CRC32 c = new CRC32();
+					c.update(data[i], 0, data[i].length);
+					sizes[i] = data[i].length;
+					crcs[i] = c.getValue();
+				}
+				boolean zip64 = sizes[i] >= 0xFFFFFFFFL;
+				offsets[i] = channel.position();
+				ByteBuffer b = ByteBuffer.allocate(30 + name.length + 20).order(ByteOrder.LITTLE_ENDIAN);
+				b.putInt(0x04034b50).putShort((short) (zip64 ? 45 : 10)).putShort((short) 0).putShort((short) 0);
+				b.putInt((1 << 21) | (1 << 16)).putInt((int) crcs[i]);
+				b.putInt(zip64 ? -1 : (int) sizes[i]).putInt(zip64 ? -1 : (int) sizes[i]);
+				b.putShort((short) name.length).putShort((short) (zip64 ? 20 : 0)).put(name);
+				if (zip64) {
+					b.putShort((short) 1).putShort((short) 16).putLong(sizes[i]).putLong(sizes[i]);
+				}
+				b.flip();
+				channel.write(b);
+				if (data[i] == null) {
+					channel.position(channel.position() + size);
+				} else {
+					channel.write(ByteBuffer.wrap(data[i]));
+				}
+			}
+			long cenOffset = channel.position();
+			for (int i = 0; i < names.length; i++) {
+				byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+				boolean zip64Size = sizes[i] >= 0xFFFFFFFFL;
+				boolean zip64Offset = offsets[i] >= 0xFFFFFFFFL;
+				int extra = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+				ByteBuffer b = ByteBuffer.allocate(46 + name.length + 4 + extra).order(ByteOrder.LITTLE_ENDIAN);
+				b.putInt(0x02014b50).putShort((short) 45).putShort((short) (extra > 0 ? 45 : 10));
+				b.putShort((short) 0).putShort((short) 0).putInt((1 << 21) | (1 << 16)).putInt((int) crcs[i]);
+				b.putInt(zip64Size ? -1 : (int) sizes[i]).putInt(zip64Size ? -1 : (int) sizes[i]);
+				b.putShort((short) name.length).putShort((short) (extra > 0 ? 4 + extra : 0));
+				b.putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0);
+				b.putInt(zip64Offset ? -1 : (int) offsets[i]).put(name);
+				if (extra > 0) {
+					b.putShort((short) 1).putShort((short) extra);
+					if (zip64Size) {
+						b.putLong(sizes[i]).putLong(sizes[i]);
+					}
+					if (zip64Offset) {
+						b.putLong(offsets[i]);
+					}
+				}
+				b.flip();
+				channel.write(b);
+			}
+			long cenSize = channel.position() - cenOffset;
+			ByteBuffer end = ByteBuffer.allocate(56 + 20 + 22).order(ByteOrder.LITTLE_ENDIAN);
+			end.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0);
+			end.putLong(names.length).putLong(names.length).putLong(cenSize).putLong(cenOffset);
+			end.putInt(0x07064b50).putInt(0).putLong(cenOffset + cenSize).putInt(1);
+			end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0);
+			end.putShort((short) names.length).putShort((short) names.length);
+			end.putInt((int) cenSize).putInt(-1).putShort((short) 0);
+			end.flip();
+			channel.write(end);
+		}
+	}
+
+	@Test
+	public void testNestedJars() throws Throwable {
+		Path dir = Files.createTempDirectory("manifest-update");
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path source = dir.resolve("app.jar");
+		Path prefixed = dir.resolve("app-prefixed.jar");
+		try {
+			writeFatJar(source);
+			// A launch script before the archive, so the stream copy is used.
+			try (OutputStream out = Files.newOutputStream(prefixed)) {
+				out.write("#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes(StandardCharsets.UTF_8));
+				Files.copy(source, out);
+			}
+			for (Path jar : Arrays.asList(source, prefixed)) {
+				for (int level : new int[] { -1, 9 }) {
+					PackageMOJO mojo = new PackageMOJO();
+					mojo.setOutputDirectory(outDir.toFile());
+					ArtifactDefinition def = new ArtifactDefinition();
+					def.setJarFile(jar.toFile());
+					def.setManifestFile(getResource("maven-plugin-api.mf"));
+					def.setMode("merge");
+					def.setNestedJars("BOOT-INF/lib/*.jar");
+					def.setCompressionLevel(level);
+					mojo.process(def);
+					assertNestedUpdated(outDir.resolve(jar.getFileName()));
+				}
+			}
+
+			// Published, with the checksums calculated after the nested JAR files.
+			Path repo = dir.resolve("repo");
+			Path published = repo.resolve("org/example/app/1.0/app-1.0.jar");
+			Files.createDirectories(published.getParent());
+			Files.copy(source, published);
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setOutputDirectory(outDir.toFile());
+			mojo.setLocalRepository(repo.toFile());
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setArtifact("org.example:app:1.0");
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+			def.setNestedJars("BOOT-INF/**.jar");
+			def.setPublishArtifact(true);
+			mojo.process(def);
+			assertNestedUpdated(published);
+			String sha1 = Checksums.toHex(MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(published)));
+			assertEquals(sha1, new String(Files.readAllBytes(published.resolveSibling("app-1.0.jar.sha1")),
+					StandardCharsets.UTF_8));
+		} finally {
+			deleteTree(dir);
+			deleteTree(outDir);
+		}
+	}
+
+	@Test
+	public void testLargeNestedJars() throws Throwable {
+		Path dir = Files.createTempDirectory("manifest-update");
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path source = dir.resolve("app.jar");
+		Path prefixed = dir.resolve("app-prefixed.jar");
+		Path tmp = Paths.get(System.getProperty("java.io.tmpdir"));
+		try {
+			// A deflated nested JAR file larger than is held in memory, (mostly zeros,
+			// so small once deflated).
+			byte[] large = new byte[NestedJars.MAX_IN_MEMORY + 4096];
+			Manifest manifest = new Manifest();
+			manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (JarOutputStream out = new JarOutputStream(bytes, manifest)) {
+				writeStored(out, "large.bin", large);
+			}
+			byte[] nested = bytes.toByteArray();
+			try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(source), manifest)) {
+				out.putNextEntry(new ZipEntry("BOOT-INF/lib/large.jar"));
+				out.write(nested);
+				out.closeEntry();
+			}
+			try (OutputStream out = Files.newOutputStream(prefixed)) {
+				out.write("#!/bin/sh\n".getBytes(StandardCharsets.UTF_8));
+				Files.copy(source, out);
+			}
+			long temporaries = countTemporaries(tmp);
+			for (Path jar : Arrays.asList(source, prefixed)) {
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(outDir.toFile());
+				ArtifactDefinition def = new ArtifactDefinition();
+				def.setJarFile(jar.toFile());
+				def.setManifestFile(getResource("maven-plugin-api.mf"));
+				def.setNestedJars("BOOT-INF/lib/*.jar");
+				mojo.process(def);
+
+				// Updated in place, with the manifest appended, (so read by the central
+				// directory), or streamed twice when the archive is streamed.
+				Path copy = dir.resolve("large.jar");
+				try (JarFile out = new JarFile(outDir.resolve(jar.getFileName()).toFile())) {
+					JarEntry je = out.getJarEntry("BOOT-INF/lib/large.jar");
+					assertEquals(ZipEntry.STORED, je.getMethod());
+					try (InputStream in = out.getInputStream(je)) {
+						Files.copy(in, copy, StandardCopyOption.REPLACE_EXISTING);
+					}
+				}
+				try (JarFile jf = new JarFile(copy.toFile())) {
+					assertEquals("Overwrite Entry", jf.getManifest().getMainAttributes().getValue("Built-By"));
+					assertEquals(2, jf.size());
+					try (InputStream in = jf.getInputStream(jf.getEntry("large.bin"))) {
+						assertArrayEquals(large, readFully(in));
+					}
+				}
+			}
+			// Nothing is unpacked to temporary files.
+			assertEquals(temporaries, countTemporaries(tmp));
+		} finally {
+			deleteTree(dir);
+			deleteTree(outDir);
+		}
+	}
+
+	/**
+	 * Count the temporary files written by the plugin.
+	 */
+	private long countTemporaries(Path tmp) throws IOException {
+		try (Stream<Path> files = Files.list(tmp)) {
+			return files.filter(p -> p.getFileName().toString().startsWith("manifest-update")).count();
+		}
+	}
+
+	/**
+	 * Write a fat JAR holding a class, a stored and a deflated nested JAR, a stored
+	 * JAR that doesn't match the pattern, and an entry that is not a JAR.
+	 */
+	private void writeFatJar(Path jar) throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "org.example.Launcher");
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+			out.putNextEntry(new ZipEntry("BOOT-INF/classes/App.class"));
+			out.write("App".getBytes(StandardCharsets.UTF_8));
+			out.closeEntry();
+			writeStored(out, "BOOT-INF/lib/a.jar", nestedJar("a"));
+			out.putNextEntry(new ZipEntry("BOOT-INF/lib/b.jar"));
+			out.write(nestedJar("b"));
+			out.closeEntry();
+			writeStored(out, "lib/c.jar", nestedJar("c"));
+			writeStored(out, "BOOT-INF/lib/d.jar", "not a jar".getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Write a stored entry.
+	 */
+	private void writeStored(ZipOutputStream out, String name, byte[] data) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		ZipEntry ze = new ZipEntry(name);
+		ze.setMethod(ZipEntry.STORED);
+		ze.setSize(data.length);
+		ze.setCompressedSize(data.length);
+		ze.setCrc(crc.getValue());
+		out.putNextEntry(ze);
+		out.write(data);
+		out.closeEntry();
+	}
+
+	/**
+	 * Get a JAR with a manifest naming the JAR and a single class.
+	 */
+	private byte[] nestedJar(String name) throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_TITLE, name);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JarOutputStream out = new JarOutputStream(bytes, manifest)) {
+			out.putNextEntry(new ZipEntry("org/example/" + name + ".class"));
+			out.write(name.getBytes(StandardCharsets.UTF_8));
+			out.closeEntry();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Check the matching nested JARs were updated and stored, and everything else
+	 * is unchanged. Reading with JarInputStream checks the CRC of every entry.
+	 */
+	private void assertNestedUpdated(Path jar) throws IOException {
+		Set<String> names = new LinkedHashSet<>();
+		try (JarInputStream in = new JarInputStream(Files.newInputStream(jar))) {
+			assertEquals("org.example.Launcher", in.getManifest().getMainAttributes().getValue("Main-Class"));
+			assertNull(in.getManifest().getMainAttributes().getValue("Built-By"));
+			JarEntry je;
+			while ((je = in.getNextJarEntry()) != null) {
+				names.add(je.getName());
+				byte[] data = readFully(in);
+				if (je.getName().equals("BOOT-INF/lib/d.jar")) {
+					assertEquals("not a jar", new String(data, StandardCharsets.UTF_8));
+				} else if (je.getName().endsWith(".jar")) {
+					String name = je.getName().substring(je.getName().length() - 5, je.getName().length() - 4);
+					boolean nested = je.getName().startsWith("BOOT-INF/");
+					if (nested) {
+						assertEquals(je.getName(), ZipEntry.STORED, je.getMethod());
+					}
+					try (JarInputStream jin = new JarInputStream(new ByteArrayInputStream(data))) {
+						Attributes attr = jin.getManifest().getMainAttributes();
+						assertEquals(name, attr.getValue("Implementation-Title"));
+						assertEquals(nested ? "Overwrite Entry" : null, attr.getValue("Built-By"));
+						JarEntry entry = jin.getNextJarEntry();
+						assertEquals("org/example/" + name + ".class", entry.getName());
+						assertEquals(name, new String(readFully(jin), StandardCharsets.UTF_8));
+						assertNull(jin.getNextJarEntry());
+					}
+				}
+			}
+		}
+		assertEquals(new LinkedHashSet<>(Arrays.asList("BOOT-INF/classes/App.class", "BOOT-INF/lib/a.jar",
+				"BOOT-INF/lib/b.jar", "lib/c.jar", "BOOT-INF/lib/d.jar")), names);
+	}
+
+	@Test
+	public void testAlignment() throws Throwable {
+		Path dir = Files.createTempDirectory("manifest-update");
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path source = dir.resolve("app.jar");
+		try {
+			writeFatJar(source);
+			Map<String, String> expected = entries(source);
+			for (int alignment : new int[] { 16384, 4096 }) {
+				for (int level : new int[] { -1, 0 }) {
+					PackageMOJO mojo = new PackageMOJO();
+					mojo.setOutputDirectory(outDir.toFile());
+					ArtifactDefinition def = new ArtifactDefinition();
+					def.setJarFile(source.toFile());
+					def.setManifestFile(getResource("maven-plugin-api.mf"));
+					def.setStrategy("append");
+					def.setCompressionLevel(level);
+					def.setAlignment(alignment);
+					mojo.process(def);
+					Path jar = outDir.resolve(source.getFileName());
+					assertAligned(jar, alignment);
+					if (level < 0) {
+						assertEquals(expected, entries(jar));
+					}
+				}
+				// Nested JAR files are written before their CRC is known.
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(outDir.toFile());
+				ArtifactDefinition def = new ArtifactDefinition();
+				def.setJarFile(source.toFile());
+				def.setManifestFile(getResource("maven-plugin-api.mf"));
+				def.setNestedJars("BOOT-INF/lib/*.jar");
+				def.setAlignment(alignment);
+				mojo.process(def);
+				assertAligned(outDir.resolve(source.getFileName()), alignment);
+				assertNestedUpdated(outDir.resolve(source.getFileName()));
+			}
+
+			// Realigning an aligned JAR file replaces the existing padding.
+			Path aligned = dir.resolve("aligned.jar");
+			Files.copy(outDir.resolve(source.getFileName()), aligned);
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setOutputDirectory(outDir.toFile());
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(aligned.toFile());
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+			def.setNestedJars("BOOT-INF/lib/*.jar");
+			def.setAlignment(16384);
+			mojo.process(def);
+			assertAligned(outDir.resolve(aligned.getFileName()), 16384);
+			assertNestedUpdated(outDir.resolve(aligned.getFileName()));
+
+			for (int alignment : new int[] { -1, 3, 65536 }) {
+				def.setAlignment(alignment);
+				try {
+					mojo.process(def);
+					fail("Expected failure");
+				} catch (IllegalStateException e) {
+					// expected.
+				}
+			}
+		} finally {
+			deleteTree(dir);
+			deleteTree(outDir);
+		}
+	}
+
+	/**
+	 * Check the data of every stored entry (other than directories) starts at a
+	 * multiple of the alignment, padded by a single alignment extra field.
+	 */
+	private void assertAligned(Path jar, int alignment) throws IOException {
+		int stored = 0;
+		try (ZipArchive archive = ZipArchive.open(jar)) {
+			assertNotNull(archive);
+			for (ZipArchive.Entry e : archive.getEntries()) {
+				if (e.method == ZipEntry.STORED && !e.getName().endsWith("/")) {
+					archive.readLocalHeader(e);
+					assertEquals(e.getName(), 0, e.dataOffset % alignment);
+					assertTrue(e.getName(),
+							e.dataOffset - e.localHeaderOffset < ZipArchive.LOCHDR + e.nameLength + alignment + 6);
+					stored++;
+				}
+			}
+		}
+		assertTrue(stored > 0);
+	}
+
 	@Test
 	public void testSimpleArtifact() throws Throwable {
 		PackageMOJO mojo = new PackageMOJO();
@@ -237,6 +1151,976 @@ public class TestPackageMojo {
 		mojo.process(def);
 	}
 	
+	@Test
+	public void testExecuteAggregatesFailures() throws Throwable {
+		Path repo = Files.createTempDirectory("manifest-update-repo");
+		writeSignedJar(repo.resolve("org/example/signed/1.0/signed-1.0.jar"));
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(TMP.toFile());
+		mojo.setLocalRepository(repo.toFile());
+		mojo.setThreads(4);
+		mojo.setIoConcurrency(2);
+
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+		def.setManifestFile(getResource("maven-plugin-api.mf"));
+
+		ArtifactDefinition signed = new ArtifactDefinition();
+		signed.setArtifact("org.example:signed:1.0");
+		signed.setManifestFile(getResource("maven-plugin-api.mf"));
+
+		ArtifactDefinition malformed = new ArtifactDefinition();
+		malformed.setArtifact("a");
+		malformed.setManifestFile(getResource("maven-plugin-api.mf"));
+
+		ArtifactDefinition missing = new ArtifactDefinition();
+		missing.setManifestFile(getResource("maven-plugin-api.mf"));
+
+		mojo.setArtifacts(Arrays.asList(def, signed, malformed, missing));
+		try {
+			mojo.execute();
+			fail("Expected failure");
+		} catch (MojoFailureException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+			assertEquals(1, e.getSuppressed().length);
+			assertTrue(Files.exists(TMP.resolve("maven-plugin-api-3.5.0.jar")));
+		} finally {
+			Files.deleteIfExists(TMP.resolve("maven-plugin-api-3.5.0.jar"));
+			deleteTree(repo);
+		}
+	}
+
+	@Test
+	public void testReport() throws Throwable {
+		Path repo = Files.createTempDirectory("manifest-update-repo");
+		Path out = Files.createTempDirectory("manifest-update-out");
+		writeSignedJar(repo.resolve("org/example/signed/1.0/signed-1.0.jar"));
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(out.toFile());
+		mojo.setLocalRepository(repo.toFile());
+		mojo.setIncremental(true);
+		mojo.setStateFile(out.resolve("manifest-update.state").toFile());
+		mojo.setReport("csv");
+
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+		def.setManifestFile(getResource("maven-plugin-api.mf"));
+
+		ArtifactDefinition signed = new ArtifactDefinition();
+		signed.setArtifact("org.example:signed:1.0");
+		signed.setManifestFile(getResource("maven-plugin-api.mf"));
+
+		ArtifactDefinition malformed = new ArtifactDefinition();
+		malformed.setArtifact("a");
+		malformed.setManifestFile(getResource("maven-plugin-api.mf"));
+
+		mojo.setArtifacts(Arrays.asList(def, signed, malformed));
+		try {
+			try {
+				mojo.execute();
+				fail("Expected failure");
+			} catch (MojoFailureException e) {
+				// expected.
+			}
+			List<String> lines = Files.readAllLines(out.resolve("manifest-update-report.csv"));
+			assertEquals(4, lines.size());
+			assertTrue(lines.get(0).startsWith("artifact,path,outcome,error,entries,"));
+			String[] processed = lines.get(1).split(",");
+			assertEquals("processed", processed[2]);
+			long entries;
+			try (JarFile jf = new JarFile(out.resolve("maven-plugin-api-3.5.0.jar").toFile())) {
+				entries = jf.stream().count();
+			}
+			assertEquals(entries, Long.parseLong(processed[4]));
+			assertEquals(Files.size(out.resolve("maven-plugin-api-3.5.0.jar")), Long.parseLong(processed[6]));
+			assertTrue(Long.parseLong(processed[7]) < Long.parseLong(processed[8]));
+			assertEquals("skipped-signed", lines.get(2).split(",")[2]);
+			assertEquals("failed", lines.get(3).split(",")[2]);
+
+			mojo.setReport("json");
+			mojo.setArtifacts(Arrays.asList(def));
+			mojo.execute();
+			String json = new String(Files.readAllBytes(out.resolve("manifest-update-report.json")),
+					StandardCharsets.UTF_8);
+			assertTrue(json.contains("\"outcome\": \"up-to-date\""));
+			assertTrue(json.contains("\"copy\": "));
+		} finally {
+			deleteTree(repo);
+			deleteTree(out);
+		}
+	}
+
+	/**
+	 * Write a JAR file that appears signed, having a digest for its entry in the
+	 * manifest, and a signature file.
+	 */
+	private void writeSignedJar(Path jar) throws IOException {
+		Files.createDirectories(jar.getParent());
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		Attributes digest = new Attributes();
+		digest.putValue("SHA-256-Digest", "ypeBEsobvcr6wjGzmiPcTaeG7/gUfE5yuYB3ha/uSLs=");
+		manifest.getEntries().put("a.txt", digest);
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+			out.putNextEntry(new ZipEntry("META-INF/SIGNER.SF"));
+			out.write("Signature-Version: 1.0\n\n".getBytes(StandardCharsets.UTF_8));
+			out.closeEntry();
+			out.putNextEntry(new ZipEntry("a.txt"));
+			out.write('a');
+			out.closeEntry();
+		}
+	}
+
+	@Test
+	public void testBatchSameSource() throws Throwable {
+		Path out = Files.createTempDirectory("manifest-update-out");
+		Path layer = out.resolve("layer.mf");
+		Files.write(layer, "Manifest-Version: 1.0\nBundle-Version: 3.5.1\nX-Layer: two\n\n"
+				.getBytes(StandardCharsets.UTF_8));
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(out.toFile());
+		mojo.setIncremental(true);
+		mojo.setStateFile(out.resolve("manifest-update.state").toFile());
+		mojo.setReport("csv");
+
+		ArtifactDefinition first = new ArtifactDefinition();
+		first.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+		first.setManifestFile(getResource("maven-plugin-api.mf"));
+		first.setMode("merge");
+
+		ArtifactDefinition second = new ArtifactDefinition();
+		second.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+		second.setManifestFile(layer.toFile());
+		second.setMode("merge");
+
+		mojo.setArtifacts(Arrays.asList(first, second));
+		try {
+			mojo.execute();
+			try (JarFile jf = new JarFile(out.resolve("maven-plugin-api-3.5.0.jar").toFile())) {
+				Attributes attrs = jf.getManifest().getMainAttributes();
+				assertEquals("Overwrite Entry", attrs.getValue("Built-By"));
+				assertEquals("3.5.1", attrs.getValue("Bundle-Version"));
+				assertEquals("two", attrs.getValue("X-Layer"));
+				assertEquals("org.apache.maven", attrs.getValue("Implementation-Vendor-Id"));
+			}
+			List<String> lines = Files.readAllLines(out.resolve("manifest-update-report.csv"));
+			assertEquals(3, lines.size());
+			assertEquals("processed", lines.get(1).split(",")[2]);
+			assertEquals("processed", lines.get(2).split(",")[2]);
+
+			// Changing any layer rebuilds.
+			mojo.execute();
+			lines = Files.readAllLines(out.resolve("manifest-update-report.csv"));
+			assertEquals("up-to-date", lines.get(2).split(",")[2]);
+			Files.write(layer, "Manifest-Version: 1.0\nX-Layer: three\n\n".getBytes(StandardCharsets.UTF_8));
+			mojo.execute();
+			try (JarFile jf = new JarFile(out.resolve("maven-plugin-api-3.5.0.jar").toFile())) {
+				assertEquals("three", jf.getManifest().getMainAttributes().getValue("X-Layer"));
+			}
+		} finally {
+			deleteTree(out);
+		}
+	}
+
+	@Test
+	public void testDependencies() throws Throwable {
+		Path repo = Files.createTempDirectory("manifest-update-repo");
+		Path out = Files.createTempDirectory("manifest-update-out");
+		try {
+			Set<Artifact> resolved = new LinkedHashSet<>();
+			resolved.add(dependency(repo, "org.example", "compile-dep", "compile", "jar"));
+			resolved.add(dependency(repo, "org.example", "runtime-dep", "runtime", "jar"));
+			resolved.add(dependency(repo, "org.example", "test-dep", "test", "jar"));
+			resolved.add(dependency(repo, "org.example", "excluded-dep", "compile", "jar"));
+			resolved.add(dependency(repo, "org.other", "other-dep", "compile", "jar"));
+			resolved.add(dependency(repo, "org.example", "plugin-dep", "compile", "maven-plugin"));
+			Artifact unpackaged = new DefaultArtifact("org.example", "module", "1.0", "compile", "jar", null,
+					new DefaultArtifactHandler("jar"));
+			unpackaged.setFile(out.toFile());
+			resolved.add(unpackaged);
+			MavenProject project = new MavenProject();
+			project.setArtifacts(resolved);
+
+			DependencySelection selection = new DependencySelection();
+			selection.setIncludes(Arrays.asList("org.example"));
+			selection.setExcludes(Arrays.asList("*:excluded-*"));
+			selection.setManifestFile(getResource("maven-plugin-api.mf"));
+			selection.setPublishArtifact(true);
+
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setOutputDirectory(out.toFile());
+			mojo.setLocalRepository(repo.toFile());
+			mojo.setProject(project);
+			mojo.setDependencies(Arrays.asList(selection));
+			mojo.setReport("csv");
+
+			List<ArtifactDefinition> defs = mojo.getDefinitions();
+			assertEquals(2, defs.size());
+			assertEquals("org.example:compile-dep:1.0", defs.get(0).getArtifact());
+			assertEquals("org.example:runtime-dep:1.0", defs.get(1).getArtifact());
+			assertTrue(defs.get(0).isPublishArtifact());
+
+			mojo.execute();
+			List<String> lines = Files.readAllLines(out.resolve("manifest-update-report.csv"));
+			assertEquals(3, lines.size());
+			assertEquals("processed", lines.get(1).split(",")[2]);
+			assertEquals("processed", lines.get(2).split(",")[2]);
+			Path published = repo.resolve("org/example/compile-dep/1.0/compile-dep-1.0.jar");
+			try (JarFile jf = new JarFile(published.toFile())) {
+				assertEquals("Overwrite Entry", jf.getManifest().getMainAttributes().getValue("Built-By"));
+			}
+			assertTrue(Files.exists(out.resolve("runtime-dep-1.0.jar")));
+			assertFalse(Files.exists(out.resolve("test-dep-1.0.jar")));
+			assertFalse(Files.exists(out.resolve("excluded-dep-1.0.jar")));
+
+			// Dependencies outside the local repository are never published.
+			mojo.setLocalRepository(out.resolve("elsewhere").toFile());
+			assertFalse(mojo.getDefinitions().get(0).isPublishArtifact());
+		} finally {
+			deleteTree(repo);
+			deleteTree(out);
+		}
+	}
+
+	@Test
+	public void testDependenciesResolvedOnDemand() throws Throwable {
+		Path repo = Files.createTempDirectory("manifest-update-repo");
+		try {
+			Artifact compile = dependency(repo, "org.example", "compile-dep", "compile", "jar");
+			Artifact test = dependency(repo, "org.example", "test-dep", "test", "jar");
+			List<DependencyResolutionRequest> requests = new ArrayList<>();
+			ProjectDependenciesResolver resolver = request -> {
+				requests.add(request);
+				List<Dependency> resolved = new ArrayList<>();
+				for (Artifact a : Arrays.asList(compile, test)) {
+					resolved.add(new Dependency(RepositoryUtils.toArtifact(a), a.getScope()));
+				}
+				return new DependencyResolutionResult() {
+
+					@Override
+					public DependencyNode getDependencyGraph() {
+						return null;
+					}
+
+					@Override
+					public List<Dependency> getDependencies() {
+						return resolved;
+					}
+
+					@Override
+					public List<Dependency> getResolvedDependencies() {
+						return resolved;
+					}
+
+					@Override
+					public List<Dependency> getUnresolvedDependencies() {
+						return Collections.emptyList();
+					}
+
+					@Override
+					public List<Exception> getCollectionErrors() {
+						return Collections.emptyList();
+					}
+
+					@Override
+					public List<Exception> getResolutionErrors(Dependency dependency) {
+						return Collections.emptyList();
+					}
+				};
+			};
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setProject(new MavenProject());
+			mojo.setSession(Sessions.create());
+			mojo.setDependencyResolver(resolver);
+
+			// Not resolved unless dependencies are selected.
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+			mojo.setArtifacts(Arrays.asList(def));
+			assertEquals(1, mojo.getDefinitions().size());
+			assertTrue(requests.isEmpty());
+
+			// Resolved in the selected scopes only.
+			DependencySelection selection = new DependencySelection();
+			selection.setManifestFile(getResource("maven-plugin-api.mf"));
+			mojo.setDependencies(Arrays.asList(selection));
+			List<ArtifactDefinition> defs = mojo.getDefinitions();
+			assertEquals(1, requests.size());
+			assertEquals(new ScopeDependencyFilter(Arrays.asList("compile", "runtime"), null),
+					requests.get(0).getResolutionFilter());
+			assertEquals(2, defs.size());
+			assertEquals("org.example:compile-dep:1.0", defs.get(1).getArtifact());
+		} finally {
+			deleteTree(repo);
+		}
+	}
+
+	private Artifact dependency(Path repo, String groupId, String artifactId, String scope, String type)
+			throws Throwable {
+		Path dir = Files.createDirectories(repo.resolve(groupId.replace('.', '/')).resolve(artifactId).resolve("1.0"));
+		Path jar = dir.resolve(artifactId + "-1.0.jar");
+		Files.copy(getResource("maven-plugin-api-3.5.0.jar").toPath(), jar);
+		Artifact artifact = new DefaultArtifact(groupId, artifactId, "1.0", scope, type, null,
+				new DefaultArtifactHandler(type));
+		artifact.setFile(jar.toFile());
+		return artifact;
+	}
+
+	@Test
+	public void testJarFilesPattern() throws Throwable {
+		Path base = Files.createTempDirectory("manifest-update-lib");
+		Path out = Files.createTempDirectory("manifest-update-out");
+		try {
+			Path lib = Files.createDirectories(base.resolve("lib"));
+			Files.createDirectories(lib.resolve("a/b"));
+			for (String name : Arrays.asList("top.jar", "a/one.jar", "a/b/two.jar")) {
+				Files.copy(getResource("maven-plugin-api-3.5.0.jar").toPath(), lib.resolve(name));
+			}
+			Files.write(lib.resolve("a/notes.txt"), new byte[0]);
+
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFiles(base.toString() + "/lib/**/*.jar");
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setOutputDirectory(out.toFile());
+			mojo.setThreads(2);
+			mojo.setReport("csv");
+			mojo.setArtifacts(Arrays.asList(def));
+			mojo.execute();
+
+			for (String name : Arrays.asList("top.jar", "a/one.jar", "a/b/two.jar")) {
+				try (JarFile jf = new JarFile(out.resolve(name).toFile())) {
+					assertEquals("Overwrite Entry", jf.getManifest().getMainAttributes().getValue("Built-By"));
+				}
+			}
+			assertEquals(4, Files.readAllLines(out.resolve("manifest-update-report.csv")).size());
+
+			// A directory matches all JAR files below it, a narrower pattern only some.
+			List<String> found = new ArrayList<>();
+			def.setJarFiles(lib.toString());
+			mojo.find(def, d -> found.add(d.getOutputPath().replace('\\', '/')));
+			Collections.sort(found);
+			assertEquals(Arrays.asList("a/b/two.jar", "a/one.jar", "top.jar"), found);
+			found.clear();
+			def.setJarFiles(base.toString() + "/lib/a/*.jar");
+			mojo.find(def, d -> found.add(d.getOutputPath()));
+			assertEquals(Arrays.asList("one.jar"), found);
+		} finally {
+			deleteTree(base);
+			deleteTree(out);
+		}
+	}
+
+	@Test
+	public void testSharedRewrite() throws Throwable {
+		Path repo = Files.createTempDirectory("manifest-update-repo");
+		Path first = Files.createTempDirectory("manifest-update-out");
+		Path second = Files.createTempDirectory("manifest-update-out");
+		try {
+			Path dir = Files.createDirectories(repo.resolve("org/example/demo/1.0"));
+			Path jar = dir.resolve("demo-1.0.jar");
+			Files.copy(getResource("maven-plugin-api-3.5.0.jar").toPath(), jar);
+
+			// Two modules of a parallel build publishing the same artifact.
+			RewriteRegistry registry = new RewriteRegistry();
+			List<PackageMOJO> mojos = new ArrayList<>();
+			for (Path out : Arrays.asList(first, second)) {
+				ArtifactDefinition def = new ArtifactDefinition();
+				def.setArtifact("org.example:demo:1.0");
+				def.setManifestFile(getResource("maven-plugin-api.mf"));
+				def.setPublishArtifact(true);
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(out.toFile());
+				mojo.setLocalRepository(repo.toFile());
+				mojo.setPublishOutput("copy");
+				mojo.setRegistry(registry);
+				mojo.setReport("csv");
+				mojo.setArtifacts(Arrays.asList(def));
+				mojos.add(mojo);
+			}
+			List<Thread> threads = new ArrayList<>();
+			List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+			for (PackageMOJO mojo : mojos) {
+				threads.add(new Thread(() -> {
+					try {
+						mojo.execute();
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}));
+			}
+			threads.forEach(Thread::start);
+			for (Thread t : threads) {
+				t.join();
+			}
+			assertTrue(errors.toString(), errors.isEmpty());
+
+			List<String> outcomes = new ArrayList<>();
+			for (Path out : Arrays.asList(first, second)) {
+				outcomes.add(Files.readAllLines(out.resolve("manifest-update-report.csv")).get(1).split(",")[2]);
+				assertArrayEquals(Files.readAllBytes(jar), Files.readAllBytes(out.resolve("demo-1.0.jar")));
+			}
+			Collections.sort(outcomes);
+			assertEquals(Arrays.asList("processed", "reused"), outcomes);
+			try (JarFile jf = new JarFile(jar.toFile())) {
+				assertEquals("Overwrite Entry", jf.getManifest().getMainAttributes().getValue("Built-By"));
+			}
+			// Publishing locks against other processes.
+			assertTrue(Files.exists(repo.resolve(".locks/org~example~demo~1.0~demo-1.0.jar.lock")));
+		} finally {
+			deleteTree(repo);
+			deleteTree(first);
+			deleteTree(second);
+		}
+	}
+
+	@Test
+	public void testSharedRewriteOutputDirectories() throws Throwable {
+		Path first = Files.createTempDirectory("manifest-update-out");
+		Path second = Files.createTempDirectory("manifest-update-out");
+		try {
+			// Two modules applying the same rewrite, each to its own output directory.
+			RewriteRegistry registry = new RewriteRegistry();
+			List<String> outcomes = new ArrayList<>();
+			for (Path out : Arrays.asList(first, second)) {
+				ArtifactDefinition def = new ArtifactDefinition();
+				def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+				def.setManifestFile(getResource("maven-plugin-api.mf"));
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(out.toFile());
+				mojo.setRegistry(registry);
+				mojo.setReport("csv");
+				mojo.setArtifacts(Arrays.asList(def));
+				mojo.execute();
+				outcomes.add(Files.readAllLines(out.resolve("manifest-update-report.csv")).get(1).split(",")[2]);
+			}
+			assertEquals(Arrays.asList("processed", "reused"), outcomes);
+			assertEquals(1, registry.size());
+			assertArrayEquals(Files.readAllBytes(first.resolve("maven-plugin-api-3.5.0.jar")),
+					Files.readAllBytes(second.resolve("maven-plugin-api-3.5.0.jar")));
+			try (JarFile jf = new JarFile(second.resolve("maven-plugin-api-3.5.0.jar").toFile())) {
+				assertEquals("Overwrite Entry", jf.getManifest().getMainAttributes().getValue("Built-By"));
+			}
+		} finally {
+			deleteTree(first);
+			deleteTree(second);
+		}
+	}
+
+	@Test
+	public void testSharedRewriteManifestChanged() throws Throwable {
+		Path out = Files.createTempDirectory("manifest-update-out");
+		try {
+			Path layer = out.resolve("layer.mf");
+			Files.write(layer, "Manifest-Version: 1.0\nX-Layer: one\n\n".getBytes(StandardCharsets.UTF_8));
+			RewriteRegistry registry = new RewriteRegistry();
+			List<String> outcomes = new ArrayList<>();
+			for (String value : Arrays.asList("one", "one", "two")) {
+				// The same path, regenerated with new content.
+				Files.write(layer,
+						("Manifest-Version: 1.0\nX-Layer: " + value + "\n\n").getBytes(StandardCharsets.UTF_8));
+				ArtifactDefinition def = new ArtifactDefinition();
+				def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+				def.setManifestFile(layer.toFile());
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(out.toFile());
+				mojo.setRegistry(registry);
+				mojo.setReport("csv");
+				mojo.setArtifacts(Arrays.asList(def));
+				mojo.execute();
+				outcomes.add(Files.readAllLines(out.resolve("manifest-update-report.csv")).get(1).split(",")[2]);
+				try (JarFile jf = new JarFile(out.resolve("maven-plugin-api-3.5.0.jar").toFile())) {
+					assertEquals(value, jf.getManifest().getMainAttributes().getValue("X-Layer"));
+				}
+			}
+			assertEquals(Arrays.asList("processed", "reused", "processed"), outcomes);
+			// The rewrite overwritten is no longer held.
+			assertEquals(1, registry.size());
+		} finally {
+			deleteTree(out);
+		}
+	}
+
+	@Test
+	public void testOutputCache() throws Throwable {
+		Path cache = Files.createTempDirectory("manifest-update-cache");
+		Path first = Files.createTempDirectory("manifest-update-out");
+		Path second = Files.createTempDirectory("manifest-update-out");
+		try {
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+
+			// Separate projects, sharing the cache.
+			List<String> outcomes = new ArrayList<>();
+			for (Path out : Arrays.asList(first, second)) {
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(out.toFile());
+				mojo.setCacheDirectory(cache.toFile());
+				mojo.setReport("csv");
+				mojo.setArtifacts(Arrays.asList(def));
+				mojo.execute();
+				outcomes.add(Files.readAllLines(out.resolve("manifest-update-report.csv")).get(1).split(",")[2]);
+			}
+			assertEquals(Arrays.asList("processed", "cached"), outcomes);
+			assertArrayEquals(Files.readAllBytes(first.resolve("maven-plugin-api-3.5.0.jar")),
+					Files.readAllBytes(second.resolve("maven-plugin-api-3.5.0.jar")));
+			Path entry;
+			try (Stream<Path> files = Files.walk(cache)) {
+				entry = files.filter(p -> p.toString().endsWith(".jar")).findFirst().get();
+			}
+			// Added as a link to the output, (on the same file store).
+			if (Files.getFileStore(cache).equals(Files.getFileStore(first))) {
+				assertTrue(Files.isSameFile(first.resolve("maven-plugin-api-3.5.0.jar"), entry));
+			}
+
+			// The cache is only trimmed when added to.
+			PackageMOJO restored = new PackageMOJO();
+			restored.setOutputDirectory(second.toFile());
+			restored.setCacheDirectory(cache.toFile());
+			restored.setCacheSize(0);
+			restored.setArtifacts(Arrays.asList(def));
+			restored.execute();
+			assertTrue(Files.exists(entry));
+
+			// A different manifest is a different entry, and the oldest entries are
+			// removed once the cache is full.
+			Path layer = first.resolve("layer.mf");
+			Files.write(layer, "Manifest-Version: 1.0\nX-Layer: two\n\n".getBytes(StandardCharsets.UTF_8));
+			def.setManifestFile(layer.toFile());
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setOutputDirectory(second.toFile());
+			mojo.setCacheDirectory(cache.toFile());
+			mojo.setCacheSize(0);
+			mojo.setReport("csv");
+			mojo.setArtifacts(Arrays.asList(def));
+			mojo.execute();
+			assertEquals("processed",
+					Files.readAllLines(second.resolve("manifest-update-report.csv")).get(1).split(",")[2]);
+			try (Stream<Path> files = Files.walk(cache)) {
+				assertEquals(0, files.filter(p -> p.toString().endsWith(".jar")).count());
+			}
+		} finally {
+			deleteTree(cache);
+			deleteTree(first);
+			deleteTree(second);
+		}
+	}
+
+	@Test
+	public void testOutputCacheLink() throws Throwable {
+		Path cache = Files.createTempDirectory("manifest-update-cache");
+		List<Path> outs = new ArrayList<>();
+		try {
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+
+			// Restored as links to the cache entry, so using the entry again must not
+			// modify the outputs already restored.
+			List<FileTime> times = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				Path out = Files.createTempDirectory("manifest-update-out");
+				outs.add(out);
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(out.toFile());
+				mojo.setCacheDirectory(cache.toFile());
+				mojo.setCacheLink(true);
+				mojo.setArtifacts(Arrays.asList(def));
+				mojo.execute();
+				times.add(Files.getLastModifiedTime(out.resolve("maven-plugin-api-3.5.0.jar")));
+				Thread.sleep(20);
+			}
+			Path second = outs.get(1).resolve("maven-plugin-api-3.5.0.jar");
+			assertTrue(AtomicFiles.isLinked(second));
+			assertEquals(times.get(1), Files.getLastModifiedTime(second));
+			try (Stream<Path> files = Files.walk(cache)) {
+				assertEquals(1, files.filter(p -> p.toString().endsWith(".used")).count());
+			}
+		} finally {
+			deleteTree(cache);
+			for (Path out : outs) {
+				deleteTree(out);
+			}
+		}
+	}
+
+	@Test
+	public void testPipelinedCopy() throws Throwable {
+		Path direct = Files.createTempDirectory("manifest-update-out");
+		Path pipelined = Files.createTempDirectory("manifest-update-out");
+		Path offHeap = Files.createTempDirectory("manifest-update-out");
+		Path dir = Files.createTempDirectory("manifest-update");
+		try {
+			Path jar = dir.resolve("pipelined-1.0.jar");
+			Manifest manifest = new Manifest();
+			manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+			writeJar(jar, manifest, 200, 8192);
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(jar.toFile());
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+
+			for (Path out : Arrays.asList(direct, pipelined, offHeap)) {
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(out.toFile());
+				// Small buffers, so the ring is reused many times.
+				mojo.setPipelineMemory(out == direct ? 0 : 16);
+				mojo.setDirectBuffers(out == offHeap);
+				mojo.setReport("none");
+				mojo.setArtifacts(Arrays.asList(def));
+				mojo.execute();
+			}
+			for (Path out : Arrays.asList(pipelined, offHeap)) {
+				assertArrayEquals(Files.readAllBytes(direct.resolve("pipelined-1.0.jar")),
+						Files.readAllBytes(out.resolve("pipelined-1.0.jar")));
+				try (JarFile jf = new JarFile(out.resolve("pipelined-1.0.jar").toFile())) {
+					Enumeration<JarEntry> entries = jf.entries();
+					while (entries.hasMoreElements()) {
+						readFully(jf, entries.nextElement());
+					}
+				}
+			}
+			// Less than two of the smallest buffers is raised to two buffers.
+			assertEquals(16 * 1024, PipelinedCopier.MIN_MEMORY);
+			assertEquals(PipelinedCopier.MIN_MEMORY, PipelinedCopier.getMemory(1024));
+			assertEquals(64 * 1024, PipelinedCopier.getMemory(64 * 1024));
+		} finally {
+			deleteTree(direct);
+			deleteTree(pipelined);
+			deleteTree(offHeap);
+			deleteTree(dir);
+		}
+	}
+
+	@Test
+	public void testAllocationPerEntry() throws Throwable {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		int count = 1000;
+		Path small = Files.createTempFile("manifest-update-small", ".jar");
+		Path large = Files.createTempFile("manifest-update-large", ".jar");
+		Path out = Files.createTempFile("manifest-update-out", ".jar");
+		try {
+			// Same names, entries of 64 bytes and 16KB.
+			writeJar(small, count, 64);
+			writeJar(large, count, 16384);
+			for (int level : new int[] { -1, 0, 6 }) {
+				// Warm up, so the pooled buffers and codecs exist.
+				copy(threads, small, out, level);
+				copy(threads, large, out, level);
+
+				long perSmall = copy(threads, small, out, level) / count;
+				long perLarge = copy(threads, large, out, level) / count;
+				String message = "Level " + level + " allocated " + perSmall + " bytes per 64 byte entry, " + perLarge
+						+ " bytes per 16KB entry";
+				assertTrue(message, perLarge < perSmall + 512);
+				// Iterating and copying entries allocates nothing per entry, beyond the
+				// central directory being built, (and the pending entry and task when
+				// recompressing).
+				long limit = level < 0 ? 512 : 1024;
+				assertTrue(message, perSmall < limit && perLarge < limit);
+			}
+		} finally {
+			Files.deleteIfExists(small);
+			Files.deleteIfExists(large);
+			Files.deleteIfExists(out);
+		}
+	}
+
+	/**
+	 * Copy every entry of the archive on this thread, as the package goal does.
+	 * 
+	 * @return The bytes allocated by this thread.
+	 */
+	private long copy(ThreadMXBean threads, Path source, Path target, int level) throws IOException {
+		long id = Thread.currentThread().getId();
+		long start = threads.getThreadAllocatedBytes(id);
+		try (ZipArchive archive = ZipArchive.open(source);
+				ZipArchiveWriter writer = new ZipArchiveWriter(target, new Checksums(Checksums.DEFAULT_ALGORITHMS))) {
+			if (level < 0) {
+				for (ZipArchive.Entry e : archive.getEntries()) {
+					writer.copyEntry(archive, e);
+				}
+			} else {
+				new Recompressor(Runnable::run, level, 1).copy(archive, archive.getEntries(), writer);
+			}
+			writer.finish(archive.getComment());
+		}
+		return threads.getThreadAllocatedBytes(id) - start;
+	}
+
+	private void writeJar(Path jar, int count, int size) throws IOException {
+		writeJar(jar, null, count, size);
+	}
+
+	private void writeJar(Path jar, Manifest manifest, int count, int size) throws IOException {
+		Random random = new Random(count);
+		byte[] data = new byte[size];
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+			if (manifest != null) {
+				out.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+				manifest.write(out);
+				out.closeEntry();
+			}
+			for (int i = 0; i < count; i++) {
+				for (int j = 0; j < size; j++) {
+					data[j] = (byte) ('a' + random.nextInt(16));
+				}
+				out.putNextEntry(new ZipEntry(String.format("com/example/Entry%05d.class", i)));
+				out.write(data);
+				out.closeEntry();
+			}
+		}
+	}
+
+	@Test
+	public void testIncremental() throws Throwable {
+		Path stateFile = TMP.resolve("manifest-update-test.state");
+		Path outFile = TMP.resolve("maven-plugin-api-3.5.0.jar");
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(TMP.toFile());
+		mojo.setIncremental(true);
+		mojo.setStateFile(stateFile.toFile());
+
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+		def.setManifestFile(getResource("maven-plugin-api.mf"));
+		def.setMode("merge");
+		mojo.setArtifacts(Arrays.asList(def));
+		try {
+			mojo.execute();
+			assertTrue(Files.exists(stateFile));
+			// The output hash is calculated as the output is written.
+			Properties properties = new Properties();
+			try (InputStream in = Files.newInputStream(stateFile)) {
+				properties.load(in);
+			}
+			assertTrue(properties.getProperty(outFile.toAbsolutePath() + ".output")
+					.endsWith(":" + BuildState.hash(outFile)));
+
+			// Unchanged, so not rewritten.
+			FileTime marker = FileTime.fromMillis(Files.getLastModifiedTime(outFile).toMillis() - 60000);
+			Files.setLastModifiedTime(outFile, marker);
+			mojo.execute();
+			assertEquals(marker, Files.getLastModifiedTime(outFile));
+
+			// Options changed, so rewritten.
+			def.setMode("overwrite");
+			mojo.execute();
+			assertNotEquals(marker, Files.getLastModifiedTime(outFile));
+			try (JarFile jf = new JarFile(outFile.toFile())) {
+				assertNull(jf.getManifest().getMainAttributes().getValue("Archiver-Version"));
+			}
+
+			// Output damaged, so rewritten.
+			Files.write(outFile, new byte[] { 1, 2, 3 });
+			mojo.execute();
+			try (JarFile jf = new JarFile(outFile.toFile())) {
+				assertEquals("3.5.0", jf.getManifest().getMainAttributes().getValue("Bundle-Version"));
+			}
+		} finally {
+			Files.deleteIfExists(outFile);
+			Files.deleteIfExists(stateFile);
+		}
+	}
+
+	@Test
+	public void testPublishChecksums() throws Throwable {
+		Path repo = Files.createTempDirectory("manifest-update-repo");
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path jar = repo.resolve("org/example/demo/1.0/demo-1.0.jar");
+		Files.createDirectories(jar.getParent());
+		Files.copy(getResource("maven-plugin-api-3.5.0.jar").toPath(), jar);
+
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(outDir.toFile());
+		mojo.setLocalRepository(repo.toFile());
+		mojo.setPublishOutput("link");
+		mojo.setChecksums(Arrays.asList("SHA-1", "MD5", "SHA-256", "SHA-512"));
+
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setArtifact("org.example:demo:1.0");
+		def.setManifestFile(getResource("maven-plugin-api.mf"));
+		def.setPublishArtifact(true);
+		try {
+			mojo.process(def);
+			try (JarFile jf = new JarFile(jar.toFile())) {
+				assertEquals("Overwrite Entry", jf.getManifest().getMainAttributes().getValue("Built-By"));
+			}
+			// Published once, and linked into the output directory.
+			assertTrue(Files.isSameFile(jar, outDir.resolve("demo-1.0.jar")));
+			try (Stream<Path> files = Files.list(jar.getParent())) {
+				assertEquals(0, files.filter(p -> p.toString().endsWith(".tmp")).count());
+			}
+			byte[] published = Files.readAllBytes(jar);
+			for (String algorithm : mojo.getChecksums()) {
+				Path digestFile = jar.resolveSibling("demo-1.0.jar." + Checksums.extension(algorithm));
+				String expected = Checksums.toHex(MessageDigest.getInstance(algorithm).digest(published));
+				assertEquals(algorithm, expected, new String(Files.readAllBytes(digestFile), StandardCharsets.UTF_8));
+			}
+		} finally {
+			deleteTree(repo);
+			deleteTree(outDir);
+		}
+	}
+
+	@Test
+	public void testUnchangedManifest() throws Throwable {
+		Path repo = Files.createTempDirectory("manifest-update-repo");
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path jar = repo.resolve("org/example/demo/1.0/demo-1.0.jar");
+		Files.createDirectories(jar.getParent());
+		Files.copy(getResource("maven-plugin-api-3.5.0.jar").toPath(), jar);
+		FileTime modified = Files.getLastModifiedTime(jar);
+		Path manifest = outDir.resolve("same.mf");
+		Files.write(manifest, "Manifest-Version: 1.0\nImplementation-Version: 3.5.0\n\n"
+				.getBytes(StandardCharsets.UTF_8));
+
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(outDir.toFile());
+		mojo.setLocalRepository(repo.toFile());
+		mojo.setPublishOutput("link");
+		mojo.setReport("csv");
+
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+		def.setManifestFile(manifest.toFile());
+
+		ArtifactDefinition published = new ArtifactDefinition();
+		published.setArtifact("org.example:demo:1.0");
+		published.setManifestFile(manifest.toFile());
+		published.setPublishArtifact(true);
+
+		mojo.setArtifacts(Arrays.asList(def, published));
+		try {
+			mojo.execute();
+			// Copied as is, never rewritten, and not linked as not published.
+			assertArrayEquals(Files.readAllBytes(def.getJarFile().toPath()),
+					Files.readAllBytes(outDir.resolve("maven-plugin-api-3.5.0.jar")));
+			assertFalse(Files.isSameFile(def.getJarFile().toPath(), outDir.resolve("maven-plugin-api-3.5.0.jar")));
+			// Not published, but still linked into the output directory.
+			assertEquals(modified, Files.getLastModifiedTime(jar));
+			assertFalse(Files.exists(jar.resolveSibling("demo-1.0.jar.sha1")));
+			assertTrue(Files.isSameFile(jar, outDir.resolve("demo-1.0.jar")));
+
+			List<String> lines = Files.readAllLines(outDir.resolve("manifest-update-report.csv"));
+			assertEquals("unchanged", lines.get(1).split(",")[2]);
+			assertEquals("unchanged", lines.get(2).split(",")[2]);
+
+			// Recompressing is never a no-op.
+			def.setCompressionLevel(0);
+			mojo.execute();
+			lines = Files.readAllLines(outDir.resolve("manifest-update-report.csv"));
+			assertEquals("processed", lines.get(1).split(",")[2]);
+		} finally {
+			deleteTree(repo);
+			deleteTree(outDir);
+		}
+	}
+
+	@Test
+	public void testUnchangedNotWritten() throws Throwable {
+		Path dir = Files.createTempDirectory("manifest-update");
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path cache = Files.createTempDirectory("manifest-update-cache");
+		Path source = dir.resolve("maven-plugin-api-3.5.0.jar");
+		Files.copy(getResource("maven-plugin-api-3.5.0.jar").toPath(), source);
+		FileTime modified = Files.getLastModifiedTime(source);
+		Path manifest = dir.resolve("same.mf");
+		Files.write(manifest, "Manifest-Version: 1.0\nImplementation-Version: 3.5.0\n\n"
+				.getBytes(StandardCharsets.UTF_8));
+		Path outFile = outDir.resolve(source.getFileName());
+		try {
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(source.toFile());
+			def.setManifestFile(manifest.toFile());
+			for (int i = 0; i < 2; i++) {
+				PackageMOJO mojo = new PackageMOJO();
+				mojo.setOutputDirectory(outDir.toFile());
+				mojo.setCacheDirectory(cache.toFile());
+				mojo.setReport("csv");
+				mojo.setArtifacts(Arrays.asList(def));
+				mojo.execute();
+				assertEquals("unchanged",
+						Files.readAllLines(outDir.resolve("manifest-update-report.csv")).get(1).split(",")[2]);
+				// The output is a copy of the source (never linked to it, so
+				// can't modify it), and the source was not written.
+				assertFalse(Files.isSameFile(source, outFile));
+				assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(outFile));
+				assertEquals(modified, Files.getLastModifiedTime(source));
+			}
+			// Nothing was hashed into, or stored in, the output cache.
+			try (Stream<Path> files = Files.walk(cache)) {
+				assertEquals(0, files.filter(p -> p.toString().endsWith(".jar")).count());
+			}
+		} finally {
+			deleteTree(dir);
+			deleteTree(outDir);
+			deleteTree(cache);
+		}
+	}
+
+	@Test
+	public void testPublishAppendCopy() throws Throwable {
+		Path repo = Files.createTempDirectory("manifest-update-repo");
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path jar = repo.resolve("org/example/demo/1.0/demo-1.0.jar");
+		Files.createDirectories(jar.getParent());
+		Files.copy(getResource("maven-plugin-api-3.5.0.jar").toPath(), jar);
+
+		PackageMOJO mojo = new PackageMOJO();
+		mojo.setOutputDirectory(outDir.toFile());
+		mojo.setLocalRepository(repo.toFile());
+		mojo.setPublishOutput("copy");
+
+		ArtifactDefinition def = new ArtifactDefinition();
+		def.setArtifact("org.example:demo:1.0");
+		def.setManifestFile(getResource("maven-plugin-api.mf"));
+		def.setStrategy("append");
+		def.setPublishArtifact(true);
+		try {
+			mojo.process(def);
+			Path outFile = outDir.resolve("demo-1.0.jar");
+			assertFalse(Files.isSameFile(jar, outFile));
+			assertArrayEquals(Files.readAllBytes(jar), Files.readAllBytes(outFile));
+			try (JarFile jf = new JarFile(jar.toFile())) {
+				assertEquals("Overwrite Entry", jf.getManifest().getMainAttributes().getValue("Built-By"));
+			}
+			try (Stream<Path> files = Files.list(jar.getParent())) {
+				assertEquals(2, files.count());
+			}
+		} finally {
+			deleteTree(repo);
+			deleteTree(outDir);
+		}
+	}
+
+	private void deleteTree(Path root) throws IOException {
+		try (Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	private byte[] readFully(JarFile jarFile, JarEntry entry) throws IOException {
+		try (InputStream in = jarFile.getInputStream(entry)) {
+			return readFully(in);
+		}
+	}
+
+	private byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int len;
+		while ((len = in.read(buffer)) > 0) {
+			out.write(buffer, 0, len);
+		}
+		return out.toByteArray();
+	}
+
 	private File getResource(String resource) throws Throwable {
 		return Paths.get(TestPackageMojo.class.getClassLoader().getResource(resource).toURI()).toFile();
 	}
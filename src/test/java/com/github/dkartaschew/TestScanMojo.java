@@ -0,0 +1,306 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.dkartaschew;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.junit.Assume;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Local repository scan tests
+ */
+public class TestScanMojo {
+
+	private final Path TMP = Paths.get(System.getProperty("java.io.tmpdir"));
+
+	@Test
+	public void testScan() throws Throwable {
+		Path repo = Files.createTempDirectory(TMP, "scan-repo");
+		Path outDir = Files.createTempDirectory(TMP, "scan-out");
+		try {
+			writeJar(repo, "org.example", "ok", "1.0", "Built-By: Overwrite Entry\nBundle-Version: 3.5.0\n");
+			writeJar(repo, "org.example", "missing", "1.0", "Built-By: Overwrite Entry\n");
+			writeJar(repo, "org.example", "mismatch", "1.0", "Built-By: Someone\nBundle-Version: 3.5.0\n");
+			writeJar(repo, "org.other", "excluded", "1.0", "Built-By: Someone\n");
+			Path noManifest = artifactDir(repo, "org.example", "bare", "1.0").resolve("bare-1.0.jar");
+			try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(noManifest))) {
+				out.putNextEntry(new ZipEntry("a.txt"));
+				out.closeEntry();
+			}
+			// Signed, having a digest for its entry.
+			writeJar(repo, "org.example", "signed", "1.0",
+					"\nName: a.txt\nSHA-256-Digest: ypeBEsobvcr6wjGzmiPcTaeG7/gUfE5yuYB3ha/uSLs=\n");
+			// Not main artifacts.
+			Path ok = artifactDir(repo, "org.example", "ok", "1.0");
+			Files.copy(ok.resolve("ok-1.0.jar"), ok.resolve("ok-1.0-sources.jar"));
+			Files.write(repo.resolve("stray.jar"), new byte[] { 1, 2, 3 });
+
+			ScanMOJO mojo = new ScanMOJO();
+			mojo.setLocalRepository(repo.toFile());
+			mojo.setManifestFile(getResource("maven-plugin-api.mf"));
+			mojo.setOutputDirectory(outDir.toFile());
+			mojo.setExcludes(Collections.singletonList("org.other"));
+			mojo.setThreads(2);
+			mojo.setGenerateArtifacts(true);
+			mojo.execute();
+
+			String json = new String(Files.readAllBytes(mojo.getReportFile()), StandardCharsets.UTF_8);
+			assertTrue(json.contains("\"artifact\": \"org.example:ok:1.0\""));
+			assertTrue(json.contains("\"mismatched\": {\"Built-By\": \"Someone\"}"));
+			assertFalse(json.contains("sources"));
+			assertFalse(json.contains("stray"));
+			assertFalse(json.contains("org.other"));
+
+			List<ScanMOJO.Result> results = mojo.scan(repo, ManifestCache.read(getResource("maven-plugin-api.mf")));
+			assertEquals(5, results.size());
+			ScanMOJO.Result missing = find(results, "org.example:missing:1.0");
+			assertEquals(ScanMOJO.Status.MISSING, missing.status);
+			assertEquals(Collections.singletonList("Bundle-Version"), missing.missing);
+			ScanMOJO.Result mismatch = find(results, "org.example:mismatch:1.0");
+			assertEquals(ScanMOJO.Status.MISMATCH, mismatch.status);
+			assertEquals("Someone", mismatch.mismatched.get("Built-By"));
+			assertEquals(ScanMOJO.Status.OK, find(results, "org.example:ok:1.0").status);
+			assertEquals(ScanMOJO.Status.NO_MANIFEST, find(results, "org.example:bare:1.0").status);
+			assertEquals(ScanMOJO.Status.SIGNED, find(results, "org.example:signed:1.0").status);
+
+			String artifacts = new String(Files.readAllBytes(mojo.getArtifactsFile()), StandardCharsets.UTF_8);
+			assertTrue(artifacts.contains("<artifact>org.example:missing:1.0</artifact>"));
+			assertTrue(artifacts.contains("<artifact>org.example:mismatch:1.0</artifact>"));
+			assertFalse(artifacts.contains("org.example:ok:1.0"));
+			assertFalse(artifacts.contains("org.example:signed:1.0"));
+		} finally {
+			deleteTree(repo);
+			deleteTree(outDir);
+		}
+	}
+
+	@Test
+	public void testScanCsvWildcard() throws Throwable {
+		Path repo = Files.createTempDirectory(TMP, "scan-repo");
+		Path outDir = Files.createTempDirectory(TMP, "scan-out");
+		Path template = outDir.resolve("template.mf");
+		try {
+			writeJar(repo, "org.example", "a", "1.0", "Built-By: Someone\n");
+			writeJar(repo, "org.example", "b", "1.0", "Other: value\n");
+			writeJar(repo, "com.example", "c", "1.0", "Other: value\n");
+			Files.write(template, "Manifest-Version: 1.0\nBuilt-By: *\n\n".getBytes(StandardCharsets.UTF_8));
+
+			ScanMOJO mojo = new ScanMOJO();
+			mojo.setLocalRepository(repo.toFile());
+			mojo.setManifestFile(template.toFile());
+			mojo.setOutputDirectory(outDir.toFile());
+			mojo.setIncludes(Arrays.asList("org.*:*"));
+			mojo.setReport("csv");
+			mojo.execute();
+
+			List<String> lines = Files.readAllLines(mojo.getReportFile(), StandardCharsets.UTF_8);
+			assertEquals("path,artifact,status,missing,mismatched,error", lines.get(0));
+			assertEquals(3, lines.size());
+			assertTrue(lines.get(1).contains(",org.example:a:1.0,ok,,,"));
+			assertTrue(lines.get(2).contains(",org.example:b:1.0,missing,Built-By,,"));
+			assertFalse(Files.exists(mojo.getArtifactsFile()));
+		} finally {
+			deleteTree(repo);
+			deleteTree(outDir);
+		}
+	}
+
+	@Test
+	public void testGeneratedArtifacts() throws Throwable {
+		Path repo = Files.createTempDirectory(TMP, "scan-repo");
+		Path outDir = Files.createTempDirectory(TMP, "scan-out");
+		Path template = outDir.resolve("template.mf");
+		try {
+			writeJar(repo, "org.example", "a", "1.0", "Built-By: Someone\n");
+			writeJar(repo, "org.example", "b", "1.0", "Other: value\n");
+			writeJar(repo, "org.example", "c", "1.0", "Bundle-Version: 1.0\n");
+			writeJar(repo, "org.example", "d", "1.0", "Bundle-Version: 3.5.0\n");
+			Files.write(template, "Manifest-Version: 1.0\nBuilt-By: *\nBundle-Version: 3.5.0\n\n"
+					.getBytes(StandardCharsets.UTF_8));
+
+			ScanMOJO mojo = new ScanMOJO();
+			mojo.setLocalRepository(repo.toFile());
+			mojo.setManifestFile(template.toFile());
+			mojo.setOutputDirectory(outDir.toFile());
+			mojo.setGenerateArtifacts(true);
+			mojo.execute();
+
+			// Run the generated configuration.
+			Document config = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(mojo.getArtifactsFile().toFile());
+			NodeList nodes = config.getDocumentElement().getElementsByTagName("artifact");
+			List<ArtifactDefinition> defs = new ArrayList<>();
+			for (int i = 0; i < nodes.getLength(); i++) {
+				Element node = (Element) nodes.item(i);
+				if (node.getParentNode() != config.getDocumentElement()) {
+					continue;
+				}
+				ArtifactDefinition def = new ArtifactDefinition();
+				def.setArtifact(node.getElementsByTagName("artifact").item(0).getTextContent());
+				def.setManifestFile(new File(node.getElementsByTagName("manifestFile").item(0).getTextContent()));
+				def.setMode(node.getElementsByTagName("mode").item(0).getTextContent());
+				defs.add(def);
+			}
+			// Only missing Built-By, which has no value to add, so left out.
+			assertEquals(3, defs.size());
+			assertEquals(mojo.getSupplementFile().toFile().getAbsoluteFile(), defs.get(0).getManifestFile());
+
+			Path updated = outDir.resolve("updated");
+			PackageMOJO update = new PackageMOJO();
+			update.setLocalRepository(repo.toFile());
+			update.setOutputDirectory(updated.toFile());
+			update.setArtifacts(defs);
+			update.execute();
+
+			Attributes a = readManifest(updated.resolve("a-1.0.jar"));
+			assertEquals("Someone", a.getValue("Built-By"));
+			assertEquals("3.5.0", a.getValue("Bundle-Version"));
+			Attributes b = readManifest(updated.resolve("b-1.0.jar"));
+			assertNull(b.getValue("Built-By"));
+			assertEquals("3.5.0", b.getValue("Bundle-Version"));
+			assertEquals("value", b.getValue("Other"));
+			Attributes c = readManifest(updated.resolve("c-1.0.jar"));
+			assertNull(c.getValue("Built-By"));
+			assertEquals("3.5.0", c.getValue("Bundle-Version"));
+			assertFalse(Files.exists(updated.resolve("d-1.0.jar")));
+		} finally {
+			deleteTree(repo);
+			deleteTree(outDir);
+		}
+	}
+
+	@Test
+	public void testScanSymbolicLinkCycle() throws Throwable {
+		Path repo = Files.createTempDirectory(TMP, "scan-repo");
+		try {
+			writeJar(repo, "org.example", "a", "1.0", "Built-By: Overwrite Entry\nBundle-Version: 3.5.0\n");
+			writeJar(repo, "org.example", "b", "1.0", "Built-By: Overwrite Entry\nBundle-Version: 3.5.0\n");
+			try {
+				Files.createSymbolicLink(repo.resolve("org/example/loop"), repo);
+			} catch (UnsupportedOperationException | IOException e) {
+				Assume.assumeNoException(e);
+			}
+
+			ScanMOJO mojo = new ScanMOJO();
+			mojo.setThreads(2);
+			List<ScanMOJO.Result> results = mojo.scan(repo, ManifestCache.read(getResource("maven-plugin-api.mf")));
+			assertEquals(2, results.size());
+			assertEquals(ScanMOJO.Status.OK, find(results, "org.example:a:1.0").status);
+			assertEquals(ScanMOJO.Status.OK, find(results, "org.example:b:1.0").status);
+		} finally {
+			deleteTree(repo);
+		}
+	}
+
+	@Test
+	public void testArtifactFilter() {
+		ArtifactFilter all = new ArtifactFilter(null, null);
+		assertTrue(all.accept("org.example", "a"));
+
+		ArtifactFilter filter = new ArtifactFilter(Arrays.asList("org.example", "com.*:lib-*"),
+				Arrays.asList("org.example:internal"));
+		assertTrue(filter.accept("org.example", "a"));
+		assertFalse(filter.accept("org.example", "internal"));
+		assertFalse(filter.accept("org.example.sub", "a"));
+		assertTrue(filter.accept("com.example", "lib-core"));
+		assertFalse(filter.accept("com.example", "core"));
+	}
+
+	@Test(expected = MojoFailureException.class)
+	public void testMissingRepository() throws Throwable {
+		ScanMOJO mojo = new ScanMOJO();
+		mojo.setLocalRepository(TMP.resolve("no-such-repository").toFile());
+		mojo.setManifestFile(getResource("maven-plugin-api.mf"));
+		mojo.setOutputDirectory(TMP.toFile());
+		mojo.execute();
+	}
+
+	private ScanMOJO.Result find(List<ScanMOJO.Result> results, String artifact) {
+		for (ScanMOJO.Result result : results) {
+			if (result.artifact.equals(artifact)) {
+				return result;
+			}
+		}
+		fail("No result for " + artifact);
+		return null;
+	}
+
+	private Path artifactDir(Path repo, String groupId, String artifactId, String version) throws IOException {
+		return Files.createDirectories(repo.resolve(groupId.replace('.', '/')).resolve(artifactId).resolve(version));
+	}
+
+	private void writeJar(Path repo, String groupId, String artifactId, String version, String attributes)
+			throws IOException {
+		Manifest manifest = new Manifest(new ByteArrayInputStream(
+				("Manifest-Version: 1.0\n" + attributes + "\n").getBytes(StandardCharsets.UTF_8)));
+		Path jar = artifactDir(repo, groupId, artifactId, version).resolve(artifactId + "-" + version + ".jar");
+		try (OutputStream os = Files.newOutputStream(jar); JarOutputStream out = new JarOutputStream(os, manifest)) {
+			out.putNextEntry(new ZipEntry("a.txt"));
+			out.write("a".getBytes(StandardCharsets.UTF_8));
+			out.closeEntry();
+		}
+	}
+
+	private Attributes readManifest(Path jar) throws IOException {
+		try (JarFile jarFile = new JarFile(jar.toFile())) {
+			return jarFile.getManifest().getMainAttributes();
+		}
+	}
+
+	private void deleteTree(Path root) throws IOException {
+		try (Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	private File getResource(String resource) throws Throwable {
+		return Paths.get(TestScanMojo.class.getClassLoader().getResource(resource).toURI()).toFile();
+	}
+
+}
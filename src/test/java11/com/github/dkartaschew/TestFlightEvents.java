@@ -0,0 +1,120 @@
+/*-
+ * Copyright 2019, Darran Kartaschew.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.dkartaschew;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Flight Recorder events, compiled and run only on Java 11 or later.
+ */
+public class TestFlightEvents {
+
+	@Test
+	public void testFlightEvents() throws Throwable {
+		Assume.assumeTrue(FlightRecorder.isAvailable());
+		Path outDir = Files.createTempDirectory("manifest-update-out");
+		Path dump = Files.createTempFile("manifest-update", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("com.github.dkartaschew.manifestupdate.Artifact");
+			recording.enable("com.github.dkartaschew.manifestupdate.Phase");
+			recording.enable("com.github.dkartaschew.manifestupdate.Entry");
+			recording.start();
+
+			PackageMOJO mojo = new PackageMOJO();
+			mojo.setOutputDirectory(outDir.toFile());
+			mojo.setEntryEventInterval(2);
+			ArtifactDefinition def = new ArtifactDefinition();
+			def.setJarFile(getResource("maven-plugin-api-3.5.0.jar"));
+			def.setManifestFile(getResource("maven-plugin-api.mf"));
+			mojo.process(def);
+
+			recording.stop();
+			recording.dump(dump);
+			int entries;
+			try (JarFile jf = new JarFile(outDir.resolve("maven-plugin-api-3.5.0.jar").toFile())) {
+				entries = jf.size();
+			}
+
+			List<RecordedEvent> artifacts = new ArrayList<>();
+			Set<String> phases = new LinkedHashSet<>();
+			int sampled = 0;
+			for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+				switch (event.getEventType().getName()) {
+				case "com.github.dkartaschew.manifestupdate.Artifact":
+					artifacts.add(event);
+					break;
+				case "com.github.dkartaschew.manifestupdate.Phase":
+					assertEquals(def.getJarFile().toString(), event.getString("artifact"));
+					phases.add(event.getString("phase"));
+					break;
+				case "com.github.dkartaschew.manifestupdate.Entry":
+					assertTrue(event.getString("path").endsWith("maven-plugin-api-3.5.0.jar"));
+					assertNotNull(event.getString("name"));
+					assertTrue(event.getLong("size") >= 0);
+					sampled++;
+					break;
+				default:
+					break;
+				}
+			}
+			assertEquals(1, artifacts.size());
+			assertEquals("processed", artifacts.get(0).getString("outcome"));
+			assertEquals(entries, artifacts.get(0).getLong("entries"));
+			assertTrue(artifacts.get(0).getLong("bytesWritten") > 0);
+			assertTrue(phases.containsAll(Arrays.asList("open", "manifest", "copy", "finish")));
+			// Every second entry, starting with the first.
+			assertEquals((entries + 1) / 2, sampled);
+		} finally {
+			Files.deleteIfExists(dump);
+			deleteTree(outDir);
+		}
+	}
+
+	private void deleteTree(Path root) throws IOException {
+		try (Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	private File getResource(String resource) throws Throwable {
+		return Paths.get(TestFlightEvents.class.getClassLoader().getResource(resource).toURI()).toFile();
+	}
+
+}